@@ -0,0 +1,78 @@
+package net.caprazzi.keez;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Copies of bodies between buffers, streams, channels and files, for getTo and putStream.
+ * Channels may write less than asked on each call, these loop until done.
+ */
+public class ChannelTransfer {
+
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Write the remaining bytes of a buffer
+	 * @return bytes written
+	 */
+	public static long write(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+		long written = 0;
+		while (buffer.hasRemaining()) {
+			written += channel.write(buffer);
+		}
+		return written;
+	}
+
+	/**
+	 * Write a region of a file with FileChannel.transferTo, which lets the os move
+	 * the bytes from the page cache to the target (ie with sendfile) without copying them to the heap
+	 * @return bytes written
+	 * @throws EOFException if the file ends before the region
+	 */
+	public static long transfer(FileChannel file, long position, long count, WritableByteChannel channel) throws IOException {
+		long written = 0;
+		while (written < count) {
+			long n = file.transferTo(position + written, count - written, channel);
+			if (n == 0 && position + written >= file.size()) {
+				throw new EOFException("file ends at " + file.size() + ", before " + (position + count));
+			}
+			written += n;
+		}
+		return written;
+	}
+
+	/**
+	 * Copy a stream to a new temporary file in a directory, through a small buffer.
+	 * The file is forced to disk and closed before returning.
+	 * @param prefix start of the file name
+	 * @return the file, that the caller must delete or rename
+	 */
+	public static File spool(InputStream in, File directory, String prefix) throws IOException {
+		File file = File.createTempFile(prefix, ".tmp", directory);
+		FileOutputStream out = new FileOutputStream(file);
+		boolean done = false;
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, read);
+			}
+			out.getChannel().force(false);
+			done = true;
+		}
+		finally {
+			out.close();
+			if (!done) {
+				file.delete();
+			}
+		}
+		return file;
+	}
+
+}
@@ -0,0 +1,22 @@
+package net.caprazzi.keez;
+
+import java.io.IOException;
+
+/**
+ * Compression algorithm for stored bodies, see {@link Compression}
+ */
+public interface Codec {
+
+	/**
+	 * @return the id stored with each encoded body, unique among registered codecs
+	 */
+	public byte getId();
+
+	public byte[] encode(byte[] data) throws IOException;
+
+	/**
+	 * @param length length of the decoded data, at most Compression.MAX_RATIO times the encoded length
+	 */
+	public byte[] decode(byte[] data, int offset, int length) throws IOException;
+
+}
@@ -0,0 +1,105 @@
+package net.caprazzi.keez;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compression of bodies before they are stored, for engines that write to disk.
+ *
+ * Bodies shorter than the threshold, or that don't get smaller, are stored as they are.
+ * Engines mark compressed records, so that a store can hold both.
+ *
+ * A compressed body is stored as the codec id, the length of the body, then the encoded body.
+ * Reading finds the codec by id among the registered ones, whatever codec is set
+ * for writing, so the codec can be changed on an existing store.
+ * {@link DeflateCodec} is always registered. A stored length more than MAX_RATIO times
+ * the encoded one is taken as corruption.
+ */
+public class Compression {
+
+	// codec id, decoded length
+	private static final int HEADER_SIZE = 1 + 4;
+
+	// decoded bytes per encoded byte at most, deflate can't do better than about 1032:1
+	static final int MAX_RATIO = 1032;
+
+	private static final ConcurrentHashMap<Byte, Codec> codecs = new ConcurrentHashMap<Byte, Codec>();
+	static {
+		register(new DeflateCodec());
+	}
+
+	private final Codec codec;
+	private final int threshold;
+
+	/**
+	 * @param codec used to compress new bodies
+	 * @param threshold bodies shorter than this are not compressed
+	 */
+	public Compression(Codec codec, int threshold) {
+		Helpers.notNull(codec);
+		if (threshold < 1) {
+			throw new IllegalArgumentException("threshold must be positive: " + threshold);
+		}
+		this.codec = codec;
+		this.threshold = threshold;
+		register(codec);
+	}
+
+	/**
+	 * Make a codec available for reading
+	 * @throws IllegalArgumentException if another codec has the same id
+	 */
+	public static void register(Codec codec) {
+		Codec existing = codecs.putIfAbsent(codec.getId(), codec);
+		if (existing != null && existing.getClass() != codec.getClass()) {
+			throw new IllegalArgumentException("codec id " + codec.getId() + " is taken by " + existing.getClass());
+		}
+	}
+
+	/**
+	 * @return the body to store, or null if it should be stored as it is
+	 */
+	public byte[] compress(byte[] body) throws IOException {
+		if (body.length < threshold) {
+			return null;
+		}
+		byte[] encoded = codec.encode(body);
+		if (HEADER_SIZE + encoded.length >= body.length) {
+			return null;
+		}
+		return ByteBuffer.allocate(HEADER_SIZE + encoded.length)
+			.put(codec.getId())
+			.putInt(body.length)
+			.put(encoded)
+			.array();
+	}
+
+	/**
+	 * @param stored a body returned by compress
+	 */
+	public static byte[] decompress(byte[] stored) throws IOException {
+		if (stored.length < HEADER_SIZE) {
+			throw new IOException("compressed body too short: " + stored.length);
+		}
+		Codec codec = codecs.get(stored[0]);
+		if (codec == null) {
+			throw new IOException("unknown codec id " + stored[0]);
+		}
+		int length = ByteBuffer.wrap(stored, 1, 4).getInt();
+		// a corrupted length must not be allocated
+		if (length < 0 || length > (long) (stored.length - HEADER_SIZE) * MAX_RATIO) {
+			throw new IOException("bad decoded length " + length + " for " + stored.length + " compressed bytes");
+		}
+		return codec.decode(stored, HEADER_SIZE, length);
+	}
+
+	public Codec getCodec() {
+		return codec;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+}
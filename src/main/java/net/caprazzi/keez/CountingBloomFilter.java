@@ -0,0 +1,167 @@
+package net.caprazzi.keez;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Set of keys that can answer "definitely not present" without looking at the index.
+ *
+ * A Bloom filter with 4-bit counters instead of bits, so that keys can be removed.
+ * Each key sets k counters, chosen by double hashing a 64 bit hash of the key.
+ * A key might be present only if all its counters are non zero.
+ *
+ * Counters reaching 15 stay there: they are never decremented again,
+ * which can only cause more false positives, never a false negative.
+ * Removing a key that was not added breaks that: callers must only
+ * remove keys they added.
+ *
+ * Counters are packed 16 in a long and updated with compare and set, so the filter is thread safe.
+ */
+public class CountingBloomFilter {
+
+	private static final int MAX_COUNT = 15;
+
+	private final AtomicLongArray table;
+	private final int counters;
+	private final int hashes;
+	private final AtomicLong keys = new AtomicLong();
+
+	/**
+	 * @param expectedKeys number of keys the filter is sized for
+	 * @param falsePositiveRate wanted rate with that many keys, ie 0.01
+	 */
+	public CountingBloomFilter(long expectedKeys, double falsePositiveRate) {
+		if (expectedKeys <= 0) {
+			throw new IllegalArgumentException("expected keys must be positive: " + expectedKeys);
+		}
+		if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+			throw new IllegalArgumentException("false positive rate must be between 0 and 1: " + falsePositiveRate);
+		}
+		double bits = -expectedKeys * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+		this.counters = (int) Math.max(64, Math.min(Integer.MAX_VALUE - 15, Math.ceil(bits)));
+		this.hashes = (int) Math.max(1, Math.round((double) counters / expectedKeys * Math.log(2)));
+		this.table = new AtomicLongArray((counters + 15) / 16);
+	}
+
+	public void add(String key) {
+		long hash = hash(key);
+		for (int i = 0; i < hashes; i++) {
+			increment(counter(hash, i));
+		}
+		keys.incrementAndGet();
+	}
+
+	/**
+	 * Remove a key previously added
+	 */
+	public void remove(String key) {
+		long hash = hash(key);
+		for (int i = 0; i < hashes; i++) {
+			decrement(counter(hash, i));
+		}
+		keys.decrementAndGet();
+	}
+
+	/**
+	 * @return false if the key is definitely not in the set
+	 */
+	public boolean mightContain(String key) {
+		long hash = hash(key);
+		for (int i = 0; i < hashes; i++) {
+			if (count(counter(hash, i)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return estimated chance that mightContain is true for a key not in the set,
+	 * with the keys in the set now
+	 */
+	public double getFalsePositiveRate() {
+		double filled = 1 - Math.exp(-(double) hashes * Math.max(0, keys.get()) / counters);
+		return Math.pow(filled, hashes);
+	}
+
+	/**
+	 * @return bytes taken by the counters
+	 */
+	public long getMemoryUse() {
+		return table.length() * 8L;
+	}
+
+	/**
+	 * @return number of keys in the set
+	 */
+	public long getKeyCount() {
+		return keys.get();
+	}
+
+	public int getHashCount() {
+		return hashes;
+	}
+
+	private int count(int counter) {
+		return (int) ((table.get(counter >>> 4) >>> shift(counter)) & 0xfL);
+	}
+
+	private void increment(int counter) {
+		int index = counter >>> 4;
+		int shift = shift(counter);
+		while (true) {
+			long value = table.get(index);
+			if (((value >>> shift) & 0xfL) == MAX_COUNT) {
+				return;
+			}
+			if (table.compareAndSet(index, value, value + (1L << shift))) {
+				return;
+			}
+		}
+	}
+
+	private void decrement(int counter) {
+		int index = counter >>> 4;
+		int shift = shift(counter);
+		while (true) {
+			long value = table.get(index);
+			long count = (value >>> shift) & 0xfL;
+			if (count == 0 || count == MAX_COUNT) {
+				return;
+			}
+			if (table.compareAndSet(index, value, value - (1L << shift))) {
+				return;
+			}
+		}
+	}
+
+	private static int shift(int counter) {
+		return (counter & 15) << 2;
+	}
+
+	private int counter(long hash, int i) {
+		int combined = (int) hash + i * (int) (hash >>> 32);
+		if (combined < 0) {
+			combined = ~combined;
+		}
+		return combined % counters;
+	}
+
+	/**
+	 * 64 bit FNV-1a of the chars, then mixed as in MurmurHash3
+	 */
+	private static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+}
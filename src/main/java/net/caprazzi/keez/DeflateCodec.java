@@ -0,0 +1,90 @@
+package net.caprazzi.keez;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate, in the zlib format. The level only matters when encoding.
+ */
+public class DeflateCodec implements Codec {
+
+	public static final byte ID = 1;
+
+	private final int level;
+
+	/**
+	 * Fastest level, good enough for text
+	 */
+	public DeflateCodec() {
+		this(Deflater.BEST_SPEED);
+	}
+
+	/**
+	 * @param level 1 (fastest) to 9 (smallest)
+	 */
+	public DeflateCodec(int level) {
+		this.level = level;
+	}
+
+	@Override
+	public byte getId() {
+		return ID;
+	}
+
+	@Override
+	public byte[] encode(byte[] data) {
+		Deflater deflater = new Deflater(level);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+			byte[] buffer = new byte[Math.min(64 * 1024, data.length + 64)];
+			while (!deflater.finished()) {
+				int length = deflater.deflate(buffer);
+				out.write(buffer, 0, length);
+			}
+			return out.toByteArray();
+		}
+		finally {
+			deflater.end();
+		}
+	}
+
+	@Override
+	public byte[] decode(byte[] data, int offset, int length) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data, offset, data.length - offset);
+			byte[] decoded = new byte[length];
+			int done = 0;
+			while (!inflater.finished()) {
+				if (done == length) {
+					// only the trailer should be left
+					if (inflater.inflate(new byte[1]) > 0) {
+						throw new IOException("deflate data longer than " + length);
+					}
+				}
+				else {
+					done += inflater.inflate(decoded, done, length - done);
+				}
+				if (!inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("truncated deflate data");
+				}
+			}
+			if (done != length) {
+				throw new IOException("expected " + length + " bytes of deflate data, found " + done);
+			}
+			return decoded;
+		}
+		catch (DataFormatException e) {
+			throw new IOException("corrupted deflate data", e);
+		}
+		finally {
+			inflater.end();
+		}
+	}
+
+}
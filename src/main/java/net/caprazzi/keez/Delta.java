@@ -0,0 +1,193 @@
+package net.caprazzi.keez;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Binary delta between two versions of a body, for storing old revisions
+ * as the changes from a full copy of another revision.
+ *
+ * A delta is the length of the target, then a list of instructions:
+ * copy a range of the base, or insert bytes given in the delta.
+ * Numbers are written as varints, the instruction kind is the low bit of the length.
+ *
+ * Matches are found by hashing the base in blocks of 16 bytes, then rolling
+ * a hash of the same width over the target. Each match is extended forward
+ * and backward byte by byte, so edits anywhere cost about their own size.
+ */
+public class Delta {
+
+	private static final int BLOCK = 16;
+	// multiplier of the rolling hash
+	private static final int PRIME = 0x01000193;
+
+	/**
+	 * @return a delta that turns base into target
+	 */
+	public static byte[] diff(byte[] base, byte[] target) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64 + target.length / 8);
+		writeVarint(out, target.length);
+
+		if (base.length < BLOCK || target.length < BLOCK) {
+			insert(out, target, 0, target.length);
+			return out.toByteArray();
+		}
+
+		// block hash -> offset in base + 1, 0 for empty slots
+		int[] table = new int[tableSize(base.length / BLOCK)];
+		int mask = table.length - 1;
+		for (int offset = base.length - BLOCK; offset >= 0; offset -= BLOCK) {
+			table[mix(hash(base, offset)) & mask] = offset + 1;
+		}
+
+		int highPower = 1;
+		for (int i = 1; i < BLOCK; i++) {
+			highPower *= PRIME;
+		}
+
+		// start of the bytes not yet written to the delta
+		int pending = 0;
+		int pos = 0;
+		int h = hash(target, 0);
+		while (pos + BLOCK <= target.length) {
+			int candidate = table[mix(h) & mask] - 1;
+			if (candidate >= 0 && equal(base, candidate, target, pos, BLOCK)) {
+				int start = pos;
+				int from = candidate;
+				while (start > pending && from > 0 && base[from - 1] == target[start - 1]) {
+					start--;
+					from--;
+				}
+				int end = pos + BLOCK;
+				int fromEnd = candidate + BLOCK;
+				while (end < target.length && fromEnd < base.length && base[fromEnd] == target[end]) {
+					end++;
+					fromEnd++;
+				}
+				insert(out, target, pending, start - pending);
+				copy(out, from, end - start);
+				pending = end;
+				pos = end;
+				if (pos + BLOCK <= target.length) {
+					h = hash(target, pos);
+				}
+				continue;
+			}
+			if (pos + BLOCK < target.length) {
+				h = (h - target[pos] * highPower) * PRIME + target[pos + BLOCK];
+			}
+			pos++;
+		}
+		insert(out, target, pending, target.length - pending);
+		return out.toByteArray();
+	}
+
+	/**
+	 * @param delta returned by diff(base, target)
+	 * @return target
+	 * @throws IOException if the delta is corrupt or was not made from this base
+	 */
+	public static byte[] apply(byte[] base, byte[] delta) throws IOException {
+		int[] pos = { 0 };
+		int length = readVarint(delta, pos);
+		// each operation takes at least a byte and copies at most the whole base
+		if (length < 0 || length > delta.length + (long) delta.length * base.length) {
+			throw new IOException("delta target length out of range: " + length);
+		}
+		byte[] target = new byte[length];
+		int written = 0;
+		while (pos[0] < delta.length) {
+			int op = readVarint(delta, pos);
+			int size = op >>> 1;
+			if (size > length - written) {
+				throw new IOException("delta longer than its target");
+			}
+			if ((op & 1) == 0) {
+				if (size > delta.length - pos[0]) {
+					throw new IOException("truncated delta");
+				}
+				System.arraycopy(delta, pos[0], target, written, size);
+				pos[0] += size;
+			}
+			else {
+				int from = readVarint(delta, pos);
+				if (from < 0 || size > base.length - from) {
+					throw new IOException("delta copies past the end of its base");
+				}
+				System.arraycopy(base, from, target, written, size);
+			}
+			written += size;
+		}
+		if (written != length) {
+			throw new IOException("truncated delta, " + written + " of " + length + " bytes");
+		}
+		return target;
+	}
+
+	private static void insert(ByteArrayOutputStream out, byte[] data, int offset, int length) {
+		if (length > 0) {
+			writeVarint(out, length << 1);
+			out.write(data, offset, length);
+		}
+	}
+
+	private static void copy(ByteArrayOutputStream out, int from, int length) {
+		writeVarint(out, (length << 1) | 1);
+		writeVarint(out, from);
+	}
+
+	private static boolean equal(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+		for (int i = 0; i < length; i++) {
+			if (a[aOffset + i] != b[bOffset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int hash(byte[] data, int offset) {
+		int h = 0;
+		for (int i = 0; i < BLOCK; i++) {
+			h = h * PRIME + data[offset + i];
+		}
+		return h;
+	}
+
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		return h ^ (h >>> 13);
+	}
+
+	private static int tableSize(int blocks) {
+		int size = 16;
+		while (size < blocks * 2 && size < (1 << 26)) {
+			size <<= 1;
+		}
+		return size;
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7f) != 0) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	private static int readVarint(byte[] data, int[] pos) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			if (pos[0] >= data.length) {
+				throw new IOException("truncated delta");
+			}
+			byte b = data[pos[0]++];
+			value |= (b & 0x7f) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new IOException("malformed varint in delta");
+	}
+
+}
@@ -0,0 +1,35 @@
+package net.caprazzi.keez;
+
+/**
+ * When file-backed implementations force written data to disk
+ * before acknowledging a put.
+ * 
+ * @see Syncer
+ */
+public enum Durability {
+	
+	/**
+	 * Never force, leave it to the operating system.
+	 * A crash can lose acknowledged writes.
+	 */
+	NONE,
+	
+	/**
+	 * Force after each write, before invoking callback.ok
+	 */
+	PER_WRITE,
+	
+	/**
+	 * Concurrent writes are batched and forced together, 
+	 * callback.ok is invoked once the batch is on disk
+	 */
+	GROUP_COMMIT,
+	
+	/**
+	 * Force in the background at a fixed interval.
+	 * callback.ok is invoked right away, a crash can lose
+	 * the writes of the last interval.
+	 */
+	INTERVAL
+	
+}
@@ -0,0 +1,90 @@
+package net.caprazzi.keez;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a region of a file with positional reads, through a small buffer.
+ * The position of the channel is not used, so many streams can read the same channel at once.
+ * Closing the stream does not close the channel.
+ */
+public class FileRegionInputStream extends InputStream {
+
+	private final FileChannel channel;
+	private final long end;
+	private long position;
+	private final ByteBuffer buffer;
+
+	public FileRegionInputStream(FileChannel channel, long position, long length) {
+		this.channel = channel;
+		this.position = position;
+		this.end = position + length;
+		this.buffer = ByteBuffer.allocate((int) Math.min(ChannelTransfer.BUFFER_SIZE, Math.max(1, length)));
+		buffer.limit(0);
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return buffer.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int n = Math.min(len, buffer.remaining());
+		buffer.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0) {
+			return 0;
+		}
+		long buffered = Math.min(n, buffer.remaining());
+		buffer.position(buffer.position() + (int) buffered);
+		long skipped = Math.min(n - buffered, end - position);
+		position += skipped;
+		return buffered + skipped;
+	}
+
+	@Override
+	public int available() {
+		return (int) Math.min(Integer.MAX_VALUE, buffer.remaining() + end - position);
+	}
+
+	/**
+	 * @return false at the end of the region
+	 */
+	private boolean fill() throws IOException {
+		if (buffer.hasRemaining()) {
+			return true;
+		}
+		if (position >= end) {
+			return false;
+		}
+		buffer.clear();
+		buffer.limit((int) Math.min(buffer.capacity(), end - position));
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new EOFException("file ends before the end of the region, at " + position);
+			}
+			position += read;
+		}
+		buffer.flip();
+		return true;
+	}
+
+}
@@ -0,0 +1,89 @@
+package net.caprazzi.keez;
+
+/**
+ * Approximate access counts of keys, for TinyLFU admission.
+ *
+ * A count-min sketch of 4-bit counters, 16 in each long. Each key has
+ * a counter in four rows, its frequency is the smallest of the four.
+ * When the number of increments reaches ten times the width of the table,
+ * all counters are halved, so that old popularity fades.
+ *
+ * Not thread safe.
+ */
+class FrequencySketch {
+
+	private static final long[] SEEDS = {
+		0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final int MAX_COUNT = 15;
+
+	private final long[] table;
+	private final int mask;
+	private final int sampleSize;
+	private int additions;
+
+	/**
+	 * @param width number of keys the sketch should tell apart, rounded up to a power of two
+	 */
+	public FrequencySketch(int width) {
+		int length = 16;
+		while (length < width && length < (1 << 24)) {
+			length <<= 1;
+		}
+		this.table = new long[length];
+		this.mask = length - 1;
+		this.sampleSize = 10 * length;
+	}
+
+	/**
+	 * @return estimated number of recent accesses to the key, at most 15
+	 */
+	public int frequency(String key) {
+		int hash = spread(key.hashCode());
+		int start = (hash & 3) << 2;
+		int frequency = MAX_COUNT;
+		for (int i = 0; i < 4; i++) {
+			int offset = (start + i) << 2;
+			int count = (int) ((table[indexOf(hash, i)] >>> offset) & 0xfL);
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	public void increment(String key) {
+		int hash = spread(key.hashCode());
+		int start = (hash & 3) << 2;
+		boolean added = false;
+		for (int i = 0; i < 4; i++) {
+			int index = indexOf(hash, i);
+			int offset = (start + i) << 2;
+			if (((table[index] >>> offset) & 0xfL) < MAX_COUNT) {
+				table[index] += 1L << offset;
+				added = true;
+			}
+		}
+		if (added && ++additions == sampleSize) {
+			reset();
+		}
+	}
+
+	private void reset() {
+		for (int i = 0; i < table.length; i++) {
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		additions >>>= 1;
+	}
+
+	private int indexOf(int hash, int row) {
+		long h = (hash + SEEDS[row]) * SEEDS[row];
+		h += h >>> 32;
+		return (int) h & mask;
+	}
+
+	private static int spread(int h) {
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return h * 0x9e3779b9;
+	}
+
+}
@@ -1,12 +1,25 @@
 package net.caprazzi.keez;
 
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+
 import net.caprazzi.keez.Keez.Callback;
+import net.caprazzi.keez.Keez.Db;
 import net.caprazzi.keez.Keez.Delete;
 import net.caprazzi.keez.Keez.Entry;
 import net.caprazzi.keez.Keez.Get;
+import net.caprazzi.keez.Keez.GetStream;
+import net.caprazzi.keez.Keez.GetTo;
 import net.caprazzi.keez.Keez.GetRevisions;
 import net.caprazzi.keez.Keez.List;
+import net.caprazzi.keez.Keez.MultiGet;
+import net.caprazzi.keez.Keez.Operation;
 import net.caprazzi.keez.Keez.Put;
+import net.caprazzi.keez.Keez.Scan;
+import net.caprazzi.keez.Keez.Subscriber;
+import net.caprazzi.keez.Keez.WriteBatch;
 
 public class Helpers {
 	
@@ -57,6 +70,42 @@ public class Helpers {
 		}
 	}
 	
+	public static final void written(GetTo callback, String key, int revision, long length) {
+		try {
+			callback.written(key, revision, length);
+		}
+		catch (Exception ex) {
+			applicationError(callback, ex);
+		}
+	}
+	
+	public static final void notFound(GetTo callback, String key) {
+		try {
+			callback.notFound(key);
+		}
+		catch (Exception ex) {
+			applicationError(callback, ex);
+		}
+	}
+	
+	public static final void found(GetStream callback, String key, int revision, InputStream body) {
+		try {
+			callback.found(key, revision, body);
+		}
+		catch (Exception ex) {
+			applicationError(callback, ex);
+		}
+	}
+	
+	public static final void notFound(GetStream callback, String key) {
+		try {
+			callback.notFound(key);
+		}
+		catch (Exception ex) {
+			applicationError(callback, ex);
+		}
+	}
+	
 	public static final void deleted(Delete callback, String key, byte[] body) {
 		try {
 			callback.deleted(key, body);
@@ -111,6 +160,113 @@ public class Helpers {
 		}
 	}	
 	
+	public static final void ok(WriteBatch callback, Map<String, Integer> revisions) {
+		try {
+			callback.ok(revisions);
+		}
+		catch (Exception ex) {
+			applicationError(callback, ex);
+		}
+	}
+	
+	public static final void collision(WriteBatch callback, Map<String, Integer> foundRevisions) {
+		try {
+			callback.collision(foundRevisions);
+		}
+		catch (Exception ex) {
+			applicationError(callback, ex);
+		}
+	}
+	
+	public static final void found(MultiGet callback, Map<String, Entry> entries) {
+		try {
+			callback.found(entries);
+		}
+		catch (Exception ex) {
+			applicationError(callback, ex);
+		}
+	}
+	
+	public static final void page(Scan callback, Iterable<Entry> entries, String cursor) {
+		try {
+			callback.page(entries, cursor);
+		}
+		catch (Exception ex) {
+			applicationError(callback, ex);
+		}
+	}
+	
+	/**
+	 * Take up to limit entries and invoke callback.page with them. 
+	 * The cursor is the last key, if the page is full. 
+	 */
+	public static final void page(Scan callback, Iterator<Entry> entries, int limit) {
+		ArrayList<Entry> page = new ArrayList<Entry>(Math.min(limit, 1024));
+		try {
+			while (page.size() < limit && entries.hasNext()) {
+				page.add(entries.next());
+			}
+		}
+		catch (Exception e) {
+			error(callback, e);
+			return;
+		}
+		String cursor = (page.size() == limit) ? page.get(limit - 1).getKey() : null;
+		page(callback, page, cursor);
+	}
+	
+	/**
+	 * Execute an operation by calling the matching Db method
+	 */
+	public static final void execute(Db db, Operation operation) {
+		switch (operation.getType()) {
+		case PUT:
+			db.put(operation.getKey(), operation.getRevision(), operation.getBody(), (Put)operation.getCallback());
+			break;
+		case GET:
+			db.get(operation.getKey(), (Get)operation.getCallback());
+			break;
+		case GET_REVISIONS:
+			db.getRevisions(operation.getKey(), (GetRevisions)operation.getCallback());
+			break;
+		case DELETE:
+			db.delete(operation.getKey(), (Delete)operation.getCallback());
+			break;
+		case LIST:
+			db.list((List)operation.getCallback());
+			break;
+		case SCAN:
+			db.scan((Subscriber)operation.getCallback());
+			break;
+		}
+	}
+	
+	/**
+	 * Invoke the error callback matching the operation type
+	 */
+	public static final void error(Operation operation, Exception e) {
+		switch (operation.getType()) {
+		case PUT:
+			error((Put)operation.getCallback(), operation.getKey(), e);
+			break;
+		case GET:
+			error((Get)operation.getCallback(), operation.getKey(), e);
+			break;
+		case GET_REVISIONS:
+			error((GetRevisions)operation.getCallback(), operation.getKey(), e);
+			break;
+		case DELETE:
+			error((Delete)operation.getCallback(), operation.getKey(), e);
+			break;
+		case LIST:
+			error((List)operation.getCallback(), e);
+			break;
+		case SCAN:
+			error((Subscriber)operation.getCallback(), e);
+			break;
+		}
+	}
+	
 	public static final void notNull(Object o) {
 		if (o == null)
 			throw new NullPointerException();
@@ -134,6 +290,24 @@ public class Helpers {
 		}
 	}
 
+	public static void error(GetTo callback, String key, Exception e) {
+		try {
+			callback.error(key, e);			
+		}
+		catch (Exception ex) {
+			applicationError(callback, ex);
+		}
+	}
+
+	public static void error(GetStream callback, String key, Exception e) {
+		try {
+			callback.error(key, e);			
+		}
+		catch (Exception ex) {
+			applicationError(callback, ex);
+		}
+	}
+
 	public static void error(Delete callback, String key, Exception e) {
 		try {
 			callback.error(key, e);			
@@ -160,5 +334,41 @@ public class Helpers {
 			applicationError(callback, ex);
 		}
 	}
+
+	public static void error(WriteBatch callback, Exception e) {
+		try {
+			callback.error(e);			
+		}
+		catch (Exception ex) {
+			applicationError(callback, ex);
+		}
+	}
+
+	public static void error(MultiGet callback, Exception e) {
+		try {
+			callback.error(e);			
+		}
+		catch (Exception ex) {
+			applicationError(callback, ex);
+		}
+	}
+
+	public static void error(Scan callback, Exception e) {
+		try {
+			callback.error(e);			
+		}
+		catch (Exception ex) {
+			applicationError(callback, ex);
+		}
+	}
+
+	public static void error(Subscriber callback, Exception e) {
+		try {
+			callback.onError(e);			
+		}
+		catch (Exception ex) {
+			applicationError(callback, ex);
+		}
+	}
 	
 }
@@ -0,0 +1,124 @@
+package net.caprazzi.keez;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.caprazzi.keez.Keez.Entry;
+import net.caprazzi.keez.Keez.Subscriber;
+import net.caprazzi.keez.Keez.Subscription;
+
+/**
+ * Feeds a Subscriber from a lazy iterator, pulling only as many entries as requested.
+ *
+ * Entries are pulled and delivered by the thread that calls request while there
+ * is no outstanding demand. Calls to request from onNext, or from other threads
+ * while entries are being delivered, only add to the demand, so onNext is never
+ * invoked concurrently or recursively.
+ *
+ * Exceptions thrown by the iterator end the scan with onError.
+ * Exceptions thrown by the subscriber cancel the scan and go to applicationError.
+ */
+public class IteratorSubscription implements Subscription {
+
+	private final Subscriber subscriber;
+	private final Iterator<Entry> entries;
+	private final AtomicLong demand = new AtomicLong();
+	private volatile boolean cancelled;
+
+	private IteratorSubscription(Subscriber subscriber, Iterator<Entry> entries) {
+		this.subscriber = subscriber;
+		this.entries = entries;
+	}
+
+	public static void subscribe(Subscriber subscriber, Iterator<Entry> entries) {
+		IteratorSubscription subscription = new IteratorSubscription(subscriber, entries);
+		try {
+			subscriber.onSubscribe(subscription);
+		}
+		catch (Exception e) {
+			subscription.cancel();
+			Helpers.applicationError(subscriber, e);
+		}
+	}
+
+	@Override
+	public void request(long n) {
+		if (cancelled) {
+			return;
+		}
+		if (n <= 0) {
+			cancel();
+			Helpers.error(subscriber, new IllegalArgumentException("request must be positive: " + n));
+			return;
+		}
+
+		long before, after;
+		do {
+			before = demand.get();
+			after = before + n;
+			if (after < 0) {
+				after = Long.MAX_VALUE;
+			}
+		} while (!demand.compareAndSet(before, after));
+
+		if (before == 0) {
+			drain(after);
+		}
+	}
+
+	@Override
+	public void cancel() {
+		cancelled = true;
+	}
+
+	private void drain(long requested) {
+		while (true) {
+			long emitted = 0;
+			while (emitted < requested) {
+				if (cancelled) {
+					return;
+				}
+
+				Entry entry;
+				try {
+					if (!entries.hasNext()) {
+						cancelled = true;
+						complete();
+						return;
+					}
+					entry = entries.next();
+				}
+				catch (Exception e) {
+					cancelled = true;
+					Helpers.error(subscriber, e);
+					return;
+				}
+
+				try {
+					subscriber.onNext(entry);
+				}
+				catch (Exception e) {
+					cancelled = true;
+					Helpers.applicationError(subscriber, e);
+					return;
+				}
+				emitted++;
+			}
+
+			requested = demand.addAndGet(-emitted);
+			if (requested == 0) {
+				return;
+			}
+		}
+	}
+
+	private void complete() {
+		try {
+			subscriber.onComplete();
+		}
+		catch (Exception e) {
+			Helpers.applicationError(subscriber, e);
+		}
+	}
+
+}
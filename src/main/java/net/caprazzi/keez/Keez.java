@@ -1,5 +1,15 @@
 package net.caprazzi.keez;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
 
 /**
  * Simple embedded key-value store API.
@@ -44,6 +54,22 @@ public class Keez {
 		 * @param callback
 		 */
 		public void put(String key, int rev, byte[] body, Put callback);
+		
+		/**
+		 * Same as put, with the body read from a stream until its end. 
+		 * Meant for bodies too large to be held in memory at once: implementations 
+		 * that store bodies on disk copy them through a small buffer.
+		 * 
+		 * Revisions and callbacks are the same as for put. callback.error is
+		 * also invoked if reading the stream fails, and nothing is written.
+		 * The stream is not closed.
+		 * 
+		 * @param key
+		 * @param rev
+		 * @param body
+		 * @param callback
+		 */
+		public void putStream(String key, int rev, InputStream body, Put callback);
 
 		/**
 		 * Get last revision of a key.
@@ -59,6 +85,51 @@ public class Keez {
 		 */
 		public void get(String key, Get callback);
 		
+		/**
+		 * Write the body of the last revision of a key to a channel, 
+		 * without handing it to the caller. Meant for large bodies going 
+		 * to a socket or a file: implementations avoid copying them on the heap
+		 * where they can.
+		 * 
+		 * Invokes callback.written after the whole body has been written
+		 * Invokes callback.notFound if the key is not found
+		 * Invokes callback.error on any other error, including errors writing
+		 * to the channel. Part of the body may have been written by then.
+		 * 
+		 * The channel should be in blocking mode. It is not closed.
+		 * 
+		 * @param key
+		 * @param channel
+		 * @param callback
+		 */
+		public void getTo(String key, WritableByteChannel channel, GetTo callback);
+		
+		/**
+		 * Get the last revision of a key as a stream, for bodies too large
+		 * to be held in memory at once.
+		 * 
+		 * Invokes callback.found if the key is found. The stream can only be read
+		 * during callback.found, and is closed when it returns.
+		 * Invokes callback.notFound if the key is not found
+		 * Invokes callback.error on any other error.
+		 * 
+		 * @param key
+		 * @param callback
+		 */
+		public void getStream(String key, GetStream callback);
+		
+		/**
+		 * Get the newest revision of many keys at once.
+		 * 
+		 * callback.found is invoked once, with the keys that exist
+		 * (possibly none) in the order they were given.
+		 * callback.error is called in case of any exception
+		 * 
+		 * @param keys
+		 * @param callback
+		 */
+		public void getAll(Collection<String> keys, MultiGet callback);
+		
 		/**
 		 * Get all revisions of a key. If autoPurge is enabled, this will
 		 * always only return the last revision.
@@ -81,6 +152,20 @@ public class Keez {
 		 * @param callback
 		 */
 		public void delete(String key, Delete callback);
+		
+		/**
+		 * Apply many puts and deletes to different keys, all or none. 
+		 * Each write has the same revision precondition as put
+		 * (a delete must give the newest revision of the key).
+		 * 
+		 * callback.ok is invoked if all writes were applied,
+		 * callback.collision if any precondition failed, and nothing was written.
+		 * callback.error is called on any other error, ie if two writes have the same key
+		 * 
+		 * @param writes
+		 * @param callback
+		 */
+		public void writeBatch(java.util.List<Write> writes, WriteBatch callback);
 
 		/**
 		 * List all keys in the database.
@@ -91,9 +176,90 @@ public class Keez {
 		 * @param list
 		 */
 		public void list(List callback);
+		
+		/**
+		 * Stream the newest revision of all keys, in key order, 
+		 * as the subscriber asks for them.
+		 * 
+		 * subscriber.onSubscribe is invoked first. Entries are read only when
+		 * requested with Subscription.request, and subscriber.onNext is never invoked
+		 * more times than requested. subscriber.onComplete is invoked after the last entry,
+		 * subscriber.onError in case of any exception. 
+		 * 
+		 * No lock is held between entries: keys changed during the scan may or may not be seen.
+		 * 
+		 * @param subscriber
+		 */
+		public void scan(Subscriber subscriber);
+		
+		/**
+		 * Get one page of the newest revisions of the keys in a range, in key order.
+		 * 
+		 * callback.page is invoked with at most limit entries, and a cursor to pass
+		 * to the next call to get the following page. The cursor is null when there are
+		 * no more pages. The last page can be empty.
+		 * callback.error is called in case of any exception.
+		 * 
+		 * @param range
+		 * @param limit max number of entries in the page, greater than 0
+		 * @param cursor null for the first page, or the cursor returned with the previous page
+		 * @param callback
+		 */
+		public void scan(Range range, int limit, String cursor, Scan callback);
 
 	}
 	
+	/**
+	 * Optional extension of Db, for implementations that can execute many
+	 * operations together more efficiently than one at a time 
+	 * (ie taking a lock once, forcing to disk once).
+	 * 
+	 * @see KeezAync
+	 */
+	public interface BatchDb extends Db {
+		
+		/**
+		 * Execute operations as if the single methods had been invoked in order,
+		 * and invoke their callbacks. Operations are only valid during this call, 
+		 * implementations must not keep references to them.
+		 * 
+		 * @param operations
+		 */
+		public void execute(java.util.List<Operation> operations);
+		
+	}
+	
+	/**
+	 * A call to one of the Db methods
+	 */
+	public interface Operation {
+		
+		public enum Type { PUT, GET, GET_REVISIONS, DELETE, LIST, SCAN }
+		// range scans are not operations, as they don't fit in key/revision/body
+		
+		public Type getType();
+		
+		/**
+		 * @return the key, or null for LIST and SCAN
+		 */
+		public String getKey();
+		
+		/**
+		 * @return the revision, only for PUT
+		 */
+		public int getRevision();
+		
+		/**
+		 * @return the body, only for PUT
+		 */
+		public byte[] getBody();
+		
+		/**
+		 * @return the callback, of the type matching the operation (ie Put for PUT)
+		 */
+		public Callback getCallback();
+	}
+	
 	public static abstract class Callback {
 		public void applicationError(Exception ex) {
 			ex.printStackTrace();
@@ -126,6 +292,58 @@ public class Keez {
 		public abstract void error(String key, Exception e);
 	}
 	
+	public static abstract class GetTo extends Callback {
+		/**
+		 * Invoked once the body has been written to the channel
+		 * 
+		 * @param key
+		 * @param rev current revision in the database
+		 * @param length bytes written
+		 */
+		public abstract void written(String key, int rev, long length);
+
+		public abstract void notFound(String key);
+		
+		/**
+		 * Invoked on errors but not on "not found"
+		 * 
+		 * @param key
+		 * @param e
+		 */
+		public abstract void error(String key, Exception e);
+	}
+	
+	public static abstract class GetStream extends Callback {
+		/**
+		 * Invoked on success
+		 * 
+		 * @param key
+		 * @param rev current revision in the database
+		 * @param body only valid until this method returns
+		 */
+		public abstract void found(String key, int rev, InputStream body) throws IOException;
+
+		public abstract void notFound(String key);
+		
+		/**
+		 * Invoked on errors but not on "not found"
+		 * 
+		 * @param key
+		 * @param e
+		 */
+		public abstract void error(String key, Exception e);
+	}
+	
+	public static abstract class MultiGet extends Callback {
+		
+		/**
+		 * @param entries newest revision of each key that was found, by key
+		 */
+		public abstract void found(Map<String, Entry> entries);
+		
+		public abstract void error(Exception e);
+	}
+	
 	public static abstract class GetRevisions extends Callback {
 		/** 
 		 * Invoked on GetRevisions success
@@ -179,6 +397,115 @@ public class Keez {
 
 	}
 
+	public static abstract class WriteBatch extends Callback {
+		
+		/**
+		 * All writes were applied
+		 * @param revisions new revision of each key, -1 for deleted keys
+		 */
+		public abstract void ok(Map<String, Integer> revisions);
+		
+		/**
+		 * Nothing was written
+		 * @param foundRevisions newest revision in the db of each key whose 
+		 * 	precondition failed, -1 if the key does not exist
+		 */
+		public abstract void collision(Map<String, Integer> foundRevisions);
+		
+		public abstract void error(Exception e);
+	}
+	
+	/**
+	 * A put or delete in a batch
+	 */
+	public static class Write {
+		
+		private final String key;
+		private final int revision;
+		private final byte[] body;
+		
+		private Write(String key, int revision, byte[] body) {
+			this.key = key;
+			this.revision = revision;
+			this.body = body;
+		}
+		
+		/**
+		 * Same arguments as Db.put
+		 */
+		public static Write put(String key, int rev, byte[] body) {
+			if (key == null || body == null) {
+				throw new NullPointerException();
+			}
+			return new Write(key, rev, body);
+		}
+		
+		/**
+		 * @param rev newest revision of the key
+		 */
+		public static Write delete(String key, int rev) {
+			if (key == null) {
+				throw new NullPointerException();
+			}
+			return new Write(key, rev, null);
+		}
+		
+		/**
+		 * A copy of writes sorted by key, as engines lock keys in this order
+		 * @throws IllegalArgumentException if two writes have the same key
+		 */
+		public static java.util.List<Write> sorted(java.util.List<Write> writes) {
+			ArrayList<Write> sorted = new ArrayList<Write>(writes);
+			Collections.sort(sorted, new Comparator<Write>() {
+				@Override
+				public int compare(Write a, Write b) {
+					return a.key.compareTo(b.key);
+				}
+			});
+			for (int i = 1; i < sorted.size(); i++) {
+				if (sorted.get(i).key.equals(sorted.get(i - 1).key)) {
+					throw new IllegalArgumentException("more than one write for key " + sorted.get(i).key);
+				}
+			}
+			return sorted;
+		}
+		
+		public String getKey() {
+			return key;
+		}
+		
+		public int getRevision() {
+			return revision;
+		}
+		
+		/**
+		 * @return the body, or null for a delete
+		 */
+		public byte[] getBody() {
+			return body;
+		}
+		
+		public boolean isDelete() {
+			return body == null;
+		}
+		
+		/**
+		 * @param foundRev newest revision in the db, -1 if the key does not exist
+		 * @return true if this write can be applied
+		 */
+		public boolean accepts(int foundRev) {
+			if (isDelete()) {
+				return foundRev != -1 && foundRev == revision;
+			}
+			return (revision == 0) ? foundRev == -1 : foundRev == revision;
+		}
+		
+		@Override
+		public String toString() {
+			return (isDelete() ? "delete " : "put ") + key + "@" + revision;
+		}
+	}
+	
 	public static abstract class Delete extends Callback {
 
 		/**
@@ -217,6 +544,130 @@ public class Keez {
 		public abstract void error(Exception ex);
 	}
 	
+	/**
+	 * Receives the entries of a scan, in the style of reactive streams
+	 */
+	public static abstract class Subscriber extends Callback {
+		
+		/**
+		 * Invoked once, before any other method. Nothing is read until
+		 * subscription.request is invoked.
+		 */
+		public abstract void onSubscribe(Subscription subscription);
+		
+		public abstract void onNext(Entry entry);
+		
+		public abstract void onError(Exception e);
+		
+		public abstract void onComplete();
+	}
+	
+	public interface Subscription {
+		
+		/**
+		 * Ask for n more entries. Can be invoked from onNext.
+		 */
+		public void request(long n);
+		
+		/**
+		 * Stop the scan. Some entries already requested may still be delivered.
+		 */
+		public void cancel();
+	}
+	
+	public static abstract class Scan extends Callback {
+		
+		/**
+		 * @param entries
+		 * @param cursor to get the next page, or null if this is the last page
+		 */
+		public abstract void page(Iterable<Entry> entries, String cursor);
+		
+		public abstract void error(Exception e);
+	}
+	
+	/**
+	 * A range of keys: from (inclusive) to (exclusive). Either side can be open (null).
+	 */
+	public static class Range {
+		
+		private static final Range ALL = new Range(null, null);
+		
+		private final String from;
+		private final String to;
+		
+		private Range(String from, String to) {
+			this.from = from;
+			this.to = to;
+		}
+		
+		public static Range all() {
+			return ALL;
+		}
+		
+		/**
+		 * @param from first key, inclusive, or null to start from the first key 
+		 * @param to last key, exclusive, or null to go up to the last key
+		 */
+		public static Range between(String from, String to) {
+			return new Range(from, to);
+		}
+		
+		/**
+		 * All keys starting with prefix
+		 */
+		public static Range prefix(String prefix) {
+			// the smallest string greater than all strings starting with prefix
+			int i = prefix.length() - 1;
+			while (i >= 0 && prefix.charAt(i) == Character.MAX_VALUE) {
+				i--;
+			}
+			String to = (i < 0) ? null : prefix.substring(0, i) + (char) (prefix.charAt(i) + 1); 
+			return new Range(prefix, to);
+		}
+		
+		public String getFrom() {
+			return from;
+		}
+		
+		public String getTo() {
+			return to;
+		}
+		
+		/**
+		 * The part of a sorted map that is in the range and comes after the cursor
+		 * @param map
+		 * @param cursor a key, or null
+		 * @return a view of the map
+		 */
+		public <V> NavigableMap<String, V> select(NavigableMap<String, V> map, String cursor) {
+			String start = from;
+			boolean inclusive = true;
+			if (cursor != null && (start == null || cursor.compareTo(start) >= 0)) {
+				start = cursor;
+				inclusive = false;
+			}
+			
+			if (start != null && to != null && start.compareTo(to) >= 0) {
+				return new TreeMap<String, V>();
+			}
+			
+			NavigableMap<String, V> view = map;
+			if (start != null) {
+				view = view.tailMap(start, inclusive);
+			}
+			if (to != null) {
+				view = view.headMap(to, false);
+			}
+			return view;
+		}
+		
+		@Override
+		public String toString() {
+			return "[" + from + ", " + to + ")";
+		}
+	}
+	
 	public static class Entry {
 
 		private final String key;
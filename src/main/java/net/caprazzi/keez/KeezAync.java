@@ -1,148 +1,796 @@
 package net.caprazzi.keez;
 
-import java.util.concurrent.BlockingQueue;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import net.caprazzi.keez.Keez.BatchDb;
 import net.caprazzi.keez.Keez.Db;
 import net.caprazzi.keez.Keez.Delete;
+import net.caprazzi.keez.Keez.Entry;
 import net.caprazzi.keez.Keez.Get;
 import net.caprazzi.keez.Keez.GetRevisions;
+import net.caprazzi.keez.Keez.GetStream;
+import net.caprazzi.keez.Keez.GetTo;
 import net.caprazzi.keez.Keez.List;
+import net.caprazzi.keez.Keez.MultiGet;
+import net.caprazzi.keez.Keez.Operation;
+import net.caprazzi.keez.Keez.Operation.Type;
 import net.caprazzi.keez.Keez.Put;
+import net.caprazzi.keez.Keez.Range;
+import net.caprazzi.keez.Keez.Scan;
+import net.caprazzi.keez.Keez.Subscriber;
+import net.caprazzi.keez.Keez.Subscription;
+import net.caprazzi.keez.Keez.Write;
+import net.caprazzi.keez.Keez.WriteBatch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
 
 /**
  * Async wrapper for a Keez instance.
- * Incoming requests are queued and executed one at a time in a single thread.
- * This allows to use a non-thread safe Db instance
+ * Incoming requests are queued and executed by a fixed number of worker threads.
+ * Each key is always handled by the same worker, so requests on the same key
+ * are executed one at a time and in order, while requests on different keys
+ * can run in parallel. With one worker, this allows to use a non-thread safe Db instance.
+ *
+ * Each worker has a bounded ring of pre-allocated request slots. When a ring is
+ * full, callers block, fail (callback.error with a RejectedExecutionException)
+ * or spin then park, as chosen with {@link WhenFull}. A callback that runs on a worker
+ * never waits for room: its requests fail when a ring is full. The worker could be waiting
+ * for itself to make room, or for a worker that is waiting for it at a barrier.
+ *
+ * list() is a barrier: it waits for all workers to get to it, runs
+ * while they are all stopped, then lets them go on. It always blocks when a ring is full,
+ * except on a worker.
+ * Range scans and write batches are barriers too. scan(Subscriber) uses a barrier to start, and one for
+ * each Subscription.request.
+ *
+ * Workers take all the requests queued so far at once. If the db is a {@link BatchDb},
+ * they are passed to it together, otherwise they are executed one by one.
+ *
+ * A request that throws gets callback.error, and the worker goes on with the next one.
+ * If a BatchDb throws, all the requests passed to it get callback.error, even those
+ * it may have already answered.
  */
 public class KeezAync implements Db {
 
-	private BlockingQueue<Request<?>> messages = new LinkedBlockingQueue<Request<?>>();
-	
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	private static Logger logger = LoggerFactory.getLogger(KeezAync.class);
+
+	// fills the slots claimed for a barrier that could not be queued
+	private static final Task NOTHING = new Task() {
+		@Override
+		public void run() {
+		}
+
+		@Override
+		void error(Exception e) {
+		}
+	};
+
+	/**
+	 * What callers do when a worker ring is full
+	 */
+	public enum WhenFull {
+		/** wait until the worker makes room */
+		BLOCK,
+		/** invoke callback.error right away */
+		FAIL,
+		/** busy-spin for a while, then yield, then park for short periods */
+		SPIN_THEN_PARK
+	}
+
+	private final Db db;
+	private final Worker[] workers;
+	private final WhenFull whenFull;
+	// barriers must be queued in the same order on all workers
+	private final Object barrierLock = new Object();
+
 	public KeezAync(final Db db) {
-		ExecutorService executor = Executors.newSingleThreadExecutor();
-		executor.execute(new Runnable() {
+		this(db, 1);
+	}
+
+	public KeezAync(final Db db, int workerCount) {
+		this(db, workerCount, DEFAULT_CAPACITY, WhenFull.BLOCK);
+	}
+
+	/**
+	 * @param db
+	 * @param workerCount number of worker threads
+	 * @param capacity requests that can be queued on each worker (rounded up to a power of two)
+	 * @param whenFull what to do when a worker has no room for a request
+	 */
+	public KeezAync(final Db db, int workerCount, int capacity, WhenFull whenFull) {
+		if (workerCount < 1) {
+			throw new IllegalArgumentException("need at least one worker");
+		}
+		this.db = db;
+		this.whenFull = whenFull;
+		this.workers = new Worker[workerCount];
+		ExecutorService executor = Executors.newFixedThreadPool(workerCount);
+		for (int i=0; i<workerCount; i++) {
+			workers[i] = new Worker(capacity);
+			executor.execute(workers[i]);
+		}
+	}
+
+	@Override
+	public void put(String key, int rev, byte[] body, Put callback) {
+		submit(Type.PUT, key, rev, body, callback);
+	}
+
+	@Override
+	public void get(String key, Get callback) {
+		submit(Type.GET, key, 0, null, callback);
+	}
+
+	/**
+	 * Runs as a task on the worker of the key, in order with the other requests on the key
+	 */
+	@Override
+	public void getTo(final String key, final WritableByteChannel channel, final GetTo callback) {
+		Helpers.notNull(key);
+		Helpers.notNull(channel);
+		Helpers.notNull(callback);
+		submit(key, new Task() {
+			@Override
 			public void run() {
-				while(true) {
-					try {
-						Request<?> request = messages.take();
-						request.dispatch(db);
-					} catch (InterruptedException e) {
-						throw new RuntimeException(e);
-					}
-				}
+				db.getTo(key, channel, callback);
+			}
+
+			@Override
+			void error(Exception e) {
+				Helpers.error(callback, key, e);
 			}
 		});
 	}
-	
+
 	/**
-	 * Note how each method invokes callback.error in case of interrupedException.
-	 * This respects the Db contract, but the application is likely to go down anyway.
+	 * Runs as a task on the worker of the key, in order with the other requests on the key.
+	 * The stream is read on the worker: keep it open until the callback is invoked.
 	 */
-	
 	@Override
-	public void put(String key, int rev, byte[] body, Put callback) {
+	public void putStream(final String key, final int rev, final InputStream body, final Put callback) {
+		Helpers.notNull(key);
+		Helpers.notNull(body);
+		Helpers.notNull(callback);
+		submit(key, new Task() {
+			@Override
+			public void run() {
+				db.putStream(key, rev, body, callback);
+			}
+
+			@Override
+			void error(Exception e) {
+				Helpers.error(callback, key, e);
+			}
+		});
+	}
+
+	/**
+	 * Runs as a task on the worker of the key, in order with the other requests on the key
+	 */
+	@Override
+	public void getStream(final String key, final GetStream callback) {
+		Helpers.notNull(key);
+		Helpers.notNull(callback);
+		submit(key, new Task() {
+			@Override
+			public void run() {
+				db.getStream(key, callback);
+			}
+
+			@Override
+			void error(Exception e) {
+				Helpers.error(callback, key, e);
+			}
+		});
+	}
+
+	/**
+	 * Keys are split by worker, each worker gets its part with one call to db.getAll
+	 */
+	@Override
+	public void getAll(Collection<String> keys, final MultiGet callback) {
+		Helpers.notNull(keys);
+		Helpers.notNull(callback);
+		// the keys are read again on a worker, when the last part is done
+		keys = ImmutableList.copyOf(keys);
+		if (keys.isEmpty()) {
+			Helpers.found(callback, new LinkedHashMap<String, Entry>());
+			return;
+		}
+
+		LinkedHashMap<Worker, ArrayList<String>> parts = new LinkedHashMap<Worker, ArrayList<String>>();
+		for (String key : keys) {
+			Worker worker = workerFor(key);
+			ArrayList<String> part = parts.get(worker);
+			if (part == null) {
+				parts.put(worker, part = new ArrayList<String>());
+			}
+			part.add(key);
+		}
+
+		final MultiGetCollector collector = new MultiGetCollector(keys, parts.size(), callback);
+		for (Map.Entry<Worker, ArrayList<String>> e : parts.entrySet()) {
+			final ArrayList<String> part = e.getValue();
+			Task task = new Task() {
+				@Override
+				public void run() {
+					db.getAll(part, new MultiGet() {
+						@Override
+						public void found(Map<String, Entry> entries) {
+							collector.found(entries);
+							collector.partDone();
+						}
+
+						@Override
+						public void error(Exception ex) {
+							collector.error(ex);
+						}
+					});
+				}
+
+				@Override
+				void error(Exception ex) {
+					collector.error(ex);
+				}
+			};
+			RequestRing<Request> ring = e.getKey().ring;
+			try {
+				long sequence = ring.claim(whenFull());
+				if (sequence < 0) {
+					collector.error(new RejectedExecutionException("request queue is full"));
+					return;
+				}
+				ring.get(sequence).set(task);
+				ring.publish(sequence);
+			} catch (InterruptedException ex) {
+				collector.error(ex);
+				throw new RuntimeException(ex);
+			}
+		}
+	}
+
+	@Override
+	public void getRevisions(String key, GetRevisions callback) {
+		submit(Type.GET_REVISIONS, key, 0, null, callback);
+	}
+
+	@Override
+	public void delete(String key, Delete callback) {
+		submit(Type.DELETE, key, 0, null, callback);
+	}
+
+	/**
+	 * Runs while all workers are stopped, as list(): the keys of a batch
+	 * can belong to different workers
+	 */
+	@Override
+	public void writeBatch(final java.util.List<Write> writes, final WriteBatch callback) {
 		try {
-			messages.put(Request.put(key, rev, body, callback));
+			boolean queued = runStopped(null, callback, new Barrier(workers.length, new Task() {
+				@Override
+				public void run() {
+					db.writeBatch(writes, callback);
+				}
+
+				@Override
+				void error(Exception e) {
+					Helpers.error(callback, e);
+				}
+			}));
+			if (!queued) {
+				Helpers.error(callback, new RejectedExecutionException("request queue is full"));
+			}
 		} catch (InterruptedException e) {
-			callback.error(key, e);
+			Helpers.error(callback, e);
 			throw new RuntimeException(e);
 		}
 	}
 
 	@Override
-	public void get(String key, Get callback) {
+	public void list(List callback) {
 		try {
-			messages.put(Request.get(key, callback));
+			if (!runStopped(Type.LIST, callback, new Barrier(workers.length, null))) {
+				Helpers.error(callback, new RejectedExecutionException("request queue is full"));
+			}
 		} catch (InterruptedException e) {
-			callback.error(key, e);
+			Helpers.error(callback, e);
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * The scan is started, and each Subscription.request is served, while all workers are stopped.
+	 * Ask for entries in small batches to let other requests run in between.
+	 */
 	@Override
-	public void delete(String key, Delete callback) {
+	public void scan(Subscriber subscriber) {
+		new StoppedScan(subscriber).start();
+	}
+
+	/**
+	 * Runs while all workers are stopped, as list()
+	 */
+	@Override
+	public void scan(final Range range, final int limit, final String cursor, final Scan callback) {
 		try {
-			messages.put(Request.delete(key, callback));
+			boolean queued = runStopped(null, callback, new Barrier(workers.length, new Task() {
+				@Override
+				public void run() {
+					db.scan(range, limit, cursor, callback);
+				}
+
+				@Override
+				void error(Exception e) {
+					Helpers.error(callback, e);
+				}
+			}));
+			if (!queued) {
+				Helpers.error(callback, new RejectedExecutionException("request queue is full"));
+			}
 		} catch (InterruptedException e) {
-			callback.error(key, e);
+			Helpers.error(callback, e);
 			throw new RuntimeException(e);
 		}
 	}
 
 	@Override
-	public void list(List callback) {
+	public void setAutoPurge(boolean autoPurge) {
+		db.setAutoPurge(autoPurge);
+	}
+
+	/**
+	 * Note how callback.error is invoked in case of interrupedException.
+	 * This respects the Db contract, but the application is likely to go down anyway.
+	 */
+	private void submit(Type type, String key, int rev, byte[] body, Keez.Callback callback) {
+		RequestRing<Request> ring = workerFor(key).ring;
 		try {
-			messages.put(Request.list(callback));
+			long sequence = ring.claim(whenFull());
+			if (sequence < 0) {
+				Helpers.error(Request.of(type, key, callback), new RejectedExecutionException("request queue is full"));
+				return;
+			}
+			ring.get(sequence).set(type, key, rev, body, callback, null);
+			ring.publish(sequence);
 		} catch (InterruptedException e) {
-			callback.error(e);
+			Helpers.error(Request.of(type, key, callback), e);
 			throw new RuntimeException(e);
 		}
 	}
-	
-	private static class Request<T> {
 
-		private final String key;
-		private final int rev;
-		private final byte[] body;
-		private final T callback;
+	/**
+	 * Queue a task on the worker of a key
+	 */
+	private void submit(String key, Task task) {
+		RequestRing<Request> ring = workerFor(key).ring;
+		try {
+			long sequence = ring.claim(whenFull());
+			if (sequence < 0) {
+				task.error(new RejectedExecutionException("request queue is full"));
+				return;
+			}
+			ring.get(sequence).set(task);
+			ring.publish(sequence);
+		} catch (InterruptedException e) {
+			task.error(e);
+			throw new RuntimeException(e);
+		}
+	}
 
-		private Request(String key, int rev, byte[] body, T callback) {
-			this.key = key;
-			this.rev = rev;
-			this.body = body;
-			this.callback = callback;
+	/**
+	 * Queue a barrier on all workers. It runs the task, or the request if there is no task.
+	 * A slot is claimed on every worker before the barrier is published on any of them:
+	 * if one can't be claimed, the others get a request that does nothing.
+	 *
+	 * @return false if a ring was full and the barrier was not queued
+	 */
+	private boolean runStopped(Type type, Keez.Callback callback, Barrier barrier) throws InterruptedException {
+		WhenFull policy = onWorker() ? WhenFull.FAIL : WhenFull.BLOCK;
+		synchronized (barrierLock) {
+			long[] sequences = new long[workers.length];
+			int claimed = 0;
+			try {
+				while (claimed < workers.length) {
+					long sequence = workers[claimed].ring.claim(policy);
+					if (sequence < 0) {
+						break;
+					}
+					sequences[claimed++] = sequence;
+				}
+			}
+			finally {
+				if (claimed < workers.length) {
+					for (int i = 0; i < claimed; i++) {
+						workers[i].ring.get(sequences[i]).set(NOTHING);
+						workers[i].ring.publish(sequences[i]);
+					}
+				}
+			}
+			if (claimed < workers.length) {
+				return false;
+			}
+			for (int i = 0; i < workers.length; i++) {
+				workers[i].ring.get(sequences[i]).set(type, null, 0, null, callback, barrier);
+				workers[i].ring.publish(sequences[i]);
+			}
+			return true;
 		}
+	}
+
+	/**
+	 * What to do if a ring is full. Workers never wait for room: only a worker makes room
+	 * in its own ring, and another worker may be waiting for this one at a barrier.
+	 */
+	private WhenFull whenFull() {
+		return onWorker() ? WhenFull.FAIL : whenFull;
+	}
 
-		public static Request<Get> get(String key, Get cb) {
-			return new Request<Get>(key, 0, null, cb);
+	private boolean onWorker() {
+		Thread current = Thread.currentThread();
+		for (Worker worker : workers) {
+			if (worker.thread == current) {
+				return true;
+			}
 		}
+		return false;
+	}
+
+	private Worker workerFor(String key) {
+		int h = key.hashCode();
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return workers[(h & Integer.MAX_VALUE) % workers.length];
+	}
 
-		public static Request<Delete> delete(String key, Delete callback) {
-			return new Request<Delete>(key, 0, null, callback);
+	/**
+	 * Run a task, passing what it throws to its callback: one request must not stop the worker
+	 */
+	private static void runSafely(Task task) {
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			logger.error("uncaught exception executing a request", e);
+			task.error(e);
 		}
+	}
 
-		public static Request<List> list(List callback) {
-			return new Request<List>(null, 0, null, callback);
+	private static void executeSafely(Db db, Operation operation) {
+		try {
+			Helpers.execute(db, operation);
+		} catch (RuntimeException e) {
+			logger.error("uncaught exception executing " + operation.getType() + " " + operation.getKey(), e);
+			Helpers.error(operation, e);
 		}
+	}
+
+	/**
+	 * A request that doesn't fit in an Operation
+	 */
+	private static abstract class Task implements Runnable {
+		/**
+		 * Invoked instead of run if the task can't be queued, or if run throws
+		 */
+		abstract void error(Exception e);
+	}
+
+	private class Worker implements Runnable {
 
-		public static Request<?> put(String key, int rev, byte[] body, Put cb) {
-			return new Request<Put>(key, rev, body, cb);
+		private final RequestRing<Request> ring;
+		private final ArrayList<Operation> batch = new ArrayList<Operation>();
+		private volatile Thread thread;
+
+		public Worker(int capacity) {
+			ring = new RequestRing<Request>(capacity, new Supplier<Request>() {
+				@Override
+				public Request get() {
+					return new Request();
+				}
+			});
 		}
 
-		public void dispatch(Db db) {
-			
-			if (callback instanceof Put) {
-				db.put(key, rev, body, (Put)callback);
+		public void run() {
+			thread = Thread.currentThread();
+			long next = 0;
+			while(true) {
+				try {
+					long available = ring.waitFor(next);
+					while (next <= available) {
+						Request request = ring.get(next);
+						if (request.task != null) {
+							try {
+								runSafely(request.task);
+							}
+							finally {
+								request.clear();
+								ring.release(next);
+							}
+							next++;
+						}
+						else if (request.barrier != null) {
+							try {
+								request.barrier.arrive(request, db);
+							}
+							finally {
+								request.clear();
+								ring.release(next);
+							}
+							next++;
+						}
+						else {
+							next = executeUntilBarrier(next, available);
+						}
+					}
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
 			}
-			
-			else if (callback instanceof Get) {
-				db.get(key, (Get)callback);
+		}
+		
+		/**
+		 * Execute requests from first up to available or to the next barrier or task
+		 * @return the sequence of the first request not executed
+		 */
+		private long executeUntilBarrier(long first, long available) {
+			long end = first;
+			while (end <= available && ring.get(end).isOperation()) {
+				end++;
 			}
 			
-			else if (callback instanceof Delete) {
-				db.delete(key, (Delete)callback);
+			try {
+				if (db instanceof BatchDb) {
+					for (long i = first; i < end; i++) {
+						batch.add(ring.get(i));
+					}
+					try {
+						((BatchDb) db).execute(batch);
+					}
+					catch (RuntimeException e) {
+						// which callbacks were invoked is unknown: fail them all, so that none waits forever
+						logger.error("uncaught exception executing " + batch.size() + " requests", e);
+						for (Operation operation : batch) {
+							Helpers.error(operation, e);
+						}
+					}
+				}
+				else {
+					for (long i = first; i < end; i++) {
+						executeSafely(db, ring.get(i));
+					}
+				}
 			}
-			
-			else if (callback instanceof List) {
-				db.list((List)callback);
+			finally {
+				batch.clear();
+				for (long i = first; i < end; i++) {
+					ring.get(i).clear();
+				}
+				ring.release(end - 1);
 			}
+			return end;
 		}
-		
 	}
 
-	@Override
-	public void setAutoPurge(boolean autoPurge) {
-		// TODO Auto-generated method stub
-		
+	/**
+	 * A slot in a worker ring, reused for many requests
+	 */
+	private static class Request implements Operation {
+
+		private Type type;
+		private String key;
+		private int rev;
+		private byte[] body;
+		private Keez.Callback callback;
+		private Barrier barrier;
+		// work for this worker only, that doesn't fit in an Operation
+		private Task task;
+
+		public static Request of(Type type, String key, Keez.Callback callback) {
+			Request request = new Request();
+			request.set(type, key, 0, null, callback, null);
+			return request;
+		}
+
+		public void set(Type type, String key, int rev, byte[] body, Keez.Callback callback, Barrier barrier) {
+			this.type = type;
+			this.key = key;
+			this.rev = rev;
+			this.body = body;
+			this.callback = callback;
+			this.barrier = barrier;
+			this.task = null;
+		}
+
+		public void set(Task task) {
+			set(null, null, 0, null, null, null);
+			this.task = task;
+		}
+
+		public boolean isOperation() {
+			return barrier == null && task == null;
+		}
+
+		// don't keep bodies and callbacks alive
+		public void clear() {
+			set(null, null, 0, null, null, null);
+		}
+
+		@Override
+		public Type getType() {
+			return type;
+		}
+
+		@Override
+		public String getKey() {
+			return key;
+		}
+
+		@Override
+		public int getRevision() {
+			return rev;
+		}
+
+		@Override
+		public byte[] getBody() {
+			return body;
+		}
+
+		@Override
+		public Keez.Callback getCallback() {
+			return callback;
+		}
 	}
 
-	@Override
-	public void getRevisions(String key, GetRevisions callback) {
-		// TODO Auto-generated method stub
-		
+	/**
+	 * Scan of a Db that may not be thread safe: all calls to it go through barriers,
+	 * except those made from inside a barrier (ie request from onNext)
+	 */
+	private class StoppedScan extends Subscriber implements Subscription {
+		private final Subscriber target;
+		private volatile Subscription source;
+		// thread running a barrier for this scan
+		private volatile Thread inside;
+
+		public StoppedScan(Subscriber target) {
+			Helpers.notNull(target);
+			this.target = target;
+		}
+
+		public void start() {
+			runInside(new Runnable() {
+				@Override
+				public void run() {
+					db.scan(StoppedScan.this);
+				}
+			});
+		}
+
+		@Override
+		public void request(final long n) {
+			runInside(new Runnable() {
+				@Override
+				public void run() {
+					source.request(n);
+				}
+			});
+		}
+
+		@Override
+		public void cancel() {
+			runInside(new Runnable() {
+				@Override
+				public void run() {
+					source.cancel();
+				}
+			});
+		}
+
+		private void runInside(final Runnable task) {
+			if (Thread.currentThread() == inside) {
+				task.run();
+				return;
+			}
+			try {
+				boolean queued = runStopped(Type.SCAN, target, new Barrier(workers.length, new Task() {
+					@Override
+					public void run() {
+						inside = Thread.currentThread();
+						try {
+							task.run();
+						}
+						finally {
+							inside = null;
+						}
+					}
+
+					@Override
+					void error(Exception e) {
+						Helpers.error(target, e);
+					}
+				}));
+				if (!queued) {
+					Helpers.error(target, new RejectedExecutionException("request queue is full"));
+				}
+			} catch (InterruptedException e) {
+				Helpers.error(target, e);
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public void onSubscribe(Subscription subscription) {
+			source = subscription;
+			target.onSubscribe(this);
+		}
+
+		@Override
+		public void onNext(Entry entry) {
+			target.onNext(entry);
+		}
+
+		@Override
+		public void onError(Exception e) {
+			target.onError(e);
+		}
+
+		@Override
+		public void onComplete() {
+			target.onComplete();
+		}
+
+		@Override
+		public void applicationError(Exception ex) {
+			target.applicationError(ex);
+		}
+	}
+
+	/**
+	 * A request that must run while all workers are stopped
+	 */
+	private static class Barrier {
+		private final AtomicInteger waiting;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private final Task task;
+
+		public Barrier(int parties, Task task) {
+			waiting = new AtomicInteger(parties);
+			this.task = task;
+		}
+
+		/**
+		 * The last worker to get here runs the request, the others wait for it to finish
+		 */
+		public void arrive(Request request, Db db) throws InterruptedException {
+			if (waiting.decrementAndGet() > 0) {
+				done.await();
+				return;
+			}
+			try {
+				if (task != null) {
+					runSafely(task);
+				}
+				else {
+					executeSafely(db, request);
+				}
+			}
+			finally {
+				done.countDown();
+			}
+		}
 	}
 
 }
@@ -0,0 +1,496 @@
+package net.caprazzi.keez;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.caprazzi.keez.Keez.Db;
+import net.caprazzi.keez.Keez.Delete;
+import net.caprazzi.keez.Keez.Entry;
+import net.caprazzi.keez.Keez.Get;
+import net.caprazzi.keez.Keez.GetRevisions;
+import net.caprazzi.keez.Keez.GetStream;
+import net.caprazzi.keez.Keez.GetTo;
+import net.caprazzi.keez.Keez.List;
+import net.caprazzi.keez.Keez.MultiGet;
+import net.caprazzi.keez.Keez.Put;
+import net.caprazzi.keez.Keez.Range;
+import net.caprazzi.keez.Keez.Scan;
+import net.caprazzi.keez.Keez.Subscriber;
+import net.caprazzi.keez.Keez.Write;
+import net.caprazzi.keez.Keez.WriteBatch;
+
+/**
+ * Read-through cache of the latest revision of each key, in front of any Db instance.
+ *
+ * get and getAll are served from the cache when they can, misses are read from the db
+ * and cached. Puts through the cache replace the cached entry, deletes remove it.
+ * getRevisions, list and scans always go to the db.
+ * Writes made to the db directly, not through the cache, are not seen.
+ *
+ * The cache is bounded in bytes and split in segments by key, each with its own lock
+ * and W-TinyLFU policy (see {@link TinyLfuCache}).
+ *
+ * With a db that invokes callbacks later and on other threads, a read could complete
+ * after a write to the same key. To never cache a stale entry, a value read is only
+ * cached if no write to the key was running when the read started, and none started
+ * since. Likewise for a value written, if no other write ran at the same time.
+ * Writes are tracked by lock stripe, not by key.
+ *
+ * Bodies are cached as they are, not copied: don't modify them.
+ */
+public class KeezCache implements Db {
+
+	private static final int SEGMENTS = 16;
+	private static final int STRIPES = 1024;
+
+	private final Db db;
+	private final TinyLfuCache[] segments = new TinyLfuCache[SEGMENTS];
+
+	// writes started and finished, by stripe
+	private final AtomicLongArray started = new AtomicLongArray(STRIPES);
+	private final AtomicLongArray finished = new AtomicLongArray(STRIPES);
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param db
+	 * @param maxBytes space for keys, bodies and some bookkeeping per entry
+	 */
+	public KeezCache(Db db, long maxBytes) {
+		this.db = db;
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new TinyLfuCache(maxBytes / SEGMENTS);
+		}
+	}
+
+	@Override
+	public void put(final String key, int rev, final byte[] body, final Put callback) {
+		Helpers.notNull(key);
+		Helpers.notNull(body);
+		Helpers.notNull(callback);
+
+		final Writing writing = new Writing(key);
+		try {
+			db.put(key, rev, body, new Put() {
+				@Override
+				public void ok(String key, int rev) {
+					writing.done(new Entry(key, rev, body));
+					Helpers.ok(callback, key, rev);
+				}
+
+				@Override
+				public void collision(String key, int yourRev, int foundRev) {
+					writing.done(null);
+					Helpers.collision(callback, key, yourRev, foundRev);
+				}
+
+				@Override
+				public void error(String key, Exception e) {
+					writing.done(null);
+					Helpers.error(callback, key, e);
+				}
+			});
+		} catch (RuntimeException e) {
+			writing.done(null);
+			throw e;
+		}
+	}
+
+	/**
+	 * The cached entry of the key is dropped. The body is not cached, as it's
+	 * not in memory: the next get of the key is a miss.
+	 */
+	@Override
+	public void putStream(final String key, int rev, InputStream body, final Put callback) {
+		Helpers.notNull(key);
+		Helpers.notNull(body);
+		Helpers.notNull(callback);
+
+		final Writing writing = new Writing(key);
+		try {
+			db.putStream(key, rev, body, new Put() {
+				@Override
+				public void ok(String key, int rev) {
+					writing.done(null);
+					Helpers.ok(callback, key, rev);
+				}
+
+				@Override
+				public void collision(String key, int yourRev, int foundRev) {
+					writing.done(null);
+					Helpers.collision(callback, key, yourRev, foundRev);
+				}
+
+				@Override
+				public void error(String key, Exception e) {
+					writing.done(null);
+					Helpers.error(callback, key, e);
+				}
+			});
+		} catch (RuntimeException e) {
+			writing.done(null);
+			throw e;
+		}
+	}
+
+	@Override
+	public void get(String key, final Get callback) {
+		Helpers.notNull(key);
+		Helpers.notNull(callback);
+
+		Entry cached = lookup(key);
+		if (cached != null) {
+			Helpers.found(callback, key, cached.getRevision(), cached.getData());
+			return;
+		}
+
+		final long ticket = startRead(key);
+		db.get(key, new Get() {
+			@Override
+			public void found(String key, int rev, byte[] data) {
+				fill(new Entry(key, rev, data), ticket);
+				Helpers.found(callback, key, rev, data);
+			}
+
+			@Override
+			public void notFound(String key) {
+				Helpers.notFound(callback, key);
+			}
+
+			@Override
+			public void error(String key, Exception e) {
+				Helpers.error(callback, key, e);
+			}
+		});
+	}
+
+	/**
+	 * A cached body is written from the cache. 
+	 * Misses are passed to db.getTo, and don't fill the cache.
+	 */
+	@Override
+	public void getTo(String key, WritableByteChannel channel, GetTo callback) {
+		Helpers.notNull(key);
+		Helpers.notNull(channel);
+		Helpers.notNull(callback);
+		
+		Entry cached = lookup(key);
+		if (cached == null) {
+			db.getTo(key, channel, callback);
+			return;
+		}
+		
+		long length;
+		try {
+			length = ChannelTransfer.write(ByteBuffer.wrap(cached.getData()), channel);
+		} catch (Exception e) {
+			Helpers.error(callback, key, e);
+			return;
+		}
+		Helpers.written(callback, key, cached.getRevision(), length);
+	}
+
+	/**
+	 * A cached body is streamed from the cache. 
+	 * Misses are passed to db.getStream, and don't fill the cache.
+	 */
+	@Override
+	public void getStream(String key, GetStream callback) {
+		Helpers.notNull(key);
+		Helpers.notNull(callback);
+		
+		Entry cached = lookup(key);
+		if (cached == null) {
+			db.getStream(key, callback);
+			return;
+		}
+		Helpers.found(callback, key, cached.getRevision(), new ByteArrayInputStream(cached.getData()));
+	}
+
+	/**
+	 * Only the keys not in the cache are passed to db.getAll
+	 */
+	@Override
+	public void getAll(Collection<String> keys, final MultiGet callback) {
+		Helpers.notNull(keys);
+		Helpers.notNull(callback);
+
+		final LinkedHashSet<String> ordered = new LinkedHashSet<String>(keys);
+		final LinkedHashMap<String, Entry> cached = new LinkedHashMap<String, Entry>();
+		ArrayList<String> missing = new ArrayList<String>();
+		final LinkedHashMap<String, Long> tickets = new LinkedHashMap<String, Long>();
+		for (String key : ordered) {
+			Entry entry = lookup(key);
+			if (entry != null) {
+				cached.put(key, entry);
+			}
+			else {
+				missing.add(key);
+				tickets.put(key, startRead(key));
+			}
+		}
+
+		if (missing.isEmpty()) {
+			Helpers.found(callback, cached);
+			return;
+		}
+
+		db.getAll(missing, new MultiGet() {
+			@Override
+			public void found(Map<String, Entry> entries) {
+				LinkedHashMap<String, Entry> all = new LinkedHashMap<String, Entry>();
+				for (String key : ordered) {
+					Entry entry = cached.get(key);
+					if (entry == null) {
+						entry = entries.get(key);
+						if (entry != null) {
+							fill(entry, tickets.get(key));
+						}
+					}
+					if (entry != null) {
+						all.put(key, entry);
+					}
+				}
+				Helpers.found(callback, all);
+			}
+
+			@Override
+			public void error(Exception e) {
+				Helpers.error(callback, e);
+			}
+		});
+	}
+
+	@Override
+	public void getRevisions(String key, GetRevisions callback) {
+		db.getRevisions(key, callback);
+	}
+
+	@Override
+	public void delete(String key, final Delete callback) {
+		Helpers.notNull(key);
+		Helpers.notNull(callback);
+
+		final Writing writing = new Writing(key);
+		try {
+			db.delete(key, new Delete() {
+				@Override
+				public void deleted(String key, byte[] data) {
+					writing.done(null);
+					Helpers.deleted(callback, key, data);
+				}
+
+				@Override
+				public void notFound(String key) {
+					writing.done(null);
+					Helpers.notFound(callback, key);
+				}
+
+				@Override
+				public void error(String key, Exception e) {
+					writing.done(null);
+					Helpers.error(callback, key, e);
+				}
+			});
+		} catch (RuntimeException e) {
+			writing.done(null);
+			throw e;
+		}
+	}
+
+	@Override
+	public void writeBatch(final java.util.List<Write> writes, final WriteBatch callback) {
+		Helpers.notNull(writes);
+		Helpers.notNull(callback);
+
+		final ArrayList<Writing> writings = new ArrayList<Writing>(writes.size());
+		for (Write write : writes) {
+			writings.add(new Writing(write.getKey()));
+		}
+		try {
+			db.writeBatch(writes, new WriteBatch() {
+				@Override
+				public void ok(Map<String, Integer> revisions) {
+					for (int i = 0; i < writes.size(); i++) {
+						Write write = writes.get(i);
+						writings.get(i).done(write.isDelete() ? null
+							: new Entry(write.getKey(), revisions.get(write.getKey()), write.getBody()));
+					}
+					Helpers.ok(callback, revisions);
+				}
+
+				@Override
+				public void collision(Map<String, Integer> foundRevisions) {
+					done(writings);
+					Helpers.collision(callback, foundRevisions);
+				}
+
+				@Override
+				public void error(Exception e) {
+					done(writings);
+					Helpers.error(callback, e);
+				}
+			});
+		} catch (RuntimeException e) {
+			done(writings);
+			throw e;
+		}
+	}
+
+	@Override
+	public void list(List callback) {
+		db.list(callback);
+	}
+
+	@Override
+	public void scan(Subscriber subscriber) {
+		db.scan(subscriber);
+	}
+
+	@Override
+	public void scan(Range range, int limit, String cursor, Scan callback) {
+		db.scan(range, limit, cursor, callback);
+	}
+
+	@Override
+	public void setAutoPurge(boolean autoPurge) {
+		db.setAutoPurge(autoPurge);
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		long evictions = 0;
+		for (TinyLfuCache segment : segments) {
+			synchronized (segment) {
+				evictions += segment.getEvictionCount();
+			}
+		}
+		return evictions;
+	}
+
+	/**
+	 * @return bytes taken by the cached entries
+	 */
+	public long getWeight() {
+		long weight = 0;
+		for (TinyLfuCache segment : segments) {
+			synchronized (segment) {
+				weight += segment.getWeight();
+			}
+		}
+		return weight;
+	}
+
+	private Entry lookup(String key) {
+		TinyLfuCache segment = segmentFor(key);
+		Entry entry;
+		synchronized (segment) {
+			entry = segment.get(key);
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+		}
+		else {
+			hits.incrementAndGet();
+		}
+		return entry;
+	}
+
+	/**
+	 * @return a ticket to cache the value read, -1 if a write is running
+	 */
+	private long startRead(String key) {
+		int stripe = stripeFor(key);
+		long done = finished.get(stripe);
+		return (started.get(stripe) == done) ? done : -1;
+	}
+
+	/**
+	 * Cache a value read, if no write started since the read
+	 */
+	private void fill(Entry entry, long ticket) {
+		TinyLfuCache segment = segmentFor(entry.getKey());
+		synchronized (segment) {
+			if (ticket != -1 && started.get(stripeFor(entry.getKey())) == ticket) {
+				segment.put(entry);
+			}
+		}
+	}
+
+	private static void done(Collection<Writing> writings) {
+		for (Writing writing : writings) {
+			writing.done(null);
+		}
+	}
+
+	private TinyLfuCache segmentFor(String key) {
+		return segments[(spread(key.hashCode()) >>> 16) & (SEGMENTS - 1)];
+	}
+
+	private static int stripeFor(String key) {
+		return spread(key.hashCode()) & (STRIPES - 1);
+	}
+
+	private static int spread(int h) {
+		// as in HashMap
+		h ^= (h >>> 20) ^ (h >>> 12);
+		return h ^ (h >>> 7) ^ (h >>> 4);
+	}
+
+	/**
+	 * A write going through the cache. Must be done exactly once.
+	 */
+	private class Writing {
+
+		private final String key;
+		private final int stripe;
+		// -1 if another write was running when this started
+		private final long ticket;
+		private final AtomicBoolean done = new AtomicBoolean();
+
+		public Writing(String key) {
+			this.key = key;
+			this.stripe = stripeFor(key);
+			long ticket = started.incrementAndGet(stripe);
+			this.ticket = (finished.get(stripe) == ticket - 1) ? ticket : -1;
+		}
+
+		/**
+		 * @param written entry to cache, null to just drop the cached one
+		 */
+		public void done(Entry written) {
+			if (!done.compareAndSet(false, true)) {
+				return;
+			}
+			TinyLfuCache segment = segmentFor(key);
+			synchronized (segment) {
+				if (written != null && ticket != -1 && started.get(stripe) == ticket) {
+					segment.put(written);
+				}
+				else {
+					segment.remove(key);
+				}
+				finished.incrementAndGet(stripe);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,447 @@
+package net.caprazzi.keez;
+
+import java.lang.reflect.Method;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import net.caprazzi.keez.Keez.Db;
+import net.caprazzi.keez.Keez.Delete;
+import net.caprazzi.keez.Keez.Entry;
+import net.caprazzi.keez.Keez.Get;
+import net.caprazzi.keez.Keez.GetRevisions;
+import net.caprazzi.keez.Keez.GetStream;
+import net.caprazzi.keez.Keez.GetTo;
+import net.caprazzi.keez.Keez.List;
+import net.caprazzi.keez.Keez.MultiGet;
+import net.caprazzi.keez.Keez.Operation;
+import net.caprazzi.keez.Keez.Operation.Type;
+import net.caprazzi.keez.Keez.Put;
+import net.caprazzi.keez.Keez.Range;
+import net.caprazzi.keez.Keez.Scan;
+import net.caprazzi.keez.Keez.Subscriber;
+import net.caprazzi.keez.Keez.Write;
+import net.caprazzi.keez.Keez.WriteBatch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Runs the requests to a blocking Db instance on an Executor, and invokes the callbacks from there.
+ *
+ * Requests on the same key are executed one at a time and in order: each key with
+ * pending requests has its own queue, drained by one task at a time.
+ * Requests on different keys run in parallel, as far as the executor allows.
+ * list(), scans and write batches are not ordered with respect to other requests.
+ *
+ * Unlike {@link KeezAync} there is no fixed set of workers, so with an executor
+ * that starts a virtual thread per task (java 21, see {@link #newVirtualThreadExecutor()})
+ * many thousands of requests can wait on I/O at the same time.
+ * The Db instance must be thread safe.
+ */
+public class KeezExecutor implements Db {
+
+	private Logger logger = LoggerFactory.getLogger(KeezExecutor.class);
+
+	private final Db db;
+	private final Executor executor;
+	private final ConcurrentHashMap<String, KeyQueue> queues = new ConcurrentHashMap<String, KeyQueue>();
+
+	public KeezExecutor(Db db, Executor executor) {
+		this.db = db;
+		this.executor = executor;
+	}
+
+	/**
+	 * @return an executor starting a new virtual thread for each task
+	 * @throws UnsupportedOperationException if the jvm has no virtual threads (before java 21)
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		Method factory;
+		try {
+			factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			throw new UnsupportedOperationException("virtual threads are not available in this jvm", e);
+		}
+		try {
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			throw new RuntimeException("could not create virtual thread executor", e);
+		}
+	}
+
+	public static boolean isVirtualThreadAvailable() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public void put(String key, int rev, byte[] body, Put callback) {
+		submit(new Call(Type.PUT, key, rev, body, callback));
+	}
+
+	@Override
+	public void get(String key, Get callback) {
+		submit(new Call(Type.GET, key, 0, null, callback));
+	}
+
+	/**
+	 * Queued with the other requests on the key, though it's not an Operation
+	 */
+	@Override
+	public void getTo(final String key, final WritableByteChannel channel, final GetTo callback) {
+		Helpers.notNull(channel);
+		Helpers.notNull(callback);
+		submit(new Call(key, new KeyTask() {
+			@Override
+			public void run() {
+				db.getTo(key, channel, callback);
+			}
+
+			@Override
+			void error(Exception e) {
+				Helpers.error(callback, key, e);
+			}
+		}));
+	}
+
+	/**
+	 * Queued with the other requests on the key. The stream is read on the executor:
+	 * keep it open until the callback is invoked.
+	 */
+	@Override
+	public void putStream(final String key, final int rev, final InputStream body, final Put callback) {
+		Helpers.notNull(body);
+		Helpers.notNull(callback);
+		submit(new Call(key, new KeyTask() {
+			@Override
+			public void run() {
+				db.putStream(key, rev, body, callback);
+			}
+
+			@Override
+			void error(Exception e) {
+				Helpers.error(callback, key, e);
+			}
+		}));
+	}
+
+	/**
+	 * Queued with the other requests on the key
+	 */
+	@Override
+	public void getStream(final String key, final GetStream callback) {
+		Helpers.notNull(callback);
+		submit(new Call(key, new KeyTask() {
+			@Override
+			public void run() {
+				db.getStream(key, callback);
+			}
+
+			@Override
+			void error(Exception e) {
+				Helpers.error(callback, key, e);
+			}
+		}));
+	}
+
+	/**
+	 * Each key is queued as a get, so it's ordered with the other requests on the key,
+	 * and keys are read in parallel
+	 */
+	@Override
+	public void getAll(Collection<String> keys, MultiGet callback) {
+		Helpers.notNull(keys);
+		Helpers.notNull(callback);
+		// the keys are read again on a worker, when the last part is done
+		keys = ImmutableList.copyOf(keys);
+		if (keys.isEmpty()) {
+			Helpers.found(callback, new LinkedHashMap<String, Entry>());
+			return;
+		}
+
+		final MultiGetCollector collector = new MultiGetCollector(keys, keys.size(), callback);
+		Get get = new Get() {
+			@Override
+			public void found(String key, int rev, byte[] data) {
+				collector.found(new Entry(key, rev, data));
+				collector.partDone();
+			}
+
+			@Override
+			public void notFound(String key) {
+				collector.partDone();
+			}
+
+			@Override
+			public void error(String key, Exception e) {
+				collector.error(e);
+			}
+		};
+		for (String key : keys) {
+			submit(new Call(Type.GET, key, 0, null, get));
+		}
+	}
+
+	@Override
+	public void getRevisions(String key, GetRevisions callback) {
+		submit(new Call(Type.GET_REVISIONS, key, 0, null, callback));
+	}
+
+	@Override
+	public void delete(String key, Delete callback) {
+		submit(new Call(Type.DELETE, key, 0, null, callback));
+	}
+
+	/**
+	 * The batch runs on the executor, the Db instance makes it atomic
+	 */
+	@Override
+	public void writeBatch(final java.util.List<Write> writes, final WriteBatch callback) {
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						db.writeBatch(writes, callback);
+					} catch (RuntimeException e) {
+						logger.error("uncaught exception executing write batch", e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			Helpers.error(callback, e);
+		}
+	}
+
+	@Override
+	public void list(List callback) {
+		submitUnordered(new Call(Type.LIST, null, 0, null, callback));
+	}
+
+	/**
+	 * The scan starts on the executor. Entries are then delivered by the threads that
+	 * invoke Subscription.request, so the Db instance must support that.
+	 */
+	@Override
+	public void scan(Subscriber subscriber) {
+		submitUnordered(new Call(Type.SCAN, null, 0, null, subscriber));
+	}
+
+	@Override
+	public void scan(final Range range, final int limit, final String cursor, final Scan callback) {
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						db.scan(range, limit, cursor, callback);
+					} catch (RuntimeException e) {
+						logger.error("uncaught exception executing scan " + range, e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			Helpers.error(callback, e);
+		}
+	}
+
+	@Override
+	public void setAutoPurge(boolean autoPurge) {
+		db.setAutoPurge(autoPurge);
+	}
+
+	private void submitUnordered(final Call call) {
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					execute(call);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			Helpers.error(call, e);
+		}
+	}
+
+	private void submit(Call call) {
+		Helpers.notNull(call.key);
+		while (true) {
+			KeyQueue queue = queues.get(call.key);
+			if (queue == null) {
+				queue = new KeyQueue(call.key);
+				KeyQueue existing = queues.putIfAbsent(call.key, queue);
+				if (existing != null) {
+					queue = existing;
+				}
+			}
+			// a queue is retired when it gets empty, then a new one is needed
+			if (queue.offer(call)) {
+				return;
+			}
+		}
+	}
+
+	private void execute(Call call) {
+		try {
+			if (call.task != null) {
+				call.task.run();
+			}
+			else {
+				Helpers.execute(db, call);
+			}
+		} catch (RuntimeException e) {
+			// don't let one request stop the ones queued after it
+			logger.error("uncaught exception executing " + call.type + " " + call.key, e);
+		}
+	}
+
+	/**
+	 * Pending requests for one key
+	 */
+	private class KeyQueue implements Runnable {
+
+		private final String key;
+		// guarded by this
+		private final ArrayDeque<Call> pending = new ArrayDeque<Call>();
+		private boolean running;
+		private boolean retired;
+
+		public KeyQueue(String key) {
+			this.key = key;
+		}
+
+		/**
+		 * @return false if the queue is retired, and can't take requests
+		 */
+		public boolean offer(Call call) {
+			synchronized (this) {
+				if (retired) {
+					return false;
+				}
+				pending.add(call);
+				if (running) {
+					return true;
+				}
+				running = true;
+			}
+
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				// nothing else can be pending, as the queue was not running
+				synchronized (this) {
+					pending.clear();
+					retire();
+				}
+				if (call.task != null) {
+					call.task.error(e);
+				}
+				else {
+					Helpers.error(call, e);
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Call call;
+				synchronized (this) {
+					call = pending.poll();
+					if (call == null) {
+						retire();
+						return;
+					}
+				}
+				execute(call);
+			}
+		}
+
+		// must hold the lock
+		private void retire() {
+			running = false;
+			retired = true;
+			queues.remove(key, this);
+		}
+	}
+
+	/**
+	 * A request on one key that doesn't fit in an Operation
+	 */
+	private static abstract class KeyTask implements Runnable {
+		/**
+		 * Invoked instead of run if the task can't be queued
+		 */
+		abstract void error(Exception e);
+	}
+
+	private static class Call implements Operation {
+
+		private final Type type;
+		private final String key;
+		private final int rev;
+		private final byte[] body;
+		private final Keez.Callback callback;
+		// runs instead of the operation, for requests that are not one
+		private final KeyTask task;
+
+		public Call(Type type, String key, int rev, byte[] body, Keez.Callback callback) {
+			this.type = type;
+			this.key = key;
+			this.rev = rev;
+			this.body = body;
+			this.callback = callback;
+			this.task = null;
+		}
+
+		public Call(String key, KeyTask task) {
+			this.type = null;
+			this.key = key;
+			this.rev = 0;
+			this.body = null;
+			this.callback = null;
+			this.task = task;
+		}
+
+		@Override
+		public Type getType() {
+			return type;
+		}
+
+		@Override
+		public String getKey() {
+			return key;
+		}
+
+		@Override
+		public int getRevision() {
+			return rev;
+		}
+
+		@Override
+		public byte[] getBody() {
+			return body;
+		}
+
+		@Override
+		public Keez.Callback getCallback() {
+			return callback;
+		}
+	}
+
+}
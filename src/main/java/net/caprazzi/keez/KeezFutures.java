@@ -0,0 +1,334 @@
+package net.caprazzi.keez;
+
+import net.caprazzi.keez.Keez.Db;
+import net.caprazzi.keez.Keez.Entry;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Future based facade for a Db instance.
+ *
+ * Each method invokes the matching Db method with a callback that completes the
+ * returned future: no thread waits for the result. The callback outcome
+ * (ie found or not found) is the value of the future, errors fail the future
+ * with the exception passed to callback.error.
+ *
+ * Futures complete on the thread that invokes the callback, that is the caller
+ * thread for synchronous Db instances, a worker thread for {@link KeezAync} and
+ * {@link KeezExecutor}. Use Futures.transform, Futures.chain and Futures.allAsList
+ * to compose them. Functions chained without an executor run on that same thread:
+ * with KeezAync, a chained call waiting for room in a full ring can block the worker
+ * that has to make room for it.
+ *
+ * Revisions and list entries are copied in the callback: engines may read them lazily,
+ * and by the time the caller iterates them the keys may have changed. A failed copy
+ * fails the future.
+ */
+public class KeezFutures {
+
+	private final Db db;
+
+	public KeezFutures(Db db) {
+		this.db = db;
+	}
+
+	public ListenableFuture<PutResult> put(String key, int rev, byte[] body) {
+		final SettableFuture<PutResult> future = SettableFuture.create();
+		db.put(key, rev, body, new Keez.Put() {
+			@Override
+			public void ok(String key, int rev) {
+				future.set(new PutResult(key, true, rev));
+			}
+
+			@Override
+			public void collision(String key, int yourRev, int foundRev) {
+				future.set(new PutResult(key, false, foundRev));
+			}
+
+			@Override
+			public void error(String key, Exception e) {
+				future.setException(e);
+			}
+		});
+		return future;
+	}
+
+	public ListenableFuture<GetResult> get(String key) {
+		final SettableFuture<GetResult> future = SettableFuture.create();
+		db.get(key, new Keez.Get() {
+			@Override
+			public void found(String key, int rev, byte[] data) {
+				future.set(new GetResult(key, true, rev, data));
+			}
+
+			@Override
+			public void notFound(String key) {
+				future.set(new GetResult(key, false, 0, null));
+			}
+
+			@Override
+			public void error(String key, Exception e) {
+				future.setException(e);
+			}
+		});
+		return future;
+	}
+
+	public ListenableFuture<RevisionsResult> getRevisions(String key) {
+		final SettableFuture<RevisionsResult> future = SettableFuture.create();
+		db.getRevisions(key, new Keez.GetRevisions() {
+			@Override
+			public void found(String key, Iterable<Entry> revisions) {
+				try {
+					future.set(new RevisionsResult(key, ImmutableList.copyOf(revisions)));
+				}
+				catch (RuntimeException e) {
+					future.setException(e);
+				}
+			}
+
+			@Override
+			public void notFound(String key) {
+				future.set(new RevisionsResult(key, null));
+			}
+
+			@Override
+			public void error(String key, Exception e) {
+				future.setException(e);
+			}
+		});
+		return future;
+	}
+
+	public ListenableFuture<DeleteResult> delete(String key) {
+		final SettableFuture<DeleteResult> future = SettableFuture.create();
+		db.delete(key, new Keez.Delete() {
+			@Override
+			public void deleted(String key, byte[] data) {
+				future.set(new DeleteResult(key, true, data));
+			}
+
+			@Override
+			public void notFound(String key) {
+				future.set(new DeleteResult(key, false, null));
+			}
+
+			@Override
+			public void error(String key, Exception e) {
+				future.setException(e);
+			}
+		});
+		return future;
+	}
+
+	public ListenableFuture<ListResult> list() {
+		final SettableFuture<ListResult> future = SettableFuture.create();
+		db.list(new Keez.List() {
+			@Override
+			public void entries(Iterable<Entry> entries) {
+				try {
+					future.set(new ListResult(ImmutableList.copyOf(entries)));
+				}
+				catch (RuntimeException e) {
+					future.setException(e);
+				}
+			}
+
+			@Override
+			public void notFound() {
+				future.set(new ListResult(null));
+			}
+
+			@Override
+			public void error(Exception e) {
+				future.setException(e);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Ok or Collision
+	 */
+	public static class PutResult {
+		private final String key;
+		private final boolean ok;
+		private final int revision;
+
+		PutResult(String key, boolean ok, int revision) {
+			this.key = key;
+			this.ok = ok;
+			this.revision = revision;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public boolean isOk() {
+			return ok;
+		}
+
+		public boolean isCollision() {
+			return !ok;
+		}
+
+		/**
+		 * @return the new revision if ok, the revision found in the db if collision (-1 if the key does not exist)
+		 */
+		public int getRevision() {
+			return revision;
+		}
+
+		@Override
+		public String toString() {
+			return (ok ? "Ok " : "Collision ") + key + "@" + revision;
+		}
+	}
+
+	/**
+	 * Found or NotFound
+	 */
+	public static class GetResult {
+		private final String key;
+		private final boolean found;
+		private final int revision;
+		private final byte[] data;
+
+		GetResult(String key, boolean found, int revision, byte[] data) {
+			this.key = key;
+			this.found = found;
+			this.revision = revision;
+			this.data = data;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public boolean isFound() {
+			return found;
+		}
+
+		/**
+		 * @return the revision, only if found
+		 */
+		public int getRevision() {
+			return revision;
+		}
+
+		/**
+		 * @return the data, or null if not found
+		 */
+		public byte[] getData() {
+			return data;
+		}
+
+		@Override
+		public String toString() {
+			return (found ? "Found " + key + "@" + revision : "NotFound " + key);
+		}
+	}
+
+	/**
+	 * Found or NotFound
+	 */
+	public static class RevisionsResult {
+		private final String key;
+		private final Iterable<Entry> revisions;
+
+		RevisionsResult(String key, Iterable<Entry> revisions) {
+			this.key = key;
+			this.revisions = revisions;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public boolean isFound() {
+			return revisions != null;
+		}
+
+		/**
+		 * @return the revisions, or null if not found
+		 */
+		public Iterable<Entry> getRevisions() {
+			return revisions;
+		}
+
+		@Override
+		public String toString() {
+			return (isFound() ? "Found " : "NotFound ") + key;
+		}
+	}
+
+	/**
+	 * Deleted or NotFound
+	 */
+	public static class DeleteResult {
+		private final String key;
+		private final boolean deleted;
+		private final byte[] data;
+
+		DeleteResult(String key, boolean deleted, byte[] data) {
+			this.key = key;
+			this.deleted = deleted;
+			this.data = data;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public boolean isDeleted() {
+			return deleted;
+		}
+
+		public boolean isNotFound() {
+			return !deleted;
+		}
+
+		/**
+		 * @return the data of the deleted key, or null if not found
+		 */
+		public byte[] getData() {
+			return data;
+		}
+
+		@Override
+		public String toString() {
+			return (deleted ? "Deleted " : "NotFound ") + key;
+		}
+	}
+
+	/**
+	 * Entries or NotFound (empty db)
+	 */
+	public static class ListResult {
+		private final Iterable<Entry> entries;
+
+		ListResult(Iterable<Entry> entries) {
+			this.entries = entries;
+		}
+
+		public boolean isFound() {
+			return entries != null;
+		}
+
+		/**
+		 * @return the entries, or null if the db is empty
+		 */
+		public Iterable<Entry> getEntries() {
+			return entries;
+		}
+
+		@Override
+		public String toString() {
+			return (isFound() ? "Entries" : "NotFound");
+		}
+	}
+
+}
@@ -0,0 +1,62 @@
+package net.caprazzi.keez;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.caprazzi.keez.Keez.Entry;
+import net.caprazzi.keez.Keez.MultiGet;
+
+/**
+ * Merges the results of a getAll split in parts, and invokes the callback
+ * when the last part is done, or on the first error.
+ */
+class MultiGetCollector {
+
+	private final Collection<String> keys;
+	private final MultiGet callback;
+	private final AtomicInteger pending;
+	private final ConcurrentHashMap<String, Entry> found = new ConcurrentHashMap<String, Entry>();
+	private final AtomicBoolean done = new AtomicBoolean();
+
+	public MultiGetCollector(Collection<String> keys, int parts, MultiGet callback) {
+		this.keys = keys;
+		this.callback = callback;
+		this.pending = new AtomicInteger(parts);
+	}
+
+	public void found(Entry entry) {
+		found.put(entry.getKey(), entry);
+	}
+
+	public void found(Map<String, Entry> entries) {
+		found.putAll(entries);
+	}
+
+	/**
+	 * A part is done, after adding what it found
+	 */
+	public void partDone() {
+		if (pending.decrementAndGet() > 0 || !done.compareAndSet(false, true)) {
+			return;
+		}
+		LinkedHashMap<String, Entry> ordered = new LinkedHashMap<String, Entry>();
+		for (String key : keys) {
+			Entry entry = found.get(key);
+			if (entry != null) {
+				ordered.put(key, entry);
+			}
+		}
+		Helpers.found(callback, ordered);
+	}
+
+	public void error(Exception e) {
+		if (done.compareAndSet(false, true)) {
+			Helpers.error(callback, e);
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+package net.caprazzi.keez;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs blocking reads in parallel, on a pool of daemon threads shared by all
+ * Db instances. The calling thread runs one of the reads itself.
+ *
+ * Reads must not use ParallelReads themselves, or they could wait for each other.
+ */
+public class ParallelReads {
+
+	public static final int THREADS = Math.max(8, 2 * Runtime.getRuntime().availableProcessors());
+
+	private static final ExecutorService pool = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "keez-reader-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * @return the results, in the same order as the reads
+	 * @throws Exception the exception thrown by the first read that failed
+	 */
+	public static <T> List<T> invokeAll(List<Callable<T>> reads) throws Exception {
+		ArrayList<T> results = new ArrayList<T>(reads.size());
+		if (reads.isEmpty()) {
+			return results;
+		}
+
+		ArrayList<Future<T>> futures = new ArrayList<Future<T>>(reads.size() - 1);
+		for (int i = 1; i < reads.size(); i++) {
+			futures.add(pool.submit(reads.get(i)));
+		}
+
+		try {
+			results.add(reads.get(0).call());
+			for (Future<T> future : futures) {
+				results.add(future.get());
+			}
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+		finally {
+			for (Future<T> future : futures) {
+				future.cancel(false);
+			}
+		}
+		return results;
+	}
+
+}
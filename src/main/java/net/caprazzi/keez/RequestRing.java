@@ -0,0 +1,185 @@
+package net.caprazzi.keez;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import net.caprazzi.keez.KeezAync.WhenFull;
+
+import com.google.common.base.Supplier;
+
+/**
+ * Bounded multi-producer, single-consumer ring of pre-allocated slots,
+ * in the style of the Disruptor.
+ *
+ * Producers claim a sequence number, fill the slot for that sequence
+ * and publish it. The consumer waits for the next sequence to be published,
+ * processes the slot and releases it, making room for producers.
+ * Slots are reused, nothing is allocated per request.
+ */
+class RequestRing<T> {
+
+	private static final int SPINS = 100;
+	private static final int YIELDS = 100;
+	private static final long PARK_NANOS = 50 * 1000;
+
+	private final Object[] slots;
+	private final int mask;
+	private final int capacity;
+
+	// last sequence claimed by a producer
+	private final AtomicLong claimed = new AtomicLong(-1);
+	// sequence last published in each slot
+	private final AtomicLongArray published;
+	// last sequence released by the consumer
+	private volatile long released = -1;
+
+	private volatile Thread consumer;
+	private volatile boolean consumerParked;
+
+	private final Object notFull = new Object();
+	private volatile int blockedProducers;
+
+	public RequestRing(int minCapacity, Supplier<T> factory) {
+		int capacity = 1;
+		while (capacity < minCapacity) {
+			capacity <<= 1;
+		}
+		this.capacity = capacity;
+		this.mask = capacity - 1;
+		this.slots = new Object[capacity];
+		this.published = new AtomicLongArray(capacity);
+		for (int i=0; i<capacity; i++) {
+			slots[i] = factory.get();
+			published.set(i, -1);
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Claim the next sequence. The caller must fill get(sequence) and publish it.
+	 *
+	 * @return the claimed sequence, or -1 if the ring is full and whenFull is FAIL
+	 * @throws InterruptedException
+	 */
+	public long claim(WhenFull whenFull) throws InterruptedException {
+		int waits = 0;
+		while (true) {
+			long current = claimed.get();
+			long next = current + 1;
+			if (isFull(next)) {
+				switch (whenFull) {
+				case FAIL:
+					return -1;
+				case BLOCK:
+					block(next);
+					break;
+				case SPIN_THEN_PARK:
+					backOff(waits++);
+					break;
+				}
+				continue;
+			}
+
+			if (claimed.compareAndSet(current, next)) {
+				return next;
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public T get(long sequence) {
+		return (T) slots[(int) sequence & mask];
+	}
+
+	/**
+	 * Make a filled slot visible to the consumer
+	 */
+	public void publish(long sequence) {
+		published.set((int) sequence & mask, sequence);
+		if (consumerParked) {
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	/**
+	 * Consumer side: wait until sequence is published.
+	 *
+	 * @return the highest sequence published so far, with no gaps after sequence
+	 * @throws InterruptedException
+	 */
+	public long waitFor(long sequence) throws InterruptedException {
+		if (consumer == null) {
+			consumer = Thread.currentThread();
+		}
+
+		int index = (int) sequence & mask;
+		int spins = 0;
+		while (published.get(index) != sequence) {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			if (spins < SPINS) {
+				spins++;
+				continue;
+			}
+			consumerParked = true;
+			if (published.get(index) != sequence) {
+				LockSupport.park(this);
+			}
+			consumerParked = false;
+		}
+
+		long available = sequence;
+		long limit = sequence + capacity - 1;
+		while (available < limit && published.get((int) (available + 1) & mask) == available + 1) {
+			available++;
+		}
+		return available;
+	}
+
+	/**
+	 * Consumer side: all slots up to sequence can be reused
+	 */
+	public void release(long sequence) {
+		released = sequence;
+		if (blockedProducers > 0) {
+			synchronized (notFull) {
+				notFull.notifyAll();
+			}
+		}
+	}
+
+	private boolean isFull(long next) {
+		return next - capacity > released;
+	}
+
+	private void block(long next) throws InterruptedException {
+		synchronized (notFull) {
+			blockedProducers++;
+			try {
+				while (isFull(next)) {
+					notFull.wait();
+				}
+			}
+			finally {
+				blockedProducers--;
+			}
+		}
+	}
+
+	private void backOff(int waits) {
+		if (waits < SPINS) {
+			return;
+		}
+		if (waits < SPINS + YIELDS) {
+			Thread.yield();
+			return;
+		}
+		LockSupport.parkNanos(PARK_NANOS);
+	}
+
+}
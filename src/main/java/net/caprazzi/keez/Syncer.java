@@ -0,0 +1,210 @@
+package net.caprazzi.keez;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Forces written channels to disk according to a {@link Durability} policy.
+ * 
+ * Writers call sync() after writing to a channel, and acknowledge the write
+ * when sync() returns.
+ * 
+ * With GROUP_COMMIT, the first writer to get to the disk forces all the channels
+ * written so far, while writers arriving in the meantime queue up for the
+ * next batch. Writes to the same channel (ie an append log) share one force.
+ * 
+ * With INTERVAL, released channels stay open until the next sync. Once
+ * MAX_RELEASED_PENDING of them are waiting, the writer that adds the last one
+ * forces them all, so that a burst of writes to many files doesn't run out of
+ * file descriptors.
+ */
+public class Syncer {
+	
+	public static final long DEFAULT_INTERVAL = 1000;
+	
+	public static final int MAX_RELEASED_PENDING = 256;
+	
+	private static Logger logger = LoggerFactory.getLogger(Syncer.class);
+
+	private final Durability durability;
+	private final Object forceLock = new Object();
+	private Batch current = new Batch();
+	private final ScheduledExecutorService timer;
+	
+	public Syncer(Durability durability) {
+		this(durability, DEFAULT_INTERVAL);
+	}
+
+	public Syncer(Durability durability, long intervalMillis) {
+		Helpers.notNull(durability);
+		this.durability = durability;
+		if (durability == Durability.INTERVAL) {
+			timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "keez-syncer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			timer.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						flush();
+					} catch (IOException e) {
+						logger.error("interval sync failed", e);
+					}
+				}
+			}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		}
+		else {
+			timer = null;
+		}
+	}
+	
+	public Durability getDurability() {
+		return durability;
+	}
+	
+	/**
+	 * Make the data written to channel durable, as required by the policy.
+	 * 
+	 * @param channel
+	 * @param release if true, the syncer takes ownership of the channel and closes 
+	 * 		it once it has been forced
+	 * @throws IOException if the channel could not be forced. The write should not be acknowledged.
+	 */
+	public void sync(FileChannel channel, boolean release) throws IOException {
+		switch (durability) {
+		case NONE:
+			if (release) {
+				channel.close();
+			}
+			return;
+		
+		case PER_WRITE:
+			try {
+				channel.force(false);
+			}
+			finally {
+				if (release) {
+					channel.close();
+				}
+			}
+			return;
+			
+		case INTERVAL:
+			if (enqueue(channel, release).released >= MAX_RELEASED_PENDING) {
+				try {
+					flush();
+				} catch (IOException e) {
+					logger.error("interval sync failed", e);
+				}
+			}
+			return;
+			
+		case GROUP_COMMIT:
+			Batch batch = enqueue(channel, release);
+			synchronized (forceLock) {
+				if (!batch.done) {
+					// we are first: force everything queued so far
+					swap();
+					batch.force();
+				}
+			}
+			if (batch.failure != null) {
+				throw new IOException("group commit failed: " + batch.failure.getMessage(), batch.failure);
+			}
+		}
+	}
+	
+	/**
+	 * Force all pending channels now
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		synchronized (forceLock) {
+			Batch batch = swap();
+			batch.force();
+			if (batch.failure != null) {
+				throw batch.failure;
+			}
+		}
+	}
+	
+	/**
+	 * Flush pending channels and stop the background thread, if any.
+	 */
+	public void close() {
+		if (timer != null) {
+			timer.shutdown();
+		}
+		try {
+			flush();
+		} catch (IOException e) {
+			logger.error("sync failed while closing", e);
+		}
+	}
+	
+	private synchronized Batch enqueue(FileChannel channel, boolean release) {
+		Boolean released = current.channels.get(channel);
+		boolean wasReleased = released != null && released;
+		current.channels.put(channel, release || wasReleased);
+		if (release && !wasReleased) {
+			current.released++;
+		}
+		return current;
+	}
+	
+	private synchronized Batch swap() {
+		Batch batch = current;
+		current = new Batch();
+		return batch;
+	}
+	
+	/**
+	 * Channels written since the last force. Forced while holding forceLock.
+	 */
+	private static class Batch {
+		private final Map<FileChannel, Boolean> channels = new LinkedHashMap<FileChannel, Boolean>();
+		// channels to close once forced, counted while the batch is current
+		private int released;
+		private boolean done;
+		private IOException failure;
+		
+		private void force() {
+			for (Map.Entry<FileChannel, Boolean> e : channels.entrySet()) {
+				FileChannel channel = e.getKey();
+				try {
+					if (failure == null) {
+						channel.force(false);
+					}
+				}
+				catch (IOException ex) {
+					failure = ex;
+				}
+				finally {
+					if (e.getValue()) {
+						try {
+							channel.close();
+						} catch (IOException ex) {
+							logger.error("could not close channel", ex);
+						}
+					}
+				}
+			}
+			done = true;
+		}
+	}
+
+}
@@ -0,0 +1,188 @@
+package net.caprazzi.keez;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import net.caprazzi.keez.Keez.Entry;
+
+/**
+ * Size bounded (in bytes) cache of entries with the W-TinyLFU policy.
+ *
+ * New entries go in a small LRU window (1% of the space). Entries pushed out of
+ * the window compete with the least recently used entry of the main space, and
+ * only the one accessed more often (as told by a {@link FrequencySketch}) stays.
+ * The main space is a segmented LRU: entries hit a second time move from
+ * probation to the protected segment (80% of the main space).
+ *
+ * Each LinkedHashMap is kept in insertion order, the eldest entry is the least
+ * recently used: entries are moved to the end by removing and adding them again.
+ *
+ * Not thread safe.
+ */
+class TinyLfuCache {
+
+	// bookkeeping cost of an entry, on top of key and body
+	private static final int ENTRY_OVERHEAD = 64;
+
+	private final long windowMax;
+	private final long mainMax;
+	private final long protectedMax;
+
+	private final LinkedHashMap<String, Entry> window = new LinkedHashMap<String, Entry>();
+	private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<String, Entry>();
+	private final LinkedHashMap<String, Entry> protectedEntries = new LinkedHashMap<String, Entry>();
+	private long windowBytes;
+	private long probationBytes;
+	private long protectedBytes;
+
+	private final FrequencySketch sketch;
+	private long evictions;
+
+	public TinyLfuCache(long maxBytes) {
+		this.windowMax = Math.max(1, maxBytes / 100);
+		this.mainMax = maxBytes - windowMax;
+		this.protectedMax = mainMax * 80 / 100;
+		// assume small entries, and remember more keys than fit
+		this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, Math.max(256, maxBytes / 256)));
+	}
+
+	/**
+	 * Look up a key, counting the access
+	 * @return the entry, or null if not cached
+	 */
+	public Entry get(String key) {
+		sketch.increment(key);
+
+		Entry entry = window.remove(key);
+		if (entry != null) {
+			window.put(key, entry);
+			return entry;
+		}
+
+		entry = probation.remove(key);
+		if (entry != null) {
+			probationBytes -= weight(entry);
+			protectedEntries.put(key, entry);
+			protectedBytes += weight(entry);
+			demoteProtected();
+			return entry;
+		}
+
+		entry = protectedEntries.remove(key);
+		if (entry != null) {
+			protectedEntries.put(key, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Add an entry, or replace the cached entry of the same key
+	 */
+	public void put(Entry entry) {
+		remove(entry.getKey());
+		if (weight(entry) > mainMax) {
+			return;
+		}
+		window.put(entry.getKey(), entry);
+		windowBytes += weight(entry);
+		evict();
+	}
+
+	public void remove(String key) {
+		Entry entry = window.remove(key);
+		if (entry != null) {
+			windowBytes -= weight(entry);
+			return;
+		}
+		entry = probation.remove(key);
+		if (entry != null) {
+			probationBytes -= weight(entry);
+			return;
+		}
+		entry = protectedEntries.remove(key);
+		if (entry != null) {
+			protectedBytes -= weight(entry);
+		}
+	}
+
+	public long getEvictionCount() {
+		return evictions;
+	}
+
+	/**
+	 * @return bytes taken by cached entries, including bookkeeping
+	 */
+	public long getWeight() {
+		return windowBytes + probationBytes + protectedBytes;
+	}
+
+	public int size() {
+		return window.size() + probation.size() + protectedEntries.size();
+	}
+
+	/**
+	 * Move entries out of the window, admitting them to the main space
+	 * if they are more popular than the entries they would push out
+	 */
+	private void evict() {
+		while (windowBytes > windowMax) {
+			Entry candidate = removeEldest(window);
+			windowBytes -= weight(candidate);
+
+			boolean admitted = true;
+			while (probationBytes + protectedBytes + weight(candidate) > mainMax) {
+				if (probation.isEmpty() && protectedEntries.isEmpty()) {
+					// larger than the whole main space
+					admitted = false;
+					break;
+				}
+				LinkedHashMap<String, Entry> segment = probation.isEmpty() ? protectedEntries : probation;
+				Entry victim = segment.values().iterator().next();
+				if (sketch.frequency(candidate.getKey()) <= sketch.frequency(victim.getKey())) {
+					admitted = false;
+					break;
+				}
+				segment.remove(victim.getKey());
+				if (segment == probation) {
+					probationBytes -= weight(victim);
+				}
+				else {
+					protectedBytes -= weight(victim);
+				}
+				evictions++;
+			}
+
+			if (admitted) {
+				probation.put(candidate.getKey(), candidate);
+				probationBytes += weight(candidate);
+			}
+			else {
+				evictions++;
+			}
+		}
+	}
+
+	/**
+	 * Move the least recently used protected entries back to probation
+	 */
+	private void demoteProtected() {
+		while (protectedBytes > protectedMax && protectedEntries.size() > 1) {
+			Entry entry = removeEldest(protectedEntries);
+			protectedBytes -= weight(entry);
+			probation.put(entry.getKey(), entry);
+			probationBytes += weight(entry);
+		}
+	}
+
+	private static Entry removeEldest(LinkedHashMap<String, Entry> map) {
+		Iterator<Entry> it = map.values().iterator();
+		Entry eldest = it.next();
+		it.remove();
+		return eldest;
+	}
+
+	private static long weight(Entry entry) {
+		return ENTRY_OVERHEAD + 2 * entry.getKey().length() + entry.getData().length;
+	}
+
+}
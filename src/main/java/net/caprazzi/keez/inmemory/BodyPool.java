@@ -0,0 +1,129 @@
+package net.caprazzi.keez.inmemory;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bodies shared by all the values that have the same content, with a count of
+ * the values holding each one. A body leaves the pool when its count drops to zero.
+ *
+ * Bodies are looked up by content: hashed, then compared byte by byte,
+ * so two different bodies are never shared.
+ *
+ * Lock free: a body whose count reached zero can't be acquired again,
+ * it's removed and added back as a new entry.
+ */
+class BodyPool {
+
+	private final ConcurrentHashMap<Content, Shared> bodies = new ConcurrentHashMap<Content, Shared>();
+
+	/**
+	 * Count one more holder of a body
+	 * @return the pooled body with the same content, to be held instead of body
+	 */
+	public byte[] acquire(byte[] body) {
+		Content content = new Content(body);
+		while (true) {
+			Shared shared = bodies.get(content);
+			if (shared == null) {
+				shared = new Shared(body);
+				Shared found = bodies.putIfAbsent(content, shared);
+				if (found == null) {
+					return body;
+				}
+				shared = found;
+			}
+			if (shared.acquire()) {
+				return shared.body;
+			}
+			// being removed, help and try again
+			bodies.remove(content, shared);
+		}
+	}
+
+	/**
+	 * Count one less holder of a body returned by acquire.
+	 * Bodies not in the pool are ignored.
+	 */
+	public void release(byte[] body) {
+		Content content = new Content(body);
+		Shared shared = bodies.get(content);
+		if (shared == null || shared.body != body) {
+			return;
+		}
+		if (shared.release()) {
+			bodies.remove(content, shared);
+		}
+	}
+
+	/**
+	 * @return number of distinct bodies in the pool
+	 */
+	public int size() {
+		return bodies.size();
+	}
+
+	/**
+	 * @return number of holders of the pooled body with the same content, 0 if none
+	 */
+	public int count(byte[] body) {
+		Shared shared = bodies.get(new Content(body));
+		return (shared == null) ? 0 : shared.count.get();
+	}
+
+	private static class Shared {
+		private final byte[] body;
+		private final AtomicInteger count = new AtomicInteger(1);
+
+		public Shared(byte[] body) {
+			this.body = body;
+		}
+
+		/**
+		 * @return false if the count already reached zero
+		 */
+		public boolean acquire() {
+			while (true) {
+				int current = count.get();
+				if (current == 0) {
+					return false;
+				}
+				if (count.compareAndSet(current, current + 1)) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * @return true if this was the last holder
+		 */
+		public boolean release() {
+			return count.decrementAndGet() == 0;
+		}
+	}
+
+	/**
+	 * A body as a map key, equal to bodies with the same bytes
+	 */
+	private static class Content {
+		private final byte[] body;
+		private final int hash;
+
+		public Content(byte[] body) {
+			this.body = body;
+			this.hash = Arrays.hashCode(body);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof Content && Arrays.equals(body, ((Content) other).body);
+		}
+	}
+
+}
@@ -0,0 +1,586 @@
+package net.caprazzi.keez.inmemory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import net.caprazzi.keez.ChannelTransfer;
+import net.caprazzi.keez.Durability;
+import net.caprazzi.keez.Keez.Entry;
+import net.caprazzi.keez.Keez.Write;
+import net.caprazzi.keez.Syncer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Write-ahead log and snapshots, to keep the keys of a {@link KeezInMemory} across restarts.
+ *  - each write is appended to the log before it's visible in memory, then
+ *    forced according to the {@link Durability} policy (NONE by default)
+ *  - the log is a sequence of segments, prefix.N.wal. A snapshot, prefix.N.snapshot,
+ *    holds all revisions of all keys, and replaces the segments before N
+ *  - once snapshotBytes have been logged since the last snapshot, a new one is taken
+ *    in the background: the log moves to a new segment, then the keys are copied from
+ *    memory while writers go on. Writers only wait for the switch to the new segment.
+ *  - at startup the latest snapshot is loaded, then the segments after it are replayed.
+ *    Writes made while the snapshot was taken can be in both: replay skips
+ *    the revisions already there, so restart time is bounded by snapshotBytes
+ *  - records have a checksum, a torn record at the end of the log is dropped.
+ *    The records of a write batch are a single record, replayed all or none.
+ *  - a record that could not be forced is rewritten as void, so that the write
+ *    that failed is not replayed if the record reached the disk anyway
+ *
+ * A journal is opened by passing it to a KeezInMemory, and belongs to it.
+ */
+public class Journal {
+
+	public static final long DEFAULT_SNAPSHOT_BYTES = 64 * 1024 * 1024;
+
+	// crc, type, payload length
+	private static final int HEADER_SIZE = 4 + 1 + 4;
+
+	private static final byte PUT = 1;
+	private static final byte DELETE = 2;
+	private static final byte BATCH = 3;
+	// a record whose write failed, skipped by replay
+	private static final byte VOID = 4;
+
+	private static Logger logger = LoggerFactory.getLogger(Journal.class);
+
+	private final File directory;
+	private final String prefix;
+	private final long snapshotBytes;
+	// writers hold it shared from logging a write to making it visible,
+	// a snapshot holds it exclusive to switch segment
+	private final ReentrantReadWriteLock gate = new ReentrantReadWriteLock();
+	private final Object appendLock = new Object();
+	private final ArrayList<Segment> segments = new ArrayList<Segment>();
+	private volatile Segment active;
+	private final AtomicLong sinceSnapshot = new AtomicLong();
+	private final AtomicBoolean snapshotting = new AtomicBoolean();
+	private final ExecutorService background;
+	private volatile Syncer syncer = new Syncer(Durability.NONE);
+	private Target target;
+
+	public Journal(String directory, String prefix, boolean createDir) {
+		this(directory, prefix, createDir, DEFAULT_SNAPSHOT_BYTES);
+	}
+
+	/**
+	 * @param snapshotBytes bytes logged before a snapshot is taken, 0 to only take them by calling snapshot()
+	 */
+	public Journal(String directory, String prefix, boolean createDir, long snapshotBytes) {
+		if (!prefix.matches("[A-Za-z0-9]+")) {
+			throw new RuntimeException("invalid character in prefix [" + prefix + "]");
+		}
+		this.directory = new File(directory);
+		if (createDir && !this.directory.exists()) {
+			this.directory.mkdir();
+		}
+		this.prefix = prefix;
+		this.snapshotBytes = snapshotBytes;
+		this.background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "keez-snapshot");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Choose when the log is forced to disk. Default is {@link Durability#NONE}
+	 */
+	public void setDurability(Durability durability) {
+		setDurability(durability, Syncer.DEFAULT_INTERVAL);
+	}
+
+	public void setDurability(Durability durability, long intervalMillis) {
+		setSyncer(new Syncer(durability, intervalMillis));
+	}
+
+	void setSyncer(Syncer syncer) {
+		Syncer old = this.syncer;
+		this.syncer = syncer;
+		old.close();
+	}
+
+	/**
+	 * Take a snapshot now, then delete the segments and the snapshot it replaces.
+	 * Writers only wait while the log moves to a new segment.
+	 */
+	public synchronized void snapshot() throws IOException {
+		if (target == null) {
+			throw new IllegalStateException("journal not opened");
+		}
+
+		Segment next;
+		gate.writeLock().lock();
+		try {
+			synchronized (appendLock) {
+				if (active == null) {
+					throw new IOException("journal is closed");
+				}
+				next = createSegment(active.id + 1);
+				active = next;
+				sinceSnapshot.set(0);
+			}
+		}
+		finally {
+			gate.writeLock().unlock();
+		}
+
+		File temp = new File(directory, prefix + "." + next.id + ".snapshot.tmp");
+		FileOutputStream file = new FileOutputStream(temp);
+		boolean done = false;
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, ChannelTransfer.BUFFER_SIZE));
+			Iterator<Entry> revisions = target.revisions();
+			while (revisions.hasNext()) {
+				Entry entry = revisions.next();
+				out.write(record(PUT, putPayload(entry.getKey(), entry.getRevision(), false, entry.getData())));
+			}
+			out.flush();
+			file.getChannel().force(false);
+			done = true;
+		}
+		finally {
+			file.close();
+			if (!done) {
+				temp.delete();
+			}
+		}
+		File snapshot = snapshotFile(next.id);
+		if (!temp.renameTo(snapshot)) {
+			throw new IOException("could not rename " + temp + " to " + snapshot);
+		}
+
+		// nothing is written to the old segments anymore, but they can be waiting to be forced
+		syncer.flush();
+		while (segments.get(0) != next) {
+			Segment old = segments.remove(0);
+			old.channel.close();
+			if (!old.file.delete()) {
+				logger.error("could not delete segment " + old.file);
+			}
+		}
+		for (File old : listFiles(".snapshot")) {
+			if (getId(old) < next.id && !old.delete()) {
+				logger.error("could not delete snapshot " + old);
+			}
+		}
+	}
+
+	/**
+	 * Wait for a snapshot being taken, then close the log.
+	 * The journal and its KeezInMemory should not be used after this.
+	 */
+	public void close() {
+		background.shutdown();
+		try {
+			background.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		syncer.close();
+		synchronized (this) {
+			synchronized (appendLock) {
+				active = null;
+			}
+			for (Segment segment : segments) {
+				try {
+					segment.channel.close();
+				} catch (IOException e) {
+					logger.error("could not close segment " + segment.file, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Load the latest snapshot and replay the log after it into target,
+	 * then get ready to log new writes
+	 */
+	synchronized void recover(Target target) throws IOException {
+		if (this.target != null) {
+			throw new IllegalStateException("journal already opened");
+		}
+		File[] files = directory.listFiles();
+		if (files == null) {
+			throw new IOException("not a directory: " + directory);
+		}
+		this.target = target;
+
+		// a snapshot that was not completed
+		for (File temp : listFiles(".snapshot.tmp")) {
+			temp.delete();
+		}
+
+		int snapshot = 0;
+		for (File file : listFiles(".snapshot")) {
+			snapshot = Math.max(snapshot, getId(file));
+		}
+		if (snapshot > 0) {
+			File file = snapshotFile(snapshot);
+			if (replay(file, file.length(), target) != file.length()) {
+				throw new IOException("corrupted snapshot " + file);
+			}
+		}
+
+		TreeMap<Integer, File> logs = new TreeMap<Integer, File>();
+		for (File file : listFiles(".wal")) {
+			logs.put(getId(file), file);
+		}
+		for (Map.Entry<Integer, File> e : logs.entrySet()) {
+			if (e.getKey() < snapshot) {
+				// replaced by the snapshot, left by a crash before they were deleted
+				e.getValue().delete();
+				continue;
+			}
+			Segment segment = new Segment(e.getKey(), e.getValue());
+			segments.add(segment);
+			long end = replay(segment.file, segment.size, target);
+			if (end < segment.size) {
+				segment.channel.truncate(end);
+				segment.size = end;
+			}
+		}
+		for (File file : listFiles(".snapshot")) {
+			if (getId(file) < snapshot) {
+				file.delete();
+			}
+		}
+
+		synchronized (appendLock) {
+			active = segments.isEmpty() ? createSegment(Math.max(1, snapshot)) : segments.get(segments.size() - 1);
+		}
+	}
+
+	/**
+	 * Hold while logging a write and making it visible
+	 */
+	void lock() {
+		gate.readLock().lock();
+	}
+
+	void unlock() {
+		gate.readLock().unlock();
+	}
+
+	/**
+	 * Log a new revision of a key. A create is a put of revision 1.
+	 * @param purge if older revisions are dropped
+	 */
+	void put(String key, int rev, boolean purge, byte[] body) throws IOException {
+		append(PUT, putPayload(key, rev, purge, body));
+	}
+
+	void delete(String key) throws IOException {
+		append(DELETE, deletePayload(key));
+	}
+
+	/**
+	 * Log the writes of a batch as one record
+	 */
+	void batch(java.util.List<Write> writes, boolean purge) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(writes.size());
+		for (Write write : writes) {
+			if (write.isDelete()) {
+				out.writeByte(DELETE);
+				out.write(deletePayload(write.getKey()));
+			}
+			else {
+				out.writeByte(PUT);
+				out.write(putPayload(write.getKey(), write.getRevision() + 1, purge, write.getBody()));
+			}
+		}
+		append(BATCH, bytes.toByteArray());
+	}
+
+	private void append(byte type, byte[] payload) throws IOException {
+		ByteBuffer record = ByteBuffer.wrap(record(type, payload));
+		Segment segment;
+		long start;
+		synchronized (appendLock) {
+			segment = active;
+			if (segment == null) {
+				throw new IOException("journal is closed");
+			}
+			start = segment.size;
+			long position = start;
+			try {
+				while (record.hasRemaining()) {
+					position += segment.channel.write(record, position);
+				}
+			}
+			catch (IOException e) {
+				segment.channel.truncate(segment.size);
+				throw e;
+			}
+			segment.size = position;
+		}
+		try {
+			syncer.sync(segment.channel, false);
+		}
+		catch (IOException e) {
+			discard(segment, start, payload);
+			throw e;
+		}
+
+		if (snapshotBytes > 0 && sinceSnapshot.addAndGet(record.capacity()) > snapshotBytes
+				&& snapshotting.compareAndSet(false, true)) {
+			scheduleSnapshot();
+		}
+	}
+	
+	/**
+	 * Rewrite a record as void, in place: records after it may have been appended already.
+	 * If this fails too, the record could still be replayed.
+	 */
+	private static void discard(Segment segment, long position, byte[] payload) {
+		ByteBuffer header = ByteBuffer.allocate(4 + 1);
+		header.putInt(checksum(VOID, payload)).put(VOID).flip();
+		try {
+			while (header.hasRemaining()) {
+				position += segment.channel.write(header, position);
+			}
+			segment.channel.force(false);
+		}
+		catch (IOException e) {
+			logger.error("could not void a record in " + segment.file + " that failed to sync", e);
+		}
+	}
+
+	private void scheduleSnapshot() {
+		try {
+			background.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						snapshot();
+					}
+					catch (Exception e) {
+						logger.error("snapshot failed", e);
+					}
+					finally {
+						snapshotting.set(false);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			// closing
+			snapshotting.set(false);
+		}
+	}
+
+	/**
+	 * Apply the records of a file to target, up to the first bad one
+	 * @return position after the last good record
+	 */
+	private static long replay(File file, long size, Target target) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), ChannelTransfer.BUFFER_SIZE));
+		long position = 0;
+		try {
+			while (true) {
+				int crc;
+				try {
+					crc = in.readInt();
+				}
+				catch (EOFException e) {
+					break;
+				}
+
+				byte type;
+				byte[] payload;
+				try {
+					type = in.readByte();
+					int length = in.readInt();
+					if (length < 0 || position + HEADER_SIZE + length > size) {
+						logger.error("corrupted record header in " + file + " at " + position);
+						break;
+					}
+					payload = new byte[length];
+					in.readFully(payload);
+				}
+				catch (EOFException e) {
+					logger.error("torn record in " + file + " at " + position);
+					break;
+				}
+
+				if (crc != checksum(type, payload)) {
+					logger.error("bad checksum in " + file + " at " + position);
+					break;
+				}
+				apply(type, new DataInputStream(new ByteArrayInputStream(payload)), target);
+				position += HEADER_SIZE + payload.length;
+			}
+		}
+		finally {
+			in.close();
+		}
+		return position;
+	}
+
+	private static void apply(byte type, DataInputStream in, Target target) throws IOException {
+		switch (type) {
+		case PUT:
+			String key = readKey(in);
+			int rev = in.readInt();
+			boolean purge = in.readBoolean();
+			byte[] body = new byte[in.readInt()];
+			in.readFully(body);
+			target.replayPut(key, rev, purge, body);
+			return;
+
+		case DELETE:
+			target.replayDelete(readKey(in));
+			return;
+
+		case BATCH:
+			for (int count = in.readInt(); count > 0; count--) {
+				apply(in.readByte(), in, target);
+			}
+			return;
+
+		case VOID:
+			return;
+
+		default:
+			throw new IOException("unknown record type " + type);
+		}
+	}
+
+	private static byte[] record(byte type, byte[] payload) {
+		return ByteBuffer.allocate(HEADER_SIZE + payload.length)
+			.putInt(checksum(type, payload))
+			.put(type)
+			.putInt(payload.length)
+			.put(payload)
+			.array();
+	}
+
+	private static int checksum(byte type, byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(payload);
+		return (int) crc.getValue();
+	}
+
+	private static byte[] putPayload(String key, int rev, boolean purge, byte[] body) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(2 * key.length() + body.length + 13);
+		DataOutputStream out = new DataOutputStream(bytes);
+		writeKey(out, key);
+		out.writeInt(rev);
+		out.writeBoolean(purge);
+		out.writeInt(body.length);
+		out.write(body);
+		return bytes.toByteArray();
+	}
+
+	private static byte[] deletePayload(String key) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(2 * key.length() + 4);
+		writeKey(new DataOutputStream(bytes), key);
+		return bytes.toByteArray();
+	}
+
+	private static void writeKey(DataOutputStream out, String key) throws IOException {
+		byte[] bytes = key.getBytes(Charsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readKey(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, Charsets.UTF_8);
+	}
+
+	private Segment createSegment(int id) throws IOException {
+		Segment segment = new Segment(id, new File(directory, prefix + "." + id + ".wal"));
+		segments.add(segment);
+		return segment;
+	}
+
+	private File snapshotFile(int id) {
+		return new File(directory, prefix + "." + id + ".snapshot");
+	}
+
+	/**
+	 * Files named prefix.N + suffix
+	 */
+	private File[] listFiles(final String suffix) {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(prefix + ".") && name.endsWith(suffix)
+					&& name.substring(prefix.length() + 1, name.length() - suffix.length()).matches("[0-9]+");
+			}
+		});
+		return (files == null) ? new File[0] : files;
+	}
+
+	private int getId(File file) {
+		return Integer.parseInt(file.getName().substring(prefix.length() + 1).split("\\.")[0]);
+	}
+
+	/**
+	 * What the journal is replayed into, and snapshots are taken from
+	 */
+	interface Target {
+		void replayPut(String key, int rev, boolean purge, byte[] body);
+
+		void replayDelete(String key);
+
+		/**
+		 * @return all revisions of all keys, each key from its oldest revision
+		 */
+		Iterator<Entry> revisions();
+	}
+
+	private static class Segment {
+		private final int id;
+		private final File file;
+		private final FileChannel channel;
+		private long size;
+
+		public Segment(int id, File file) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+			this.size = channel.size();
+		}
+	}
+
+}
@@ -8,31 +8,126 @@ import static net.caprazzi.keez.Helpers.found;
 import static net.caprazzi.keez.Helpers.notFound;
 import static net.caprazzi.keez.Helpers.notNull;
 import static net.caprazzi.keez.Helpers.ok;
+import static net.caprazzi.keez.Helpers.page;
+import static net.caprazzi.keez.Helpers.written;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
 
+import net.caprazzi.keez.ChannelTransfer;
+import net.caprazzi.keez.Delta;
+import net.caprazzi.keez.IteratorSubscription;
 import net.caprazzi.keez.Keez;
 import net.caprazzi.keez.Keez.Delete;
 import net.caprazzi.keez.Keez.Entry;
 import net.caprazzi.keez.Keez.Get;
 import net.caprazzi.keez.Keez.GetRevisions;
+import net.caprazzi.keez.Keez.GetStream;
+import net.caprazzi.keez.Keez.GetTo;
 import net.caprazzi.keez.Keez.List;
+import net.caprazzi.keez.Keez.MultiGet;
 import net.caprazzi.keez.Keez.Put;
+import net.caprazzi.keez.Keez.Range;
+import net.caprazzi.keez.Keez.Scan;
+import net.caprazzi.keez.Keez.Subscriber;
+import net.caprazzi.keez.Keez.Write;
+import net.caprazzi.keez.Keez.WriteBatch;
 
-import com.google.common.collect.Multimaps;
-import com.google.common.collect.SortedSetMultimap;
-import com.google.common.collect.TreeMultimap;
+import com.google.common.base.Function;
+import com.google.common.base.Predicates;
+import com.google.common.collect.Iterators;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Ints;
 
+/**
+ * In-memory implementation of Keez
+ *  - each key maps to its latest revision, older revisions are packed
+ *    together in pages (int offsets + one byte array) instead of
+ *    being an object each
+ *  - writers replace the latest revision with compare-and-set, so readers never block
+ *    and writers on different keys never contend
+ *  - a put that loses the compare-and-set race will see a different revision
+ *    and report a collision
+ *  - a write batch replaces the values of its keys with placeholders, in key order, 
+ *    then makes all new values visible at once by setting a single flag.
+ *    Other writers wait for the batch to finish, readers don't.
+ *  - optionally, bodies are kept off-heap in an {@link OffHeapArena} and only keys
+ *    and addresses stay on the heap. Bodies are copied out when callbacks are invoked.
+ *  - optionally, a history page keeps only its first revision in full and the others
+ *    as a {@link Delta} from it. The latest revision is always in full.
+ *  - optionally, latest revisions with the same body share one array, taken
+ *    from a {@link BodyPool}. Bodies in history pages are packed, not shared.
+ *  - optionally, writes are logged to a {@link Journal} before they are visible, and
+ *    the keys are recovered from it when created. Writers of a key then take a lock
+ *    striped on the key, so that the log has the writes of each key in order.
+ *    Readers still don't lock.
+ */
 public class KeezInMemory implements Keez.Db {
 	
-	private SortedSetMultimap<String, Value> data;
-	private boolean autoPurge;
+	// revisions per history page, and max size of the bodies packed in a page
+	private static final int PAGE_REVISIONS = 32;
+	private static final int PAGE_BYTES = 64 * 1024;
+	private static final int STRIPES = 256;
+	
+	// key -> latest revision
+	private final ConcurrentSkipListMap<String, Value> data = new ConcurrentSkipListMap<String, Value>();
+	// null if bodies are on the heap
+	private final OffHeapArena arena;
+	// null if not persisted. Then locks is null too
+	private final Journal journal;
+	private final Object[] locks;
+	private volatile boolean autoPurge;
+	private volatile boolean deltaHistory;
+	// set when deduplication is first enabled, then kept to release the bodies it holds
+	private volatile BodyPool pool;
+	private volatile boolean deduplication;
 
 	public KeezInMemory() {
-		SortedSetMultimap<String, Value> data = TreeMultimap.create();
-		this.data = Multimaps.synchronizedSortedSetMultimap(data);
+		this(null, null);
+	}
+	
+	/**
+	 * Keep bodies off the heap, in the given arena
+	 * @param arena
+	 */
+	public KeezInMemory(OffHeapArena arena) {
+		this(arena, null);
+	}
+	
+	/**
+	 * Keep the keys across restarts in a journal. They are recovered from it here.
+	 * @param arena null to keep bodies on the heap
+	 */
+	public KeezInMemory(OffHeapArena arena, Journal journal) {
+		this.arena = arena;
+		this.journal = journal;
+		if (journal == null) {
+			this.locks = null;
+			return;
+		}
+		this.locks = new Object[STRIPES];
+		for (int i=0; i<STRIPES; i++) {
+			locks[i] = new Object();
+		}
+		try {
+			journal.recover(new Recovery());
+		}
+		catch (IOException e) {
+			throw new RuntimeException("could not recover from journal", e);
+		}
 	}
 	
 	@Override
@@ -40,42 +135,79 @@ public class KeezInMemory implements Keez.Db {
 		this.autoPurge = autoPurge;
 	}
 	
+	/**
+	 * Store old revisions as deltas from the first revision of their history page.
+	 * Pages already started keep their format.
+	 */
+	public void setDeltaHistory(boolean deltaHistory) {
+		this.deltaHistory = deltaHistory;
+	}
+	
+	/**
+	 * Share the body of new revisions with the other latest revisions that have the same one.
+	 * Only for bodies on the heap.
+	 * @throws IllegalStateException if bodies are kept in an arena
+	 */
+	public synchronized void setDeduplication(boolean deduplication) {
+		if (arena != null) {
+			throw new IllegalStateException("deduplication is only for bodies on the heap");
+		}
+		if (deduplication && pool == null) {
+			pool = new BodyPool();
+		}
+		this.deduplication = deduplication;
+	}
+	
+	/**
+	 * @return the pool of shared bodies, null if deduplication was never enabled
+	 */
+	BodyPool getBodyPool() {
+		return pool;
+	}
+	
 	@Override
 	public void put(String key, int rev, byte[] body, Put callback) {
 		notNull(key);
 		notNull(body);
 		notNull(callback);
 		
+		if (journal == null) {
+			applyPut(key, rev, body, callback);
+			return;
+		}
+		synchronized (lockFor(key)) {
+			applyPut(key, rev, body, callback);
+		}
+	}
+	
+	private void applyPut(String key, int rev, byte[] body, Put callback) {
 		try {
 			if (rev == 0) {
 				create(key, body, callback);
 				return;
 			}
 			
-			Value value = null;
-			Value lastRevision = null;
-			synchronized (data) {
-				lastRevision = getLastRevision(key);
-				if (lastRevision != null && rev == lastRevision.rev) {
-					int newRevision = lastRevision.rev + 1;	
-					value = new Value(newRevision, body);
-					data.put(key, value);			
-					if (autoPurge) {
-						purgeOldRevisions(key, newRevision);
-					}
+			boolean purge = autoPurge;
+			while (true) {
+				Value lastRevision = stable(key);
+				if (lastRevision == null) {
+					collision(callback, key, rev, -1);
+					return;
 				}
-			}
-			
-			if (value != null) {
-				ok(callback, key, value.rev);
-				return;
-			}
-			
-			if (lastRevision != null) {
-				collision(callback, key, rev, lastRevision.rev);
-			}
-			else {
-				collision(callback, key, rev, -1);
+				
+				if (rev != lastRevision.rev) {
+					collision(callback, key, rev, lastRevision.rev);
+					return;
+				}
+				
+				Value value = lastRevision.append(share(body), purge, deltaHistory, arena);
+				if (publish(key, lastRevision, value, purge, body)) {
+					release(lastRevision, value);
+					ok(callback, key, value.rev);
+					return;
+				}
+				// someone else changed the key, look again
+				release(value, lastRevision);
 			}
 		}
 		catch (Exception e) {
@@ -83,50 +215,138 @@ public class KeezInMemory implements Keez.Db {
 		}
 	}
 	
+	/**
+	 * Bodies are kept whole in memory anyway: the stream is read to the end, then put
+	 */
+	@Override
+	public void putStream(String key, int rev, InputStream body, Put callback) {
+		notNull(key);
+		notNull(body);
+		notNull(callback);
+		
+		byte[] data;
+		try {
+			data = ByteStreams.toByteArray(body);
+		}
+		catch (Exception e) {
+			error(callback, key, e);
+			return;
+		}
+		put(key, rev, data, callback);
+	}
 	
-
 	@Override
 	public void get(String key, Get callback) {
 		notNull(key);
 		notNull(callback);
 		
 		try {
-			Value value = getLastRevision(key);
-			if (value == null) {
-				notFound(callback, key);
-				return;
-			}
+			Value value;
+			byte[] body;
+			do {
+				value = visible(data.get(key));
+				if (value == null) {
+					notFound(callback, key);
+					return;
+				}
+				body = value.body(arena);
+			} while (!isCurrent(key, value));
 			
-			int revision = value.rev;
-			byte[] body = value.body;
-			found(callback, key, revision, body);		
+			found(callback, key, value.rev, body);		
 		}
 		catch (Exception e) {
 			error(callback, key, e);
 		}
 	}
 
+	/**
+	 * Bodies on the heap are written from a read-only view, without copying them.
+	 * Off-heap bodies are copied out first, as in get: their block can be
+	 * reused as soon as the key is written again.
+	 */
 	@Override
-	public void delete(String key, Delete callback) {
+	public void getTo(String key, WritableByteChannel channel, GetTo callback) {
 		notNull(key);
+		notNull(channel);
 		notNull(callback);
 		
+		Value value;
+		long length;
 		try {
-			Value value = null;
-			SortedSet<Value> revisions = data.get(key);
-			synchronized (data) {
-				if (revisions.size() > 0) {
-					value = revisions.last();
-					data.removeAll(key);
+			ByteBuffer body;
+			do {
+				value = visible(data.get(key));
+				if (value == null) {
+					notFound(callback, key);
+					return;
 				}
-			}
+				body = value.view(arena);
+			} while (!isCurrent(key, value));
 			
-			if (value == null) {
-				notFound(callback, key);
+			length = ChannelTransfer.write(body, channel);
+		}
+		catch (Exception e) {
+			error(callback, key, e);
+			return;
+		}
+		written(callback, key, value.rev, length);
+	}
+
+	/**
+	 * As getTo, heap bodies are read in place and off-heap bodies are copied out first
+	 */
+	@Override
+	public void getStream(String key, GetStream callback) {
+		notNull(key);
+		notNull(callback);
+		
+		Value value;
+		byte[] body;
+		try {
+			do {
+				value = visible(data.get(key));
+				if (value == null) {
+					notFound(callback, key);
+					return;
+				}
+				body = value.body(arena);
+			} while (!isCurrent(key, value));
+		}
+		catch (Exception e) {
+			error(callback, key, e);
+			return;
+		}
+		found(callback, key, value.rev, new ByteArrayInputStream(body));
+	}
+
+	@Override
+	public void delete(String key, Delete callback) {
+		notNull(key);
+		notNull(callback);
+		
+		if (journal == null) {
+			applyDelete(key, callback);
+			return;
+		}
+		synchronized (lockFor(key)) {
+			applyDelete(key, callback);
+		}
+	}
+	
+	private void applyDelete(String key, Delete callback) {
+		try {
+			Value value = stable(key);
+			while (value != null) {
+				// read before removing, the space is released right after
+				byte[] body = value.body(arena);
+				if (remove(key, value)) {
+					release(value, null);
+					deleted(callback, key, body);
+					return;
+				}
+				value = stable(key);
 			}
-			else {
-				deleted(callback, key, value.body);	
-			}			
+			notFound(callback, key);
 		}
 		catch (Exception e) {
 			error(callback, key, e);
@@ -139,11 +359,10 @@ public class KeezInMemory implements Keez.Db {
 		
 		try {			
 			LinkedList<Entry> entries = new LinkedList<Keez.Entry>();
-			Set<String> keys = data.keySet();
-			synchronized (data) {
-				for(String key : keys) {
-					Value v = data.get(key).last();
-					entries.add(new Entry(key, v.rev, v.body));
+			for(Map.Entry<String, Value> e : data.entrySet()) {
+				Entry entry = latest(e.getKey(), e.getValue());
+				if (entry != null) {
+					entries.add(entry);
 				}
 			}
 			
@@ -160,86 +379,722 @@ public class KeezInMemory implements Keez.Db {
 	}
 	
 	@Override
-	public void getRevisions(final String key, GetRevisions callback) {
-		notNull(key);
+	public void scan(Subscriber subscriber) {
+		notNull(subscriber);
+		IteratorSubscription.subscribe(subscriber, latest(data));
+	}
+	
+	@Override
+	public void scan(Range range, int limit, String cursor, Scan callback) {
+		notNull(range);
+		notNull(callback);
+		if (limit <= 0) {
+			error(callback, new IllegalArgumentException("limit must be positive: " + limit));
+			return;
+		}
+		page(callback, latest(range.select(data, cursor)), limit);
+	}
+	
+	/**
+	 * Lazily copy out the latest revision of each key.
+	 * Map iterators are weakly consistent, and entries are copied out one at a time
+	 */
+	private Iterator<Entry> latest(Map<String, Value> values) {
+		Iterator<Entry> entries = Iterators.transform(values.entrySet().iterator(), new Function<Map.Entry<String, Value>, Entry>() {
+			@Override
+			public Entry apply(Map.Entry<String, Value> e) {
+				return latest(e.getKey(), e.getValue());
+			}
+		});
+		return Iterators.filter(entries, Predicates.notNull());
+	}
+	
+	/**
+	 * No lock to take, each key is read as in get
+	 */
+	@Override
+	public void getAll(Collection<String> keys, MultiGet callback) {
+		notNull(keys);
 		notNull(callback);
 		
 		try {
-			LinkedList<Entry> entries = new LinkedList<Keez.Entry>();
-			SortedSet<Value> revisions = data.get(key);
-			synchronized (data) {
-				for(Value v : revisions) {
-					entries.add(new Entry(key, v.rev, v.body));
+			LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+			for (String key : keys) {
+				Entry entry = latest(key, data.get(key));
+				if (entry != null) {
+					entries.put(key, entry);
 				}
 			}
-			
-			if (entries.size() == 0) {
+			found(callback, entries);
+		}
+		catch (Exception e) {
+			error(callback, e);
+		}
+	}
+	
+	@Override
+	public void getRevisions(final String key, GetRevisions callback) {
+		notNull(key);
+		notNull(callback);
+		
+		try {
+			LinkedList<Entry> entries = revisions(key);
+			if (entries == null) {
 				notFound(callback, key);
 				return;
 			}
-			
 			found(callback, key, entries);
 		}
 		catch(Exception e) {
 			error(callback, key, e);
 		}
 	}
-
-	private void purgeOldRevisions(String key, int newRevision) {
-		SortedSet<Value> revisions = data.get(key);
-		SortedSet<Value> toRemove = revisions.subSet(revisions.first(), revisions.last());
-		revisions.removeAll(toRemove);
-	}
 	
 	/**
-	 * Puts key:value if the key does not exist, otherwise returns the latest revision for that key
-	 * @param key
-	 * @param value
-	 * @return the latest revision for this key if the key is already present, otherwise null
+	 * @return all revisions of a key, oldest first. Null if the key does not exist
 	 */
-	private Value putIfNotFound(String key, Value value) {
-		synchronized (data) {			
-			if (data.containsKey(key)) {
-				return data.get(key).last();
-			}	
-			data.put(key, value);
-			return null;
+	private LinkedList<Entry> revisions(String key) throws IOException {
+		Value value;
+		LinkedList<Entry> entries;
+		do {
+			value = visible(data.get(key));
+			if (value == null) {
+				return null;
+			}
+			
+			// deltas copied from blocks freed in the meantime are garbage, and can fail to decode
+			try {
+				entries = revisions(key, value);
+			}
+			catch (IOException e) {
+				if (isCurrent(key, value)) {
+					throw e;
+				}
+				entries = null;
+			}
+			catch (RuntimeException e) {
+				if (isCurrent(key, value)) {
+					throw e;
+				}
+				entries = null;
+			}
+		} while (entries == null || !isCurrent(key, value));
+		return entries;
+	}
+	
+	private LinkedList<Entry> revisions(String key, Value value) throws IOException {
+		LinkedList<Entry> entries = new LinkedList<Keez.Entry>();
+		entries.add(new Entry(key, value.rev, value.body(arena)));
+		for(Page page = value.history; page != null; page = page.older) {
+			byte[] first = page.first(arena);
+			for (int rev = page.last(); rev > page.first; rev--) {
+				entries.addFirst(new Entry(key, rev, page.body(rev, first, arena)));
+			}
+			entries.addFirst(new Entry(key, page.first, first));
 		}
+		return entries;
 	}
 
-	private void create(String key, byte[] body, Put callback) {
-		Value value = new Value(1, body);
-		Value found = putIfNotFound(key, value);
+	private void create(String key, byte[] body, Put callback) throws IOException {
+		Value value = Value.create(1, share(body), null, arena);
+		Value found;
+		if (journal != null) {
+			// holding the key lock: no batch holds the key, and the key can't be created in the meantime
+			found = stable(key);
+			if (found == null) {
+				publish(key, null, value, false, body);
+			}
+		}
+		else {
+			while ((found = data.putIfAbsent(key, value)) instanceof Pending) {
+				// wait for the batch, then try again if it didn't create the key
+				found = stable(key);
+				if (found != null) {
+					break;
+				}
+			}
+		}
+		
 		if (found == null) {
 			ok(callback, key, value.rev);
 		}
 		else {
+			release(value, null);
 			collision(callback, key, 0, found.rev);
 		}		
 	}
 	
-	private Value getLastRevision(String key) {
-		synchronized (data) {
-			SortedSet<Value> revisions = data.get(key);
-			if (revisions.size() > 0) {
-				return revisions.last();
-			}			
+	/**
+	 * Keys are taken in order by replacing their value with a Pending one.
+	 * Readers see the old values until the batch is committed by setting a
+	 * single flag, then they see the new ones. Writers wait for the batch to finish.
+	 */
+	@Override
+	public void writeBatch(java.util.List<Write> writes, WriteBatch callback) {
+		notNull(writes);
+		notNull(callback);
+		
+		java.util.List<Write> sorted;
+		try {
+			sorted = Write.sorted(writes);
+		}
+		catch (IllegalArgumentException e) {
+			error(callback, e);
+			return;
+		}
+		
+		if (journal == null) {
+			applyBatch(sorted, callback);
+			return;
+		}
+		TreeSet<Integer> stripes = new TreeSet<Integer>();
+		for (Write write : sorted) {
+			stripes.add(stripeFor(write.getKey()));
+		}
+		applyBatch(sorted, Ints.toArray(stripes), 0, callback);
+	}
+	
+	/**
+	 * Take the remaining key locks, then apply the batch
+	 */
+	private void applyBatch(java.util.List<Write> sorted, int[] stripes, int locked, WriteBatch callback) {
+		if (locked < stripes.length) {
+			synchronized (locks[stripes[locked]]) {
+				applyBatch(sorted, stripes, locked + 1, callback);
+			}
+			return;
+		}
+		applyBatch(sorted, callback);
+	}
+	
+	private void applyBatch(java.util.List<Write> sorted, WriteBatch callback) {
+		boolean purge = autoPurge;
+		Batch batch = new Batch();
+		Pending[] held = new Pending[sorted.size()];
+		LinkedHashMap<String, Integer> revisions = new LinkedHashMap<String, Integer>();
+		try {
+			// in key order, so that two batches can't wait for each other
+			for (int i = 0; i < held.length; i++) {
+				held[i] = hold(sorted.get(i).getKey(), batch);
+			}
+			
+			LinkedHashMap<String, Integer> collisions = new LinkedHashMap<String, Integer>();
+			for (int i = 0; i < held.length; i++) {
+				int foundRev = (held[i].before == null) ? -1 : held[i].before.rev;
+				if (!sorted.get(i).accepts(foundRev)) {
+					collisions.put(sorted.get(i).getKey(), foundRev);
+				}
+			}
+			if (!collisions.isEmpty()) {
+				rollback(sorted, held);
+				collision(callback, collisions);
+				return;
+			}
+			
+			for (int i = 0; i < held.length; i++) {
+				Write write = sorted.get(i);
+				Value before = held[i].before;
+				if (write.isDelete()) {
+					revisions.put(write.getKey(), -1);
+					continue;
+				}
+				held[i].after = (before == null) 
+					? Value.create(1, share(write.getBody()), null, arena)
+					: before.append(share(write.getBody()), purge, deltaHistory, arena);
+				revisions.put(write.getKey(), held[i].after.rev);
+			}
+			
+			if (journal == null) {
+				batch.committed = true;
+			}
+			else {
+				journal.lock();
+				try {
+					journal.batch(sorted, purge);
+					batch.committed = true;
+				}
+				finally {
+					journal.unlock();
+				}
+			}
+		}
+		catch (Exception e) {
+			rollback(sorted, held);
+			error(callback, e);
+			return;
+		}
+		
+		for (int i = 0; i < held.length; i++) {
+			String key = sorted.get(i).getKey();
+			Pending pending = held[i];
+			if (pending.after == null) {
+				data.remove(key, pending);
+			}
+			else {
+				data.replace(key, pending, pending.after);
+			}
+			if (pending.before != null) {
+				release(pending.before, pending.after);
+			}
+		}
+		ok(callback, revisions);
+	}
+	
+	/**
+	 * Replace the value of a key with a Pending one
+	 */
+	private Pending hold(String key, Batch batch) {
+		while (true) {
+			Value current = stable(key);
+			Pending pending = new Pending(batch, current);
+			if (current == null ? data.putIfAbsent(key, pending) == null : data.replace(key, current, pending)) {
+				return pending;
+			}
+		}
+	}
+	
+	/**
+	 * Put back the values of the keys held by a batch that was not committed
+	 */
+	private void rollback(java.util.List<Write> writes, Pending[] held) {
+		for (int i = 0; i < held.length && held[i] != null; i++) {
+			String key = writes.get(i).getKey();
+			Pending pending = held[i];
+			if (pending.after != null) {
+				release(pending.after, pending.before);
+			}
+			if (pending.before == null) {
+				data.remove(key, pending);
+			}
+			else {
+				data.replace(key, pending, pending.before);
+			}
+		}
+	}
+	
+	/**
+	 * The value readers should see. A key held by a batch shows
+	 * the value it had before the batch until the batch is committed.
+	 */
+	private static Value visible(Value value) {
+		if (value instanceof Pending) {
+			Pending pending = (Pending) value;
+			return pending.batch.committed ? pending.after : pending.before;
+		}
+		return value;
+	}
+	
+	/**
+	 * Current value of a key, for writers: waits for a batch holding the key to finish
+	 */
+	private Value stable(String key) {
+		Value value = data.get(key);
+		while (value instanceof Pending) {
+			Thread.yield();
+			value = data.get(key);
+		}
+		return value;
+	}
+	
+	/**
+	 * Latest revision of a key, starting from a value that was current. Null if the key is gone.
+	 */
+	private Entry latest(String key, Value value) {
+		value = visible(value);
+		while (value != null) {
+			byte[] body = value.body(arena);
+			if (isCurrent(key, value)) {
+				return new Entry(key, value.rev, body);
+			}
+			value = visible(data.get(key));
 		}
 		return null;
 	}
-
-	private static class Value  implements Comparable<Value> {
-		private final int rev;
+	
+	/**
+	 * Off-heap blocks are released and reused as soon as a value is replaced. 
+	 * Whoever copied a body out must check that the value was still current 
+	 * after the copy, otherwise the copy could be garbage.
+	 * Values are never put back once replaced, so checking identity is enough. 
+	 */
+	private boolean isCurrent(String key, Value value) {
+		return arena == null || visible(data.get(key)) == value;
+	}
+	
+	/**
+	 * Make value the value of a key in place of old, or create the key if old is null.
+	 * If journaled, the new revision is logged first, and value is released if that fails.
+	 * @return false if the key changed in the meantime. Never when journaled: writers hold the key lock
+	 */
+	private boolean publish(String key, Value old, Value value, boolean purge, byte[] body) throws IOException {
+		if (journal == null) {
+			return (old == null) ? data.putIfAbsent(key, value) == null : data.replace(key, old, value);
+		}
+		journal.lock();
+		try {
+			journal.put(key, value.rev, purge, body);
+			return (old == null) ? data.putIfAbsent(key, value) == null : data.replace(key, old, value);
+		}
+		catch (IOException e) {
+			release(value, old);
+			throw e;
+		}
+		finally {
+			journal.unlock();
+		}
+	}
+	
+	/**
+	 * Remove a key if its value is still value, logging it first if journaled
+	 */
+	private boolean remove(String key, Value value) throws IOException {
+		if (journal == null) {
+			return data.remove(key, value);
+		}
+		journal.lock();
+		try {
+			journal.delete(key);
+			return data.remove(key, value);
+		}
+		finally {
+			journal.unlock();
+		}
+	}
+	
+	private Object lockFor(String key) {
+		return locks[stripeFor(key)];
+	}
+	
+	private int stripeFor(String key) {
+		int h = key.hashCode();
+		// spread the bits, as in HashMap
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return h & (STRIPES - 1);
+	}
+	
+	/**
+	 * @return the body a new value should hold, counted in the pool if deduplicating
+	 */
+	private byte[] share(byte[] body) {
+		return deduplication ? pool.acquire(body) : body;
+	}
+	
+	/**
+	 * Free the off-heap blocks used by a value that's no longer reachable,
+	 * except the ones still used by the value that replaced it.
+	 * On the heap, release its body from the pool.
+	 */
+	private void release(Value gone, Value kept) {
+		if (arena == null) {
+			BodyPool pool = this.pool;
+			if (pool != null) {
+				pool.release(gone.body);
+			}
+			return;
+		}
+		
+		Set<Long> keep = new HashSet<Long>();
+		if (kept != null) {
+			kept.addresses(keep);
+		}
+		
+		ArenaValue value = (ArenaValue) gone;
+		if (!keep.contains(value.address)) {
+			arena.free(value.address, value.length);
+		}
+		for (Page page = gone.history; page != null; page = page.older) {
+			ArenaPage arenaPage = (ArenaPage) page;
+			if (!keep.contains(arenaPage.address)) {
+				arena.free(arenaPage.address, arenaPage.size());
+			}
+		}
+	}
+	
+	/**
+	 * Applies the journal when the instance is created, and gives it the keys to snapshot.
+	 * A revision is replayed only if it's the next one of the key: the ones written while
+	 * the snapshot was taken are found in both. A delete is always replayed, then the 
+	 * revisions after it are all next ones.
+	 */
+	private class Recovery implements Journal.Target {
+		
+		@Override
+		public void replayPut(String key, int rev, boolean purge, byte[] body) {
+			Value current = data.get(key);
+			if (current == null) {
+				data.put(key, Value.create(rev, body, null, arena));
+				return;
+			}
+			if (rev != current.rev + 1) {
+				return;
+			}
+			Value value = current.append(body, purge, deltaHistory, arena);
+			data.put(key, value);
+			release(current, value);
+		}
+		
+		@Override
+		public void replayDelete(String key) {
+			Value value = data.remove(key);
+			if (value != null) {
+				release(value, null);
+			}
+		}
+		
+		/**
+		 * Copied out one key at a time, while writers go on
+		 */
+		@Override
+		public Iterator<Entry> revisions() {
+			return Iterators.concat(Iterators.transform(data.keySet().iterator(), new Function<String, Iterator<Entry>>() {
+				@Override
+				public Iterator<Entry> apply(String key) {
+					try {
+						LinkedList<Entry> entries = KeezInMemory.this.revisions(key);
+						return (entries == null) ? Iterators.<Entry>emptyIterator() : entries.iterator();
+					}
+					catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}));
+		}
+	}
+	
+	/**
+	 * Latest revision of a key, and the pages holding the older ones.
+	 * Never modified once created.
+	 */
+	private static class Value {
+		protected final int rev;
 		private final byte[] body;
+		protected final Page history;
 
-		public Value(int rev, byte[] body) {
+		public Value(int rev, byte[] body, Page history) {
 			this.rev = rev;
 			this.body = body;
+			this.history = history;
 		}
-
+		
+		public static Value create(int rev, byte[] body, Page history, OffHeapArena arena) {
+			if (arena == null) {
+				return new Value(rev, body, history);
+			}
+			return new ArenaValue(rev, arena.store(body), body.length, history);
+		}
+		
+		public byte[] body(OffHeapArena arena) {
+			return body;
+		}
+		
+		/**
+		 * @return the body, to be read only
+		 */
+		public ByteBuffer view(OffHeapArena arena) {
+			return ByteBuffer.wrap(body).asReadOnlyBuffer();
+		}
+		
+		public int length() {
+			return body.length;
+		}
+		
+		/**
+		 * @return the next revision, moving this one to the history (if not purging)
+		 * @param deltas if a new page is started, store its revisions as deltas
+		 */
+		public Value append(byte[] newBody, boolean purge, boolean deltas, OffHeapArena arena) {
+			if (purge) {
+				return create(rev + 1, newBody, null, arena);
+			}
+			
+			Page page;
+			if (history == null || history.isFull(length())) {
+				page = startPage(history, deltas);
+			}
+			else {
+				page = history.plus(this, arena);
+			}
+			return create(rev + 1, newBody, page, arena);
+		}
+		
+		protected Page startPage(Page older, boolean deltas) {
+			return new Page(rev, new int[] { body.length }, body, deltas, older);
+		}
+		
+		protected void addresses(Set<Long> addresses) {
+		}
+	}
+	
+	/**
+	 * Stands for the value of a key while a batch writes it
+	 */
+	private static class Pending extends Value {
+		private final Batch batch;
+		private final Value before;
+		// null if the batch deletes the key, set before the batch is committed
+		private Value after;
+		
+		public Pending(Batch batch, Value before) {
+			super(-1, null, null);
+			this.batch = batch;
+			this.before = before;
+		}
+	}
+	
+	private static class Batch {
+		private volatile boolean committed;
+	}
+	
+	private static class ArenaValue extends Value {
+		private final long address;
+		private final int length;
+		
+		public ArenaValue(int rev, long address, int length, Page history) {
+			super(rev, null, history);
+			this.address = address;
+			this.length = length;
+		}
+		
+		@Override
+		public byte[] body(OffHeapArena arena) {
+			return arena.read(address, 0, length);
+		}
+		
+		@Override
+		public ByteBuffer view(OffHeapArena arena) {
+			return ByteBuffer.wrap(body(arena));
+		}
+		
+		@Override
+		public int length() {
+			return length;
+		}
+		
+		@Override
+		protected Page startPage(Page older, boolean deltas) {
+			// the block moves to the new page as it is
+			return new ArenaPage(rev, new int[] { length }, address, deltas, older);
+		}
+		
+		@Override
+		protected void addresses(Set<Long> addresses) {
+			addresses.add(address);
+			for (Page page = history; page != null; page = page.older) {
+				addresses.add(((ArenaPage) page).address);
+			}
+		}
+	}
+	
+	/**
+	 * Contiguous old revisions of a key, from first to first + ends.length - 1.
+	 * Bodies are packed in one array, ends holds the end offset of each one.
+	 * With deltas, only the first body is stored in full, the others are
+	 * deltas from it: reading any revision takes the first body and one delta.
+	 * Never modified once created.
+	 */
+	private static class Page {
+		protected final int first;
+		protected final int[] ends;
+		private final byte[] bodies;
+		protected final boolean deltas;
+		protected final Page older;
+		
+		public Page(int first, int[] ends, byte[] bodies, boolean deltas, Page older) {
+			this.first = first;
+			this.ends = ends;
+			this.bodies = bodies;
+			this.deltas = deltas;
+			this.older = older;
+		}
+		
+		public int last() {
+			return first + ends.length - 1;
+		}
+		
+		public int size() {
+			return ends[ends.length-1];
+		}
+		
+		/**
+		 * @param nextLength length of the body of the next revision, in full
+		 */
+		public boolean isFull(int nextLength) {
+			if (ends.length == PAGE_REVISIONS) {
+				return true;
+			}
+			// the size of a delta is not known yet
+			return deltas ? size() > PAGE_BYTES : size() + nextLength > PAGE_BYTES;
+		}
+		
+		public Page plus(Value value, OffHeapArena arena) {
+			byte[] body = stored(value, arena);
+			byte[] newBodies = Arrays.copyOf(bodies, bodies.length + body.length);
+			System.arraycopy(body, 0, newBodies, bodies.length, body.length);
+			return new Page(first, plusEnd(body.length), newBodies, deltas, older);
+		}
+		
+		/**
+		 * @return what to add to the page for a revision
+		 */
+		protected byte[] stored(Value value, OffHeapArena arena) {
+			byte[] body = value.body(arena);
+			return deltas ? Delta.diff(first(arena), body) : body;
+		}
+		
+		protected int[] plusEnd(int length) {
+			int[] newEnds = Arrays.copyOf(ends, ends.length + 1);
+			newEnds[ends.length] = size() + length;
+			return newEnds;
+		}
+		
+		/**
+		 * @return body of the first revision, always stored in full
+		 */
+		public byte[] first(OffHeapArena arena) {
+			return slice(0, arena);
+		}
+		
+		/**
+		 * @param firstBody as returned by first()
+		 */
+		public byte[] body(int rev, byte[] firstBody, OffHeapArena arena) throws IOException {
+			int i = rev - first;
+			if (i == 0) {
+				return firstBody;
+			}
+			byte[] stored = slice(i, arena);
+			return deltas ? Delta.apply(firstBody, stored) : stored;
+		}
+		
+		/**
+		 * @return the i-th body as stored
+		 */
+		protected byte[] slice(int i, OffHeapArena arena) {
+			int start = (i == 0) ? 0 : ends[i-1];
+			return Arrays.copyOfRange(bodies, start, ends[i]);
+		}
+	}
+	
+	private static class ArenaPage extends Page {
+		private final long address;
+		
+		public ArenaPage(int first, int[] ends, long address, boolean deltas, Page older) {
+			super(first, ends, null, deltas, older);
+			this.address = address;
+		}
+		
+		@Override
+		public Page plus(Value value, OffHeapArena arena) {
+			byte[] body = stored(value, arena);
+			long copy = arena.storeAfter(address, size(), body);
+			return new ArenaPage(first, plusEnd(body.length), copy, deltas, older);
+		}
+		
 		@Override
-		public int compareTo(Value other) {
-			return rev - other.rev;
+		protected byte[] slice(int i, OffHeapArena arena) {
+			int start = (i == 0) ? 0 : ends[i-1];
+			return arena.read(address, start, ends[i] - start);
 		}
 	}
 
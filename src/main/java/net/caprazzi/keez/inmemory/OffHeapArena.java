@@ -0,0 +1,206 @@
+package net.caprazzi.keez.inmemory;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Stores byte arrays outside of the java heap, in direct ByteBuffer chunks.
+ *
+ * Space is handed out in power-of-two blocks (min 16 bytes). Freed blocks go
+ * in a free list per block size and are reused before cutting new space from
+ * the current chunk. Values larger than a chunk get a chunk of their own.
+ *
+ * A block is identified by an address: chunk index in the high 32 bits,
+ * offset in the chunk in the low 32 bits. The caller keeps track of the length.
+ *
+ * Allocation and free are synchronized, reads and writes are not. A block can
+ * be freed while a reader copies it: the reader gets garbage (zeroes if it was a
+ * dedicated chunk, already dropped) and must check that the block was still in
+ * use after reading it.
+ */
+public class OffHeapArena {
+
+	public static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+
+	// address of empty values, no space is allocated for them
+	static final long EMPTY = -1;
+
+	private static final int MIN_CLASS = 4;
+
+	private final int chunkSize;
+	// replaced, never modified, so that reads don't need a lock
+	private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+
+	// guarded by this
+	private int current = -1;
+	private int currentOffset;
+	private final long[][] freeLists = new long[32][];
+	private final int[] freeCounts = new int[32];
+	private long allocated;
+	private long capacity;
+
+	public OffHeapArena() {
+		this(DEFAULT_CHUNK_SIZE);
+	}
+
+	public OffHeapArena(int chunkSize) {
+		if (Integer.bitCount(chunkSize) != 1) {
+			throw new IllegalArgumentException("chunk size must be a power of two: " + chunkSize);
+		}
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Allocate a block and copy data in it
+	 * @return address of the block
+	 */
+	public long store(byte[] data) {
+		long address = allocate(data.length);
+		if (address != EMPTY) {
+			buffer(address, data.length).put(data);
+		}
+		return address;
+	}
+
+	/**
+	 * Allocate a block holding length bytes copied from an existing block, followed by the data
+	 */
+	public long storeAfter(long address, int length, byte[] data) {
+		long copy = allocate(length + data.length);
+		if (copy == EMPTY) {
+			return copy;
+		}
+		ByteBuffer target = buffer(copy, length + data.length);
+		if (length > 0) {
+			target.put(buffer(address, length));
+		}
+		target.put(data);
+		return copy;
+	}
+
+	/**
+	 * Copy a block (or part of it) to the heap
+	 */
+	public byte[] read(long address, int offset, int length) {
+		byte[] data = new byte[length];
+		if (length > 0) {
+			ByteBuffer buffer = buffer(address, offset + length);
+			buffer.position(buffer.position() + offset);
+			buffer.get(data);
+		}
+		return data;
+	}
+
+	/**
+	 * Read-only view of a block. Only valid until the block is freed.
+	 */
+	public ByteBuffer view(long address, int length) {
+		if (length == 0) {
+			return ByteBuffer.allocate(0).asReadOnlyBuffer();
+		}
+		return buffer(address, length).asReadOnlyBuffer();
+	}
+
+	public synchronized long allocate(int length) {
+		if (length == 0) {
+			return EMPTY;
+		}
+
+		if (length > chunkSize) {
+			int chunk = addChunk(length);
+			allocated += length;
+			return address(chunk, 0);
+		}
+
+		int sizeClass = sizeClass(length);
+		int blockSize = 1 << sizeClass;
+		allocated += blockSize;
+
+		if (freeCounts[sizeClass] > 0) {
+			return freeLists[sizeClass][--freeCounts[sizeClass]];
+		}
+
+		if (current < 0 || currentOffset + blockSize > chunkSize) {
+			current = addChunk(chunkSize);
+			currentOffset = 0;
+		}
+		long address = address(current, currentOffset);
+		currentOffset += blockSize;
+		return address;
+	}
+
+	public synchronized void free(long address, int length) {
+		if (address == EMPTY) {
+			return;
+		}
+
+		if (length > chunkSize) {
+			// dedicated chunk, drop it
+			ByteBuffer[] updated = chunks.clone();
+			updated[chunk(address)] = null;
+			chunks = updated;
+			allocated -= length;
+			capacity -= length;
+			return;
+		}
+
+		int sizeClass = sizeClass(length);
+		allocated -= (1 << sizeClass);
+		long[] list = freeLists[sizeClass];
+		if (list == null) {
+			list = freeLists[sizeClass] = new long[16];
+		}
+		else if (freeCounts[sizeClass] == list.length) {
+			list = freeLists[sizeClass] = Arrays.copyOf(list, list.length * 2);
+		}
+		list[freeCounts[sizeClass]++] = address;
+	}
+
+	/**
+	 * @return bytes in blocks currently in use (including rounding)
+	 */
+	public synchronized long getAllocated() {
+		return allocated;
+	}
+
+	/**
+	 * @return bytes of direct memory reserved by the arena
+	 */
+	public synchronized long getCapacity() {
+		return capacity;
+	}
+
+	private int addChunk(int size) {
+		ByteBuffer[] updated = Arrays.copyOf(chunks, chunks.length + 1);
+		updated[chunks.length] = ByteBuffer.allocateDirect(size);
+		chunks = updated;
+		capacity += size;
+		return chunks.length - 1;
+	}
+
+	private ByteBuffer buffer(long address, int length) {
+		ByteBuffer chunk = chunks[chunk(address)];
+		int offset = (int) address;
+		if (chunk == null) {
+			// a dedicated chunk freed under a reader, which will find out it's stale
+			chunk = ByteBuffer.allocate(offset + length);
+		}
+		ByteBuffer buffer = chunk.duplicate();
+		buffer.limit(offset + length);
+		buffer.position(offset);
+		return buffer;
+	}
+
+	private static int sizeClass(int length) {
+		return Math.max(MIN_CLASS, 32 - Integer.numberOfLeadingZeros(length - 1));
+	}
+
+	private static long address(int chunk, int offset) {
+		return ((long) chunk << 32) | offset;
+	}
+
+	private static int chunk(long address) {
+		return (int) (address >>> 32);
+	}
+
+}
@@ -0,0 +1,530 @@
+package net.caprazzi.keez.onfile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import net.caprazzi.keez.ChannelTransfer;
+import net.caprazzi.keez.Durability;
+import net.caprazzi.keez.Syncer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Log of the changes to the index of a {@link KeezOnFile}, and checkpoints of the whole
+ * index, so that the store starts without scanning its directory.
+ *  - the revisions of a key (none once deleted) and the count of references to a shared body
+ *    are logged each time they change, after the change is made in memory, then forced according
+ *    to the {@link Durability} policy. Records hold the new value, not the difference:
+ *    replaying a record twice is harmless
+ *  - the log is a sequence of segments, prefix.N.ilog. The checkpoint, prefix.checkpoint,
+ *    holds the whole index, the counts, and the first segment written after it
+ *  - once checkpointWrites records have been logged since the last checkpoint, a new one is
+ *    written in the background: the log moves to a new segment, then the index is copied while
+ *    writers go on. Changes made meanwhile can be both in the checkpoint and in the new segment
+ *  - at startup the checkpoint is loaded and the segments after it are replayed, found by name:
+ *    the directory is not listed, so startup time depends on the writes since the last checkpoint,
+ *    not on the number of files
+ *  - records have a checksum, a torn record at the end of the log is dropped
+ *  - if a record can't be logged, the checkpoint is deleted and nothing is logged until the next
+ *    one: if the store is opened meanwhile, its index is built by scanning the directory.
+ *    Changes not logged still count towards checkpointWrites, so the next checkpoint is written
+ */
+class IndexLog {
+
+	// crc, type, payload length
+	private static final int HEADER_SIZE = 4 + 1 + 4;
+
+	private static final byte REVISIONS = 1;
+	private static final byte REFERENCES = 2;
+	// first segment written after a checkpoint
+	private static final byte SEGMENT = 3;
+
+	private static Logger logger = LoggerFactory.getLogger(IndexLog.class);
+
+	private final File directory;
+	private final String prefix;
+	private final long checkpointWrites;
+	private final ConcurrentSkipListMap<String, int[]> index;
+	private final ConcurrentHashMap<String, Integer> references;
+	private final Object appendLock = new Object();
+	private final ArrayList<Segment> segments = new ArrayList<Segment>();
+	private volatile Segment active;
+	// a record could not be logged, nothing is logged until the next checkpoint
+	private boolean broken;
+	private final AtomicLong sinceCheckpoint = new AtomicLong();
+	private final AtomicBoolean checkpointing = new AtomicBoolean();
+	private final ExecutorService background;
+	private volatile Syncer syncer = new Syncer(Durability.NONE);
+	// set while replaying a checkpoint
+	private int firstSegment;
+
+	/**
+	 * @param checkpointWrites records logged before a checkpoint is written
+	 * @param index replayed into at startup, copied to checkpoints
+	 * @param references as index
+	 */
+	IndexLog(File directory, String prefix, long checkpointWrites,
+			ConcurrentSkipListMap<String, int[]> index, ConcurrentHashMap<String, Integer> references) {
+		this.directory = directory;
+		this.prefix = prefix;
+		this.checkpointWrites = checkpointWrites;
+		this.index = index;
+		this.references = references;
+		this.background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "keez-checkpoint");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	void setDurability(Durability durability, long intervalMillis) {
+		Syncer old = syncer;
+		syncer = new Syncer(durability, intervalMillis);
+		old.close();
+	}
+
+	/**
+	 * Load the checkpoint and replay the log after it into the index and the counts,
+	 * then get ready to log new changes
+	 * @return false if there is no good checkpoint: the index and the counts are left empty,
+	 * 	to be built by scanning the directory before calling checkpoint()
+	 */
+	synchronized boolean recover() throws IOException {
+		// a checkpoint that was not completed
+		new File(directory, prefix + ".checkpoint.tmp").delete();
+
+		File file = checkpointFile();
+		if (file.exists()) {
+			firstSegment = 0;
+			if (replay(file, file.length()) == file.length() && firstSegment > 0) {
+				// replaced by the checkpoint, left by a crash before they were deleted
+				int old = firstSegment - 1;
+				while (old > 0 && segmentFile(old).delete()) {
+					old--;
+				}
+
+				for (int id = firstSegment; segmentFile(id).exists(); id++) {
+					Segment segment = new Segment(id, segmentFile(id));
+					segments.add(segment);
+					long end = replay(segment.file, segment.size);
+					if (end < segment.size) {
+						segment.channel.truncate(end);
+						segment.size = end;
+					}
+				}
+				synchronized (appendLock) {
+					active = segments.isEmpty() ? createSegment(firstSegment) : segments.get(segments.size() - 1);
+				}
+				return true;
+			}
+			logger.error("corrupted checkpoint " + file + ", scanning the directory");
+			index.clear();
+			references.clear();
+		}
+
+		delete(directory, prefix);
+		synchronized (appendLock) {
+			active = createSegment(1);
+		}
+		return false;
+	}
+
+	/**
+	 * Write a checkpoint now, then delete the segments it replaces.
+	 * Writers only wait while the log moves to a new segment.
+	 */
+	synchronized void checkpoint() throws IOException {
+		Segment next;
+		synchronized (appendLock) {
+			if (active == null) {
+				throw new IOException("index log is closed");
+			}
+			next = createSegment(active.id + 1);
+			active = next;
+			broken = false;
+			sinceCheckpoint.set(0);
+		}
+
+		File temp = new File(directory, prefix + ".checkpoint.tmp");
+		FileOutputStream file = new FileOutputStream(temp);
+		boolean done = false;
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, ChannelTransfer.BUFFER_SIZE));
+			out.write(record(SEGMENT, ByteBuffer.allocate(4).putInt(next.id).array()));
+			for (Map.Entry<String, int[]> e : index.entrySet()) {
+				out.write(record(REVISIONS, revisionsPayload(e.getKey(), e.getValue())));
+			}
+			for (Map.Entry<String, Integer> e : references.entrySet()) {
+				out.write(record(REFERENCES, referencesPayload(e.getKey(), e.getValue())));
+			}
+			out.flush();
+			file.getChannel().force(false);
+			done = true;
+		}
+		finally {
+			file.close();
+			if (!done) {
+				temp.delete();
+			}
+		}
+		File checkpoint = checkpointFile();
+		// renameTo doesn't replace an existing file everywhere
+		if (!temp.renameTo(checkpoint) && !(checkpoint.delete() && temp.renameTo(checkpoint))) {
+			throw new IOException("could not rename " + temp + " to " + checkpoint);
+		}
+
+		// nothing is written to the old segments anymore, but they can be waiting to be forced
+		syncer.flush();
+		while (segments.get(0) != next) {
+			Segment old = segments.remove(0);
+			old.channel.close();
+			if (!old.file.delete()) {
+				logger.error("could not delete segment " + old.file);
+			}
+		}
+	}
+
+	/**
+	 * Wait for a checkpoint being written, write a last one, then close the log
+	 */
+	void close() {
+		background.shutdown();
+		try {
+			background.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			checkpoint();
+		}
+		catch (IOException e) {
+			logger.error("could not write checkpoint " + checkpointFile(), e);
+		}
+		syncer.close();
+		synchronized (this) {
+			synchronized (appendLock) {
+				active = null;
+			}
+			for (Segment segment : segments) {
+				try {
+					segment.channel.close();
+				} catch (IOException e) {
+					logger.error("could not close segment " + segment.file, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Log the revisions of a key, as they are now in the index
+	 */
+	void put(String key, int[] revisions) {
+		append(REVISIONS, revisionsPayload(key, revisions));
+	}
+
+	/**
+	 * Log that a key left the index
+	 */
+	void remove(String key) {
+		append(REVISIONS, revisionsPayload(key, new int[0]));
+	}
+
+	/**
+	 * Log the count of references to a shared body, 0 once it's deleted
+	 */
+	void references(String hash, int count) {
+		append(REFERENCES, referencesPayload(hash, count));
+	}
+
+	/**
+	 * Delete the checkpoint and the log, left by an instance that had checkpoints enabled
+	 */
+	static void delete(File directory, final String prefix) {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.equals(prefix + ".checkpoint")
+					|| (name.startsWith(prefix + ".") && name.endsWith(".ilog"));
+			}
+		});
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			if (!file.delete()) {
+				logger.error("could not delete " + file);
+			}
+		}
+	}
+
+	private void append(byte type, byte[] payload) {
+		log(type, payload);
+		// also counts changes that could not be logged: only a checkpoint starts logging again
+		if (sinceCheckpoint.incrementAndGet() > checkpointWrites && checkpointing.compareAndSet(false, true)) {
+			scheduleCheckpoint();
+		}
+	}
+
+	private void log(byte type, byte[] payload) {
+		ByteBuffer record = ByteBuffer.wrap(record(type, payload));
+		Segment segment;
+		synchronized (appendLock) {
+			segment = active;
+			if (segment == null || broken) {
+				return;
+			}
+			long position = segment.size;
+			try {
+				while (record.hasRemaining()) {
+					position += segment.channel.write(record, position);
+				}
+			}
+			catch (IOException e) {
+				try {
+					segment.channel.truncate(segment.size);
+				}
+				catch (IOException ignored) {
+				}
+				failed(e);
+				return;
+			}
+			segment.size = position;
+		}
+		try {
+			syncer.sync(segment.channel, false);
+		}
+		catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Stop logging and delete the checkpoint, which is out of date now.
+	 * Waits for a checkpoint being written: it may not have the change that could not be logged.
+	 */
+	private void failed(IOException e) {
+		logger.error("could not log a change to the index, deleting checkpoint " + checkpointFile(), e);
+		synchronized (appendLock) {
+			broken = true;
+		}
+		synchronized (this) {
+			boolean delete;
+			synchronized (appendLock) {
+				delete = broken;
+			}
+			if (delete && checkpointFile().exists() && !checkpointFile().delete()) {
+				logger.error("could not delete checkpoint " + checkpointFile());
+			}
+		}
+	}
+
+	private void scheduleCheckpoint() {
+		try {
+			background.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						checkpoint();
+					}
+					catch (Exception e) {
+						logger.error("could not write checkpoint " + checkpointFile(), e);
+					}
+					finally {
+						checkpointing.set(false);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			// closing
+			checkpointing.set(false);
+		}
+	}
+
+	/**
+	 * Apply the records of a file to the index and the counts, up to the first bad one
+	 * @return position after the last good record
+	 */
+	private long replay(File file, long size) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), ChannelTransfer.BUFFER_SIZE));
+		long position = 0;
+		try {
+			while (true) {
+				int crc;
+				try {
+					crc = in.readInt();
+				}
+				catch (EOFException e) {
+					break;
+				}
+
+				byte type;
+				byte[] payload;
+				try {
+					type = in.readByte();
+					int length = in.readInt();
+					if (length < 0 || position + HEADER_SIZE + length > size) {
+						logger.error("corrupted record header in " + file + " at " + position);
+						break;
+					}
+					payload = new byte[length];
+					in.readFully(payload);
+				}
+				catch (EOFException e) {
+					logger.error("torn record in " + file + " at " + position);
+					break;
+				}
+
+				if (crc != checksum(type, payload)) {
+					logger.error("bad checksum in " + file + " at " + position);
+					break;
+				}
+				apply(type, new DataInputStream(new ByteArrayInputStream(payload)));
+				position += HEADER_SIZE + payload.length;
+			}
+		}
+		finally {
+			in.close();
+		}
+		return position;
+	}
+
+	private void apply(byte type, DataInputStream in) throws IOException {
+		switch (type) {
+		case REVISIONS:
+			String key = readString(in);
+			int[] revisions = new int[in.readInt()];
+			for (int i = 0; i < revisions.length; i++) {
+				revisions[i] = in.readInt();
+			}
+			if (revisions.length == 0) {
+				index.remove(key);
+			}
+			else {
+				index.put(key, revisions);
+			}
+			return;
+
+		case REFERENCES:
+			String hash = readString(in);
+			int count = in.readInt();
+			if (count == 0) {
+				references.remove(hash);
+			}
+			else {
+				references.put(hash, count);
+			}
+			return;
+
+		case SEGMENT:
+			firstSegment = in.readInt();
+			return;
+
+		default:
+			throw new IOException("unknown record type " + type);
+		}
+	}
+
+	private static byte[] record(byte type, byte[] payload) {
+		return ByteBuffer.allocate(HEADER_SIZE + payload.length)
+			.putInt(checksum(type, payload))
+			.put(type)
+			.putInt(payload.length)
+			.put(payload)
+			.array();
+	}
+
+	private static int checksum(byte type, byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(payload);
+		return (int) crc.getValue();
+	}
+
+	private static byte[] revisionsPayload(String key, int[] revisions) {
+		byte[] keyBytes = key.getBytes(Charsets.UTF_8);
+		ByteBuffer payload = ByteBuffer.allocate(4 + keyBytes.length + 4 + 4 * revisions.length)
+			.putInt(keyBytes.length)
+			.put(keyBytes)
+			.putInt(revisions.length);
+		for (int rev : revisions) {
+			payload.putInt(rev);
+		}
+		return payload.array();
+	}
+
+	private static byte[] referencesPayload(String hash, int count) {
+		byte[] hashBytes = hash.getBytes(Charsets.UTF_8);
+		return ByteBuffer.allocate(4 + hashBytes.length + 4)
+			.putInt(hashBytes.length)
+			.put(hashBytes)
+			.putInt(count)
+			.array();
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, Charsets.UTF_8);
+	}
+
+	private Segment createSegment(int id) throws IOException {
+		Segment segment = new Segment(id, segmentFile(id));
+		segments.add(segment);
+		return segment;
+	}
+
+	private File segmentFile(int id) {
+		return new File(directory, prefix + "." + id + ".ilog");
+	}
+
+	private File checkpointFile() {
+		return new File(directory, prefix + ".checkpoint");
+	}
+
+	private static class Segment {
+		private final int id;
+		private final File file;
+		private final FileChannel channel;
+		private long size;
+
+		public Segment(int id, File file) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+			this.size = channel.size();
+		}
+	}
+
+}
@@ -1,22 +1,56 @@
 package net.caprazzi.keez.onfile;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
+import net.caprazzi.keez.ChannelTransfer;
+import net.caprazzi.keez.Compression;
+import net.caprazzi.keez.CountingBloomFilter;
+import net.caprazzi.keez.Delta;
+import net.caprazzi.keez.Durability;
+import net.caprazzi.keez.IteratorSubscription;
 import net.caprazzi.keez.Keez;
 import net.caprazzi.keez.Keez.Delete;
 import net.caprazzi.keez.Keez.Get;
 import net.caprazzi.keez.Keez.GetRevisions;
+import net.caprazzi.keez.Keez.GetStream;
+import net.caprazzi.keez.Keez.GetTo;
 import net.caprazzi.keez.Keez.List;
+import net.caprazzi.keez.Keez.MultiGet;
 import net.caprazzi.keez.Keez.Put;
+import net.caprazzi.keez.Keez.Range;
+import net.caprazzi.keez.Keez.Scan;
+import net.caprazzi.keez.Keez.Subscriber;
+import net.caprazzi.keez.Keez.Write;
+import net.caprazzi.keez.Keez.WriteBatch;
+import net.caprazzi.keez.ParallelReads;
+import net.caprazzi.keez.Syncer;
 
 import static net.caprazzi.keez.Helpers.collision;
 import static net.caprazzi.keez.Helpers.deleted;
@@ -26,35 +60,109 @@ import static net.caprazzi.keez.Helpers.notFound;
 import static net.caprazzi.keez.Helpers.ok;
 import static net.caprazzi.keez.Helpers.notNull;
 import static net.caprazzi.keez.Helpers.error;
+import static net.caprazzi.keez.Helpers.page;
+import static net.caprazzi.keez.Helpers.written;
 
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Function;
+import com.google.common.base.Predicates;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
 
 /**
  * Naive file-based implementation of Keez
  * 	- values are stored on files
  *  - each key/revision is stored in a file
- *  - all operations are synchronized around an awful global lock
+ *  - an index of key -> revisions is built when the instance is created
+ *    and kept up to date on writes, so the directory is only scanned once.
+ *    Files written by someone else after that are not seen: only one instance
+ *    should work on a directory and prefix at a time.
+ *  - optionally, changes to the index are logged and the whole index is checkpointed
+ *    every checkpointWrites changes (see IndexLog): at startup the checkpoint is loaded and
+ *    the changes after it replayed, instead of scanning the directory. The instance
+ *    should be closed, to write a last checkpoint.
+ *  - operations on the same key are serialized by a lock striped on
+ *    (directory, prefix, key), operations on different keys run in parallel
  *  - only alphanum chars are allowed for keys
+ *  - getAll reads the files of many keys in parallel
+ *  - getTo sends files to the channel with FileChannel.transferTo
+ *  - putStream copies the body to a temporary file, then renames it, so memory use
+ *    doesn't depend on the size of the body
+ *  - a write batch holds the locks of all its keys at once
+ *  - optionally, bodies are compressed (see {@link Compression}). Compressed revisions
+ *    are stored in files named prefix-key.z.rev instead of prefix-key.rev
+ *  - optionally, old revisions are stored as a {@link Delta} from a full revision
+ *    (one in SNAPSHOT_INTERVAL), in files named prefix-key.d.rev. The latest revision
+ *    is always stored in full.
+ *  - optionally, bodies are deduplicated: each distinct body is stored once, in a file
+ *    named after its SHA-256 (prefix.hash, or prefix.hash.z if compressed), and revisions
+ *    are stored as a file holding the hash, named prefix-key.s.rev. The files referring
+ *    to each body are counted, the body is deleted with the last of them.
+ *  - optionally, a counting Bloom filter of the keys answers most gets
+ *    of missing keys without taking a lock or looking at the index
  *  - despite the async/callback semantics, all methods are blocking
  */
 public class KeezOnFile implements Keez.Db {
 
 	private Logger logger = LoggerFactory.getLogger(KeezOnFile.class);
 	
-	// global lock, defintely too broad
-	// could use a more fine grained lock based on the
-	// directory or on each file
-	private final static Object lock = new Object();
+	// lock stripes, shared by all instances. They don't make two instances on the same 
+	// directory and prefix safe to use together: each has its own index
+	private final static int STRIPES = 1024;
+	private final static double FILTER_FALSE_POSITIVE_RATE = 0.01;
+	// revisions 1, 1 + SNAPSHOT_INTERVAL, ... are kept in full when delta history is on
+	private final static int SNAPSHOT_INTERVAL = 32;
+	private final static Object[] locks = new Object[STRIPES];
+	// guard the shared bodies, by hash. Taken last, and one at a time
+	private final static Object[] sharedLocks = new Object[STRIPES];
+	static {
+		for (int i=0; i<STRIPES; i++) {
+			locks[i] = new Object();
+			sharedLocks[i] = new Object();
+		}
+	}
+	
 	private final File directory;
 	private final String prefix;
+	private final int storeHash;
+	// key -> revisions on disk, sorted ascending. Arrays are never modified,
+	// a new one is put in the index on each write
+	private final ConcurrentSkipListMap<String, int[]> index = new ConcurrentSkipListMap<String, int[]>();
+	// keys in the index, null if not enabled. Added before a key goes in the index, removed after it leaves
+	private final CountingBloomFilter filter;
+	// hash of a shared body -> number of revision files referring to it
+	private final ConcurrentHashMap<String, Integer> references = new ConcurrentHashMap<String, Integer>();
 	private boolean autoPurge;
+	private volatile Syncer syncer = new Syncer(Durability.NONE);
+	private volatile Compression compression;
+	private volatile boolean deltaHistory;
+	private volatile boolean deduplication;
+	// changes to the index and the references, null if checkpoints are not enabled
+	private final IndexLog indexLog;
 
 	public KeezOnFile(String directory, String prefix, boolean createDir) {
+		this(directory, prefix, createDir, 0);
+	}
+	
+	/**
+	 * @param expectedKeys number of keys the negative lookup filter is sized for, 0 for no filter
+	 */
+	public KeezOnFile(String directory, String prefix, boolean createDir, long expectedKeys) {
+		this(directory, prefix, createDir, expectedKeys, 0);
+	}
+	
+	/**
+	 * @param expectedKeys number of keys the negative lookup filter is sized for, 0 for no filter
+	 * @param checkpointWrites changes to the index logged before a new checkpoint of the index
+	 * 	is written, 0 to build the index by scanning the directory at each start.
+	 * 	An existing checkpoint is deleted if 0, as changes won't be logged anymore.
+	 */
+	public KeezOnFile(String directory, String prefix, boolean createDir, long expectedKeys, long checkpointWrites) {
 		if (!isValidKey(prefix)) {
 			throw new RuntimeException("invalid character in prefix [" + prefix + "]");
 		}
@@ -63,38 +171,175 @@ public class KeezOnFile implements Keez.Db {
 			this.directory.mkdir();
 		}
 		this.prefix = prefix;
+		this.storeHash = (this.directory.getAbsolutePath() + "/" + prefix).hashCode();
+		deleteSpooled();
+		if (checkpointWrites > 0) {
+			indexLog = new IndexLog(this.directory, prefix, checkpointWrites, index, references);
+			openIndex();
+		}
+		else {
+			indexLog = null;
+			IndexLog.delete(this.directory, prefix);
+			buildIndex();
+		}
+		if (expectedKeys > 0) {
+			filter = new CountingBloomFilter(expectedKeys, FILTER_FALSE_POSITIVE_RATE);
+			for (String key : index.keySet()) {
+				filter.add(key);
+			}
+		}
+		else {
+			filter = null;
+		}
+	}
+	
+	/**
+	 * @return the negative lookup filter, to look at its false positive rate and memory use. 
+	 * 	null if not enabled.
+	 */
+	public CountingBloomFilter getNegativeLookupFilter() {
+		return filter;
 	}
 	
 	@Override
 	public void setAutoPurge(boolean autoPurge) {
 		this.autoPurge = autoPurge;
 	}
+	
+	/**
+	 * Choose when revision files are forced to disk.
+	 * Default is {@link Durability#NONE}
+	 * 
+	 * Only file contents are forced: a crash can still lose the
+	 * directory entry of a new file on some filesystems.
+	 */
+	public void setDurability(Durability durability) {
+		setDurability(durability, Syncer.DEFAULT_INTERVAL);
+	}
+	
+	public void setDurability(Durability durability, long intervalMillis) {
+		Syncer old = syncer;
+		syncer = new Syncer(durability, intervalMillis);
+		old.close();
+		if (indexLog != null) {
+			indexLog.setDurability(durability, intervalMillis);
+		}
+	}
+	
+	/**
+	 * Compress new bodies, or store them as they are if null (the default).
+	 * Files already written are readable either way.
+	 */
+	public void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+	
+	/**
+	 * When a new revision is written, store the one it replaces as a delta
+	 * from the last snapshot revision before it. Default is false.
+	 * Files already written are readable either way.
+	 */
+	public void setDeltaHistory(boolean deltaHistory) {
+		this.deltaHistory = deltaHistory;
+	}
+	
+	/**
+	 * Store new bodies once per distinct content, shared by all the revisions that have it.
+	 * Putting a body that is already stored only writes the hash. Default is false.
+	 * Files already written are readable either way.
+	 */
+	public void setDeduplication(boolean deduplication) {
+		this.deduplication = deduplication;
+	}
+	
+	/**
+	 * Write a last checkpoint of the index if checkpoints are enabled, and stop syncing files.
+	 * The instance should not be used after this.
+	 */
+	public void close() {
+		if (indexLog != null) {
+			indexLog.close();
+		}
+		syncer.close();
+	}
 
 	@Override
 	public void put(String key, int rev, byte[] data, Put callback) {
 		notNull(key);
 		notNull(data);
 		notNull(callback);
-	
+	
 		if (rev == 0) {
-			create(key, data, callback);
+			create(key, data, null, callback);
 			return;
 		}
+		update(key, rev, data, null, callback);
+	}
+	
+	/**
+	 * The body is copied to a temporary file in the directory, without holding the key lock.
+	 * Under the lock, the temporary file is renamed to the revision file.
+	 * Streamed bodies are not compressed. With deduplication they are hashed while copied,
+	 * and the copy is dropped if the body is already stored.
+	 */
+	@Override
+	public void putStream(String key, int rev, InputStream body, Put callback) {
+		notNull(key);
+		notNull(body);
+		notNull(callback);
 		
 		if (!isValidKey(key)) {
 			callback.error(key, new RuntimeException("invalid character in key ["+key+"]"));
 			return;
 		}
+		
+		Spooled spooled;
+		try {
+			MessageDigest digest = deduplication ? sha256() : null;
+			if (digest != null) {
+				body = new DigestInputStream(body, digest);
+			}
+			// not a name the index reads
+			File file = ChannelTransfer.spool(body, directory, "." + prefix + "-" + key + "-");
+			spooled = new Spooled(file, (digest == null) ? null : digest.digest());
+		}
+		catch (Exception e) {
+			error(callback, key, e);
+			return;
+		}
+		
+		try {
+			if (rev == 0) {
+				create(key, null, spooled, callback);
+			}
+			else {
+				update(key, rev, null, spooled, callback);
+			}
+		}
+		finally {
+			// already renamed if the put succeeded and the body was new
+			spooled.file.delete();
+		}
+	}
+	
+	/**
+	 * Write the body in data, or move the spooled file, as the next revision of a key
+	 */
+	private void update(String key, int rev, byte[] data, Spooled spooled, Put callback) {
+		if (!isValidKey(key)) {
+			callback.error(key, new RuntimeException("invalid character in key ["+key+"]"));
+			return;
+		}
 
-		synchronized (lock) {
+		synchronized (lockFor(key)) {
 			try {
-				File[] keyFiles = findKeyFile(key);
-				if (keyFiles.length == 0) {
+				int[] revisions = index.get(key);
+				if (revisions == null) {
 					collision(callback, key, rev, -1);
 					return;
 				}
 				
-				int lastRev = getRevision(keyFiles[keyFiles.length-1]);
+				int lastRev = last(revisions);
 				if (lastRev != rev) {
 					collision(callback, key, rev, lastRev);
 					return;
@@ -102,13 +347,15 @@ public class KeezOnFile implements Keez.Db {
 				
 				int newRev = lastRev + 1;
 												
-				File newFile = new File(filePath(key, newRev));
-				FileOutputStream writer = new FileOutputStream(newFile);
-				writer.write(data);
-				writer.close();
+				writeFile(key, newRev, data, spooled);
 				
 				if (autoPurge) {
-					purgeOldRevisions(key, newRev);
+					purgeOldRevisions(key, revisions);
+					putIndex(key, new int[] { newRev });
+				}
+				else {
+					putIndex(key, append(revisions, newRev));
+					storeAsDelta(key, revisions);
 				}
 
 				ok(callback, key, newRev);
@@ -118,42 +365,240 @@ public class KeezOnFile implements Keez.Db {
 		}
 	}	
 
-	private void purgeOldRevisions(String key, int foundRev) {
-		File[] keyFiles = findKeyFile(key);
-		for(File file : keyFiles) {
-			int revision = getRevision(file);
-			if (revision < foundRev) {
-				boolean deleted = file.delete();
-				if (!deleted) {
-					logger.error("could not delete file " + file);
+	/**
+	 * Store a revision from data, or by renaming a spooled file if data is null
+	 */
+	private void writeFile(String key, int rev, byte[] data, Spooled spooled) throws IOException {
+		if (data != null) {
+			writeFile(key, rev, data);
+			return;
+		}
+		if (spooled.digest != null) {
+			writeShared(key, rev, spooled.digest, null, spooled.file);
+			return;
+		}
+		File file = new File(filePath(key, rev));
+		if (!spooled.file.renameTo(file)) {
+			throw new IOException("could not rename " + spooled.file + " to " + file);
+		}
+	}
+	
+	/**
+	 * Store a revision in full, compressed or not, or shared
+	 */
+	private void writeFile(String key, int rev, byte[] data) throws IOException {
+		if (deduplication) {
+			writeShared(key, rev, sha256().digest(data), data, null);
+			return;
+		}
+		Compression compression = this.compression;
+		byte[] compressed = (compression == null) ? null : compression.compress(data);
+		File file = new File((compressed == null) ? filePath(key, rev) : compressedFilePath(key, rev));
+		write(file, (compressed == null) ? data : compressed);
+	}
+	
+	/**
+	 * Store a revision as the hash of its body, and the body if it's not stored yet.
+	 * The body is taken from data, or by renaming the spooled file if data is null.
+	 * The body is written before the hash: a hash file always has its body.
+	 */
+	private void writeShared(String key, int rev, byte[] digest, byte[] data, File spooled) throws IOException {
+		String hash = toHex(digest);
+		acquire(hash, data, spooled);
+		try {
+			write(new File(sharedFilePath(key, rev)), digest);
+		}
+		catch (IOException e) {
+			release(hash);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Count one more reference to a shared body, writing the body if it's the first
+	 */
+	private void acquire(String hash, byte[] data, File spooled) throws IOException {
+		synchronized (sharedLockFor(hash)) {
+			Integer count = references.get(hash);
+			if (count != null) {
+				putReferences(hash, count + 1);
+				return;
+			}
+			if (data == null) {
+				File file = new File(sharedBodyPath(hash, false));
+				if (!spooled.renameTo(file)) {
+					throw new IOException("could not rename " + spooled + " to " + file);
 				}
 			}
+			else {
+				Compression compression = this.compression;
+				byte[] compressed = (compression == null) ? null : compression.compress(data);
+				write(new File(sharedBodyPath(hash, compressed != null)), (compressed == null) ? data : compressed);
+			}
+			putReferences(hash, 1);
+		}
+	}
+	
+	/**
+	 * Count one less reference to a shared body, deleting the body if it was the last
+	 */
+	private void release(String hash) {
+		synchronized (sharedLockFor(hash)) {
+			Integer count = references.get(hash);
+			if (count == null) {
+				return;
+			}
+			if (count > 1) {
+				putReferences(hash, count - 1);
+				return;
+			}
+			putReferences(hash, 0);
+			if (!new File(sharedBodyPath(hash, false)).delete() && !new File(sharedBodyPath(hash, true)).delete()) {
+				logger.error("could not delete shared body " + sharedBodyPath(hash, false));
+			}
+		}
+	}
+	
+	/**
+	 * Set the count of references to a shared body, and log it if checkpoints are enabled.
+	 * Must be called while holding the lock of the body.
+	 */
+	private void putReferences(String hash, int count) {
+		if (count == 0) {
+			references.remove(hash);
+		}
+		else {
+			references.put(hash, count);
+		}
+		if (indexLog != null) {
+			indexLog.references(hash, count);
+		}
+	}
+	
+	private void write(File file, byte[] data) throws IOException {
+		FileOutputStream writer = new FileOutputStream(file);
+		try {
+			writer.write(data);
+		}
+		catch (IOException e) {
+			writer.close();
+			throw e;
+		}
+		// closes the file once it's durable. Under INTERVAL, files wait open for the next
+		// sync, at most Syncer.MAX_RELEASED_PENDING of them
+		syncer.sync(writer.getChannel(), true);
+	}
+	
+	/**
+	 * Replace the full file of the latest revision in revisions, which is not the latest anymore,
+	 * with a delta from its snapshot revision. The delta file is written before the full one
+	 * is deleted: after a crash in between both are found, and the full one is read.
+	 * Failures are logged and leave the revision in full.
+	 */
+	private void storeAsDelta(String key, int[] revisions) {
+		if (!deltaHistory) {
+			return;
+		}
+		int rev = last(revisions);
+		int snapshot = rev - (rev - 1) % SNAPSHOT_INTERVAL;
+		if (snapshot == rev || Arrays.binarySearch(revisions, snapshot) < 0) {
+			return;
+		}
+		// a shared body is stored anyway
+		if (new File(sharedFilePath(key, rev)).exists()) {
+			return;
+		}
+		
+		try {
+			byte[] body = readFile(key, rev);
+			byte[] delta = Delta.diff(readFile(key, snapshot), body);
+			if (4 + delta.length >= body.length) {
+				return;
+			}
+			write(new File(deltaFilePath(key, rev)), ByteBuffer.allocate(4 + delta.length)
+				.putInt(snapshot)
+				.put(delta)
+				.array());
+			if (!deleteFullFile(key, rev)) {
+				logger.error("could not delete file " + filePath(key, rev));
+			}
+		}
+		catch (IOException e) {
+			logger.warn("could not store revision " + rev + " of [" + key + "] as a delta", e);
+		}
+	}
+
+	private void purgeOldRevisions(String key, int[] oldRevisions) {
+		for(int revision : oldRevisions) {
+			if (!deleteFile(key, revision)) {
+				logger.error("could not delete file " + filePath(key, revision));
+			}
 		}		
 	}
+	
+	/**
+	 * Delete the files of a revision, whatever their form
+	 * @return true if one was deleted
+	 */
+	private boolean deleteFile(String key, int rev) {
+		boolean deleted = deleteFullFile(key, rev);
+		deleted = new File(deltaFilePath(key, rev)).delete() || deleted;
+		return deleteSharedFile(key, rev) || deleted;
+	}
+	
+	/**
+	 * Delete the hash file of a shared revision, and release its body
+	 */
+	private boolean deleteSharedFile(String key, int rev) {
+		File file = new File(sharedFilePath(key, rev));
+		String hash;
+		try {
+			hash = toHex(readBytes(file));
+		}
+		catch (FileNotFoundException e) {
+			return false;
+		}
+		catch (IOException e) {
+			logger.error("could not read " + file, e);
+			return false;
+		}
+		if (!file.delete()) {
+			return false;
+		}
+		release(hash);
+		return true;
+	}
+	
+	/**
+	 * Delete the file of a revision stored in full, compressed or not
+	 */
+	private boolean deleteFullFile(String key, int rev) {
+		return new File(filePath(key, rev)).delete() || new File(compressedFilePath(key, rev)).delete();
+	}
 
-	private void create(String key, byte[] data, Put callback) {
+	private void create(String key, byte[] data, Spooled spooled, Put callback) {
 		
 		if (!isValidKey(key)) {
 			callback.error(key, new RuntimeException("invalid character in key ["+key+"]"));
 			return;
 		}
 
-		synchronized (lock) {
+		synchronized (lockFor(key)) {
 			try {
-				File[] keyFiles = findKeyFile(key);
+				int[] revisions = index.get(key);
 				
-				if (keyFiles.length > 0) {
-					int foundRev = getRevision(keyFiles[keyFiles.length-1]);
-					collision(callback, key, 0, foundRev);
+				if (revisions != null) {
+					collision(callback, key, 0, last(revisions));
 					return;
 				}
 				
 				int foundRev = 1;
 				
-				File newFile = new File(filePath(key, foundRev));
-				FileOutputStream writer = new FileOutputStream(newFile);
-				writer.write(data);
-				writer.close();
+				writeFile(key, foundRev, data, spooled);
+				if (filter != null) {
+					filter.add(key);
+				}
+				putIndex(key, new int[] { foundRev });
 
 				ok(callback, key, foundRev);				
 			} catch (Exception e) {
@@ -162,6 +607,115 @@ public class KeezOnFile implements Keez.Db {
 		}
 	}
 
+	/**
+	 * The locks of all keys in the batch are taken, in stripe order, then all new
+	 * revision files are written before the index is updated, key by key.
+	 * Reads of one key see it before or after the batch. list, scan and getAll
+	 * don't take the locks of the batch: they can see some of its keys updated
+	 * and others not yet.
+	 * 
+	 * A batch is not atomic in case of a crash: the files written so far
+	 * are found when the index is built again.
+	 */
+	@Override
+	public void writeBatch(java.util.List<Write> writes, WriteBatch callback) {
+		notNull(writes);
+		notNull(callback);
+		
+		java.util.List<Write> sorted;
+		try {
+			sorted = Write.sorted(writes);
+		}
+		catch (IllegalArgumentException e) {
+			error(callback, e);
+			return;
+		}
+		
+		TreeSet<Integer> stripes = new TreeSet<Integer>();
+		for (Write write : sorted) {
+			if (!isValidKey(write.getKey())) {
+				error(callback, new RuntimeException("invalid character in key ["+write.getKey()+"]"));
+				return;
+			}
+			stripes.add(stripeFor(write.getKey()));
+		}
+		writeBatch(sorted, Ints.toArray(stripes), 0, callback);
+	}
+	
+	/**
+	 * Take the remaining locks, then apply the batch
+	 */
+	private void writeBatch(java.util.List<Write> writes, int[] stripes, int locked, WriteBatch callback) {
+		if (locked < stripes.length) {
+			synchronized (locks[stripes[locked]]) {
+				writeBatch(writes, stripes, locked + 1, callback);
+			}
+			return;
+		}
+		
+		LinkedHashMap<String, Integer> collisions = new LinkedHashMap<String, Integer>();
+		for (Write write : writes) {
+			int[] revisions = index.get(write.getKey());
+			int foundRev = (revisions == null) ? -1 : last(revisions);
+			if (!write.accepts(foundRev)) {
+				collisions.put(write.getKey(), foundRev);
+			}
+		}
+		if (!collisions.isEmpty()) {
+			collision(callback, collisions);
+			return;
+		}
+		
+		LinkedHashMap<String, Integer> newRevisions = new LinkedHashMap<String, Integer>();
+		try {
+			for (Write write : writes) {
+				if (write.isDelete()) {
+					newRevisions.put(write.getKey(), -1);
+					continue;
+				}
+				int newRev = write.getRevision() + 1;
+				writeFile(write.getKey(), newRev, write.getBody());
+				newRevisions.put(write.getKey(), newRev);
+			}
+		}
+		catch (Exception e) {
+			for (Map.Entry<String, Integer> written : newRevisions.entrySet()) {
+				if (written.getValue() > 0 && !deleteFile(written.getKey(), written.getValue())) {
+					logger.error("could not delete file " + filePath(written.getKey(), written.getValue()));
+				}
+			}
+			error(callback, e);
+			return;
+		}
+		
+		for (Write write : writes) {
+			String key = write.getKey();
+			int[] revisions = index.get(key);
+			if (write.isDelete()) {
+				removeIndex(key);
+				if (filter != null) {
+					filter.remove(key);
+				}
+				purgeOldRevisions(key, revisions);
+			}
+			else if (revisions == null) {
+				if (filter != null) {
+					filter.add(key);
+				}
+				putIndex(key, new int[] { newRevisions.get(key) });
+			}
+			else if (autoPurge) {
+				purgeOldRevisions(key, revisions);
+				putIndex(key, new int[] { newRevisions.get(key) });
+			}
+			else {
+				putIndex(key, append(revisions, newRevisions.get(key)));
+				storeAsDelta(key, revisions);
+			}
+		}
+		ok(callback, newRevisions);
+	}
+
 	@Override
 	public void get(String key, Get callback) {
 		notNull(key);
@@ -172,19 +726,21 @@ public class KeezOnFile implements Keez.Db {
 			return;
 		}
 		
-		synchronized (lock) {
-			File[] keyFiles = findKeyFile(key);
-			if (keyFiles.length == 0) {
+		if (isAbsent(key)) {
+			notFound(callback, key);
+			return;
+		}
+		
+		synchronized (lockFor(key)) {
+			int[] revisions = index.get(key);
+			if (revisions == null) {
 				notFound(callback, key);
 				return;
 			}
-			int foundRev = getRevision(keyFiles[keyFiles.length-1]);
-			File f = new File(filePath(key, foundRev));
+			int foundRev = last(revisions);
 			
 			try {
-				FileInputStream in = new FileInputStream(f);
-				byte[] data = IOUtils.toByteArray(in);
-				in.close();
+				byte[] data = readFile(key, foundRev);
 				found(callback, key, foundRev, data);
 			} catch (FileNotFoundException ex) {
 				notFound(callback, key);
@@ -194,6 +750,180 @@ public class KeezOnFile implements Keez.Db {
 		}
 	}
 
+	/**
+	 * A revision stored in full and not compressed, on its own or shared, is sent with FileChannel.transferTo.
+	 * Its file is opened holding the key lock, and sent after releasing it: 
+	 * if the file is deleted or purged in the meantime, it's still read from the open channel.
+	 * Compressed and delta revisions are read on the heap first.
+	 */
+	@Override
+	public void getTo(String key, WritableByteChannel channel, GetTo callback) {
+		notNull(key);
+		notNull(channel);
+		notNull(callback);
+		
+		if (!isValidKey(key)) {
+			callback.error(key, new RuntimeException("invalid character in key ["+key+"]"));
+			return;
+		}
+		
+		if (isAbsent(key)) {
+			notFound(callback, key);
+			return;
+		}
+		
+		int foundRev;
+		FileInputStream in = null;
+		byte[] data = null;
+		synchronized (lockFor(key)) {
+			int[] revisions = index.get(key);
+			if (revisions == null) {
+				notFound(callback, key);
+				return;
+			}
+			foundRev = last(revisions);
+			
+			try {
+				in = openPlainFile(key, foundRev);
+			} catch (FileNotFoundException e) {
+				try {
+					data = readFile(key, foundRev);
+				} catch (FileNotFoundException ex) {
+					notFound(callback, key);
+					return;
+				} catch (Exception ex) {
+					error(callback, key, ex);
+					return;
+				}
+			} catch (IOException e) {
+				error(callback, key, e);
+				return;
+			}
+		}
+		
+		long length;
+		try {
+			if (in == null) {
+				length = ChannelTransfer.write(ByteBuffer.wrap(data), channel);
+			}
+			else {
+				FileChannel file = in.getChannel();
+				length = ChannelTransfer.transfer(file, 0, file.size(), channel);
+			}
+		} catch (Exception e) {
+			error(callback, key, e);
+			return;
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+		written(callback, key, foundRev, length);
+	}
+
+	/**
+	 * As getTo, the file is opened holding the key lock and read after releasing it.
+	 * Compressed and delta revisions are read on the heap first.
+	 */
+	@Override
+	public void getStream(String key, GetStream callback) {
+		notNull(key);
+		notNull(callback);
+		
+		if (!isValidKey(key)) {
+			callback.error(key, new RuntimeException("invalid character in key ["+key+"]"));
+			return;
+		}
+		
+		if (isAbsent(key)) {
+			notFound(callback, key);
+			return;
+		}
+		
+		int foundRev;
+		InputStream in;
+		synchronized (lockFor(key)) {
+			int[] revisions = index.get(key);
+			if (revisions == null) {
+				notFound(callback, key);
+				return;
+			}
+			foundRev = last(revisions);
+			
+			try {
+				in = new BufferedInputStream(openPlainFile(key, foundRev), ChannelTransfer.BUFFER_SIZE);
+			} catch (FileNotFoundException e) {
+				try {
+					in = new ByteArrayInputStream(readFile(key, foundRev));
+				} catch (FileNotFoundException ex) {
+					notFound(callback, key);
+					return;
+				} catch (Exception ex) {
+					error(callback, key, ex);
+					return;
+				}
+			} catch (IOException e) {
+				error(callback, key, e);
+				return;
+			}
+		}
+		
+		try {
+			found(callback, key, foundRev, in);
+		}
+		finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Revisions are taken from the index without locking, then files are read in parallel.
+	 * If a file has been purged or deleted in the meantime, the key is read again under its lock.
+	 */
+	@Override
+	public void getAll(Collection<String> keys, MultiGet callback) {
+		notNull(keys);
+		notNull(callback);
+		
+		ArrayList<Callable<Keez.Entry>> reads = new ArrayList<Callable<Keez.Entry>>(keys.size());
+		for (final String key : new LinkedHashSet<String>(keys)) {
+			if (!isValidKey(key)) {
+				error(callback, new RuntimeException("invalid character in key ["+key+"]"));
+				return;
+			}
+			if (isAbsent(key)) {
+				continue;
+			}
+			final int[] revisions = index.get(key);
+			if (revisions == null) {
+				continue;
+			}
+			reads.add(new Callable<Keez.Entry>() {
+				@Override
+				public Keez.Entry call() throws Exception {
+					int rev = last(revisions);
+					try {
+						return new Keez.Entry(key, rev, readFile(key, rev));
+					} catch (FileNotFoundException e) {
+						return readLatest(key);
+					}
+				}
+			});
+		}
+		
+		LinkedHashMap<String, Keez.Entry> entries = new LinkedHashMap<String, Keez.Entry>();
+		try {
+			for (Keez.Entry entry : ParallelReads.invokeAll(reads)) {
+				if (entry != null) {
+					entries.put(entry.getKey(), entry);
+				}
+			}
+		}
+		catch (Exception e) {
+			error(callback, e);
+			return;
+		}
+		found(callback, entries);
+	}
+
 	@Override
 	public void delete(String key, Delete callback) {
 		notNull(key);
@@ -204,22 +934,29 @@ public class KeezOnFile implements Keez.Db {
 			return;
 		}
 		
-		synchronized (lock) {
-			File[] keyFiles = findKeyFile(key);
-			if (keyFiles.length == 0) {
+		if (isAbsent(key)) {
+			notFound(callback, key);
+			return;
+		}
+		
+		synchronized (lockFor(key)) {
+			int[] revisions = index.get(key);
+			if (revisions == null) {
 				notFound(callback, key);
 				return;
 			}
-			int foundRev = getRevision(keyFiles[keyFiles.length-1]);
-			File f = new File(filePath(key, foundRev));
+			int foundRev = last(revisions);
 			try {
-				FileInputStream in = new FileInputStream(f);
-				byte[] data = IOUtils.toByteArray(in);
-				in.close();
+				byte[] data = readFile(key, foundRev);
 				
 				// delete all key files
-				for (File keyFile : keyFiles) {
-					if (!keyFile.delete()) {
+				removeIndex(key);
+				if (filter != null) {
+					filter.remove(key);
+				}
+				for (int revision : revisions) {
+					File keyFile = new File(filePath(key, revision));
+					if (!deleteFile(key, revision)) {
 						callback.error(key, new Exception("Could not delete one of the files for [" + key + "]: " + keyFile 
 								+ " exists: " + keyFile.exists() + " w:" + keyFile.canWrite() + " "));
 						return;
@@ -234,25 +971,24 @@ public class KeezOnFile implements Keez.Db {
 		}
 	}
 	
+	/**
+	 * Reads the index without taking locks, a concurrent write batch can be seen in part
+	 */
 	@Override
 	public void list(final List callback) {
 		notNull(callback);
 		
-		HashMap<String, Integer> keys = findLatestRevisions();
+		ArrayList<Entry<String, Integer>> keys = findLatestRevisions();
 		if (keys.size() == 0) {
 			notFound(callback);
 			return;			
 		}
 		try {
-			Iterable<net.caprazzi.keez.Keez.Entry> entries = Iterables.transform(keys.entrySet(), new Function<Entry<String, Integer>, Keez.Entry>() {
+			Iterable<net.caprazzi.keez.Keez.Entry> entries = Iterables.transform(keys, new Function<Entry<String, Integer>, Keez.Entry>() {
 				@Override
 				public net.caprazzi.keez.Keez.Entry apply(Entry<String, Integer> e) {
-					File f = new File(filePath(e.getKey(), e.getValue()));
-					byte[] data;
 					try {
-						FileInputStream in = new FileInputStream(f);
-						data = IOUtils.toByteArray(in);
-						in.close();
+						byte[] data = readFile(e.getKey(), e.getValue());
 						return new Keez.Entry(e.getKey(), e.getValue(), data);
 					} catch (Exception ex) {
 						throw new RuntimeException(ex);
@@ -266,26 +1002,176 @@ public class KeezOnFile implements Keez.Db {
 		}
 	}
 	
+	/**
+	 * Only the lock of the key being read is held, one key at a time:
+	 * a concurrent write batch can be seen in part
+	 */
+	@Override
+	public void scan(Subscriber subscriber) {
+		notNull(subscriber);
+		IteratorSubscription.subscribe(subscriber, latest(index.navigableKeySet()));
+	}
+	
+	/**
+	 * Served from the index, only the files of the keys in the page are read
+	 */
+	@Override
+	public void scan(Range range, int limit, String cursor, Scan callback) {
+		notNull(range);
+		notNull(callback);
+		if (limit <= 0) {
+			error(callback, new IllegalArgumentException("limit must be positive: " + limit));
+			return;
+		}
+		page(callback, latest(range.select(index, cursor).keySet()), limit);
+	}
+	
+	/**
+	 * Lazily read the latest revision of each key
+	 */
+	private Iterator<Keez.Entry> latest(Iterable<String> keys) {
+		Iterator<Keez.Entry> entries = Iterators.transform(keys.iterator(), new Function<String, Keez.Entry>() {
+			@Override
+			public Keez.Entry apply(String key) {
+				try {
+					return readLatest(key);
+				} catch (IOException ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		});
+		return Iterators.filter(entries, Predicates.notNull());
+	}
+	
+	/**
+	 * Read the latest revision of a key, holding its lock
+	 * @return the entry, or null if the key does not exist
+	 */
+	private Keez.Entry readLatest(String key) throws IOException {
+		synchronized (lockFor(key)) {
+			int[] revisions = index.get(key);
+			if (revisions == null) {
+				return null;
+			}
+			int rev = last(revisions);
+			return new Keez.Entry(key, rev, readFile(key, rev));
+		}
+	}
+	
+	/**
+	 * Read a revision, in whatever form it is stored, starting from the form new revisions
+	 * are written in: shared or not, then full files compressed or not, then the delta file.
+	 * @throws FileNotFoundException if there is no file for the revision
+	 */
+	private byte[] readFile(String key, int rev) throws IOException {
+		if (deduplication) {
+			try {
+				return readShared(key, rev);
+			}
+			catch (FileNotFoundException e) {
+				return readOwnFile(key, rev);
+			}
+		}
+		try {
+			return readOwnFile(key, rev);
+		}
+		catch (FileNotFoundException e) {
+			return readShared(key, rev);
+		}
+	}
+	
+	/**
+	 * Read a revision that is not shared
+	 */
+	private byte[] readOwnFile(String key, int rev) throws IOException {
+		boolean compressedFirst = (compression != null);
+		try {
+			return readFile(key, rev, compressedFirst);
+		}
+		catch (FileNotFoundException e) {
+			try {
+				return readFile(key, rev, !compressedFirst);
+			}
+			catch (FileNotFoundException ex) {
+				return readDelta(key, rev);
+			}
+		}
+	}
+	
+	private byte[] readFile(String key, int rev, boolean compressed) throws IOException {
+		byte[] data = readBytes(new File(compressed ? compressedFilePath(key, rev) : filePath(key, rev)));
+		return (compressed) ? Compression.decompress(data) : data;
+	}
+	
+	/**
+	 * Rebuild a revision from its delta file and its snapshot revision
+	 */
+	private byte[] readDelta(String key, int rev) throws IOException {
+		byte[] data = readBytes(new File(deltaFilePath(key, rev)));
+		if (data.length < 4) {
+			throw new IOException("delta file too short for revision " + rev + " of [" + key + "]");
+		}
+		int snapshot = ByteBuffer.wrap(data).getInt();
+		if (snapshot >= rev) {
+			throw new IOException("revision " + rev + " of [" + key + "] is a delta from revision " + snapshot);
+		}
+		return Delta.apply(readFile(key, snapshot), Arrays.copyOfRange(data, 4, data.length));
+	}
+	
+	/**
+	 * Read a revision from the shared body its hash file refers to
+	 */
+	private byte[] readShared(String key, int rev) throws IOException {
+		String hash = toHex(readBytes(new File(sharedFilePath(key, rev))));
+		try {
+			return readBytes(new File(sharedBodyPath(hash, false)));
+		}
+		catch (FileNotFoundException e) {
+			return Compression.decompress(readBytes(new File(sharedBodyPath(hash, true))));
+		}
+	}
+	
+	/**
+	 * Open the file of a revision stored in full and not compressed, on its own or shared
+	 * @throws FileNotFoundException if the revision is stored in another form
+	 */
+	private FileInputStream openPlainFile(String key, int rev) throws IOException {
+		try {
+			return new FileInputStream(filePath(key, rev));
+		}
+		catch (FileNotFoundException e) {
+			String hash = toHex(readBytes(new File(sharedFilePath(key, rev))));
+			return new FileInputStream(sharedBodyPath(hash, false));
+		}
+	}
+	
+	private static byte[] readBytes(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			return IOUtils.toByteArray(in);
+		}
+		finally {
+			in.close();
+		}
+	}
+	
 	@Override
 	public void getRevisions(final String key, GetRevisions callback) {
 		notNull(key);
 		notNull(callback);
 		
 		try {
-			File[] keyFiles = findKeyFile(key);
-			if (keyFiles.length == 0) {
+			int[] revisions = isAbsent(key) ? null : index.get(key);
+			if (revisions == null) {
 				notFound(callback, key);
 				return;
 			}
 			
-			Iterable<Keez.Entry> entries = Iterables.transform(Arrays.asList(keyFiles), new Function<File, Keez.Entry>() {
+			Iterable<Keez.Entry> entries = Iterables.transform(Ints.asList(revisions), new Function<Integer, Keez.Entry>() {
 				@Override
-				public Keez.Entry apply(File file) {
-					int rev = getRevision(file);
+				public Keez.Entry apply(Integer rev) {
 					try {
-						FileInputStream in = new FileInputStream(file);
-						byte[] data = IOUtils.toByteArray(in);
-						in.close();
+						byte[] data = readFile(key, rev);
 						return new Keez.Entry(key, rev, data);
 					} catch (FileNotFoundException e) {
 						throw new RuntimeException(e);
@@ -309,44 +1195,152 @@ public class KeezOnFile implements Keez.Db {
 	}
 
 	/**
-	 * Find all files for a specific key and return them sorted by revision number ascending
-	 * 
-	 * @param dir
-	 * @param key
-	 * @return
+	 * Put the revisions of a key in the index, and log them if checkpoints are enabled.
+	 * Must be called while holding the lock of the key.
+	 */
+	private void putIndex(String key, int[] revisions) {
+		index.put(key, revisions);
+		if (indexLog != null) {
+			indexLog.put(key, revisions);
+		}
+	}
+	
+	/**
+	 * Remove a key from the index, and log it if checkpoints are enabled.
+	 * Must be called while holding the lock of the key.
+	 */
+	private void removeIndex(String key) {
+		index.remove(key);
+		if (indexLog != null) {
+			indexLog.remove(key);
+		}
+	}
+	
+	/**
+	 * Load the index from the last checkpoint and the changes logged after it,
+	 * or build it by scanning the directory and write a first checkpoint
 	 */
-	private File[] findKeyFile(final String key) {
+	private void openIndex() {
+		try {
+			if (!indexLog.recover()) {
+				buildIndex();
+				indexLog.checkpoint();
+			}
+		}
+		catch (IOException e) {
+			throw new RuntimeException("could not open index log in " + directory, e);
+		}
+	}
+	
+	/**
+	 * Delete the bodies spooled by putStream and left by a crash before they were stored
+	 */
+	private void deleteSpooled() {
 		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
 			public boolean accept(File dir, String name) {
-				return name.startsWith(prefix + "-" + key + ".");
+				return name.startsWith("." + prefix + "-") && name.endsWith(".tmp");
 			}
 		});
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			file.delete();
+		}
+	}
+	
+	/**
+	 * Scan the directory once and load key revisions in the index,
+	 * and the references to shared bodies
+	 */
+	private void buildIndex() {
+		File[] files = listAllFiles();
+		if (files == null) {
+			return;
+		}
+		countReferences(files);
 		
-		Arrays.sort(files, new Comparator<File>() {
-			@Override
-			public int compare(File fa, File fb) {
-				Integer reva = getRevision(fa);
-				Integer revb = getRevision(fb);
-				return reva.compareTo(revb);
+		// a revision can have two files after a crash while storing it as a delta
+		HashMap<String, TreeSet<Integer>> found = new HashMap<String, TreeSet<Integer>>();
+		for(File file : files) {
+			String key;
+			Integer rev;
+			try {
+				key = getKey(file);
+				rev = getRevision(file);
 			}
-		});
+			catch (NumberFormatException e) {
+				logger.warn("ignoring file " + file);
+				continue;
+			}
+			TreeSet<Integer> revisions = found.get(key);
+			if (revisions == null) {
+				revisions = new TreeSet<Integer>();
+				found.put(key, revisions);
+			}
+			revisions.add(rev);
+		}
 		
-		return files;
+		for (Map.Entry<String, TreeSet<Integer>> e : found.entrySet()) {
+			index.put(e.getKey(), Ints.toArray(e.getValue()));
+		}
 	}
 	
-	private HashMap<String, Integer> findLatestRevisions() {
-		File[] files = listAllFiles();
-		HashMap<String,Integer> map = new HashMap<String, Integer>();		
-		for(File file : files) {
-			Integer rev = getRevision(file);
-			String key = getKey(file);
-			Integer oldRevision = map.get(key);
-			if (oldRevision != null) {
-				map.put(key, Math.max(oldRevision, rev));
+	/**
+	 * Count the hash files referring to each shared body, then delete the bodies
+	 * no file refers to: left by a crash between writing a body and its hash file,
+	 * or between deleting the last hash file and the body.
+	 */
+	private void countReferences(File[] files) {
+		for (File file : files) {
+			if (!file.getName().contains(".s.")) {
+				continue;
+			}
+			try {
+				String hash = toHex(readBytes(file));
+				Integer count = references.get(hash);
+				references.put(hash, (count == null) ? 1 : count + 1);
+			}
+			catch (IOException e) {
+				logger.warn("could not read " + file, e);
 			}
-			else map.put(key, rev);
 		}
-		return map;
+		
+		File[] bodies = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(prefix + ".") && isHash(name.substring(prefix.length() + 1).replace(".z", ""));
+			}
+		});
+		for (File body : bodies) {
+			String hash = body.getName().substring(prefix.length() + 1).split("\\.")[0];
+			if (!references.containsKey(hash) && !body.delete()) {
+				logger.error("could not delete shared body " + body);
+			}
+		}
+	}
+	
+	/**
+	 * Latest revision of each key, sorted by key
+	 * @return
+	 */
+	private ArrayList<Entry<String, Integer>> findLatestRevisions() {
+		ArrayList<Entry<String, Integer>> latest = new ArrayList<Entry<String, Integer>>();
+		for (Entry<String, int[]> e : index.entrySet()) {
+			latest.add(Maps.immutableEntry(e.getKey(), last(e.getValue())));
+		}
+		return latest;
+	}
+	
+	private static int last(int[] revisions) {
+		return revisions[revisions.length-1];
+	}
+	
+	private static int[] append(int[] revisions, int rev) {
+		int[] updated = Arrays.copyOf(revisions, revisions.length + 1);
+		updated[revisions.length] = rev;
+		return updated;
 	}
 	
 	private String getKey(File file) {
@@ -362,6 +1356,27 @@ public class KeezOnFile implements Keez.Db {
 		});
 	}
 
+	/**
+	 * Lock guarding all files of a key in this store
+	 * @param key
+	 * @return
+	 */
+	private Object lockFor(String key) {
+		return locks[stripeFor(key)];
+	}
+	
+	private Object sharedLockFor(String hash) {
+		return sharedLocks[(31 * storeHash + hash.hashCode()) & (STRIPES - 1)];
+	}
+	
+	private int stripeFor(String key) {
+		int h = 31 * storeHash + key.hashCode();
+		// spread the bits, as in HashMap
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return h & (STRIPES - 1);
+	}
+
 	/**
 	 * Build file path from key and revision
 	 * @param key
@@ -371,6 +1386,76 @@ public class KeezOnFile implements Keez.Db {
 	private String filePath(String key, int rev) {
 		return directory + "/" + prefix + "-" + key + "." + rev;
 	}
+	
+	/**
+	 * Path of the file holding a compressed revision. 
+	 * Key and revision are parsed from it as from filePath
+	 */
+	private String compressedFilePath(String key, int rev) {
+		return directory + "/" + prefix + "-" + key + ".z." + rev;
+	}
+
+	/**
+	 * Path of the file holding a revision stored as a delta
+	 */
+	private String deltaFilePath(String key, int rev) {
+		return directory + "/" + prefix + "-" + key + ".d." + rev;
+	}
+
+	/**
+	 * Path of the file holding the hash of a shared revision
+	 */
+	private String sharedFilePath(String key, int rev) {
+		return directory + "/" + prefix + "-" + key + ".s." + rev;
+	}
+	
+	/**
+	 * Path of a shared body. Not parsed as a revision: it doesn't start with prefix-
+	 */
+	private String sharedBodyPath(String hash, boolean compressed) {
+		return directory + "/" + prefix + "." + hash + (compressed ? ".z" : "");
+	}
+	
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static boolean isHash(String name) {
+		return name.matches("[0-9a-f]{64}");
+	}
+	
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+	
+	/**
+	 * A body copied to a temporary file, and its hash if it's going to be shared
+	 */
+	private static class Spooled {
+		private final File file;
+		private final byte[] digest;
+		
+		public Spooled(File file, byte[] digest) {
+			this.file = file;
+			this.digest = digest;
+		}
+	}
+
+	/**
+	 * @return true if the filter says the key is not in the index
+	 */
+	private boolean isAbsent(String key) {
+		return filter != null && !filter.mightContain(key);
+	}
 
 	private boolean isValidKey(String key) {
 		 return key.matches("[A-Za-z0-9]+");
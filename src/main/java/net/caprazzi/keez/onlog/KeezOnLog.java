@@ -0,0 +1,1652 @@
+package net.caprazzi.keez.onlog;
+
+import static net.caprazzi.keez.Helpers.collision;
+import static net.caprazzi.keez.Helpers.deleted;
+import static net.caprazzi.keez.Helpers.entries;
+import static net.caprazzi.keez.Helpers.error;
+import static net.caprazzi.keez.Helpers.found;
+import static net.caprazzi.keez.Helpers.notFound;
+import static net.caprazzi.keez.Helpers.notNull;
+import static net.caprazzi.keez.Helpers.ok;
+import static net.caprazzi.keez.Helpers.page;
+import static net.caprazzi.keez.Helpers.written;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import net.caprazzi.keez.ChannelTransfer;
+import net.caprazzi.keez.Compression;
+import net.caprazzi.keez.CountingBloomFilter;
+import net.caprazzi.keez.Durability;
+import net.caprazzi.keez.FileRegionInputStream;
+import net.caprazzi.keez.Helpers;
+import net.caprazzi.keez.IteratorSubscription;
+import net.caprazzi.keez.Keez;
+import net.caprazzi.keez.Keez.Delete;
+import net.caprazzi.keez.Keez.Get;
+import net.caprazzi.keez.Keez.GetRevisions;
+import net.caprazzi.keez.Keez.GetStream;
+import net.caprazzi.keez.Keez.GetTo;
+import net.caprazzi.keez.Keez.List;
+import net.caprazzi.keez.Keez.MultiGet;
+import net.caprazzi.keez.Keez.Operation;
+import net.caprazzi.keez.Keez.Put;
+import net.caprazzi.keez.Keez.Range;
+import net.caprazzi.keez.Keez.Scan;
+import net.caprazzi.keez.Keez.Subscriber;
+import net.caprazzi.keez.Keez.Write;
+import net.caprazzi.keez.Keez.WriteBatch;
+import net.caprazzi.keez.ParallelReads;
+import net.caprazzi.keez.Syncer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+
+/**
+ * Log-structured implementation of Keez, in the style of Bitcask
+ *  - records (key, revision, body) are appended to large segment files
+ *  - an in-memory keydir maps each key to the location of its revisions
+ *  - a get is one positioned read, a put is one sequential append
+ *  - getTo sends the body from the segment with FileChannel.transferTo
+ *  - putStream copies the body to a temporary file before taking the write lock, 
+ *    getStream reads it from the segment: memory use doesn't depend on the size of the body
+ *  - the keydir is rebuilt at startup by replaying all segments
+ *  - optionally, a checkpoint of the keydir (prefix.index) is written every checkpointBytes
+ *    and when closing. It holds the position in the log it was taken at: at startup it's loaded,
+ *    then only the records after that position are replayed
+ *  - writes are serialized, reads never take a lock
+ *  - batches of writes (see {@link Keez.BatchDb}) take the lock and force each segment once
+ *  - the records of a write batch are appended with a single write, and replayed all or none.
+ *    Readers see none or all of a batch: its keys are held by a pending marker, then the batch
+ *    is made visible at once by setting a single flag
+ *  - optionally, bodies are compressed (see {@link Compression}) before taking the write lock,
+ *    compressed records are flagged
+ *  - optionally, a counting Bloom filter of the keys answers most reads
+ *    of missing keys without looking at the keydir
+ *  - segments are never rewritten: space used by purged or deleted
+ *    revisions is not reclaimed
+ */
+public class KeezOnLog implements Keez.BatchDb {
+
+	public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	private static final double FILTER_FALSE_POSITIVE_RATE = 0.01;
+
+	// crc, flags, key length, revision, body length
+	static final int HEADER_SIZE = 4 + 1 + 4 + 4 + 4;
+
+	static final byte FLAG_TOMBSTONE = 1;
+	static final byte FLAG_PURGE = 2;
+	// the record is part of a write batch, and more records of the batch follow it
+	static final byte FLAG_BATCH = 4;
+	static final byte FLAG_COMPRESSED = 8;
+
+	private Logger logger = LoggerFactory.getLogger(KeezOnLog.class);
+
+	private final Object writeLock = new Object();
+	private final File directory;
+	private final String prefix;
+	private final long maxSegmentSize;
+	private final ConcurrentSkipListMap<String, Location[]> keydir = new ConcurrentSkipListMap<String, Location[]>();
+	// keys in the keydir, null if not enabled. Added before a key goes in the keydir, removed after it leaves
+	private final CountingBloomFilter filter;
+	private final ArrayList<Segment> segments = new ArrayList<Segment>();
+	private volatile Segment active;
+	private boolean autoPurge;
+	private volatile Syncer syncer = new Syncer(Durability.NONE);
+	private volatile Compression compression;
+	private volatile long checkpointBytes;
+	private final AtomicLong sinceCheckpoint = new AtomicLong();
+	private final AtomicBoolean checkpointing = new AtomicBoolean();
+	private final ExecutorService background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "keez-checkpoint");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	public KeezOnLog(String directory, String prefix, boolean createDir) {
+		this(directory, prefix, createDir, DEFAULT_SEGMENT_SIZE);
+	}
+
+	public KeezOnLog(String directory, String prefix, boolean createDir, long maxSegmentSize) {
+		this(directory, prefix, createDir, maxSegmentSize, 0);
+	}
+
+	/**
+	 * @param expectedKeys number of keys the negative lookup filter is sized for, 0 for no filter
+	 */
+	public KeezOnLog(String directory, String prefix, boolean createDir, long maxSegmentSize, long expectedKeys) {
+		if (!prefix.matches("[A-Za-z0-9]+")) {
+			throw new RuntimeException("invalid character in prefix [" + prefix + "]");
+		}
+		this.directory = new File(directory);
+		if (createDir && !this.directory.exists()) {
+			this.directory.mkdir();
+		}
+		this.prefix = prefix;
+		this.maxSegmentSize = maxSegmentSize;
+		try {
+			open();
+		}
+		catch (IOException e) {
+			throw new RuntimeException("could not open log in " + directory, e);
+		}
+		// built once replay is done, apply() doesn't update it before
+		if (expectedKeys > 0) {
+			filter = new CountingBloomFilter(expectedKeys, FILTER_FALSE_POSITIVE_RATE);
+			for (String key : keydir.keySet()) {
+				filter.add(key);
+			}
+		}
+		else {
+			filter = null;
+		}
+	}
+
+	/**
+	 * @return the negative lookup filter, to look at its false positive rate and memory use.
+	 * 	null if not enabled.
+	 */
+	public CountingBloomFilter getNegativeLookupFilter() {
+		return filter;
+	}
+
+	@Override
+	public void setAutoPurge(boolean autoPurge) {
+		this.autoPurge = autoPurge;
+	}
+
+	/**
+	 * Choose when appended records are forced to disk.
+	 * Default is {@link Durability#NONE}
+	 *
+	 * With GROUP_COMMIT, concurrent puts share one force of the active segment.
+	 */
+	public void setDurability(Durability durability) {
+		setDurability(durability, Syncer.DEFAULT_INTERVAL);
+	}
+
+	public void setDurability(Durability durability, long intervalMillis) {
+		Syncer old = syncer;
+		syncer = new Syncer(durability, intervalMillis);
+		old.close();
+	}
+
+	/**
+	 * Compress new bodies, or store them as they are if null (the default).
+	 * Records already written are readable either way.
+	 */
+	public void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Write a checkpoint of the keydir in the background once checkpointBytes have been 
+	 * appended since the last one, and when closing. 0 (the default) to only write one
+	 * by calling checkpoint(). A checkpoint found at startup is loaded either way.
+	 */
+	public void setCheckpointBytes(long checkpointBytes) {
+		this.checkpointBytes = checkpointBytes;
+	}
+
+	/**
+	 * Write a checkpoint of the keydir now, replacing the previous one.
+	 * 
+	 * The position of the end of the log is taken under the write lock, then the keydir 
+	 * is copied while writers go on: writes made meanwhile can be both in the checkpoint
+	 * and after the position. When replayed, a record is skipped if the key already has 
+	 * a revision at or after its location.
+	 */
+	public synchronized void checkpoint() throws IOException {
+		Segment segment;
+		long position;
+		synchronized (writeLock) {
+			segment = active;
+			position = segment.size;
+			sinceCheckpoint.set(0);
+		}
+
+		File temp = new File(directory, prefix + ".index.tmp");
+		FileOutputStream file = new FileOutputStream(temp);
+		boolean done = false;
+		try {
+			BufferedOutputStream buffered = new BufferedOutputStream(file, ChannelTransfer.BUFFER_SIZE);
+			CheckedOutputStream checked = new CheckedOutputStream(buffered, new CRC32());
+			DataOutputStream out = new DataOutputStream(checked);
+			out.writeInt(segment.id);
+			out.writeLong(position);
+			for (Map.Entry<String, Location[]> e : keydir.entrySet()) {
+				Location[] revisions = visible(e.getValue());
+				if (revisions == null) {
+					continue;
+				}
+				byte[] keyBytes = e.getKey().getBytes(Charsets.UTF_8);
+				out.writeInt(keyBytes.length);
+				out.write(keyBytes);
+				out.writeInt(revisions.length);
+				for (Location location : revisions) {
+					out.writeInt(location.segment.id);
+					out.writeLong(location.offset);
+					out.writeInt(location.length);
+					out.writeInt(location.rev);
+					out.writeBoolean(location.compressed);
+				}
+			}
+			out.writeInt(-1);
+			out.flush();
+			new DataOutputStream(buffered).writeInt((int) checked.getChecksum().getValue());
+			buffered.flush();
+			file.getChannel().force(false);
+			done = true;
+		}
+		finally {
+			file.close();
+			if (!done) {
+				temp.delete();
+			}
+		}
+
+		File checkpoint = checkpointFile();
+		// renameTo doesn't replace an existing file everywhere
+		if (!temp.renameTo(checkpoint) && !(checkpoint.delete() && temp.renameTo(checkpoint))) {
+			throw new IOException("could not rename " + temp + " to " + checkpoint);
+		}
+	}
+
+	/**
+	 * The body is copied to a temporary file and its checksum computed without the write lock,
+	 * assuming that the put will succeed. Under the lock, the record is appended by copying 
+	 * the file with FileChannel.transferFrom. Streamed bodies are not compressed.
+	 */
+	@Override
+	public void putStream(String key, int rev, InputStream body, Put callback) {
+		notNull(key);
+		notNull(body);
+		notNull(callback);
+
+		File file;
+		try {
+			file = ChannelTransfer.spool(body, directory, prefix + "-put-");
+		}
+		catch (Exception e) {
+			error(callback, key, e);
+			return;
+		}
+
+		Spooled spooled;
+		try {
+			spooled = new Spooled(file, key, (rev == 0) ? 1 : rev + 1, autoPurge);
+		}
+		catch (Exception e) {
+			file.delete();
+			error(callback, key, e);
+			return;
+		}
+
+		try {
+			Written written;
+			synchronized (writeLock) {
+				written = applyPut(key, rev, null, null, spooled, callback);
+			}
+			commit(written);
+		}
+		finally {
+			if (!spooled.file.delete()) {
+				logger.error("could not delete file " + spooled.file);
+			}
+		}
+	}
+
+	@Override
+	public void put(String key, int rev, byte[] body, Put callback) {
+		byte[] stored = compress(body);
+		Written written;
+		synchronized (writeLock) {
+			written = applyPut(key, rev, body, stored, callback);
+		}
+		// outside of the write lock, so that other writers can append
+		// and join the same group commit
+		commit(written);
+	}
+
+	@Override
+	public void get(String key, Get callback) {
+		notNull(key);
+		notNull(callback);
+
+		Location[] revisions = lookup(key);
+		if (revisions == null) {
+			notFound(callback, key);
+			return;
+		}
+
+		Location location = last(revisions);
+		byte[] body;
+		try {
+			body = read(location);
+		}
+		catch (Exception e) {
+			error(callback, key, e);
+			return;
+		}
+		found(callback, key, location.rev, body);
+	}
+
+	/**
+	 * An uncompressed body is sent straight from its segment with FileChannel.transferTo,
+	 * a compressed one is read and decompressed first. No lock is needed, as segments are never rewritten.
+	 */
+	@Override
+	public void getTo(String key, WritableByteChannel channel, GetTo callback) {
+		notNull(key);
+		notNull(channel);
+		notNull(callback);
+
+		Location[] revisions = lookup(key);
+		if (revisions == null) {
+			notFound(callback, key);
+			return;
+		}
+
+		Location location = last(revisions);
+		long length;
+		try {
+			if (location.compressed) {
+				length = ChannelTransfer.write(ByteBuffer.wrap(read(location)), channel);
+			}
+			else {
+				length = ChannelTransfer.transfer(location.segment.channel, location.offset, location.length, channel);
+			}
+		}
+		catch (Exception e) {
+			error(callback, key, e);
+			return;
+		}
+		written(callback, key, location.rev, length);
+	}
+
+	/**
+	 * The body is read from its segment through a small buffer. No lock is needed, 
+	 * as segments are never rewritten. A compressed body is decompressed on the heap first.
+	 */
+	@Override
+	public void getStream(String key, GetStream callback) {
+		notNull(key);
+		notNull(callback);
+
+		Location[] revisions = lookup(key);
+		if (revisions == null) {
+			notFound(callback, key);
+			return;
+		}
+
+		Location location = last(revisions);
+		InputStream in;
+		try {
+			in = (location.compressed) 
+				? new ByteArrayInputStream(read(location))
+				: new FileRegionInputStream(location.segment.channel, location.offset, location.length);
+		}
+		catch (Exception e) {
+			error(callback, key, e);
+			return;
+		}
+		found(callback, key, location.rev, in);
+	}
+
+	/**
+	 * Locations are taken from the keydir, then bodies are read in parallel
+	 */
+	@Override
+	public void getAll(Collection<String> keys, MultiGet callback) {
+		notNull(keys);
+		notNull(callback);
+
+		ArrayList<Callable<Keez.Entry>> reads = new ArrayList<Callable<Keez.Entry>>(keys.size());
+		for (final String key : new LinkedHashSet<String>(keys)) {
+			Location[] revisions = lookup(key);
+			if (revisions == null) {
+				continue;
+			}
+			final Location location = last(revisions);
+			reads.add(new Callable<Keez.Entry>() {
+				@Override
+				public Keez.Entry call() throws Exception {
+					return new Keez.Entry(key, location.rev, read(location));
+				}
+			});
+		}
+
+		LinkedHashMap<String, Keez.Entry> entries = new LinkedHashMap<String, Keez.Entry>();
+		try {
+			for (Keez.Entry entry : ParallelReads.invokeAll(reads)) {
+				entries.put(entry.getKey(), entry);
+			}
+		}
+		catch (Exception e) {
+			error(callback, e);
+			return;
+		}
+		found(callback, entries);
+	}
+
+	@Override
+	public void getRevisions(final String key, GetRevisions callback) {
+		notNull(key);
+		notNull(callback);
+
+		Location[] revisions = lookup(key);
+		if (revisions == null) {
+			notFound(callback, key);
+			return;
+		}
+
+		try {
+			Iterable<Keez.Entry> entries = Iterables.transform(Arrays.asList(revisions), new Function<Location, Keez.Entry>() {
+				@Override
+				public Keez.Entry apply(Location location) {
+					try {
+						return new Keez.Entry(key, location.rev, read(location));
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+			found(callback, key, entries);
+		}
+		catch (Exception e) {
+			error(callback, key, e);
+		}
+	}
+
+	@Override
+	public void delete(String key, Delete callback) {
+		notNull(key);
+		notNull(callback);
+		if (isAbsent(key)) {
+			notFound(callback, key);
+			return;
+		}
+
+		Written written;
+		synchronized (writeLock) {
+			written = applyDelete(key, callback);
+		}
+		commit(written);
+	}
+
+	/**
+	 * Preconditions are checked and all records appended under one acquisition of
+	 * the write lock, then the segment is forced once.
+	 */
+	@Override
+	public void writeBatch(java.util.List<Write> writes, WriteBatch callback) {
+		notNull(writes);
+		notNull(callback);
+
+		java.util.List<Write> sorted;
+		try {
+			sorted = Write.sorted(writes);
+		}
+		catch (IllegalArgumentException e) {
+			error(callback, e);
+			return;
+		}
+
+		byte[][] stored = new byte[sorted.size()][];
+		for (int i = 0; i < stored.length; i++) {
+			stored[i] = compress(sorted.get(i).getBody());
+		}
+
+		Written written;
+		synchronized (writeLock) {
+			written = applyBatch(sorted, stored, callback);
+		}
+		commit(written);
+	}
+
+	@Override
+	public void list(List callback) {
+		notNull(callback);
+
+		final ArrayList<Map.Entry<String, Location>> latest = new ArrayList<Map.Entry<String, Location>>();
+		for (Map.Entry<String, Location[]> e : keydir.entrySet()) {
+			Location[] revisions = visible(e.getValue());
+			if (revisions != null) {
+				latest.add(Maps.immutableEntry(e.getKey(), last(revisions)));
+			}
+		}
+
+		if (latest.size() == 0) {
+			notFound(callback);
+			return;
+		}
+
+		try {
+			Iterable<Keez.Entry> entries = Iterables.transform(latest, new Function<Map.Entry<String, Location>, Keez.Entry>() {
+				@Override
+				public Keez.Entry apply(Map.Entry<String, Location> e) {
+					try {
+						return new Keez.Entry(e.getKey(), e.getValue().rev, read(e.getValue()));
+					} catch (IOException ex) {
+						throw new RuntimeException(ex);
+					}
+				}
+			});
+			entries(callback, entries);
+		}
+		catch (Exception e) {
+			error(callback, e);
+		}
+	}
+
+	@Override
+	public void scan(Subscriber subscriber) {
+		notNull(subscriber);
+		IteratorSubscription.subscribe(subscriber, latest(keydir));
+	}
+
+	@Override
+	public void scan(Range range, int limit, String cursor, Scan callback) {
+		notNull(range);
+		notNull(callback);
+		if (limit <= 0) {
+			error(callback, new IllegalArgumentException("limit must be positive: " + limit));
+			return;
+		}
+		page(callback, latest(range.select(keydir, cursor)), limit);
+	}
+
+	/**
+	 * Lazily read the latest revision of each key
+	 */
+	private Iterator<Keez.Entry> latest(Map<String, Location[]> locations) {
+		final Iterator<Map.Entry<String, Location[]>> it = locations.entrySet().iterator();
+		return new AbstractIterator<Keez.Entry>() {
+			@Override
+			protected Keez.Entry computeNext() {
+				while (it.hasNext()) {
+					Map.Entry<String, Location[]> e = it.next();
+					Location[] revisions = visible(e.getValue());
+					if (revisions == null) {
+						continue;
+					}
+					Location location = last(revisions);
+					try {
+						return new Keez.Entry(e.getKey(), location.rev, read(location));
+					} catch (IOException ex) {
+						throw new RuntimeException(ex);
+					}
+				}
+				return endOfData();
+			}
+		};
+	}
+
+	/**
+	 * Consecutive puts and deletes are appended under one acquisition of the write lock,
+	 * then each segment they touched is forced once, then their callbacks are invoked.
+	 * Reads are executed one at a time, after the writes that precede them.
+	 */
+	@Override
+	public void execute(java.util.List<Operation> operations) {
+		int i = 0;
+		while (i < operations.size()) {
+			if (isWrite(operations.get(i))) {
+				i = executeWrites(operations, i);
+			}
+			else {
+				Helpers.execute(this, operations.get(i));
+				i++;
+			}
+		}
+	}
+
+	/**
+	 * Wait for a checkpoint being written, write a last one if checkpoints are enabled,
+	 * then close all segment files. The instance should not be used after this.
+	 */
+	public void close() {
+		background.shutdown();
+		try {
+			background.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (checkpointBytes > 0) {
+			try {
+				checkpoint();
+			}
+			catch (IOException e) {
+				logger.error("could not write checkpoint " + checkpointFile(), e);
+			}
+		}
+		syncer.close();
+		synchronized (writeLock) {
+			for (Segment segment : segments) {
+				try {
+					segment.channel.close();
+				} catch (IOException e) {
+					logger.error("could not close segment " + segment.file, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Execute the writes starting at first
+	 * @return the index of the first operation that is not a write
+	 */
+	private int executeWrites(java.util.List<Operation> operations, int first) {
+		int end = first;
+		while (end < operations.size() && isWrite(operations.get(end))) {
+			end++;
+		}
+
+		byte[][] stored = new byte[end - first][];
+		for (int i = first; i < end; i++) {
+			stored[i - first] = compress(operations.get(i).getBody());
+		}
+
+		ArrayList<Written> written = new ArrayList<Written>(end - first);
+		synchronized (writeLock) {
+			for (int i = first; i < end; i++) {
+				Operation operation = operations.get(i);
+				written.add((operation.getType() == Operation.Type.PUT)
+					? applyPut(operation.getKey(), operation.getRevision(), operation.getBody(), stored[i - first], (Put) operation.getCallback())
+					: applyDelete(operation.getKey(), (Delete) operation.getCallback()));
+			}
+		}
+
+		// records are appended in order and segments only roll forward,
+		// so the records of one segment are next to each other
+		Segment synced = null;
+		Exception failure = null;
+		for (Written w : written) {
+			if (w.segment != null && w.segment != synced) {
+				synced = w.segment;
+				try {
+					syncer.sync(synced.channel, false);
+					failure = null;
+				}
+				catch (Exception e) {
+					failure = e;
+				}
+			}
+			if (w.segment == null || failure == null) {
+				w.done();
+			}
+			else {
+				w.failed(failure);
+			}
+		}
+		return end;
+	}
+
+	private static boolean isWrite(Operation operation) {
+		return operation.getType() == Operation.Type.PUT || operation.getType() == Operation.Type.DELETE;
+	}
+
+	/**
+	 * Append a new revision. Must be called while holding the write lock.
+	 * The callback is not invoked here, but by the returned Written
+	 *
+	 * @param stored the compressed body, or null to store it as it is
+	 */
+	private Written applyPut(final String key, final int rev, byte[] body, byte[] stored, final Put callback) {
+		notNull(key);
+		notNull(body);
+		notNull(callback);
+		return applyPut(key, rev, body, stored, null, callback);
+	}
+
+	/**
+	 * As applyPut, with the body in body (and stored) or in a spooled file
+	 */
+	private Written applyPut(final String key, final int rev, byte[] body, byte[] stored, Spooled spooled, final Put callback) {
+		try {
+			Location[] revisions = keydir.get(key);
+			final int lastRev = (revisions == null) ? -1 : last(revisions).rev;
+
+			if ((rev == 0 && revisions != null) || (rev != 0 && lastRev != rev)) {
+				return new WrittenPut(null, callback, key) {
+					@Override
+					void done() {
+						collision(callback, key, rev, lastRev);
+					}
+				};
+			}
+
+			final int newRev = (rev == 0) ? 1 : rev + 1;
+			boolean purge = (spooled != null) ? spooled.purge : autoPurge;
+			byte flags = (purge) ? FLAG_PURGE : 0;
+			if (stored != null) {
+				flags |= FLAG_COMPRESSED;
+			}
+			Location location = (spooled != null) 
+				? append(key, newRev, spooled)
+				: append(key, newRev, flags, (stored != null) ? stored : body);
+
+			if (revisions == null && filter != null) {
+				filter.add(key);
+			}
+			if (revisions == null || purge) {
+				keydir.put(key, new Location[] { location });
+			}
+			else {
+				Location[] updated = Arrays.copyOf(revisions, revisions.length + 1);
+				updated[revisions.length] = location;
+				keydir.put(key, updated);
+			}
+
+			return new WrittenPut(location.segment, callback, key) {
+				@Override
+				void done() {
+					ok(callback, key, newRev);
+				}
+			};
+		}
+		catch (final Exception e) {
+			return new WrittenPut(null, callback, key) {
+				@Override
+				void done() {
+					error(callback, key, e);
+				}
+			};
+		}
+	}
+
+	/**
+	 * Append one record whose body is in a spooled file, copying it with
+	 * FileChannel.transferFrom. Must be called while holding the write lock.
+	 *
+	 * @return the location of the record body
+	 */
+	private Location append(String key, int rev, Spooled spooled) throws IOException {
+		if (rev != spooled.rev) {
+			throw new IllegalStateException("record spooled for revision " + spooled.rev + ", not " + rev);
+		}
+		if (active.size >= maxSegmentSize) {
+			active = createSegment(active.id + 1);
+		}
+
+		Segment segment = active;
+		long position = segment.size;
+		ByteBuffer header = spooled.header();
+		long bodyPosition = position + header.remaining();
+		FileInputStream in = new FileInputStream(spooled.file);
+		try {
+			while (header.hasRemaining()) {
+				segment.channel.write(header, position + header.position());
+			}
+			FileChannel body = in.getChannel();
+			long copied = 0;
+			while (copied < spooled.length) {
+				long n = segment.channel.transferFrom(body, bodyPosition + copied, spooled.length - copied);
+				if (n <= 0) {
+					throw new EOFException("spooled file " + spooled.file + " is shorter than " + spooled.length);
+				}
+				copied += n;
+			}
+		}
+		catch (IOException e) {
+			// don't leave a torn record in the middle of the log
+			segment.channel.truncate(position);
+			throw e;
+		}
+		finally {
+			in.close();
+		}
+		segment.size = bodyPosition + spooled.length;
+		appended(segment.size - position);
+
+		return new Location(segment, bodyPosition, (int) spooled.length, rev, false);
+	}
+
+	/**
+	 * Append a tombstone. Must be called while holding the write lock.
+	 * The callback is not invoked here, but by the returned Written
+	 */
+	private Written applyDelete(final String key, final Delete callback) {
+		notNull(key);
+		notNull(callback);
+
+		try {
+			Location[] revisions = keydir.get(key);
+			if (revisions == null) {
+				return new WrittenDelete(null, callback, key) {
+					@Override
+					void done() {
+						notFound(callback, key);
+					}
+				};
+			}
+
+			Location location = last(revisions);
+			final byte[] body = read(location);
+			Location tombstone = append(key, location.rev, FLAG_TOMBSTONE, new byte[0]);
+			keydir.remove(key);
+			if (filter != null) {
+				filter.remove(key);
+			}
+
+			return new WrittenDelete(tombstone.segment, callback, key) {
+				@Override
+				void done() {
+					deleted(callback, key, body);
+				}
+			};
+		}
+		catch (final Exception e) {
+			return new WrittenDelete(null, callback, key) {
+				@Override
+				void done() {
+					error(callback, key, e);
+				}
+			};
+		}
+	}
+
+	/**
+	 * Append all records of a batch, or none if a precondition fails. 
+	 * The keys are first replaced by Pending markers that show readers the old revisions,
+	 * then a single flag makes the new revisions of all of them visible at once.
+	 * Must be called while holding the write lock.
+	 * The callback is not invoked here, but by the returned Written
+	 *
+	 * @param stored compressed body of each write, or null to store it as it is
+	 */
+	private Written applyBatch(java.util.List<Write> writes, byte[][] stored, final WriteBatch callback) {
+		try {
+			final LinkedHashMap<String, Integer> collisions = new LinkedHashMap<String, Integer>();
+			for (Write write : writes) {
+				Location[] revisions = keydir.get(write.getKey());
+				int foundRev = (revisions == null) ? -1 : last(revisions).rev;
+				if (!write.accepts(foundRev)) {
+					collisions.put(write.getKey(), foundRev);
+				}
+			}
+			if (!collisions.isEmpty()) {
+				return new WrittenBatch(null, callback) {
+					@Override
+					void done() {
+						collision(callback, collisions);
+					}
+				};
+			}
+
+			int count = writes.size();
+			String[] keys = new String[count];
+			int[] revs = new int[count];
+			byte[] flags = new byte[count];
+			byte[][] bodies = new byte[count][];
+			final LinkedHashMap<String, Integer> newRevisions = new LinkedHashMap<String, Integer>();
+			for (int i = 0; i < count; i++) {
+				Write write = writes.get(i);
+				keys[i] = write.getKey();
+				if (write.isDelete()) {
+					revs[i] = write.getRevision();
+					flags[i] = FLAG_TOMBSTONE;
+					bodies[i] = new byte[0];
+					newRevisions.put(keys[i], -1);
+				}
+				else {
+					revs[i] = write.getRevision() + 1;
+					flags[i] = (autoPurge) ? FLAG_PURGE : 0;
+					bodies[i] = write.getBody();
+					if (stored[i] != null) {
+						flags[i] |= FLAG_COMPRESSED;
+						bodies[i] = stored[i];
+					}
+					newRevisions.put(keys[i], revs[i]);
+				}
+			}
+
+			Location[] locations = (count == 0) ? new Location[0] : append(keys, revs, flags, bodies);
+			Batch batch = new Batch();
+			Location[][] after = new Location[count][];
+			for (int i = 0; i < count; i++) {
+				Location[] before = keydir.get(keys[i]);
+				after[i] = revisionsAfter(before, flags[i], locations[i]);
+				if (before == null) {
+					if (after[i] == null) {
+						continue;
+					}
+					if (filter != null) {
+						filter.add(keys[i]);
+					}
+				}
+				keydir.put(keys[i], new Location[] { new Pending(batch, before, after[i]) });
+			}
+			batch.committed = true;
+			for (int i = 0; i < count; i++) {
+				if (after[i] != null) {
+					keydir.put(keys[i], after[i]);
+				}
+				else if (keydir.remove(keys[i]) != null && filter != null) {
+					filter.remove(keys[i]);
+				}
+			}
+
+			return new WrittenBatch((count == 0) ? null : locations[0].segment, callback) {
+				@Override
+				void done() {
+					ok(callback, newRevisions);
+				}
+			};
+		}
+		catch (final Exception e) {
+			return new WrittenBatch(null, callback) {
+				@Override
+				void done() {
+					error(callback, e);
+				}
+			};
+		}
+	}
+
+	/**
+	 * Force a single record to disk as required by the durability, then invoke its callback
+	 */
+	private void commit(Written written) {
+		if (written.segment == null) {
+			written.done();
+			return;
+		}
+		try {
+			syncer.sync(written.segment.channel, false);
+		}
+		catch (Exception e) {
+			written.failed(e);
+			return;
+		}
+		written.done();
+	}
+
+	/**
+	 * Append one record to the active segment, rolling to a new segment if the active
+	 * one is full. Must be called while holding the write lock.
+	 *
+	 * @return the location of the record body
+	 */
+	private Location append(String key, int rev, byte flags, byte[] body) throws IOException {
+		return append(new String[] { key }, new int[] { rev }, new byte[] { flags }, new byte[][] { body })[0];
+	}
+
+	/**
+	 * Append records to the active segment with a single write. The segment can only
+	 * roll before the first record, so a batch is never split between segments.
+	 * All records but the last are marked with FLAG_BATCH.
+	 * Must be called while holding the write lock.
+	 *
+	 * @return the location of each record body
+	 */
+	private Location[] append(String[] keys, int[] revs, byte[] flags, byte[][] bodies) throws IOException {
+		if (active.size >= maxSegmentSize) {
+			active = createSegment(active.id + 1);
+		}
+
+		byte[][] keyBytes = new byte[keys.length][];
+		int size = 0;
+		for (int i = 0; i < keys.length; i++) {
+			keyBytes[i] = keys[i].getBytes(Charsets.UTF_8);
+			size += HEADER_SIZE + keyBytes[i].length + bodies[i].length;
+		}
+
+		Segment segment = active;
+		long position = segment.size;
+		Location[] locations = new Location[keys.length];
+		ByteBuffer records = ByteBuffer.allocate(size);
+		CRC32 crc = new CRC32();
+		for (int i = 0; i < keys.length; i++) {
+			int start = records.position();
+			records.putInt(0);
+			records.put((i < keys.length - 1) ? (byte) (flags[i] | FLAG_BATCH) : flags[i]);
+			records.putInt(keyBytes[i].length);
+			records.putInt(revs[i]);
+			records.putInt(bodies[i].length);
+			records.put(keyBytes[i]);
+			records.put(bodies[i]);
+
+			crc.reset();
+			crc.update(records.array(), start + 4, records.position() - start - 4);
+			records.putInt(start, (int) crc.getValue());
+			locations[i] = new Location(segment, position + start + HEADER_SIZE + keyBytes[i].length, bodies[i].length, revs[i],
+				(flags[i] & FLAG_COMPRESSED) != 0);
+		}
+		records.flip();
+
+		try {
+			while (records.hasRemaining()) {
+				segment.channel.write(records, position + records.position());
+			}
+		}
+		catch (IOException e) {
+			// don't leave a torn record in the middle of the log
+			segment.channel.truncate(position);
+			throw e;
+		}
+		segment.size = position + records.limit();
+		appended(records.limit());
+
+		return locations;
+	}
+
+	/**
+	 * Count bytes appended to the log, and schedule a checkpoint if enough were
+	 */
+	private void appended(long bytes) {
+		long checkpointBytes = this.checkpointBytes;
+		if (checkpointBytes > 0 && sinceCheckpoint.addAndGet(bytes) > checkpointBytes
+				&& checkpointing.compareAndSet(false, true)) {
+			scheduleCheckpoint();
+		}
+	}
+
+	private void scheduleCheckpoint() {
+		try {
+			background.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						checkpoint();
+					}
+					catch (Exception e) {
+						logger.error("could not write checkpoint " + checkpointFile(), e);
+					}
+					finally {
+						checkpointing.set(false);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			// closing
+			checkpointing.set(false);
+		}
+	}
+
+	private byte[] read(Location location) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(location.length);
+		long position = location.offset;
+		while (buffer.hasRemaining()) {
+			int read = location.segment.channel.read(buffer, position + buffer.position());
+			if (read < 0) {
+				throw new EOFException("unexpected end of segment " + location.segment.file);
+			}
+		}
+		return (location.compressed) ? Compression.decompress(buffer.array()) : buffer.array();
+	}
+
+	/**
+	 * Compress a body, if enabled. Failures are logged, and the body stored as it is.
+	 * @return the compressed body, or null to store it as it is
+	 */
+	private byte[] compress(byte[] body) {
+		Compression compression = this.compression;
+		if (compression == null || body == null) {
+			return null;
+		}
+		try {
+			return compression.compress(body);
+		}
+		catch (Exception e) {
+			logger.error("could not compress body, storing it as it is", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Load all segments and rebuild the keydir, from the checkpoint if there is a good one
+	 */
+	private void open() throws IOException {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(prefix + ".") && name.endsWith(".log");
+			}
+		});
+		if (files == null) {
+			throw new IOException("not a directory: " + directory);
+		}
+
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File fa, File fb) {
+				Integer ida = getSegmentId(fa);
+				Integer idb = getSegmentId(fb);
+				return ida.compareTo(idb);
+			}
+		});
+
+		for (File file : files) {
+			segments.add(new Segment(getSegmentId(file), file));
+		}
+
+		// a checkpoint that was not completed
+		new File(directory, prefix + ".index.tmp").delete();
+
+		// bodies spooled by putStream, left by a crash before they were appended
+		File[] spooled = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(prefix + "-put-") && name.endsWith(".tmp");
+			}
+		});
+		for (File file : spooled) {
+			file.delete();
+		}
+
+		Marker marker = loadCheckpoint();
+		for (Segment segment : segments) {
+			if (marker == null || segment.id > marker.segment) {
+				replay(segment, 0);
+			}
+			else if (segment.id == marker.segment) {
+				replay(segment, marker.position);
+			}
+		}
+
+		if (segments.isEmpty()) {
+			active = createSegment(1);
+		}
+		else {
+			active = segments.get(segments.size() - 1);
+		}
+	}
+
+	/**
+	 * Load the keydir from the checkpoint file. A checkpoint that is corrupted, or that
+	 * refers to segments or positions not in the log, is ignored and the keydir left empty.
+	 * @return where the log should be replayed from, or null to replay all of it
+	 */
+	private Marker loadCheckpoint() {
+		File file = checkpointFile();
+		if (!file.exists()) {
+			return null;
+		}
+
+		HashMap<Integer, Segment> byId = new HashMap<Integer, Segment>();
+		for (Segment segment : segments) {
+			byId.put(segment.id, segment);
+		}
+		try {
+			BufferedInputStream buffered = new BufferedInputStream(new FileInputStream(file), ChannelTransfer.BUFFER_SIZE);
+			try {
+				CheckedInputStream checked = new CheckedInputStream(buffered, new CRC32());
+				DataInputStream in = new DataInputStream(checked);
+				Marker marker = new Marker(in.readInt(), in.readLong());
+				Segment markerSegment = byId.get(marker.segment);
+				if (markerSegment == null || markerSegment.size < marker.position) {
+					throw new IOException("checkpoint is ahead of the log");
+				}
+
+				for (int keyLength = in.readInt(); keyLength >= 0; keyLength = in.readInt()) {
+					if (keyLength > file.length()) {
+						throw new IOException("corrupted key length");
+					}
+					byte[] keyBytes = new byte[keyLength];
+					in.readFully(keyBytes);
+					int count = in.readInt();
+					if (count < 1 || count > file.length()) {
+						throw new IOException("corrupted revision count");
+					}
+					Location[] revisions = new Location[count];
+					for (int i = 0; i < revisions.length; i++) {
+						Segment segment = byId.get(in.readInt());
+						if (segment == null) {
+							throw new IOException("checkpoint refers to a missing segment");
+						}
+						revisions[i] = new Location(segment, in.readLong(), in.readInt(), in.readInt(), in.readBoolean());
+					}
+					keydir.put(new String(keyBytes, Charsets.UTF_8), revisions);
+				}
+
+				int crc = (int) checked.getChecksum().getValue();
+				if (new DataInputStream(buffered).readInt() != crc) {
+					throw new IOException("bad checksum");
+				}
+				return marker;
+			}
+			finally {
+				buffered.close();
+			}
+		}
+		catch (IOException e) {
+			logger.error("could not load checkpoint " + file + ", replaying all segments", e);
+			keydir.clear();
+			return null;
+		}
+	}
+
+	/**
+	 * Read all records in a segment from start and apply them to the keydir.
+	 * A torn or corrupted record marks the end of the segment: the
+	 * segment is truncated there so that new records are appended after the
+	 * last good one.
+	 * Records of a write batch are held back until the last one is read: a batch
+	 * that was not completely written is dropped, and truncated too.
+	 */
+	private void replay(Segment segment, long start) throws IOException {
+		FileInputStream file = new FileInputStream(segment.file);
+		file.getChannel().position(start);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(file, 64 * 1024));
+		long position = start;
+		long batchStart = start;
+		ArrayList<Replayed> batch = new ArrayList<Replayed>();
+		byte[] buffer = new byte[ChannelTransfer.BUFFER_SIZE];
+		try {
+			while (true) {
+				int crc;
+				try {
+					crc = in.readInt();
+				}
+				catch (EOFException e) {
+					break;
+				}
+
+				byte flags;
+				int keyLength, rev, bodyLength;
+				byte[] keyBytes;
+				CRC32 check = new CRC32();
+				try {
+					flags = in.readByte();
+					keyLength = in.readInt();
+					rev = in.readInt();
+					bodyLength = in.readInt();
+					if (keyLength < 0 || bodyLength < 0 || position + HEADER_SIZE + keyLength + bodyLength > segment.size) {
+						logger.error("corrupted record header in " + segment.file + " at " + position);
+						break;
+					}
+					keyBytes = new byte[keyLength];
+					in.readFully(keyBytes);
+					check.update(flags);
+					check.update(ByteBuffer.allocate(12).putInt(keyLength).putInt(rev).putInt(bodyLength).array());
+					check.update(keyBytes);
+					// through a small buffer, bodies can be large
+					for (int remaining = bodyLength; remaining > 0; ) {
+						int n = Math.min(remaining, buffer.length);
+						in.readFully(buffer, 0, n);
+						check.update(buffer, 0, n);
+						remaining -= n;
+					}
+				}
+				catch (EOFException e) {
+					logger.error("torn record in " + segment.file + " at " + position);
+					break;
+				}
+
+				if ((int) check.getValue() != crc) {
+					logger.error("bad checksum in " + segment.file + " at " + position);
+					break;
+				}
+
+				String key = new String(keyBytes, Charsets.UTF_8);
+				Location location = new Location(segment, position + HEADER_SIZE + keyLength, bodyLength, rev,
+					(flags & FLAG_COMPRESSED) != 0);
+				if ((flags & FLAG_BATCH) != 0) {
+					if (batch.isEmpty()) {
+						batchStart = position;
+					}
+					batch.add(new Replayed(key, flags, location));
+				}
+				else {
+					for (Replayed record : batch) {
+						apply(record.key, record.flags, record.location);
+					}
+					batch.clear();
+					apply(key, flags, location);
+				}
+				position += HEADER_SIZE + keyLength + bodyLength;
+			}
+		}
+		finally {
+			in.close();
+		}
+
+		if (!batch.isEmpty()) {
+			logger.error("incomplete write batch in " + segment.file + " at " + batchStart);
+			position = batchStart;
+		}
+
+		if (position < segment.size) {
+			segment.channel.truncate(position);
+			segment.size = position;
+		}
+	}
+
+	private void apply(String key, byte flags, Location location) {
+		if ((flags & FLAG_TOMBSTONE) != 0) {
+			if (keydir.remove(key) != null && filter != null) {
+				filter.remove(key);
+			}
+			return;
+		}
+
+		Location[] revisions = keydir.get(key);
+		// already there, loaded from a checkpoint taken after this record
+		if (revisions != null && !last(revisions).isBefore(location)) {
+			return;
+		}
+		if (revisions == null && filter != null) {
+			filter.add(key);
+		}
+		keydir.put(key, revisionsAfter(revisions, flags, location));
+	}
+
+	/**
+	 * @return the revisions of a key once the record at location is applied to them,
+	 * null if the record is a tombstone
+	 */
+	private static Location[] revisionsAfter(Location[] revisions, byte flags, Location location) {
+		if ((flags & FLAG_TOMBSTONE) != 0) {
+			return null;
+		}
+		if (revisions == null || (flags & FLAG_PURGE) != 0) {
+			return new Location[] { location };
+		}
+		Location[] updated = Arrays.copyOf(revisions, revisions.length + 1);
+		updated[revisions.length] = location;
+		return updated;
+	}
+
+	/**
+	 * @return the revisions of a key readers should see, null if it's not there
+	 */
+	private Location[] lookup(String key) {
+		return isAbsent(key) ? null : visible(keydir.get(key));
+	}
+
+	/**
+	 * The revisions readers should see. A key held by a batch shows
+	 * the revisions it had before the batch until the batch is committed.
+	 */
+	private static Location[] visible(Location[] revisions) {
+		if (revisions != null && revisions[0] instanceof Pending) {
+			Pending pending = (Pending) revisions[0];
+			return pending.batch.committed ? pending.after : pending.before;
+		}
+		return revisions;
+	}
+
+	/**
+	 * @return true if the filter says the key is not in the keydir
+	 */
+	private boolean isAbsent(String key) {
+		return filter != null && !filter.mightContain(key);
+	}
+
+	private Segment createSegment(int id) throws IOException {
+		Segment segment = new Segment(id, new File(directory, prefix + "." + id + ".log"));
+		segments.add(segment);
+		return segment;
+	}
+
+	private File checkpointFile() {
+		return new File(directory, prefix + ".index");
+	}
+
+	private int getSegmentId(File file) {
+		String[] parts = file.getName().split("\\.");
+		return Integer.parseInt(parts[parts.length-2]);
+	}
+
+	private static Location last(Location[] revisions) {
+		return revisions[revisions.length-1];
+	}
+
+	/**
+	 * A body copied to a temporary file, with the checksum of the record
+	 * that will hold it, for the revision that it will have if the put succeeds
+	 */
+	private static class Spooled {
+		private final File file;
+		private final long length;
+		private final byte[] keyBytes;
+		private final int rev;
+		private final boolean purge;
+		private final int crc;
+
+		public Spooled(File file, String key, int rev, boolean purge) throws IOException {
+			this.file = file;
+			this.length = file.length();
+			this.keyBytes = key.getBytes(Charsets.UTF_8);
+			this.rev = rev;
+			this.purge = purge;
+			if (length > Integer.MAX_VALUE - HEADER_SIZE - keyBytes.length) {
+				throw new IOException("body too large for a record: " + length + " bytes");
+			}
+
+			CRC32 crc = new CRC32();
+			crc.update(header(0).array(), 4, HEADER_SIZE - 4 + keyBytes.length);
+			FileInputStream in = new FileInputStream(file);
+			try {
+				byte[] buffer = new byte[ChannelTransfer.BUFFER_SIZE];
+				int read;
+				while ((read = in.read(buffer)) >= 0) {
+					crc.update(buffer, 0, read);
+				}
+			}
+			finally {
+				in.close();
+			}
+			this.crc = (int) crc.getValue();
+		}
+
+		/**
+		 * @return record header and key, ready to be written
+		 */
+		public ByteBuffer header() {
+			return header(crc);
+		}
+
+		private ByteBuffer header(int crc) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length);
+			header.putInt(crc);
+			header.put((purge) ? FLAG_PURGE : 0);
+			header.putInt(keyBytes.length);
+			header.putInt(rev);
+			header.putInt((int) length);
+			header.put(keyBytes);
+			header.flip();
+			return header;
+		}
+	}
+
+	private static class Segment {
+		private final int id;
+		private final File file;
+		private final FileChannel channel;
+		private long size;
+
+		public Segment(int id, File file) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+			this.size = channel.size();
+		}
+	}
+
+	/**
+	 * Outcome of a write, whose callback is waiting for the record to be synced.
+	 * The segment is null when nothing was appended (ie collision, error)
+	 */
+	private static abstract class Written {
+		private final Segment segment;
+
+		public Written(Segment segment) {
+			this.segment = segment;
+		}
+
+		abstract void done();
+
+		abstract void failed(Exception e);
+	}
+
+	private static abstract class WrittenPut extends Written {
+		private final Put callback;
+		private final String key;
+
+		public WrittenPut(Segment segment, Put callback, String key) {
+			super(segment);
+			this.callback = callback;
+			this.key = key;
+		}
+
+		@Override
+		void failed(Exception e) {
+			error(callback, key, e);
+		}
+	}
+
+	private static abstract class WrittenDelete extends Written {
+		private final Delete callback;
+		private final String key;
+
+		public WrittenDelete(Segment segment, Delete callback, String key) {
+			super(segment);
+			this.callback = callback;
+			this.key = key;
+		}
+
+		@Override
+		void failed(Exception e) {
+			error(callback, key, e);
+		}
+	}
+
+	private static abstract class WrittenBatch extends Written {
+		private final WriteBatch callback;
+
+		public WrittenBatch(Segment segment, WriteBatch callback) {
+			super(segment);
+			this.callback = callback;
+		}
+
+		@Override
+		void failed(Exception e) {
+			error(callback, e);
+		}
+	}
+
+	/**
+	 * A record read by replay, not applied yet
+	 */
+	private static class Replayed {
+		private final String key;
+		private final byte flags;
+		private final Location location;
+
+		public Replayed(String key, byte flags, Location location) {
+			this.key = key;
+			this.flags = flags;
+			this.location = location;
+		}
+	}
+
+	/**
+	 * Position of a revision body inside a segment
+	 */
+	private static class Location {
+		private final Segment segment;
+		private final long offset;
+		private final int length;
+		private final int rev;
+		private final boolean compressed;
+
+		public Location(Segment segment, long offset, int length, int rev, boolean compressed) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.rev = rev;
+			this.compressed = compressed;
+		}
+
+		/**
+		 * @return true if this was appended to the log before other
+		 */
+		public boolean isBefore(Location other) {
+			return segment.id < other.segment.id || (segment.id == other.segment.id && offset < other.offset);
+		}
+	}
+
+	/**
+	 * Stands for the revisions of a key while a batch writes it
+	 */
+	private static class Pending extends Location {
+		private final Batch batch;
+		private final Location[] before;
+		// null if the batch deletes the key
+		private final Location[] after;
+
+		public Pending(Batch batch, Location[] before, Location[] after) {
+			super(null, -1, 0, -1, false);
+			this.batch = batch;
+			this.before = before;
+			this.after = after;
+		}
+	}
+
+	private static class Batch {
+		private volatile boolean committed;
+	}
+
+	/**
+	 * Position in the log a checkpoint was taken at
+	 */
+	private static class Marker {
+		private final int segment;
+		private final long position;
+
+		public Marker(int segment, long position) {
+			this.segment = segment;
+			this.position = position;
+		}
+	}
+
+}
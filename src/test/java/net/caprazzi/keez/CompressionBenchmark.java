@@ -0,0 +1,107 @@
+package net.caprazzi.keez;
+
+import java.io.IOException;
+
+import net.caprazzi.keez.onfile.KeezOnFile;
+import net.caprazzi.keez.onlog.KeezOnLog;
+import net.caprazzi.keez.simpleFileDb.KeezFileDbTest;
+
+/**
+ * Compression ratio and throughput on json documents of 2k, 10k and 50k
+ *  - codec alone: deflate levels 1 and 6, encode and decode
+ *  - puts then gets on KeezOnLog and KeezOnFile, without and with compression
+ *
+ * Not a unit test, run with:
+ *   mvn test-compile exec:java -Dexec.mainClass=net.caprazzi.keez.CompressionBenchmark -Dexec.classpathScope=test
+ * optional args: documents per size
+ */
+public class CompressionBenchmark {
+
+	private static final int[] SIZES = { 2 * 1024, 10 * 1024, 50 * 1024 };
+
+	public static void main(String[] args) throws Exception {
+		int count = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+
+		for (int size : SIZES) {
+			byte[][] documents = documents(size, count);
+			System.out.println("json documents of " + size + " bytes");
+			codec("deflate 1", new DeflateCodec(1), documents);
+			codec("deflate 6", new DeflateCodec(6), documents);
+
+			KeezOnLog log = new KeezOnLog(KeezFileDbTest.createTempDir().getAbsolutePath(), "bench", false);
+			db("KeezOnLog, plain", log, documents);
+			log.close();
+
+			log = new KeezOnLog(KeezFileDbTest.createTempDir().getAbsolutePath(), "bench", false);
+			log.setCompression(new Compression(new DeflateCodec(), 1024));
+			db("KeezOnLog, deflate 1", log, documents);
+			log.close();
+
+			KeezOnFile files = new KeezOnFile(KeezFileDbTest.createTempDir().getAbsolutePath(), "bench", false);
+			db("KeezOnFile, plain", files, documents);
+
+			files = new KeezOnFile(KeezFileDbTest.createTempDir().getAbsolutePath(), "bench", false);
+			files.setCompression(new Compression(new DeflateCodec(), 1024));
+			db("KeezOnFile, deflate 1", files, documents);
+		}
+	}
+
+	private static void codec(String name, Codec codec, byte[][] documents) throws IOException {
+		long raw = 0;
+		long encoded = 0;
+		byte[][] results = new byte[documents.length][];
+		long start = System.nanoTime();
+		for (int i=0; i<documents.length; i++) {
+			results[i] = codec.encode(documents[i]);
+			raw += documents[i].length;
+			encoded += results[i].length;
+		}
+		long encodeNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i=0; i<documents.length; i++) {
+			codec.decode(results[i], 0, documents[i].length);
+		}
+		long decodeNanos = System.nanoTime() - start;
+
+		System.out.printf("  %-24s ratio %.2f, encode %.0f MB/s, decode %.0f MB/s%n",
+			name, (double) raw / encoded, mbPerSecond(raw, encodeNanos), mbPerSecond(raw, decodeNanos));
+	}
+
+	private static void db(String name, Keez.Db db, byte[][] documents) {
+		long raw = 0;
+		long start = System.nanoTime();
+		for (int i=0; i<documents.length; i++) {
+			db.put("key" + i, 0, documents[i], new KeezTest.PutTestHelp() {
+				@Override public void ok(String key, int revision) {}
+			});
+			raw += documents[i].length;
+		}
+		long putNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i=0; i<documents.length; i++) {
+			db.get("key" + i, new KeezTest.GetTestHelp() {
+				@Override public void found(String key, int rev, byte[] data) {}
+			});
+		}
+		long getNanos = System.nanoTime() - start;
+
+		System.out.printf("  %-24s put %.0f MB/s (%.0f/s), get %.0f MB/s (%.0f/s)%n", name,
+			mbPerSecond(raw, putNanos), documents.length * 1e9 / putNanos,
+			mbPerSecond(raw, getNanos), documents.length * 1e9 / getNanos);
+	}
+
+	private static byte[][] documents(int size, int count) {
+		byte[][] documents = new byte[count][];
+		for (int i=0; i<count; i++) {
+			documents[i] = CompressionTest.json(size + i % 100);
+		}
+		return documents;
+	}
+
+	private static double mbPerSecond(long bytes, long nanos) {
+		return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+	}
+
+}
@@ -0,0 +1,94 @@
+package net.caprazzi.keez;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CompressionTest {
+
+	Compression compression = new Compression(new DeflateCodec(), 64);
+	
+	@Test public void should_compress_and_decompress() throws IOException {
+		byte[] body = json(5000);
+		byte[] stored = compression.compress(body);
+		assertTrue(stored.length < body.length / 2);
+		assertEquals(DeflateCodec.ID, stored[0]);
+		assertArrayEquals(body, Compression.decompress(stored));
+	}
+	
+	@Test public void should_not_compress_below_threshold() throws IOException {
+		assertNull(compression.compress(json(10)));
+	}
+	
+	@Test public void should_not_compress_if_not_smaller() throws IOException {
+		byte[] random = new byte[1000];
+		new Random(42).nextBytes(random);
+		assertNull(compression.compress(random));
+	}
+	
+	@Test public void should_decompress_with_any_deflate_level() throws IOException {
+		byte[] body = json(5000);
+		byte[] stored = new Compression(new DeflateCodec(9), 64).compress(body);
+		assertArrayEquals(body, Compression.decompress(stored));
+	}
+	
+	@Test(expected=IOException.class)
+	public void should_fail_on_unknown_codec() throws IOException {
+		byte[] stored = compression.compress(json(5000));
+		stored[0] = 99;
+		Compression.decompress(stored);
+	}
+	
+	@Test(expected=IOException.class)
+	public void should_fail_on_truncated_data() throws IOException {
+		byte[] stored = compression.compress(json(5000));
+		byte[] truncated = new byte[stored.length - 10];
+		System.arraycopy(stored, 0, truncated, 0, truncated.length);
+		Compression.decompress(truncated);
+	}
+	
+	@Test(expected=IOException.class)
+	public void should_fail_on_negative_length() throws IOException {
+		byte[] stored = compression.compress(json(5000));
+		stored[1] = (byte) 0x80;
+		Compression.decompress(stored);
+	}
+	
+	@Test(expected=IOException.class)
+	public void should_fail_on_length_too_large_for_the_data() throws IOException {
+		byte[] stored = compression.compress(json(5000));
+		stored[1] = 0x7f;
+		Compression.decompress(stored);
+	}
+	
+	@Test public void should_decompress_highly_compressible_body() throws IOException {
+		byte[] body = new byte[1024 * 1024];
+		assertArrayEquals(body, Compression.decompress(compression.compress(body)));
+	}
+	
+	/**
+	 * A json document of about size bytes
+	 */
+	public static byte[] json(int size) {
+		StringBuilder sb = new StringBuilder("{\"items\":[");
+		Random random = new Random(size);
+		for (int i=0; sb.length() < size - 2; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append("{\"id\":").append(random.nextInt(100000))
+				.append(",\"name\":\"item-").append(i)
+				.append("\",\"price\":").append(random.nextInt(10000) / 100.0)
+				.append(",\"tags\":[\"red\",\"large\"],\"available\":").append(random.nextBoolean())
+				.append('}');
+		}
+		return sb.append("]}").toString().getBytes();
+	}
+	
+}
@@ -0,0 +1,62 @@
+package net.caprazzi.keez;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CountingBloomFilterTest {
+
+	@Test public void should_contain_added_keys() {
+		CountingBloomFilter filter = new CountingBloomFilter(1000, 0.01);
+		for (int i=0; i<1000; i++) {
+			filter.add("key" + i);
+		}
+		for (int i=0; i<1000; i++) {
+			assertTrue(filter.mightContain("key" + i));
+		}
+		assertEquals(1000, filter.getKeyCount());
+	}
+	
+	@Test public void should_not_contain_removed_keys() {
+		CountingBloomFilter filter = new CountingBloomFilter(1000, 0.01);
+		filter.add("keyA");
+		filter.add("keyB");
+		filter.remove("keyA");
+		assertFalse(filter.mightContain("keyA"));
+		assertTrue(filter.mightContain("keyB"));
+		assertEquals(1, filter.getKeyCount());
+	}
+	
+	@Test public void false_positive_rate_should_be_close_to_configured() {
+		CountingBloomFilter filter = new CountingBloomFilter(10000, 0.01);
+		for (int i=0; i<10000; i++) {
+			filter.add("present" + i);
+		}
+		int positives = 0;
+		for (int i=0; i<100000; i++) {
+			if (filter.mightContain("absent" + i)) {
+				positives++;
+			}
+		}
+		double measured = positives / 100000.0;
+		assertTrue("measured " + measured, measured < 0.02);
+		assertTrue("estimated " + filter.getFalsePositiveRate(), Math.abs(filter.getFalsePositiveRate() - 0.01) < 0.002);
+		// about 9.6 counters per key, 4 bits each
+		assertTrue(filter.getMemoryUse() < 10000 * 5 + 8);
+		assertEquals(7, filter.getHashCount());
+	}
+	
+	@Test public void saturated_counters_should_never_give_false_negatives() {
+		CountingBloomFilter filter = new CountingBloomFilter(1, 0.5);
+		for (int i=0; i<1000; i++) {
+			filter.add("key" + i);
+		}
+		for (int i=0; i<999; i++) {
+			filter.remove("key" + i);
+		}
+		assertTrue(filter.mightContain("key999"));
+	}
+	
+}
@@ -0,0 +1,86 @@
+package net.caprazzi.keez;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DeltaTest {
+
+	@Test public void should_rebuild_target_from_base() throws IOException {
+		byte[] base = CompressionTest.json(10000);
+		byte[] target = edit(base, 20, new Random(1));
+		byte[] delta = Delta.diff(base, target);
+		assertTrue("delta of " + delta.length + " bytes", delta.length < 1000);
+		assertArrayEquals(target, Delta.apply(base, delta));
+	}
+	
+	@Test public void should_handle_inserts_and_removals() throws IOException {
+		byte[] base = CompressionTest.json(5000);
+		byte[] target = new byte[base.length + 100];
+		System.arraycopy(base, 0, target, 0, 2000);
+		Arrays.fill(target, 2000, 2300, (byte) 'x');
+		System.arraycopy(base, 2200, target, 2300, base.length - 2200);
+		byte[] delta = Delta.diff(base, target);
+		assertTrue("delta of " + delta.length + " bytes", delta.length < 400);
+		assertArrayEquals(target, Delta.apply(base, delta));
+		assertArrayEquals(base, Delta.apply(target, Delta.diff(target, base)));
+	}
+	
+	@Test public void should_handle_unrelated_and_short_bodies() throws IOException {
+		Random random = new Random(2);
+		byte[] base = new byte[3000];
+		byte[] target = new byte[2000];
+		random.nextBytes(base);
+		random.nextBytes(target);
+		assertArrayEquals(target, Delta.apply(base, Delta.diff(base, target)));
+		assertArrayEquals(new byte[0], Delta.apply(base, Delta.diff(base, new byte[0])));
+		assertArrayEquals("ab".getBytes(), Delta.apply(new byte[0], Delta.diff(new byte[0], "ab".getBytes())));
+		assertArrayEquals("abc".getBytes(), Delta.apply(base, Delta.diff(base, "abc".getBytes())));
+	}
+	
+	@Test public void should_rebuild_random_edits() throws IOException {
+		Random random = new Random(3);
+		for (int i = 0; i < 200; i++) {
+			byte[] base = CompressionTest.json(100 + random.nextInt(5000));
+			byte[] target = edit(base, random.nextInt(10), random);
+			assertArrayEquals(target, Delta.apply(base, Delta.diff(base, target)));
+		}
+	}
+	
+	@Test(expected=IOException.class)
+	public void should_reject_truncated_delta() throws IOException {
+		byte[] base = CompressionTest.json(5000);
+		byte[] delta = Delta.diff(base, edit(base, 5, new Random(4)));
+		Delta.apply(base, Arrays.copyOf(delta, delta.length - 1));
+	}
+	
+	@Test(expected=IOException.class)
+	public void should_reject_delta_from_another_base() throws IOException {
+		byte[] base = CompressionTest.json(5000);
+		byte[] delta = Delta.diff(base, edit(base, 5, new Random(5)));
+		Delta.apply(Arrays.copyOf(base, 100), delta);
+	}
+	
+	@Test(expected=IOException.class)
+	public void should_reject_garbage_target_length() throws IOException {
+		// a length of 0x7fffffff, then nothing
+		Delta.apply(new byte[10], new byte[] { (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07 });
+	}
+	
+	/**
+	 * Change a few bytes in random places
+	 */
+	public static byte[] edit(byte[] body, int changes, Random random) {
+		byte[] edited = body.clone();
+		for (int i = 0; i < changes; i++) {
+			edited[random.nextInt(edited.length)] = (byte) ('a' + random.nextInt(26));
+		}
+		return edited;
+	}
+	
+}
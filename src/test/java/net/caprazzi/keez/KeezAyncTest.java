@@ -0,0 +1,594 @@
+package net.caprazzi.keez;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.caprazzi.keez.Keez.Entry;
+import net.caprazzi.keez.Keez.Write;
+import net.caprazzi.keez.inmemory.KeezInMemory;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Iterables;
+import com.google.common.io.ByteStreams;
+
+public class KeezAyncTest {
+
+	KeezAync db;
+	final byte[] data = "data".getBytes();
+	
+	@Before
+	public void setUp() {
+		db = new KeezAync(new KeezInMemory(), 4);
+	}
+	
+	@Test public void requests_on_same_key_should_run_in_order() throws InterruptedException {
+		final int count = 1000;
+		final CountDownLatch latch = new CountDownLatch(count);
+		for (int i=0; i<count; i++) {
+			db.put("key", i, data, new KeezTest.PutTestHelp() {
+				@Override
+				public void ok(String key, int revision) {
+					latch.countDown();
+				}
+			});
+		}
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+		
+		final AtomicInteger found = new AtomicInteger();
+		final CountDownLatch got = new CountDownLatch(1);
+		db.getRevisions("key", new KeezTest.GetRevisionsTestHelp() {
+			@Override
+			public void found(String key, Iterable<Entry> revisions) {
+				found.set(Iterables.size(revisions));
+				got.countDown();
+			}
+		});
+		assertTrue(got.await(10, TimeUnit.SECONDS));
+		assertEquals(count, found.get());
+	}
+	
+	@Test public void should_fail_fast_when_full_if_asked() throws InterruptedException {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		KeezInMemory slow = new KeezInMemory() {
+			@Override
+			public void get(String key, Keez.Get callback) {
+				blocked.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {}
+				super.get(key, callback);
+			}
+		};
+		db = new KeezAync(slow, 1, 2, KeezAync.WhenFull.FAIL);
+		
+		// occupy the worker, then fill the ring
+		db.get("key", KeezTest.GetNoop);
+		assertTrue(blocked.await(10, TimeUnit.SECONDS));
+		db.get("key", KeezTest.GetNoop);
+		db.get("key", KeezTest.GetNoop);
+		
+		final AtomicInteger rejected = new AtomicInteger();
+		db.get("key", new KeezTest.GetTestHelp() {
+			@Override
+			public void error(String key, Exception e) {
+				assertTrue(e instanceof RejectedExecutionException);
+				rejected.incrementAndGet();
+			}
+		});
+		assertEquals(1, rejected.get());
+		release.countDown();
+	}
+	
+	@Test public void callbacks_should_not_wait_for_room_on_their_own_worker() throws InterruptedException {
+		db = new KeezAync(new KeezInMemory(), 1, 2, KeezAync.WhenFull.BLOCK);
+		final int count = 10;
+		final AtomicInteger rejected = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(count);
+		db.get("key", new KeezTest.GetTestHelp() {
+			@Override
+			public void notFound(String key) {
+				// runs on the only worker: more requests than its ring can hold
+				for (int i=0; i<count; i++) {
+					db.get("key", new KeezTest.GetTestHelp() {
+						@Override
+						public void notFound(String key) {
+							done.countDown();
+						}
+						@Override
+						public void error(String key, Exception e) {
+							if (e instanceof RejectedExecutionException) {
+								rejected.incrementAndGet();
+							}
+							done.countDown();
+						}
+					});
+				}
+			}
+		});
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertTrue(rejected.get() > 0);
+	}
+	
+	@Test public void get_all_from_a_callback_should_not_wait_for_room() throws InterruptedException {
+		final CountDownLatch rejected = new CountDownLatch(1);
+		fromCallback(new Runnable() {
+			@Override
+			public void run() {
+				db.getAll(Arrays.asList("a", "b"), new KeezTest.MultiGetTestHelp() {
+					@Override
+					public void error(Exception e) {
+						countRejected(e, rejected);
+					}
+				});
+			}
+		});
+		assertRejected(rejected);
+	}
+	
+	@Test public void list_from_a_callback_should_not_wait_for_room() throws InterruptedException {
+		final CountDownLatch rejected = new CountDownLatch(1);
+		fromCallback(new Runnable() {
+			@Override
+			public void run() {
+				db.list(new KeezTest.ListTestHelp() {
+					@Override
+					public void error(Exception e) {
+						countRejected(e, rejected);
+					}
+				});
+			}
+		});
+		assertRejected(rejected);
+	}
+	
+	@Test public void range_scan_from_a_callback_should_not_wait_for_room() throws InterruptedException {
+		final CountDownLatch rejected = new CountDownLatch(1);
+		fromCallback(new Runnable() {
+			@Override
+			public void run() {
+				db.scan(Keez.Range.all(), 10, null, new KeezTest.PageCollector() {
+					@Override
+					public void error(Exception e) {
+						countRejected(e, rejected);
+					}
+				});
+			}
+		});
+		assertRejected(rejected);
+	}
+	
+	@Test public void scan_from_a_callback_should_not_wait_for_room() throws InterruptedException {
+		final CountDownLatch rejected = new CountDownLatch(1);
+		fromCallback(new Runnable() {
+			@Override
+			public void run() {
+				db.scan(new KeezTest.ScanCollector(10) {
+					@Override
+					public void onError(Exception e) {
+						countRejected(e, rejected);
+					}
+				});
+			}
+		});
+		assertRejected(rejected);
+	}
+	
+	@Test public void write_batch_from_a_callback_should_not_wait_for_room() throws InterruptedException {
+		final CountDownLatch rejected = new CountDownLatch(1);
+		fromCallback(new Runnable() {
+			@Override
+			public void run() {
+				db.writeBatch(Arrays.asList(Write.put("a", 0, data)), new KeezTest.WriteBatchTestHelp() {
+					@Override
+					public void error(Exception e) {
+						countRejected(e, rejected);
+					}
+				});
+			}
+		});
+		assertRejected(rejected);
+	}
+	
+	@Test public void barrier_that_can_not_be_queued_should_not_stop_other_workers() throws InterruptedException {
+		db = new KeezAync(new KeezInMemory(), 2, 1, KeezAync.WhenFull.BLOCK);
+		final int count = 8;
+		final CountDownLatch rejected = new CountDownLatch(count);
+		// from both workers: slots are claimed on the other worker before failing on this one
+		for (int i=0; i<count; i++) {
+			db.get("key" + i, new KeezTest.GetTestHelp() {
+				@Override
+				public void notFound(String key) {
+					db.list(new KeezTest.ListTestHelp() {
+						@Override
+						public void error(Exception e) {
+							countRejected(e, rejected);
+						}
+					});
+				}
+			});
+		}
+		assertTrue(rejected.await(10, TimeUnit.SECONDS));
+		
+		final CountDownLatch listed = new CountDownLatch(1);
+		db.list(new KeezTest.ListTestHelp() {
+			@Override
+			public void notFound() {
+				listed.countDown();
+			}
+		});
+		assertTrue(listed.await(10, TimeUnit.SECONDS));
+	}
+	
+	/**
+	 * Run request from a callback on the only worker, while the ring has no room
+	 */
+	private void fromCallback(final Runnable request) {
+		db = new KeezAync(new KeezInMemory(), 1, 1, KeezAync.WhenFull.BLOCK);
+		db.get("key", new KeezTest.GetTestHelp() {
+			@Override
+			public void notFound(String key) {
+				request.run();
+			}
+		});
+	}
+	
+	private static void countRejected(Exception e, CountDownLatch rejected) {
+		if (e instanceof RejectedExecutionException) {
+			rejected.countDown();
+		}
+	}
+	
+	/**
+	 * The request failed, and the worker still runs the ones after it
+	 */
+	private void assertRejected(CountDownLatch rejected) throws InterruptedException {
+		assertTrue(rejected.await(10, TimeUnit.SECONDS));
+		final CountDownLatch got = new CountDownLatch(1);
+		db.get("key", new KeezTest.GetTestHelp() {
+			@Override
+			public void notFound(String key) {
+				got.countDown();
+			}
+		});
+		assertTrue(got.await(10, TimeUnit.SECONDS));
+	}
+	
+	@Test public void request_that_throws_should_not_stop_the_worker() throws InterruptedException {
+		db = new KeezAync(new KeezInMemory() {
+			@Override
+			public void get(String key, Keez.Get callback) {
+				if (key.equals("bad")) {
+					throw new IllegalStateException("bad key");
+				}
+				super.get(key, callback);
+			}
+			
+			@Override
+			public void list(Keez.List callback) {
+				throw new IllegalStateException("bad list");
+			}
+		}, 1);
+		final CountDownLatch failed = new CountDownLatch(2);
+		final CountDownLatch served = new CountDownLatch(1);
+		db.get("bad", new KeezTest.GetTestHelp() {
+			@Override
+			public void error(String key, Exception e) {
+				failed.countDown();
+			}
+		});
+		db.list(new KeezTest.ListTestHelp() {
+			@Override
+			public void error(Exception e) {
+				failed.countDown();
+			}
+		});
+		db.get("good", new KeezTest.GetTestHelp() {
+			@Override
+			public void notFound(String key) {
+				served.countDown();
+			}
+		});
+		assertTrue(failed.await(10, TimeUnit.SECONDS));
+		assertTrue(served.await(10, TimeUnit.SECONDS));
+	}
+	
+	@Test public void task_that_throws_should_not_stop_the_worker() throws InterruptedException {
+		db = new KeezAync(new KeezInMemory() {
+			@Override
+			public void getTo(String key, WritableByteChannel channel, Keez.GetTo callback) {
+				throw new IllegalStateException("bad getTo");
+			}
+		}, 1);
+		final CountDownLatch failed = new CountDownLatch(1);
+		final CountDownLatch served = new CountDownLatch(1);
+		db.getTo("key", Channels.newChannel(new ByteArrayOutputStream()), new KeezTest.GetToTestHelp() {
+			@Override
+			public void error(String key, Exception e) {
+				failed.countDown();
+			}
+		});
+		db.get("key", new KeezTest.GetTestHelp() {
+			@Override
+			public void notFound(String key) {
+				served.countDown();
+			}
+		});
+		assertTrue(failed.await(10, TimeUnit.SECONDS));
+		assertTrue(served.await(10, TimeUnit.SECONDS));
+	}
+	
+	@Test public void batch_db_that_throws_should_fail_the_whole_batch() throws InterruptedException {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		class ThrowingBatchDb extends KeezInMemory implements Keez.BatchDb {
+			@Override
+			public void execute(java.util.List<Keez.Operation> operations) {
+				if (operations.get(0).getKey().equals("first")) {
+					blocked.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {}
+					Helpers.execute(this, operations.get(0));
+					return;
+				}
+				throw new IllegalStateException("bad batch");
+			}
+		}
+		db = new KeezAync(new ThrowingBatchDb(), 1);
+		db.get("first", KeezTest.GetNoop);
+		assertTrue(blocked.await(10, TimeUnit.SECONDS));
+		
+		// queued while the worker is busy, then taken together
+		final CountDownLatch failed = new CountDownLatch(3);
+		for (int i=0; i<3; i++) {
+			db.get("key" + i, new KeezTest.GetTestHelp() {
+				@Override
+				public void error(String key, Exception e) {
+					failed.countDown();
+				}
+			});
+		}
+		release.countDown();
+		assertTrue(failed.await(10, TimeUnit.SECONDS));
+	}
+	
+	@Test public void get_all_should_not_read_the_keys_after_returning() throws InterruptedException {
+		final CountDownLatch release = new CountDownLatch(1);
+		KeezInMemory slow = new KeezInMemory() {
+			@Override
+			public void getAll(Collection<String> keys, Keez.MultiGet callback) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {}
+				super.getAll(keys, callback);
+			}
+		};
+		slow.put("a", 0, data, KeezTest.PutOk);
+		slow.put("b", 0, data, KeezTest.PutOk);
+		db = new KeezAync(slow, 1);
+		
+		ArrayList<String> keys = new ArrayList<String>(Arrays.asList("a", "b"));
+		final AtomicInteger found = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(1);
+		db.getAll(keys, new KeezTest.MultiGetTestHelp() {
+			@Override
+			public void found(Map<String, Entry> entries) {
+				found.set(entries.size());
+				done.countDown();
+			}
+		});
+		keys.clear();
+		release.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(2, found.get());
+	}
+	
+	@Test public void list_should_see_all_requests_queued_before_it() throws InterruptedException {
+		final int count = 1000;
+		for (int i=0; i<count; i++) {
+			db.put("key" + i, 0, data, KeezTest.PutOk);
+		}
+		
+		final AtomicInteger found = new AtomicInteger();
+		final CountDownLatch listed = new CountDownLatch(2);
+		for (int i=0; i<2; i++) {
+			db.list(new KeezTest.ListTestHelp() {
+				@Override
+				public void entries(Iterable<Entry> entries) {
+					found.addAndGet(Iterables.size(entries));
+					listed.countDown();
+				}
+			});
+		}
+		assertTrue(listed.await(10, TimeUnit.SECONDS));
+		assertEquals(2 * count, found.get());
+	}
+	
+	@Test public void scan_should_deliver_entries_requested_from_on_next() throws InterruptedException {
+		final int count = 100;
+		for (int i=0; i<count; i++) {
+			db.put("key" + i, 0, data, KeezTest.PutOk);
+		}
+		
+		final AtomicInteger found = new AtomicInteger();
+		final CountDownLatch completed = new CountDownLatch(1);
+		db.scan(new Keez.Subscriber() {
+			private Keez.Subscription subscription;
+			
+			@Override
+			public void onSubscribe(Keez.Subscription subscription) {
+				this.subscription = subscription;
+				subscription.request(1);
+			}
+			
+			@Override
+			public void onNext(Entry entry) {
+				found.incrementAndGet();
+				subscription.request(1);
+			}
+			
+			@Override
+			public void onError(Exception e) {}
+			
+			@Override
+			public void onComplete() {
+				completed.countDown();
+			}
+		});
+		
+		assertTrue(completed.await(10, TimeUnit.SECONDS));
+		assertEquals(count, found.get());
+	}
+	
+	@Test public void scan_should_wait_for_requests_from_other_threads() throws InterruptedException {
+		db.put("keyA", 0, data, KeezTest.PutOk);
+		db.put("keyB", 0, data, KeezTest.PutOk);
+		
+		KeezTest.ScanCollector scan = new KeezTest.ScanCollector(1);
+		db.scan(scan);
+		awaitPreviousBarriers();
+		assertEquals(1, scan.entries.size());
+		assertFalse(scan.completed);
+		
+		scan.subscription.request(1);
+		awaitPreviousBarriers();
+		assertEquals(2, scan.entries.size());
+		
+		scan.subscription.request(1);
+		awaitPreviousBarriers();
+		assertTrue(scan.completed);
+	}
+	
+	@Test public void range_scan_should_see_all_requests_queued_before_it() throws InterruptedException {
+		for (int i=0; i<100; i++) {
+			db.put("key" + i, 0, data, KeezTest.PutOk);
+		}
+		
+		final CountDownLatch paged = new CountDownLatch(1);
+		final KeezTest.PageCollector page = new KeezTest.PageCollector() {
+			@Override
+			public void page(Iterable<Entry> entries, String cursor) {
+				super.page(entries, cursor);
+				paged.countDown();
+			}
+		};
+		db.scan(Keez.Range.prefix("key1"), 100, null, page);
+		assertTrue(paged.await(10, TimeUnit.SECONDS));
+		assertEquals(11, page.entries.length);
+	}
+	
+	@Test public void range_scan_with_bad_limit_should_not_stop_workers() throws InterruptedException {
+		final CountDownLatch failed = new CountDownLatch(1);
+		db.scan(Keez.Range.all(), 0, null, new KeezTest.PageCollector() {
+			@Override
+			public void error(Exception e) {
+				failed.countDown();
+			}
+		});
+		assertTrue(failed.await(10, TimeUnit.SECONDS));
+		
+		// one key per worker at least
+		final int count = 100;
+		final CountDownLatch done = new CountDownLatch(count);
+		for (int i=0; i<count; i++) {
+			db.put("key" + i, 0, data, new KeezTest.PutTestHelp() {
+				@Override
+				public void ok(String key, int revision) {
+					done.countDown();
+				}
+			});
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+	}
+	
+	@Test public void get_to_should_see_puts_queued_before_it() throws InterruptedException {
+		for (int i=0; i<100; i++) {
+			db.put("key", i, ("data-" + i).getBytes(), KeezTest.PutOk);
+		}
+		
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final CountDownLatch written = new CountDownLatch(1);
+		db.getTo("key", Channels.newChannel(out), new KeezTest.GetToTestHelp() {
+			@Override
+			public void written(String key, int rev, long length) {
+				assertEquals(100, rev);
+				written.countDown();
+			}
+		});
+		assertTrue(written.await(10, TimeUnit.SECONDS));
+		assertEquals("data-99", new String(out.toByteArray()));
+	}
+	
+	@Test public void streams_should_be_ordered_with_puts_on_the_key() throws InterruptedException {
+		for (int i=0; i<50; i++) {
+			db.put("key", 2 * i, ("data-" + (2 * i)).getBytes(), KeezTest.PutOk);
+			db.putStream("key", 2 * i + 1, new ByteArrayInputStream(("data-" + (2 * i + 1)).getBytes()), KeezTest.PutOk);
+		}
+		
+		final CountDownLatch found = new CountDownLatch(1);
+		db.getStream("key", new KeezTest.GetStreamTestHelp() {
+			@Override
+			public void found(String key, int rev, InputStream body) throws IOException {
+				assertEquals(100, rev);
+				assertEquals("data-99", new String(ByteStreams.toByteArray(body)));
+				found.countDown();
+			}
+		});
+		assertTrue(found.await(10, TimeUnit.SECONDS));
+	}
+	
+	@Test public void get_all_should_see_puts_queued_before_it() throws InterruptedException {
+		final int count = 200;
+		java.util.List<String> keys = new java.util.ArrayList<String>();
+		for (int i=0; i<count; i++) {
+			db.put("key" + i, 0, data, KeezTest.PutOk);
+			keys.add("key" + i);
+		}
+		keys.add("missing");
+		
+		final AtomicInteger found = new AtomicInteger();
+		final CountDownLatch got = new CountDownLatch(1);
+		db.getAll(keys, new KeezTest.MultiGetTestHelp() {
+			@Override
+			public void found(java.util.Map<String, Entry> entries) {
+				assertEquals("key0", entries.keySet().iterator().next());
+				found.set(entries.size());
+				got.countDown();
+			}
+		});
+		assertTrue(got.await(10, TimeUnit.SECONDS));
+		assertEquals(count, found.get());
+	}
+	
+	// barriers run in order, so when a list is done all barriers before it are done
+	private void awaitPreviousBarriers() throws InterruptedException {
+		final CountDownLatch listed = new CountDownLatch(1);
+		db.list(new KeezTest.ListTestHelp() {
+			@Override
+			public void entries(Iterable<Entry> entries) {
+				listed.countDown();
+			}
+		});
+		assertTrue(listed.await(10, TimeUnit.SECONDS));
+	}
+	
+}
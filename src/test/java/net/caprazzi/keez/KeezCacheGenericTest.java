@@ -0,0 +1,18 @@
+package net.caprazzi.keez;
+
+import java.io.File;
+
+import net.caprazzi.keez.onfile.KeezOnFile;
+import net.caprazzi.keez.simpleFileDb.KeezFileDbTest;
+
+import org.junit.Before;
+
+public class KeezCacheGenericTest extends KeezTest {
+
+	@Before
+	public void setUp() {
+		File testDir = KeezFileDbTest.createTempDir();
+		db = new KeezCache(new KeezOnFile(testDir.getAbsolutePath(), "pfx", false), 1024 * 1024);
+	}
+	
+}
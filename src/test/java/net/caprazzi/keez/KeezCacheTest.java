@@ -0,0 +1,179 @@
+package net.caprazzi.keez;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.caprazzi.keez.Keez.Entry;
+import net.caprazzi.keez.Keez.Write;
+import net.caprazzi.keez.inmemory.KeezInMemory;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class KeezCacheTest {
+
+	KeezInMemory backend;
+	KeezCache db;
+	
+	@Before
+	public void setUp() {
+		backend = new KeezInMemory();
+		db = new KeezCache(backend, 1024 * 1024);
+	}
+	
+	@Test public void get_should_be_served_from_cache_after_miss() {
+		backend.put("key", 0, "data".getBytes(), PutOk);
+		assertEquals("data", get(db, "key"));
+		assertEquals(0, db.getHitCount());
+		assertEquals(1, db.getMissCount());
+		
+		// not seen through the cache
+		backend.put("key", 1, "changed".getBytes(), PutOk);
+		assertEquals("data", get(db, "key"));
+		assertEquals(1, db.getHitCount());
+		assertEquals(1, db.getMissCount());
+	}
+	
+	@Test public void put_should_update_cached_entry() {
+		db.put("key", 0, "data-1".getBytes(), PutOk);
+		db.put("key", 1, "data-2".getBytes(), PutOk);
+		assertEquals("data-2", get(db, "key"));
+		assertEquals(1, db.getHitCount());
+		assertEquals(0, db.getMissCount());
+	}
+	
+	@Test public void get_to_should_write_cached_body() {
+		db.put("key", 0, "data-1".getBytes(), PutOk);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		db.getTo("key", Channels.newChannel(out), new KeezTest.GetToTestHelp() {
+			@Override public void written(String key, int rev, long length) {}
+		});
+		assertEquals("data-1", new String(out.toByteArray()));
+		assertEquals(1, db.getHitCount());
+	}
+	
+	@Test public void delete_should_drop_cached_entry() {
+		db.put("key", 0, "data".getBytes(), PutOk);
+		db.delete("key", new KeezTest.DeleteTestHelp() {
+			@Override public void deleted(String key, byte[] data) {}
+		});
+		assertEquals(null, get(db, "key"));
+		assertEquals(1, db.getMissCount());
+	}
+	
+	@Test public void write_batch_should_update_cached_entries() {
+		db.put("keyA", 0, "data-A".getBytes(), PutOk);
+		db.put("keyB", 0, "data-B".getBytes(), PutOk);
+		db.writeBatch(Arrays.asList(
+				Write.put("keyA", 1, "data-A-2".getBytes()),
+				Write.delete("keyB", 1)), new KeezTest.WriteBatchTestHelp() {
+			@Override public void ok(Map<String, Integer> revisions) {}
+		});
+		assertEquals("data-A-2", get(db, "keyA"));
+		assertEquals(null, get(db, "keyB"));
+		assertEquals(1, db.getHitCount());
+	}
+	
+	@Test public void get_all_should_read_only_missing_keys() {
+		backend.put("keyA", 0, "data-A".getBytes(), PutOk);
+		db.put("keyB", 0, "data-B".getBytes(), PutOk);
+		
+		final AtomicReference<Map<String, Entry>> found = new AtomicReference<Map<String, Entry>>();
+		db.getAll(Arrays.asList("keyB", "missing", "keyA"), new KeezTest.MultiGetTestHelp() {
+			@Override
+			public void found(Map<String, Entry> entries) {
+				found.set(entries);
+			}
+		});
+		assertEquals(Arrays.asList("keyB", "keyA"), Arrays.asList(found.get().keySet().toArray()));
+		assertEquals(1, db.getHitCount());
+		assertEquals(2, db.getMissCount());
+		
+		assertEquals("data-A", get(db, "keyA"));
+		assertEquals(2, db.getHitCount());
+	}
+	
+	@Test public void should_stay_within_bounds_and_keep_popular_keys() {
+		db = new KeezCache(backend, 16 * 1024 * 16);
+		byte[] body = new byte[1000];
+		for (int i=0; i<1000; i++) {
+			backend.put("key" + i, 0, body, PutOk);
+		}
+		
+		for (int round=0; round<5; round++) {
+			for (int i=0; i<20; i++) {
+				get(db, "key" + i);
+			}
+		}
+		// a scan of cold keys, each read once
+		for (int i=100; i<1000; i++) {
+			get(db, "key" + i);
+		}
+		assertTrue(db.getWeight() <= 16 * 1024 * 16);
+		assertTrue(db.getEvictionCount() > 0);
+		
+		long misses = db.getMissCount();
+		for (int i=0; i<20; i++) {
+			get(db, "key" + i);
+		}
+		assertEquals(misses, db.getMissCount());
+	}
+	
+	@Test public void should_not_cache_stale_entries_with_async_db() throws InterruptedException {
+		final KeezCache cached = new KeezCache(new KeezAync(backend, 4), 1024 * 1024);
+		final int count = 500;
+		final CountDownLatch done = new CountDownLatch(count);
+		for (int i=0; i<count; i++) {
+			cached.put("key", i, String.valueOf(i).getBytes(), new KeezTest.PutTestHelp() {
+				@Override
+				public void ok(String key, int revision) {
+					done.countDown();
+				}
+			});
+			cached.get("key", new KeezTest.GetTestHelp() {
+				@Override public void found(String key, int rev, byte[] data) {}
+				@Override public void notFound(String key) {}
+			});
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		
+		final AtomicReference<String> found = new AtomicReference<String>();
+		final CountDownLatch got = new CountDownLatch(1);
+		cached.get("key", new KeezTest.GetTestHelp() {
+			@Override
+			public void found(String key, int rev, byte[] data) {
+				found.set(rev + " " + new String(data));
+				got.countDown();
+			}
+		});
+		assertTrue(got.await(10, TimeUnit.SECONDS));
+		assertEquals(count + " " + (count - 1), found.get());
+	}
+	
+	private static String get(Keez.Db db, String key) {
+		final AtomicReference<String> found = new AtomicReference<String>();
+		db.get(key, new KeezTest.GetTestHelp() {
+			@Override
+			public void found(String key, int rev, byte[] data) {
+				found.set(new String(data));
+			}
+			
+			@Override
+			public void notFound(String key) {}
+		});
+		return found.get();
+	}
+	
+	private static final KeezTest.PutTestHelp PutOk = new KeezTest.PutTestHelp() {
+		@Override public void ok(String key, int revision) {}
+	};
+	
+}
@@ -1,5 +1,7 @@
 package net.caprazzi.keez;
 
+import static org.junit.Assert.assertEquals;
+
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Callable;
@@ -7,6 +9,7 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.caprazzi.keez.inmemory.KeezInMemory;
@@ -22,7 +25,7 @@ public class KeezConcurrencyTest {
 
 	KeezInMemory db;
 	final byte[] data = "data".getBytes();
-	ExecutorService executor = Executors.newFixedThreadPool(2);
+	ExecutorService executor = Executors.newFixedThreadPool(4);
 
 	@Before public void setup() {
 		db = new KeezInMemory();
@@ -101,6 +104,42 @@ public class KeezConcurrencyTest {
 		invokeAndWait(task, task, task, task);
 	}
 	
+	@Test public void concurrent_updates_should_not_lose_revisions() throws Exception {
+		final int updates = 10000;
+		db.put("key", 0, data, KeezTest.PutOk);
+		
+		Task task = new Task() {
+			public void task() throws Exception {
+				for (int i=0; i<updates; i++) {
+					final AtomicInteger rev = new AtomicInteger(1);
+					final AtomicBoolean done = new AtomicBoolean(false);
+					while (!done.get()) {
+						db.put("key", rev.get(), data, new KeezTest.PutTestHelp() {
+							public void ok(String key, int revision) {
+								done.set(true);
+							}
+							public void collision(String key, int yourRev, int foundRev) {
+								rev.set(foundRev);
+							}
+						});
+					}
+				}
+			}
+		};
+		
+		for (Future<String> f : executor.invokeAll(Arrays.asList(task, task, task, task))) {
+			f.get();
+		}
+		
+		final AtomicInteger found = new AtomicInteger();
+		db.get("key", new KeezTest.GetTestHelp() {
+			public void found(String key, int rev, byte[] data) {
+				found.set(rev);
+			}
+		});
+		assertEquals(1 + 4 * updates, found.get());
+	}
+	
 	private void invokeAndWait(Task... tasks) throws InterruptedException {
 		List<Future<String>> invokeAll = executor.invokeAll(Arrays.asList(tasks));
 		while(!Iterators.all(invokeAll.iterator(), new Predicate<Future<String>>() {
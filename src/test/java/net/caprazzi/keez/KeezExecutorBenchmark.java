@@ -0,0 +1,105 @@
+package net.caprazzi.keez;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.caprazzi.keez.onfile.KeezOnFile;
+import net.caprazzi.keez.simpleFileDb.KeezFileDbTest;
+
+/**
+ * Puts then gets many keys on a KeezOnFile with per-write fsync, through
+ *  - KeezAync with a single worker
+ *  - KeezExecutor on a fixed pool of platform threads
+ *  - KeezExecutor on virtual threads (java 21 only)
+ * 
+ * Not a unit test, run with:
+ *   mvn test-compile exec:java -Dexec.mainClass=net.caprazzi.keez.KeezExecutorBenchmark -Dexec.classpathScope=test
+ * optional args: keys, platform pool size
+ */
+public class KeezExecutorBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int keys = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+		int poolSize = (args.length > 1) ? Integer.parseInt(args[1]) : 64;
+		
+		run("KeezAync, 1 worker", new KeezAync(createDb()), keys);
+		
+		ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+		run("KeezExecutor, " + poolSize + " platform threads", new KeezExecutor(createDb(), pool), keys);
+		pool.shutdown();
+		
+		if (KeezExecutor.isVirtualThreadAvailable()) {
+			ExecutorService virtual = KeezExecutor.newVirtualThreadExecutor();
+			run("KeezExecutor, virtual threads", new KeezExecutor(createDb(), virtual), keys);
+			virtual.shutdown();
+		}
+		else {
+			System.out.println("virtual threads not available, skipped");
+		}
+		
+		// KeezAync workers never stop
+		System.exit(0);
+	}
+	
+	private static KeezOnFile createDb() {
+		File dir = KeezFileDbTest.createTempDir();
+		KeezOnFile db = new KeezOnFile(dir.getAbsolutePath(), "bench", false);
+		db.setDurability(Durability.PER_WRITE);
+		return db;
+	}
+	
+	private static void run(String name, Keez.Db db, int keys) throws InterruptedException {
+		final byte[] data = new byte[1024];
+		
+		final CountDownLatch written = new CountDownLatch(keys);
+		long start = System.nanoTime();
+		for (int i=0; i<keys; i++) {
+			db.put("key" + i, 0, data, new Keez.Put() {
+				@Override
+				public void ok(String key, int revision) {
+					written.countDown();
+				}
+				@Override
+				public void collision(String key, int yourRev, int foundRev) {
+					throw new IllegalStateException("collision on " + key);
+				}
+				@Override
+				public void error(String key, Exception e) {
+					e.printStackTrace();
+					written.countDown();
+				}
+			});
+		}
+		written.await(10, TimeUnit.MINUTES);
+		long putNanos = System.nanoTime() - start;
+		
+		final CountDownLatch read = new CountDownLatch(keys);
+		start = System.nanoTime();
+		for (int i=0; i<keys; i++) {
+			db.get("key" + i, new Keez.Get() {
+				@Override
+				public void found(String key, int rev, byte[] data) {
+					read.countDown();
+				}
+				@Override
+				public void notFound(String key) {
+					throw new IllegalStateException("not found " + key);
+				}
+				@Override
+				public void error(String key, Exception e) {
+					e.printStackTrace();
+					read.countDown();
+				}
+			});
+		}
+		read.await(10, TimeUnit.MINUTES);
+		long getNanos = System.nanoTime() - start;
+		
+		System.out.println(String.format("%-40s put: %8d ops/s  get: %8d ops/s", name, 
+				keys * 1000000000L / putNanos, keys * 1000000000L / getNanos));
+	}
+	
+}
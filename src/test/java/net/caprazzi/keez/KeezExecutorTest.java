@@ -0,0 +1,231 @@
+package net.caprazzi.keez;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.caprazzi.keez.Keez.Entry;
+import net.caprazzi.keez.inmemory.KeezInMemory;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Iterables;
+import com.google.common.io.ByteStreams;
+
+public class KeezExecutorTest {
+
+	ExecutorService executor;
+	KeezExecutor db;
+	final byte[] data = "data".getBytes();
+	
+	@Before
+	public void setUp() {
+		executor = Executors.newFixedThreadPool(8);
+		db = new KeezExecutor(new KeezInMemory(), executor);
+	}
+	
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+	
+	@Test public void requests_on_same_key_should_run_in_order() throws InterruptedException {
+		assertRequestsRunInOrder(1000);
+	}
+	
+	@Test public void requests_on_different_keys_should_run_in_parallel() throws InterruptedException {
+		final CountDownLatch both = new CountDownLatch(2);
+		final CountDownLatch done = new CountDownLatch(2);
+		KeezInMemory slow = new KeezInMemory() {
+			@Override
+			public void get(String key, Keez.Get callback) {
+				both.countDown();
+				try {
+					// only returns if the other get is running too
+					both.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {}
+				super.get(key, callback);
+			}
+		};
+		db = new KeezExecutor(slow, executor);
+		
+		KeezTest.GetTestHelp notFound = new KeezTest.GetTestHelp() {
+			@Override
+			public void notFound(String key) {
+				done.countDown();
+			}
+		};
+		db.get("a", notFound);
+		db.get("b", notFound);
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(0, both.getCount());
+	}
+	
+	@Test public void get_all_should_not_read_the_keys_after_returning() throws InterruptedException {
+		final CountDownLatch release = new CountDownLatch(1);
+		KeezInMemory slow = new KeezInMemory() {
+			@Override
+			public void get(String key, Keez.Get callback) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {}
+				super.get(key, callback);
+			}
+		};
+		slow.put("a", 0, data, KeezTest.PutOk);
+		slow.put("b", 0, data, KeezTest.PutOk);
+		db = new KeezExecutor(slow, executor);
+		
+		ArrayList<String> keys = new ArrayList<String>(Arrays.asList("a", "b"));
+		final AtomicInteger found = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(1);
+		db.getAll(keys, new KeezTest.MultiGetTestHelp() {
+			@Override
+			public void found(Map<String, Entry> entries) {
+				found.set(entries.size());
+				done.countDown();
+			}
+		});
+		keys.clear();
+		release.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(2, found.get());
+	}
+	
+	@Test public void should_invoke_error_when_executor_rejects() {
+		executor.shutdown();
+		
+		final AtomicInteger rejected = new AtomicInteger();
+		db.get("key", new KeezTest.GetTestHelp() {
+			@Override
+			public void error(String key, Exception e) {
+				assertTrue(e instanceof RejectedExecutionException);
+				rejected.incrementAndGet();
+			}
+		});
+		db.get("key", new KeezTest.GetTestHelp() {
+			@Override
+			public void error(String key, Exception e) {
+				rejected.incrementAndGet();
+			}
+		});
+		db.getTo("key", Channels.newChannel(new ByteArrayOutputStream()), new KeezTest.GetToTestHelp() {
+			@Override
+			public void error(String key, Exception e) {
+				assertTrue(e instanceof RejectedExecutionException);
+				rejected.incrementAndGet();
+			}
+		});
+		assertEquals(3, rejected.get());
+	}
+	
+	@Test public void should_run_on_virtual_threads() throws InterruptedException {
+		Assume.assumeTrue(KeezExecutor.isVirtualThreadAvailable());
+		executor.shutdown();
+		executor = KeezExecutor.newVirtualThreadExecutor();
+		db = new KeezExecutor(new KeezInMemory(), executor);
+		assertRequestsRunInOrder(1000);
+	}
+	
+	@Test public void get_to_should_see_puts_queued_before_it() throws InterruptedException {
+		for (int i=0; i<100; i++) {
+			db.put("key", i, ("data-" + i).getBytes(), KeezTest.PutOk);
+		}
+		
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final CountDownLatch written = new CountDownLatch(1);
+		db.getTo("key", Channels.newChannel(out), new KeezTest.GetToTestHelp() {
+			@Override
+			public void written(String key, int rev, long length) {
+				assertEquals(100, rev);
+				written.countDown();
+			}
+		});
+		assertTrue(written.await(10, TimeUnit.SECONDS));
+		assertEquals("data-99", new String(out.toByteArray()));
+	}
+	
+	@Test public void streams_should_be_ordered_with_puts_on_the_key() throws InterruptedException {
+		for (int i=0; i<50; i++) {
+			db.put("key", 2 * i, ("data-" + (2 * i)).getBytes(), KeezTest.PutOk);
+			db.putStream("key", 2 * i + 1, new ByteArrayInputStream(("data-" + (2 * i + 1)).getBytes()), KeezTest.PutOk);
+		}
+		
+		final CountDownLatch found = new CountDownLatch(1);
+		db.getStream("key", new KeezTest.GetStreamTestHelp() {
+			@Override
+			public void found(String key, int rev, InputStream body) throws IOException {
+				assertEquals(100, rev);
+				assertEquals("data-99", new String(ByteStreams.toByteArray(body)));
+				found.countDown();
+			}
+		});
+		assertTrue(found.await(10, TimeUnit.SECONDS));
+	}
+	
+	@Test public void get_all_should_see_puts_queued_before_it() throws InterruptedException {
+		final int count = 200;
+		java.util.List<String> keys = new java.util.ArrayList<String>();
+		for (int i=0; i<count; i++) {
+			db.put("key" + i, 0, data, KeezTest.PutOk);
+			keys.add("key" + i);
+		}
+		keys.add("missing");
+		
+		final AtomicInteger found = new AtomicInteger();
+		final CountDownLatch got = new CountDownLatch(1);
+		db.getAll(keys, new KeezTest.MultiGetTestHelp() {
+			@Override
+			public void found(java.util.Map<String, Entry> entries) {
+				assertEquals("key0", entries.keySet().iterator().next());
+				found.set(entries.size());
+				got.countDown();
+			}
+		});
+		assertTrue(got.await(10, TimeUnit.SECONDS));
+		assertEquals(count, found.get());
+	}
+	
+	private void assertRequestsRunInOrder(int count) throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(count);
+		for (int i=0; i<count; i++) {
+			db.put("key", i, data, new KeezTest.PutTestHelp() {
+				@Override
+				public void ok(String key, int revision) {
+					latch.countDown();
+				}
+			});
+		}
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+		
+		final AtomicInteger found = new AtomicInteger();
+		final CountDownLatch got = new CountDownLatch(1);
+		db.getRevisions("key", new KeezTest.GetRevisionsTestHelp() {
+			@Override
+			public void found(String key, Iterable<Entry> revisions) {
+				found.set(Iterables.size(revisions));
+				got.countDown();
+			}
+		});
+		assertTrue(got.await(10, TimeUnit.SECONDS));
+		assertEquals(count, found.get());
+	}
+	
+}
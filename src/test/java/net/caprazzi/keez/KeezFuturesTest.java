@@ -0,0 +1,155 @@
+package net.caprazzi.keez;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import net.caprazzi.keez.Keez.Entry;
+import net.caprazzi.keez.KeezFutures.DeleteResult;
+import net.caprazzi.keez.KeezFutures.GetResult;
+import net.caprazzi.keez.KeezFutures.PutResult;
+import net.caprazzi.keez.inmemory.KeezInMemory;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class KeezFuturesTest {
+
+	KeezFutures db;
+	final byte[] data = "data".getBytes();
+	
+	@Before
+	public void setUp() {
+		db = new KeezFutures(new KeezAync(new KeezInMemory(), 4));
+	}
+	
+	@Test public void put_should_complete_with_ok_or_collision() throws Exception {
+		PutResult ok = get(db.put("key", 0, data));
+		assertTrue(ok.isOk());
+		assertEquals(1, ok.getRevision());
+		
+		PutResult collision = get(db.put("key", 0, data));
+		assertTrue(collision.isCollision());
+		assertEquals(1, collision.getRevision());
+	}
+	
+	@Test public void get_should_complete_with_found_or_not_found() throws Exception {
+		get(db.put("key", 0, data));
+		
+		GetResult found = get(db.get("key"));
+		assertTrue(found.isFound());
+		assertEquals(1, found.getRevision());
+		assertEquals("data", new String(found.getData()));
+		
+		assertFalse(get(db.get("other")).isFound());
+	}
+	
+	@Test public void delete_should_complete_with_deleted_or_not_found() throws Exception {
+		get(db.put("key", 0, data));
+		
+		DeleteResult deleted = get(db.delete("key"));
+		assertTrue(deleted.isDeleted());
+		assertEquals("data", new String(deleted.getData()));
+		
+		assertTrue(get(db.delete("key")).isNotFound());
+	}
+	
+	@Test public void list_and_revisions_should_complete() throws Exception {
+		assertFalse(get(db.list()).isFound());
+		assertFalse(get(db.getRevisions("key")).isFound());
+		
+		get(db.put("key", 0, data));
+		get(db.put("key", 1, data));
+		
+		assertEquals(1, Iterables.size(get(db.list()).getEntries()));
+		assertEquals(2, Iterables.size(get(db.getRevisions("key")).getRevisions()));
+	}
+	
+	@Test public void error_should_fail_the_future() throws Exception {
+		final RuntimeException error = new RuntimeException("broken");
+		db = new KeezFutures(new KeezInMemory() {
+			@Override
+			public void get(String key, Keez.Get callback) {
+				callback.error(key, error);
+			}
+		});
+		try {
+			get(db.get("key"));
+			fail();
+		}
+		catch (ExecutionException e) {
+			assertSame(error, e.getCause());
+		}
+	}
+	
+	@Test public void failure_reading_lazy_entries_should_fail_the_future() throws Exception {
+		final RuntimeException error = new RuntimeException("file gone");
+		final Iterable<Entry> broken = new Iterable<Entry>() {
+			@Override
+			public Iterator<Entry> iterator() {
+				throw error;
+			}
+		};
+		db = new KeezFutures(new KeezInMemory() {
+			@Override
+			public void list(Keez.List callback) {
+				callback.entries(broken);
+			}
+			
+			@Override
+			public void getRevisions(String key, Keez.GetRevisions callback) {
+				callback.found(key, broken);
+			}
+		});
+		try {
+			get(db.list());
+			fail();
+		}
+		catch (ExecutionException e) {
+			assertSame(error, e.getCause());
+		}
+		try {
+			get(db.getRevisions("key"));
+			fail();
+		}
+		catch (ExecutionException e) {
+			assertSame(error, e.getCause());
+		}
+	}
+	
+	@Test public void should_compose_many_operations_in_flight() throws Exception {
+		final int count = 1000;
+		ArrayList<ListenableFuture<PutResult>> updates = new ArrayList<ListenableFuture<PutResult>>();
+		for (int i=0; i<count; i++) {
+			// create, then update with the revision returned by the create
+			updates.add(Futures.chain(db.put("key" + i, 0, data), new Function<PutResult, ListenableFuture<PutResult>>() {
+				@Override
+				public ListenableFuture<PutResult> apply(PutResult created) {
+					return db.put(created.getKey(), created.getRevision(), data);
+				}
+			}));
+		}
+		
+		for (PutResult updated : get(Futures.allAsList(updates))) {
+			assertTrue(updated.isOk());
+			assertEquals(2, updated.getRevision());
+		}
+	}
+	
+	private static <T> T get(ListenableFuture<T> future) throws Exception {
+		return future.get(10, TimeUnit.SECONDS);
+	}
+	
+}
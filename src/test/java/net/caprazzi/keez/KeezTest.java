@@ -4,6 +4,19 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import net.caprazzi.keez.Keez.Db;
@@ -11,14 +24,21 @@ import net.caprazzi.keez.Keez.Delete;
 import net.caprazzi.keez.Keez.Entry;
 import net.caprazzi.keez.Keez.Get;
 import net.caprazzi.keez.Keez.GetRevisions;
+import net.caprazzi.keez.Keez.GetStream;
+import net.caprazzi.keez.Keez.GetTo;
 import net.caprazzi.keez.Keez.List;
+import net.caprazzi.keez.Keez.MultiGet;
 import net.caprazzi.keez.Keez.Put;
+import net.caprazzi.keez.Keez.Write;
+import net.caprazzi.keez.Keez.WriteBatch;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
 
 /**
  * Abstract test class meant to be sub-classed to test specific implementations
@@ -378,6 +398,365 @@ public abstract class KeezTest {
 		//TODO: how do I force an error() in a sane way?
 	}
 	
+	@Test public void get_all_should_find_existing_keys_in_order() {
+		db.put("keyA", 0, "data-A-0".getBytes(), PutOk);
+		db.put("keyA", 1, "data-A-1".getBytes(), PutOk);
+		db.put("keyB", 0, "data-B-0".getBytes(), PutOk);
+		db.put("keyC", 0, "data-C-0".getBytes(), PutOk);
+		
+		db.getAll(Arrays.asList("keyC", "missing", "keyA"), new MultiGetTestHelp() {
+			@Override
+			public void found(Map<String, Entry> entries) {
+				assertEquals(Arrays.asList("keyC", "keyA"), new ArrayList<String>(entries.keySet()));
+				assertEquals(2, entries.get("keyA").getRevision());
+				assertEquals("data-A-1", new String(entries.get("keyA").getData()));
+				assertEquals("data-C-0", new String(entries.get("keyC").getData()));
+				called = true;
+			}
+		});
+		
+		assertTrue(called);
+	}
+	
+	@Test public void get_all_should_find_nothing_if_no_keys_exist() {
+		db.getAll(Arrays.asList("keyA", "keyB"), new MultiGetTestHelp() {
+			@Override
+			public void found(Map<String, Entry> entries) {
+				assertTrue(entries.isEmpty());
+				called = true;
+			}
+		});
+		
+		assertTrue(called);
+	}
+	
+	@Test public void get_to_should_write_last_revision() {
+		db.put("akey", 0, "data-0".getBytes(), PutOk);
+		db.put("akey", 1, "data-1".getBytes(), PutOk);
+		
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		db.getTo("akey", Channels.newChannel(out), new GetToTestHelp() {
+			@Override
+			public void written(String key, int rev, long length) {
+				assertEquals("akey", key);
+				assertEquals(2, rev);
+				assertEquals(6, length);
+				called = true;
+			}
+		});
+		
+		assertTrue(called);
+		assertEquals("data-1", new String(out.toByteArray()));
+	}
+	
+	@Test public void get_to_should_write_large_body_to_file() throws IOException {
+		final byte[] body = new byte[3 * 1024 * 1024 + 7];
+		new Random(42).nextBytes(body);
+		db.put("akey", 0, body, PutOk);
+		
+		File file = File.createTempFile("keez-get-to", ".bin");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			db.getTo("akey", out.getChannel(), new GetToTestHelp() {
+				@Override
+				public void written(String key, int rev, long length) {
+					assertEquals(body.length, length);
+					called = true;
+				}
+			});
+		}
+		finally {
+			out.close();
+		}
+		
+		assertTrue(called);
+		assertTrue(Arrays.equals(body, Files.toByteArray(file)));
+		file.delete();
+	}
+	
+	@Test public void get_to_should_call_not_found_if_not_exists() {
+		db.getTo("akey", Channels.newChannel(new ByteArrayOutputStream()), new GetToTestHelp() {
+			@Override
+			public void notFound(String key) {
+				assertEquals("akey", key);
+				called = true;
+			}
+		});
+		
+		assertTrue(called);
+	}
+	
+	@Test public void get_to_should_call_error_if_channel_fails() throws IOException {
+		db.put("akey", 0, "data".getBytes(), PutOk);
+		WritableByteChannel failing = new WritableByteChannel() {
+			public int write(ByteBuffer src) throws IOException {
+				throw new IOException("disk full");
+			}
+			public boolean isOpen() {
+				return true;
+			}
+			public void close() {
+			}
+		};
+		
+		db.getTo("akey", failing, new GetToTestHelp() {
+			@Override
+			public void error(String key, Exception e) {
+				assertEquals("akey", key);
+				assertTrue(e instanceof IOException);
+				called = true;
+			}
+		});
+		
+		assertTrue(called);
+	}
+	
+	@Test public void put_stream_should_put_and_get_key() {
+		db.putStream("akey", 0, new ByteArrayInputStream("data".getBytes()), PutOk);
+		db.get("akey", new GetTestHelp() {
+			@Override
+			public void found(String key, int rev, byte[] data) {
+				assertEquals("akey", key);
+				assertEquals(1, rev);
+				assertEquals("data", new String(data));
+				called = true;
+			}
+		});
+		
+		assertTrue(called);
+	}
+	
+	@Test public void put_stream_should_update_key() {
+		db.put("akey", 0, "data-0".getBytes(), PutOk);
+		db.putStream("akey", 1, new ByteArrayInputStream("data-1".getBytes()), PutOk);
+		db.get("akey", new GetTestHelp() {
+			@Override
+			public void found(String key, int rev, byte[] data) {
+				assertEquals(2, rev);
+				assertEquals("data-1", new String(data));
+				called = true;
+			}
+		});
+		
+		assertTrue(called);
+	}
+	
+	@Test public void put_stream_should_collide_like_put() {
+		db.put("akey", 0, "data-0".getBytes(), PutOk);
+		db.putStream("akey", 0, new ByteArrayInputStream("data".getBytes()), new PutTestHelp() {
+			@Override
+			public void collision(String key, int yourRev, int foundRev) {
+				assertEquals("akey", key);
+				assertEquals(0, yourRev);
+				assertEquals(1, foundRev);
+				called = true;
+			}
+		});
+		
+		assertTrue(called);
+		db.get("akey", new GetTestHelp() {
+			@Override
+			public void found(String key, int rev, byte[] data) {
+				assertEquals(1, rev);
+				assertEquals("data-0", new String(data));
+			}
+		});
+	}
+	
+	@Test public void put_stream_should_call_error_if_stream_fails() {
+		InputStream failing = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				throw new IOException("connection reset");
+			}
+		};
+		db.putStream("akey", 0, failing, new PutTestHelp() {
+			@Override
+			public void error(String key, Exception e) {
+				assertEquals("akey", key);
+				called = true;
+			}
+		});
+		
+		assertTrue(called);
+		db.get("akey", new GetTestHelp() {
+			@Override
+			public void notFound(String key) {}
+		});
+	}
+	
+	@Test public void put_stream_and_get_stream_should_round_trip_large_body() throws IOException {
+		final byte[] body = new byte[5 * 1024 * 1024 + 13];
+		new Random(7).nextBytes(body);
+		db.putStream("akey", 0, new ByteArrayInputStream(body), PutOk);
+		
+		db.getStream("akey", new GetStreamTestHelp() {
+			@Override
+			public void found(String key, int rev, InputStream in) throws IOException {
+				assertEquals(1, rev);
+				assertTrue(Arrays.equals(body, ByteStreams.toByteArray(in)));
+				called = true;
+			}
+		});
+		
+		assertTrue(called);
+	}
+	
+	@Test public void get_stream_should_read_last_revision() {
+		db.put("akey", 0, "data-0".getBytes(), PutOk);
+		db.put("akey", 1, "data-1".getBytes(), PutOk);
+		
+		db.getStream("akey", new GetStreamTestHelp() {
+			@Override
+			public void found(String key, int rev, InputStream in) throws IOException {
+				assertEquals("akey", key);
+				assertEquals(2, rev);
+				assertEquals("data-1", new String(ByteStreams.toByteArray(in)));
+				called = true;
+			}
+		});
+		
+		assertTrue(called);
+	}
+	
+	@Test public void get_stream_should_call_not_found_if_not_exists() {
+		db.getStream("akey", new GetStreamTestHelp() {
+			@Override
+			public void notFound(String key) {
+				assertEquals("akey", key);
+				called = true;
+			}
+		});
+		
+		assertTrue(called);
+	}
+	
+	@Test public void write_batch_should_apply_all_writes() {
+		db.put("keyA", 0, "data-A-0".getBytes(), PutOk);
+		db.put("keyB", 0, "data-B-0".getBytes(), PutOk);
+		db.writeBatch(Arrays.asList(
+				Write.put("keyC", 0, "data-C-0".getBytes()),
+				Write.put("keyA", 1, "data-A-1".getBytes()),
+				Write.delete("keyB", 1)), new WriteBatchTestHelp() {
+			@Override
+			public void ok(Map<String, Integer> revisions) {
+				assertEquals(Arrays.asList("keyA", "keyB", "keyC"), new ArrayList<String>(revisions.keySet()));
+				assertEquals(2, (int) revisions.get("keyA"));
+				assertEquals(-1, (int) revisions.get("keyB"));
+				assertEquals(1, (int) revisions.get("keyC"));
+				called = true;
+			}
+		});
+		assertTrue(called);
+		
+		called = false;
+		db.getAll(Arrays.asList("keyA", "keyB", "keyC"), new MultiGetTestHelp() {
+			@Override
+			public void found(Map<String, Entry> entries) {
+				assertEquals(Arrays.asList("keyA", "keyC"), new ArrayList<String>(entries.keySet()));
+				assertEquals("data-A-1", new String(entries.get("keyA").getData()));
+				assertEquals("data-C-0", new String(entries.get("keyC").getData()));
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+	
+	@Test public void write_batch_should_write_nothing_on_collision() {
+		db.put("keyA", 0, "data-A-0".getBytes(), PutOk);
+		db.put("keyB", 0, "data-B-0".getBytes(), PutOk);
+		db.writeBatch(Arrays.asList(
+				Write.put("keyA", 1, "data-A-1".getBytes()),
+				Write.put("keyB", 0, "data-B-1".getBytes()),
+				Write.delete("keyD", 1),
+				Write.put("keyC", 0, "data-C-0".getBytes())), new WriteBatchTestHelp() {
+			@Override
+			public void collision(Map<String, Integer> foundRevisions) {
+				assertEquals(2, foundRevisions.size());
+				assertEquals(1, (int) foundRevisions.get("keyB"));
+				assertEquals(-1, (int) foundRevisions.get("keyD"));
+				called = true;
+			}
+		});
+		assertTrue(called);
+		
+		called = false;
+		db.getAll(Arrays.asList("keyA", "keyB", "keyC"), new MultiGetTestHelp() {
+			@Override
+			public void found(Map<String, Entry> entries) {
+				assertEquals(Arrays.asList("keyA", "keyB"), new ArrayList<String>(entries.keySet()));
+				assertEquals(1, entries.get("keyA").getRevision());
+				assertEquals("data-A-0", new String(entries.get("keyA").getData()));
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+	
+	@Test public void write_batch_should_keep_history_unless_auto_purge() {
+		db.put("keyA", 0, "data-A-0".getBytes(), PutOk);
+		db.writeBatch(Arrays.asList(Write.put("keyA", 1, "data-A-1".getBytes())), WriteBatchOk);
+		db.setAutoPurge(true);
+		db.writeBatch(Arrays.asList(Write.put("keyB", 0, "data-B-0".getBytes())), WriteBatchOk);
+		db.writeBatch(Arrays.asList(Write.put("keyB", 1, "data-B-1".getBytes())), WriteBatchOk);
+		
+		db.getRevisions("keyA", new GetRevisionsTestHelp() {
+			@Override
+			public void found(String key, Iterable<Entry> revisions) {
+				assertEquals(2, Iterables.size(revisions));
+				called = true;
+			}
+		});
+		assertTrue(called);
+		
+		called = false;
+		db.getRevisions("keyB", new GetRevisionsTestHelp() {
+			@Override
+			public void found(String key, Iterable<Entry> revisions) {
+				Entry[] array = Iterables.toArray(revisions, Entry.class);
+				assertEquals(1, array.length);
+				assertEquals(2, array[0].getRevision());
+				assertEquals("data-B-1", new String(array[0].getData()));
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+	
+	@Test public void write_batch_should_call_error_on_duplicate_keys() {
+		db.writeBatch(Arrays.asList(
+				Write.put("keyA", 0, "data-A-0".getBytes()),
+				Write.delete("keyA", 1)), new WriteBatchTestHelp() {
+			@Override
+			public void error(Exception e) {
+				assertTrue(e instanceof IllegalArgumentException);
+				called = true;
+			}
+		});
+		assertTrue(called);
+		
+		called = false;
+		db.get("keyA", new GetTestHelp() {
+			@Override
+			public void notFound(String key) {
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+	
+	@Test public void write_batch_should_accept_empty_batch() {
+		db.writeBatch(new ArrayList<Write>(), new WriteBatchTestHelp() {
+			@Override
+			public void ok(Map<String, Integer> revisions) {
+				assertTrue(revisions.isEmpty());
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+	
 	@Test public void get_revisions_should_call_not_found_if_no_key() {
 		db.getRevisions("xxxx", new GetRevisionsTestHelp() {
 			@Override
@@ -741,6 +1120,199 @@ public abstract class KeezTest {
 		// TODO: force error() to test this
 	}
 	
+	@Test public void scan_should_complete_if_empty_database() {
+		ScanCollector scan = new ScanCollector(1);
+		db.scan(scan);
+		
+		assertEquals(0, scan.entries.size());
+		assertTrue(scan.completed);
+	}
+	
+	@Test public void scan_should_emit_the_last_revision_of_all_keys_on_demand() {
+		db.put("keyB", 0, "data-B-0".getBytes(), PutOk);
+		db.put("keyA", 0, "data-A-0".getBytes(), PutOk);
+		db.put("keyA", 1, "data-A-1".getBytes(), PutOk);
+		db.put("keyC", 0, "data-C-0".getBytes(), PutOk);
+		
+		ScanCollector scan = new ScanCollector(1);
+		db.scan(scan);
+		assertEquals(1, scan.entries.size());
+		assertFalse(scan.completed);
+		
+		scan.subscription.request(10);
+		assertEquals(3, scan.entries.size());
+		assertTrue(scan.completed);
+		
+		assertEquals("keyA", scan.entries.get(0).getKey());
+		assertEquals(2, scan.entries.get(0).getRevision());
+		assertEquals("data-A-1", new String(scan.entries.get(0).getData()));
+		assertEquals("keyB", scan.entries.get(1).getKey());
+		assertEquals("keyC", scan.entries.get(2).getKey());
+	}
+	
+	@Test public void scan_should_not_see_deleted_entries() {
+		db.put("keyA", 0, "data-A-0".getBytes(), PutOk);
+		db.put("keyB", 0, "data-B-0".getBytes(), PutOk);
+		db.delete("keyA", DeleteOk);
+		
+		ScanCollector scan = new ScanCollector(Long.MAX_VALUE);
+		db.scan(scan);
+		
+		assertEquals(1, scan.entries.size());
+		assertEquals("keyB", scan.entries.get(0).getKey());
+		assertTrue(scan.completed);
+	}
+	
+	@Test public void scan_should_stop_when_cancelled() {
+		db.put("keyA", 0, "data-A-0".getBytes(), PutOk);
+		db.put("keyB", 0, "data-B-0".getBytes(), PutOk);
+		
+		ScanCollector scan = new ScanCollector(1);
+		db.scan(scan);
+		scan.subscription.cancel();
+		scan.subscription.request(10);
+		
+		assertEquals(1, scan.entries.size());
+		assertFalse(scan.completed);
+	}
+	
+	@Test public void range_scan_should_find_keys_with_prefix() {
+		db.put("userA", 0, "data".getBytes(), PutOk);
+		db.put("user1", 0, "data".getBytes(), PutOk);
+		db.put("user12", 0, "data".getBytes(), PutOk);
+		db.put("user12", 1, "data-2".getBytes(), PutOk);
+		db.put("user123", 0, "data".getBytes(), PutOk);
+		db.put("user2", 0, "data".getBytes(), PutOk);
+		
+		PageCollector page = new PageCollector();
+		db.scan(Keez.Range.prefix("user12"), 10, null, page);
+		
+		assertEquals(2, page.entries.length);
+		assertEquals("user12", page.entries[0].getKey());
+		assertEquals(2, page.entries[0].getRevision());
+		assertEquals("data-2", new String(page.entries[0].getData()));
+		assertEquals("user123", page.entries[1].getKey());
+		assertEquals(null, page.cursor);
+	}
+	
+	@Test public void range_scan_should_find_keys_between_from_and_to() {
+		for (String key : new String[] { "a", "b", "c", "d" }) {
+			db.put(key, 0, "data".getBytes(), PutOk);
+		}
+		
+		PageCollector page = new PageCollector();
+		db.scan(Keez.Range.between("b", "d"), 10, null, page);
+		assertKeys(page, "b", "c");
+		
+		db.scan(Keez.Range.between(null, "b"), 10, null, page);
+		assertKeys(page, "a");
+		
+		db.scan(Keez.Range.between("c", null), 10, null, page);
+		assertKeys(page, "c", "d");
+		
+		db.scan(Keez.Range.between("d", "b"), 10, null, page);
+		assertKeys(page);
+	}
+	
+	@Test public void range_scan_should_page_with_cursor() {
+		for (String key : new String[] { "k1", "k2", "k3", "k4", "k5", "x" }) {
+			db.put(key, 0, "data".getBytes(), PutOk);
+		}
+		
+		PageCollector page = new PageCollector();
+		db.scan(Keez.Range.prefix("k"), 2, null, page);
+		assertKeys(page, "k1", "k2");
+		assertEquals("k2", page.cursor);
+		
+		// a key added before the cursor is not seen
+		db.put("k0", 0, "data".getBytes(), PutOk);
+		db.scan(Keez.Range.prefix("k"), 2, page.cursor, page);
+		assertKeys(page, "k3", "k4");
+		
+		db.scan(Keez.Range.prefix("k"), 2, page.cursor, page);
+		assertKeys(page, "k5");
+		assertEquals(null, page.cursor);
+	}
+	
+	@Test public void range_scan_should_return_empty_page_if_empty_database() {
+		PageCollector page = new PageCollector();
+		db.scan(Keez.Range.all(), 10, null, page);
+		assertKeys(page);
+		assertEquals(null, page.cursor);
+	}
+	
+	@Test public void range_scan_should_report_error_if_limit_not_positive() {
+		db.put("key", 0, "data".getBytes(), PutOk);
+		db.scan(Keez.Range.all(), 0, null, new PageCollector() {
+			@Override
+			public void error(Exception e) {
+				assertTrue(e instanceof IllegalArgumentException);
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+	
+	private void assertKeys(PageCollector page, String... keys) {
+		assertEquals(keys.length, page.entries.length);
+		for (int i=0; i<keys.length; i++) {
+			assertEquals(keys[i], page.entries[i].getKey());
+		}
+	}
+	
+	public static class PageCollector extends Keez.Scan {
+		
+		public volatile Entry[] entries;
+		public volatile String cursor;
+
+		@Override
+		public void page(Iterable<Entry> entries, String cursor) {
+			this.entries = Iterables.toArray(entries, Entry.class);
+			this.cursor = cursor;
+		}
+
+		@Override
+		public void error(Exception e) {
+			throw new RuntimeException("unexpected error", e);
+		}
+	}
+	
+	/**
+	 * Requests some entries on subscribe, then waits for more requests
+	 */
+	public static class ScanCollector extends Keez.Subscriber {
+		
+		public final java.util.List<Entry> entries = new java.util.concurrent.CopyOnWriteArrayList<Entry>();
+		public volatile Keez.Subscription subscription;
+		public volatile boolean completed;
+		private final long initialRequest;
+		
+		public ScanCollector(long initialRequest) {
+			this.initialRequest = initialRequest;
+		}
+		
+		@Override
+		public void onSubscribe(Keez.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(initialRequest);
+		}
+
+		@Override
+		public void onNext(Entry entry) {
+			entries.add(entry);
+		}
+
+		@Override
+		public void onError(Exception e) {
+			throw new RuntimeException("unexpected error", e);
+		}
+
+		@Override
+		public void onComplete() {
+			completed = true;
+		}
+	}
+	
 	public static class PutTestHelp extends Put {
 
 		@Override
@@ -779,6 +1351,75 @@ public abstract class KeezTest {
 		
 	}
 	
+	public static class GetToTestHelp extends GetTo {
+
+		@Override
+		public void written(String key, int rev, long length) {
+			throw new RuntimeException("unexpected written key:" + key + " rev:" + rev);
+		}
+
+		@Override
+		public void notFound(String key) {
+			throw new RuntimeException("unexpected not found " + key);
+		}
+		
+		@Override
+		public void error(String key, Exception e) {
+			throw new RuntimeException("unexpected error", e);
+		}
+		
+	}
+	
+	public static class GetStreamTestHelp extends GetStream {
+
+		@Override
+		public void found(String key, int rev, InputStream body) throws IOException {
+			throw new RuntimeException("unexpected found key:" + key + " rev:" + rev);
+		}
+
+		@Override
+		public void notFound(String key) {
+			throw new RuntimeException("unexpected not found " + key);
+		}
+		
+		@Override
+		public void error(String key, Exception e) {
+			throw new RuntimeException("unexpected error", e);
+		}
+		
+	}
+	
+	public static class MultiGetTestHelp extends MultiGet {
+
+		@Override
+		public void found(Map<String, Entry> entries) {
+			throw new RuntimeException("unexpected found");
+		}
+
+		@Override
+		public void error(Exception e) {
+			throw new RuntimeException("unexpected error", e);
+		}
+	}
+	
+	public static class WriteBatchTestHelp extends WriteBatch {
+
+		@Override
+		public void ok(Map<String, Integer> revisions) {
+			throw new RuntimeException("unexpected ok");
+		}
+
+		@Override
+		public void collision(Map<String, Integer> foundRevisions) {
+			throw new RuntimeException("unexpected collision");
+		}
+
+		@Override
+		public void error(Exception e) {
+			throw new RuntimeException("unexpected error", e);
+		}
+	}
+	
 	public static class DeleteTestHelp extends Delete {
 
 		@Override
@@ -837,7 +1478,7 @@ public abstract class KeezTest {
 		@Override public void ok(String key, int revision) {}
 	};
 	
-	private static final Delete DeleteOk = new DeleteTestHelp() {
+	protected static final Delete DeleteOk = new DeleteTestHelp() {
 		@Override public void deleted(String key, byte[] data) {};
 	};
 	
@@ -845,6 +1486,10 @@ public abstract class KeezTest {
 		@Override public void found(String key, int rev, byte[] data) {};
 	};
 	
+	protected static final WriteBatch WriteBatchOk = new WriteBatchTestHelp() {
+		@Override public void ok(Map<String, Integer> revisions) {};
+	};
+	
 	protected static final Get GetNoop = new GetTestHelp() {
 		@Override public void found(String key, int rev, byte[] data) {};
 		public void notFound(String key) {};
@@ -0,0 +1,91 @@
+package net.caprazzi.keez;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.caprazzi.keez.KeezAync.WhenFull;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.base.Supplier;
+
+public class RequestRingTest {
+
+	ExecutorService executor = Executors.newFixedThreadPool(5);
+	
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+	
+	@Test public void consumer_should_see_every_published_value() throws Exception {
+		check(WhenFull.BLOCK);
+	}
+	
+	@Test public void consumer_should_see_every_published_value_spinning() throws Exception {
+		check(WhenFull.SPIN_THEN_PARK);
+	}
+	
+	@Test public void claim_should_fail_when_full() throws Exception {
+		RequestRing<long[]> ring = ring(4);
+		for (int i=0; i<4; i++) {
+			assertEquals(i, ring.claim(WhenFull.FAIL));
+		}
+		assertEquals(-1, ring.claim(WhenFull.FAIL));
+	}
+	
+	private void check(final WhenFull whenFull) throws Exception {
+		final RequestRing<long[]> ring = ring(16);
+		final int producers = 4;
+		final int count = 50000;
+		
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int p=0; p<producers; p++) {
+			tasks.add(new Callable<Void>() {
+				public Void call() throws Exception {
+					for (int i=1; i<=count; i++) {
+						long sequence = ring.claim(whenFull);
+						ring.get(sequence)[0] = i;
+						ring.publish(sequence);
+					}
+					return null;
+				}
+			});
+		}
+		
+		Future<Long> consumer = executor.submit(new Callable<Long>() {
+			public Long call() throws Exception {
+				long sum = 0;
+				long next = 0;
+				while (next < producers * count) {
+					long available = ring.waitFor(next);
+					for (; next <= available; next++) {
+						sum += ring.get(next)[0];
+						ring.release(next);
+					}
+				}
+				return sum;
+			}
+		});
+		
+		for (Future<Void> f : executor.invokeAll(tasks)) {
+			f.get();
+		}
+		assertEquals(producers * ((long) count * (count + 1) / 2), consumer.get().longValue());
+	}
+	
+	private RequestRing<long[]> ring(int capacity) {
+		return new RequestRing<long[]>(capacity, new Supplier<long[]>() {
+			public long[] get() {
+				return new long[1];
+			}
+		});
+	}
+	
+}
@@ -0,0 +1,109 @@
+package net.caprazzi.keez;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.caprazzi.keez.simpleFileDb.KeezFileDbTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SyncerTest {
+
+	File testDir;
+	
+	@Before
+	public void setUp() {
+		testDir = KeezFileDbTest.createTempDir();
+	}
+	
+	@Test
+	public void none_should_close_released_channel() throws IOException {
+		FileChannel channel = write("a");
+		new Syncer(Durability.NONE).sync(channel, true);
+		assertFalse(channel.isOpen());
+	}
+	
+	@Test
+	public void per_write_should_close_released_channel() throws IOException {
+		FileChannel channel = write("a");
+		new Syncer(Durability.PER_WRITE).sync(channel, true);
+		assertFalse(channel.isOpen());
+	}
+	
+	@Test
+	public void should_not_close_channel_if_not_released() throws IOException {
+		FileChannel channel = write("a");
+		new Syncer(Durability.GROUP_COMMIT).sync(channel, false);
+		assertTrue(channel.isOpen());
+		channel.close();
+	}
+	
+	@Test
+	public void interval_should_force_channels_in_background() throws Exception {
+		Syncer syncer = new Syncer(Durability.INTERVAL, 10);
+		FileChannel channel = write("a");
+		syncer.sync(channel, true);
+		
+		for (int i=0; i<100 && channel.isOpen(); i++) {
+			Thread.sleep(10);
+		}
+		assertFalse(channel.isOpen());
+		syncer.close();
+	}
+	
+	@Test
+	public void interval_should_not_keep_too_many_released_channels_open() throws Exception {
+		Syncer syncer = new Syncer(Durability.INTERVAL, 60 * 1000);
+		ArrayList<FileChannel> channels = new ArrayList<FileChannel>();
+		for (int i=0; i<Syncer.MAX_RELEASED_PENDING; i++) {
+			FileChannel channel = write("f" + i);
+			syncer.sync(channel, true);
+			channels.add(channel);
+		}
+		for (FileChannel channel : channels) {
+			assertFalse(channel.isOpen());
+		}
+		syncer.close();
+	}
+	
+	@Test
+	public void group_commit_should_force_all_concurrent_writes() throws Exception {
+		final Syncer syncer = new Syncer(Durability.GROUP_COMMIT);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		ArrayList<Callable<FileChannel>> tasks = new ArrayList<Callable<FileChannel>>();
+		for (int i=0; i<100; i++) {
+			final String name = Integer.toString(i);
+			tasks.add(new Callable<FileChannel>() {
+				public FileChannel call() throws Exception {
+					FileChannel channel = write(name);
+					syncer.sync(channel, true);
+					return channel;
+				}
+			});
+		}
+		
+		for (Future<FileChannel> f : executor.invokeAll(tasks)) {
+			assertFalse(f.get().isOpen());
+		}
+		executor.shutdown();
+	}
+	
+	private FileChannel write(String name) throws IOException {
+		FileChannel channel = new RandomAccessFile(new File(testDir, name), "rw").getChannel();
+		channel.write(ByteBuffer.wrap(name.getBytes()));
+		return channel;
+	}
+	
+}
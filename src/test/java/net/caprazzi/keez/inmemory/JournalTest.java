@@ -0,0 +1,336 @@
+package net.caprazzi.keez.inmemory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.caprazzi.keez.Durability;
+import net.caprazzi.keez.Keez.Entry;
+import net.caprazzi.keez.Keez.Write;
+import net.caprazzi.keez.KeezTest;
+import net.caprazzi.keez.Syncer;
+import net.caprazzi.keez.simpleFileDb.KeezFileDbTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Iterables;
+
+public class JournalTest {
+
+	private File testDir;
+	private Journal journal;
+	private KeezInMemory db;
+	private boolean flag = false;
+
+	@Before
+	public void setUp() {
+		testDir = KeezFileDbTest.createTempDir();
+		reopen(0);
+	}
+
+	@After
+	public void tearDown() {
+		journal.close();
+	}
+
+	@Test
+	public void should_find_keys_after_reopen() {
+		db.put("key", 0, "data-1".getBytes(), PutOk);
+		db.put("key", 1, "data-2".getBytes(), PutOk);
+		db.put("other", 0, "other-data".getBytes(), PutOk);
+		reopen(0);
+
+		assertLatest("key", 2, "data-2");
+		assertLatest("other", 1, "other-data");
+		assertRevisions("key", 2);
+	}
+
+	@Test
+	public void should_not_find_deleted_keys_after_reopen() {
+		db.put("key", 0, "data".getBytes(), PutOk);
+		db.delete("key", DeleteOk);
+		db.put("other", 0, "data".getBytes(), PutOk);
+		db.delete("other", DeleteOk);
+		db.put("other", 0, "again".getBytes(), PutOk);
+		reopen(0);
+
+		db.get("key", new KeezTest.GetTestHelp() {
+			@Override
+			public void notFound(String key) {
+				flag = true;
+			}
+		});
+		assertTrue(flag);
+		assertLatest("other", 1, "again");
+		assertRevisions("other", 1);
+	}
+
+	@Test
+	public void should_not_find_purged_revisions_after_reopen() {
+		db.put("key", 0, "data-1".getBytes(), PutOk);
+		db.put("key", 1, "data-2".getBytes(), PutOk);
+		db.setAutoPurge(true);
+		db.put("key", 2, "data-3".getBytes(), PutOk);
+		reopen(0);
+
+		assertLatest("key", 3, "data-3");
+		assertRevisions("key", 1);
+	}
+
+	@Test
+	public void should_find_write_batch_after_reopen() {
+		db.put("keyA", 0, "data-A".getBytes(), PutOk);
+		db.put("keyB", 0, "data-B".getBytes(), PutOk);
+		db.writeBatch(Arrays.asList(
+				Write.put("keyA", 1, "data-A-2".getBytes()),
+				Write.delete("keyB", 1),
+				Write.put("keyC", 0, "data-C".getBytes())), WriteBatchOk);
+		reopen(0);
+
+		assertLatest("keyA", 2, "data-A-2");
+		assertLatest("keyC", 1, "data-C");
+		assertRevisions("keyA", 2);
+		db.get("keyB", new KeezTest.GetTestHelp() {
+			@Override
+			public void notFound(String key) {
+				flag = true;
+			}
+		});
+		assertTrue(flag);
+	}
+
+	@Test
+	public void snapshot_should_replace_older_segments() throws IOException {
+		for (int i=0; i<10; i++) {
+			db.put("key", i, ("data-" + i).getBytes(), PutOk);
+		}
+		journal.snapshot();
+		db.put("key", 10, "data-10".getBytes(), PutOk);
+		db.put("other", 0, "other-data".getBytes(), PutOk);
+
+		assertFalse(new File(testDir, "pfx.1.wal").exists());
+		assertTrue(new File(testDir, "pfx.2.snapshot").exists());
+		assertTrue(new File(testDir, "pfx.2.wal").exists());
+
+		reopen(0);
+		assertLatest("key", 11, "data-10");
+		assertLatest("other", 1, "other-data");
+		assertRevisions("key", 11);
+
+		journal.snapshot();
+		assertEquals(2, testDir.list().length);
+		assertTrue(new File(testDir, "pfx.3.snapshot").exists());
+	}
+
+	@Test
+	public void should_take_snapshots_in_background() throws Exception {
+		reopen(1024);
+		for (int i=0; i<200; i++) {
+			db.put("key" + (i % 10), i / 10, new byte[100], PutOk);
+		}
+		for (int i=0; i<100 && !snapshotTaken(); i++) {
+			Thread.sleep(10);
+		}
+		assertTrue(snapshotTaken());
+
+		reopen(1024);
+		assertRevisions("key3", 20);
+	}
+
+	@Test
+	public void should_drop_torn_record() throws IOException {
+		db.put("key", 0, "data-1".getBytes(), PutOk);
+		db.put("key", 1, "data-2".getBytes(), PutOk);
+		journal.close();
+
+		File file = new File(testDir, "pfx.1.wal");
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(file.length() - 3);
+		raf.close();
+
+		reopen(0);
+		assertLatest("key", 1, "data-1");
+		db.put("key", 1, "data-3".getBytes(), PutOk);
+		reopen(0);
+		assertLatest("key", 2, "data-3");
+	}
+
+	@Test
+	public void should_not_replay_a_write_that_failed_to_sync() throws IOException {
+		db.put("key", 0, "data-1".getBytes(), PutOk);
+		journal.setSyncer(new Syncer(Durability.NONE) {
+			@Override
+			public void sync(FileChannel channel, boolean release) throws IOException {
+				throw new IOException("BOOM");
+			}
+		});
+		db.put("key", 1, "data-2".getBytes(), new KeezTest.PutTestHelp() {
+			@Override
+			public void error(String key, Exception e) {
+				flag = true;
+			}
+		});
+		assertTrue(flag);
+		journal.setDurability(Durability.NONE);
+		db.put("other", 0, "other-data".getBytes(), PutOk);
+
+		reopen(0);
+		assertLatest("key", 1, "data-1");
+		assertLatest("other", 1, "other-data");
+	}
+
+	@Test
+	public void should_ignore_temporary_snapshot() throws IOException {
+		db.put("key", 0, "data".getBytes(), PutOk);
+		journal.close();
+		new File(testDir, "pfx.2.snapshot.tmp").createNewFile();
+
+		reopen(0);
+		assertLatest("key", 1, "data");
+		assertFalse(new File(testDir, "pfx.2.snapshot.tmp").exists());
+	}
+
+	@Test
+	public void should_recover_off_heap() throws IOException {
+		db.put("key", 0, "data-1".getBytes(), PutOk);
+		journal.snapshot();
+		db.put("key", 1, "data-2".getBytes(), PutOk);
+		journal.close();
+
+		journal = new Journal(testDir.getAbsolutePath(), "pfx", false, 0);
+		db = new KeezInMemory(new OffHeapArena(16), journal);
+		assertLatest("key", 2, "data-2");
+		assertRevisions("key", 2);
+	}
+
+	@Test
+	public void should_recover_writes_made_while_snapshots_are_taken() throws Exception {
+		final int threads = 4;
+		final int keys = 50;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final AtomicBoolean running = new AtomicBoolean(true);
+		ArrayList<Future<Void>> writers = new ArrayList<Future<Void>>();
+		for (int t=0; t<threads; t++) {
+			final int thread = t;
+			writers.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					int[] revs = new int[keys];
+					for (int i=0; running.get() || i < 200; i++) {
+						int k = i % keys;
+						String key = "key" + thread + "x" + k;
+						if (i % 37 == 0 && revs[k] > 0) {
+							db.delete(key, DeleteOk);
+							revs[k] = 0;
+						}
+						else {
+							db.put(key, revs[k], (key + "-" + revs[k]).getBytes(), PutOk);
+							revs[k]++;
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		for (int i=0; i<5; i++) {
+			journal.snapshot();
+		}
+		running.set(false);
+		for (Future<Void> writer : writers) {
+			writer.get();
+		}
+		executor.shutdown();
+
+		final ArrayList<Entry> before = new ArrayList<Entry>();
+		db.list(new KeezTest.ListTestHelp() {
+			@Override
+			public void entries(Iterable<Entry> entries) {
+				Iterables.addAll(before, entries);
+			}
+		});
+		reopen(0);
+		db.list(new KeezTest.ListTestHelp() {
+			@Override
+			public void entries(Iterable<Entry> entries) {
+				Entry[] after = Iterables.toArray(entries, Entry.class);
+				assertEquals(before.size(), after.length);
+				for (int i=0; i<after.length; i++) {
+					assertEquals(before.get(i).getKey(), after[i].getKey());
+					assertEquals(before.get(i).getRevision(), after[i].getRevision());
+					assertEquals(new String(before.get(i).getData()), new String(after[i].getData()));
+				}
+				flag = true;
+			}
+		});
+		assertTrue(flag);
+	}
+
+	private boolean snapshotTaken() {
+		for (String name : testDir.list()) {
+			if (name.endsWith(".snapshot")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void reopen(long snapshotBytes) {
+		if (journal != null) {
+			journal.close();
+		}
+		journal = new Journal(testDir.getAbsolutePath(), "pfx", false, snapshotBytes);
+		db = new KeezInMemory(null, journal);
+	}
+
+	private void assertLatest(String key, final int expectedRev, final String expectedData) {
+		flag = false;
+		db.get(key, new KeezTest.GetTestHelp() {
+			@Override
+			public void found(String key, int rev, byte[] data) {
+				assertEquals(expectedRev, rev);
+				assertEquals(expectedData, new String(data));
+				flag = true;
+			}
+		});
+		assertTrue(flag);
+	}
+
+	private void assertRevisions(String key, final int expectedCount) {
+		flag = false;
+		db.getRevisions(key, new KeezTest.GetRevisionsTestHelp() {
+			@Override
+			public void found(String key, Iterable<Entry> revisions) {
+				assertEquals(expectedCount, Iterables.size(revisions));
+				flag = true;
+			}
+		});
+		assertTrue(flag);
+	}
+
+	private static final KeezTest.PutTestHelp PutOk = new KeezTest.PutTestHelp() {
+		@Override public void ok(String key, int revision) {}
+	};
+
+	private static final KeezTest.DeleteTestHelp DeleteOk = new KeezTest.DeleteTestHelp() {
+		@Override public void deleted(String key, byte[] data) {}
+	};
+
+	private static final KeezTest.WriteBatchTestHelp WriteBatchOk = new KeezTest.WriteBatchTestHelp() {
+		@Override public void ok(java.util.Map<String, Integer> revisions) {}
+	};
+
+}
@@ -0,0 +1,114 @@
+package net.caprazzi.keez.inmemory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.caprazzi.keez.Keez.Write;
+import net.caprazzi.keez.KeezTest;
+
+public class KeezInMemoryDedupTest extends KeezTest {
+
+	private KeezInMemory inMemory;
+	private BodyPool pool;
+
+	@Before
+	public void setUp() {
+		inMemory = new KeezInMemory();
+		inMemory.setDeduplication(true);
+		pool = inMemory.getBodyPool();
+		this.db = inMemory;
+	}
+	
+	@Test public void put_should_share_identical_bodies_across_keys() {
+		db.put("keyA", 0, "default".getBytes(), PutOk);
+		db.put("keyB", 0, "default".getBytes(), PutOk);
+		db.put("keyC", 0, "other".getBytes(), PutOk);
+		
+		assertEquals(2, pool.size());
+		assertEquals(2, pool.count("default".getBytes()));
+		assertEquals(1, pool.count("other".getBytes()));
+	}
+	
+	@Test public void put_should_release_replaced_bodies() {
+		db.put("keyA", 0, "default".getBytes(), PutOk);
+		db.put("keyA", 1, "default".getBytes(), PutOk);
+		assertEquals(1, pool.count("default".getBytes()));
+		
+		db.put("keyA", 2, "changed".getBytes(), PutOk);
+		assertEquals(0, pool.count("default".getBytes()));
+		assertEquals(1, pool.size());
+	}
+	
+	@Test public void delete_should_release_body() {
+		db.put("keyA", 0, "default".getBytes(), PutOk);
+		db.put("keyB", 0, "default".getBytes(), PutOk);
+		
+		db.delete("keyA", DeleteOk);
+		assertEquals(1, pool.count("default".getBytes()));
+		db.delete("keyB", DeleteOk);
+		assertEquals(0, pool.size());
+	}
+	
+	@Test public void collision_should_not_hold_body() {
+		db.put("keyA", 0, "default".getBytes(), PutOk);
+		db.put("keyA", 0, "default".getBytes(), new PutTestHelp() {
+			@Override
+			public void collision(String key, int yourRev, int foundRev) {}
+		});
+		
+		assertEquals(1, pool.count("default".getBytes()));
+	}
+	
+	@Test public void write_batch_should_share_and_release_bodies() {
+		db.put("keyA", 0, "old".getBytes(), PutOk);
+		db.writeBatch(Arrays.asList(
+				Write.put("keyA", 1, "default".getBytes()), 
+				Write.put("keyB", 0, "default".getBytes())), WriteBatchOk);
+		
+		assertEquals(2, pool.count("default".getBytes()));
+		assertEquals(0, pool.count("old".getBytes()));
+	}
+	
+	@Test public void values_put_before_deduplication_should_not_be_released_from_pool() {
+		KeezInMemory db = new KeezInMemory();
+		byte[] body = "default".getBytes();
+		db.put("keyA", 0, body, PutOk);
+		db.setDeduplication(true);
+		db.put("keyB", 0, "default".getBytes(), PutOk);
+		
+		db.delete("keyA", DeleteOk);
+		assertEquals(1, db.getBodyPool().count(body));
+	}
+	
+	@Test(expected=IllegalStateException.class) 
+	public void deduplication_should_not_be_enabled_off_heap() {
+		new KeezInMemory(new OffHeapArena(16)).setDeduplication(true);
+	}
+	
+	@Test public void pool_should_return_first_body_for_equal_content() {
+		BodyPool pool = new BodyPool();
+		byte[] first = "body".getBytes();
+		assertTrue(first == pool.acquire(first));
+		assertTrue(first == pool.acquire("body".getBytes()));
+		
+		pool.release(first);
+		pool.release(first);
+		assertEquals(0, pool.size());
+		byte[] again = "body".getBytes();
+		assertTrue(again == pool.acquire(again));
+	}
+	
+	@Test public void pool_should_ignore_bodies_it_does_not_hold() {
+		BodyPool pool = new BodyPool();
+		pool.acquire("body".getBytes());
+		pool.release("body".getBytes());
+		
+		assertEquals(1, pool.size());
+	}
+	
+}
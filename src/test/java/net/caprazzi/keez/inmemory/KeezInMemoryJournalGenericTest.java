@@ -0,0 +1,25 @@
+package net.caprazzi.keez.inmemory;
+
+import org.junit.After;
+import org.junit.Before;
+
+import net.caprazzi.keez.KeezTest;
+import net.caprazzi.keez.simpleFileDb.KeezFileDbTest;
+
+public class KeezInMemoryJournalGenericTest extends KeezTest {
+
+	private Journal journal;
+
+	@Before
+	public void setUp() {
+		// small, to also take snapshots
+		journal = new Journal(KeezFileDbTest.createTempDir().getAbsolutePath(), "pfx", false, 4096);
+		this.db = new KeezInMemory(null, journal);
+	}
+	
+	@After
+	public void tearDown() {
+		journal.close();
+	}
+	
+}
@@ -0,0 +1,218 @@
+package net.caprazzi.keez.inmemory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Iterables;
+
+import net.caprazzi.keez.CompressionTest;
+import net.caprazzi.keez.DeltaTest;
+import net.caprazzi.keez.Keez.Entry;
+import net.caprazzi.keez.KeezTest;
+
+public class KeezInMemoryOffHeapTest extends KeezTest {
+
+	private OffHeapArena arena;
+
+	@Before
+	public void setUp() {
+		// small chunks, to also get values larger than a chunk
+		arena = new OffHeapArena(16);
+		this.db = new KeezInMemory(arena);
+	}
+	
+	@Test public void get_revisions_should_rebuild_delta_history() {
+		KeezInMemory db = new KeezInMemory(arena);
+		db.setDeltaHistory(true);
+		final byte[][] bodies = new byte[100][];
+		bodies[0] = CompressionTest.json(10000);
+		Random random = new Random(7);
+		for (int i=1; i<bodies.length; i++) {
+			bodies[i] = DeltaTest.edit(bodies[i-1], 3, random);
+		}
+		for (int i=0; i<bodies.length; i++) {
+			db.put("akey", i, bodies[i], PutOk);
+		}
+		
+		db.getRevisions("akey", new GetRevisionsTestHelp() {
+			@Override
+			public void found(String key, Iterable<Entry> revisions) {
+				Entry[] array = Iterables.toArray(revisions, Entry.class);
+				assertEquals(bodies.length, array.length);
+				for (int i=0; i<bodies.length; i++) {
+					assertEquals(i + 1, array[i].getRevision());
+					assertTrue(Arrays.equals(bodies[i], array[i].getData()));
+				}
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+	
+	@Test public void should_release_space_on_delete() {
+		db.put("akey", 0, "some data longer than a chunk".getBytes(), PutOk);
+		db.put("akey", 1, "more".getBytes(), PutOk);
+		db.put("akey", 2, "even more".getBytes(), PutOk);
+		assertTrue(arena.getAllocated() > 0);
+		
+		db.delete("akey", new DeleteTestHelp() {
+			@Override
+			public void deleted(String key, byte[] data) {
+				assertEquals("even more", new String(data));
+			}
+		});
+		assertEquals(0, arena.getAllocated());
+	}
+	
+	@Test public void should_read_values_larger_than_a_chunk_while_they_are_replaced() throws Exception {
+		db.setAutoPurge(true);
+		db.put("akey", 0, body(1), PutOk);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		final AtomicBoolean running = new AtomicBoolean(true);
+		// callbacks can't fail the test, exceptions thrown in them are logged
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		Future<Void> writer = executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				// each put drops the dedicated chunk of the previous revision
+				for (int rev=1; running.get(); rev++) {
+					db.put("akey", rev, body(rev + 1), PutOk);
+				}
+				return null;
+			}
+		});
+		ArrayList<Future<Void>> readers = new ArrayList<Future<Void>>();
+		for (int t=0; t<3; t++) {
+			readers.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int i=0; i<20000; i++) {
+						db.get("akey", new GetTestHelp() {
+							@Override
+							public void found(String key, int rev, byte[] data) {
+								if (!Arrays.equals(body(rev), data)) {
+									failure.set("wrong body for revision " + rev);
+								}
+							}
+							@Override
+							public void error(String key, Exception e) {
+								failure.set(e.toString());
+							}
+						});
+					}
+					return null;
+				}
+			}));
+		}
+		try {
+			for (Future<Void> reader : readers) {
+				reader.get();
+			}
+			assertNull(failure.get(), failure.get());
+		}
+		finally {
+			running.set(false);
+			writer.get();
+			executor.shutdown();
+		}
+	}
+	
+	@Test public void should_read_delta_history_while_it_is_replaced() throws Exception {
+		// chunks large enough that freed blocks are reused by other values
+		final KeezInMemory db = new KeezInMemory(new OffHeapArena(64 * 1024));
+		db.setDeltaHistory(true);
+		final byte[][] bodies = new byte[20][];
+		bodies[0] = CompressionTest.json(1000);
+		Random random = new Random(7);
+		for (int i=1; i<bodies.length; i++) {
+			bodies[i] = DeltaTest.edit(bodies[i-1], 3, random);
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		final AtomicBoolean running = new AtomicBoolean(true);
+		// callbacks can't fail the test, exceptions thrown in them are logged
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		Future<Void> writer = executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				while (running.get()) {
+					for (int i=0; i<bodies.length; i++) {
+						db.put("akey", i, bodies[i], PutOk);
+					}
+					db.delete("akey", new DeleteTestHelp() {
+						@Override
+						public void deleted(String key, byte[] data) {}
+					});
+				}
+				return null;
+			}
+		});
+		ArrayList<Future<Void>> readers = new ArrayList<Future<Void>>();
+		for (int t=0; t<3; t++) {
+			readers.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int i=0; i<5000; i++) {
+						db.getRevisions("akey", new GetRevisionsTestHelp() {
+							@Override
+							public void found(String key, Iterable<Entry> revisions) {
+								for (Entry entry : revisions) {
+									if (!Arrays.equals(bodies[entry.getRevision() - 1], entry.getData())) {
+										failure.set("wrong body for revision " + entry.getRevision());
+									}
+								}
+							}
+							@Override
+							public void notFound(String key) {}
+							@Override
+							public void error(String key, Exception e) {
+								failure.set(e.toString());
+							}
+						});
+					}
+					return null;
+				}
+			}));
+		}
+		try {
+			for (Future<Void> reader : readers) {
+				reader.get();
+			}
+			assertNull(failure.get(), failure.get());
+		}
+		finally {
+			running.set(false);
+			writer.get();
+			executor.shutdown();
+		}
+	}
+	
+	private static byte[] body(int rev) {
+		byte[] body = new byte[100];
+		Arrays.fill(body, (byte) rev);
+		return body;
+	}
+	
+	@Test public void should_release_old_revisions_on_purge() {
+		db.setAutoPurge(true);
+		db.put("akey", 0, "data".getBytes(), PutOk);
+		long allocated = arena.getAllocated();
+		db.put("akey", 1, "data".getBytes(), PutOk);
+		db.put("akey", 2, "data".getBytes(), PutOk);
+		assertEquals(allocated, arena.getAllocated());
+	}
+	
+}
@@ -1,7 +1,23 @@
 package net.caprazzi.keez.inmemory;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.junit.Before;
+import org.junit.Test;
 
+import com.google.common.collect.Iterables;
+
+import net.caprazzi.keez.CompressionTest;
+import net.caprazzi.keez.DeltaTest;
+import net.caprazzi.keez.Keez.Entry;
+import net.caprazzi.keez.Keez.Write;
 import net.caprazzi.keez.KeezTest;
 
 public class KeezInMemoryTest extends KeezTest {
@@ -12,4 +28,114 @@ public class KeezInMemoryTest extends KeezTest {
 		this.db = new KeezInMemory();
 	}
 	
+	@Test public void get_revisions_should_get_revisions_across_history_pages() {
+		final int count = 100;
+		for (int i=0; i<count; i++) {
+			db.put("akey", i, body(i), PutOk);
+		}
+		
+		db.getRevisions("akey", new GetRevisionsTestHelp() {
+			@Override
+			public void found(String key, Iterable<Entry> revisions) {
+				Entry[] array = Iterables.toArray(revisions, Entry.class);
+				assertEquals(count, array.length);
+				for (int i=0; i<count; i++) {
+					assertEquals(i + 1, array[i].getRevision());
+					assertEquals(new String(body(i)), new String(array[i].getData()));
+				}
+				called = true;
+			}
+		});
+		
+		assertTrue(called);
+	}
+	
+	@Test public void get_revisions_should_rebuild_delta_history() {
+		KeezInMemory db = new KeezInMemory();
+		db.setDeltaHistory(true);
+		final byte[][] bodies = new byte[100][];
+		bodies[0] = CompressionTest.json(10000);
+		Random random = new Random(7);
+		for (int i=1; i<bodies.length; i++) {
+			bodies[i] = DeltaTest.edit(bodies[i-1], 3, random);
+		}
+		for (int i=0; i<bodies.length; i++) {
+			db.put("akey", i, bodies[i], PutOk);
+		}
+		
+		db.getRevisions("akey", new GetRevisionsTestHelp() {
+			@Override
+			public void found(String key, Iterable<Entry> revisions) {
+				Entry[] array = Iterables.toArray(revisions, Entry.class);
+				assertEquals(bodies.length, array.length);
+				for (int i=0; i<bodies.length; i++) {
+					assertEquals(i + 1, array[i].getRevision());
+					assertTrue(Arrays.equals(bodies[i], array[i].getData()));
+				}
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+	
+	@Test public void write_batch_should_not_lose_updates_under_contention() throws InterruptedException {
+		db.put("keyA", 0, "0".getBytes(), PutOk);
+		db.put("keyB", 0, "0".getBytes(), PutOk);
+		
+		final AtomicInteger applied = new AtomicInteger();
+		Thread[] threads = new Thread[4];
+		for (int t=0; t<threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i=0; i<500; i++) {
+						final Map<String, Entry> current = getBoth();
+						int revA = current.get("keyA").getRevision();
+						int revB = current.get("keyB").getRevision();
+						// list them in reverse order, engines sort them
+						db.writeBatch(Arrays.asList(
+								Write.put("keyB", revB, String.valueOf(revB).getBytes()),
+								Write.put("keyA", revA, String.valueOf(revA).getBytes())), new WriteBatchTestHelp() {
+							@Override
+							public void ok(Map<String, Integer> revisions) {
+								applied.incrementAndGet();
+							}
+							
+							@Override
+							public void collision(Map<String, Integer> foundRevisions) {}
+						});
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		
+		Map<String, Entry> current = getBoth();
+		assertEquals(applied.get() + 1, current.get("keyA").getRevision());
+		assertEquals(applied.get() + 1, current.get("keyB").getRevision());
+	}
+	
+	private Map<String, Entry> getBoth() {
+		final AtomicReference<Map<String, Entry>> found = new AtomicReference<Map<String, Entry>>();
+		db.getAll(Arrays.asList("keyA", "keyB"), new MultiGetTestHelp() {
+			@Override
+			public void found(Map<String, Entry> entries) {
+				found.set(entries);
+			}
+		});
+		return found.get();
+	}
+	
+	private static byte[] body(int i) {
+		// some large enough to fill a page by size
+		StringBuilder sb = new StringBuilder("data-" + i);
+		for (int j=0; j<(i % 7) * 1000; j++) {
+			sb.append('x');
+		}
+		return sb.toString().getBytes();
+	}
+	
 }
@@ -0,0 +1,52 @@
+package net.caprazzi.keez.inmemory;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class OffHeapArenaTest {
+
+	OffHeapArena arena = new OffHeapArena(1024);
+	
+	@Test public void should_read_back_stored_data() {
+		long a = arena.store("hello".getBytes());
+		long b = arena.store("world".getBytes());
+		assertEquals("hello", new String(arena.read(a, 0, 5)));
+		assertEquals("world", new String(arena.read(b, 0, 5)));
+		assertEquals("orl", new String(arena.read(b, 1, 3)));
+	}
+	
+	@Test public void should_reuse_freed_blocks() {
+		long a = arena.store(new byte[100]);
+		arena.free(a, 100);
+		long b = arena.store(new byte[120]);
+		assertEquals(a, b);
+		assertEquals(1024, arena.getCapacity());
+		assertEquals(128, arena.getAllocated());
+	}
+	
+	@Test public void should_store_data_larger_than_a_chunk() {
+		byte[] data = new byte[5000];
+		data[4999] = 42;
+		long a = arena.store(data);
+		assertEquals(42, arena.read(a, 4999, 1)[0]);
+		arena.free(a, 5000);
+		assertEquals(0, arena.getAllocated());
+	}
+	
+	@Test public void should_read_zeroes_from_a_freed_dedicated_chunk() {
+		byte[] data = new byte[5000];
+		data[4999] = 42;
+		long a = arena.store(data);
+		arena.free(a, 5000);
+		assertEquals(0, arena.read(a, 4999, 1)[0]);
+		assertEquals(5000, arena.view(a, 5000).remaining());
+	}
+	
+	@Test public void should_append_data_to_a_copy() {
+		long a = arena.store("abc".getBytes());
+		long b = arena.storeAfter(a, 3, "def".getBytes());
+		assertEquals("abcdef", new String(arena.read(b, 0, 6)));
+	}
+	
+}
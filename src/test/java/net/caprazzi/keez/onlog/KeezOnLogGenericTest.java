@@ -0,0 +1,24 @@
+package net.caprazzi.keez.onlog;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+
+import net.caprazzi.keez.KeezTest;
+import net.caprazzi.keez.simpleFileDb.KeezFileDbTest;
+
+public class KeezOnLogGenericTest extends KeezTest {
+
+	@Before
+	public void setUp() {
+		File testDir = KeezFileDbTest.createTempDir();
+		db = new KeezOnLog(testDir.getAbsolutePath(), "pfx", false);
+	}
+	
+	@After
+	public void tearDown() {
+		((KeezOnLog)db).close();
+	}
+	
+}
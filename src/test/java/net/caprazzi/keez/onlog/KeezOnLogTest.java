@@ -0,0 +1,525 @@
+package net.caprazzi.keez.onlog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.caprazzi.keez.Compression;
+import net.caprazzi.keez.CompressionTest;
+import net.caprazzi.keez.CountingBloomFilter;
+import net.caprazzi.keez.DeflateCodec;
+import net.caprazzi.keez.Keez;
+import net.caprazzi.keez.Keez.Entry;
+import net.caprazzi.keez.Keez.Operation;
+import net.caprazzi.keez.Keez.Write;
+import net.caprazzi.keez.KeezTest;
+import net.caprazzi.keez.simpleFileDb.KeezFileDbTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Iterables;
+
+public class KeezOnLogTest {
+
+	File testDir;
+	private KeezOnLog db;
+	private boolean flag = false;
+	
+	@Before
+	public void setUp() {
+		testDir = KeezFileDbTest.createTempDir();
+		db = new KeezOnLog(testDir.getAbsolutePath(), "pfx", false);
+	}
+	
+	@After
+	public void tearDown() {
+		db.close();
+	}
+	
+	@Test
+	public void put_should_append_to_a_single_segment() {
+		db.put("key", 0, "data".getBytes(), KeezTestPutOk);
+		db.put("key", 1, "data".getBytes(), KeezTestPutOk);
+		db.put("other", 0, "data".getBytes(), KeezTestPutOk);
+		
+		assertEquals(1, testDir.list().length);
+		assertTrue(new File(testDir, "pfx.1.log").exists());
+	}
+	
+	@Test
+	public void should_roll_segments_when_full() {
+		db.close();
+		db = new KeezOnLog(testDir.getAbsolutePath(), "pfx", false, 10);
+		db.put("key", 0, "data".getBytes(), KeezTestPutOk);
+		db.put("key", 1, "data".getBytes(), KeezTestPutOk);
+		db.put("key", 2, "data".getBytes(), KeezTestPutOk);
+		
+		assertEquals(3, testDir.list().length);
+		assertRevisions("key", 3);
+	}
+	
+	@Test
+	public void should_find_keys_after_reopen() {
+		db.put("key", 0, "data-1".getBytes(), KeezTestPutOk);
+		db.put("key", 1, "data-2".getBytes(), KeezTestPutOk);
+		db.put("other", 0, "other-data".getBytes(), KeezTestPutOk);
+		reopen();
+		
+		assertLatest("key", 2, "data-2");
+		assertLatest("other", 1, "other-data");
+		assertRevisions("key", 2);
+	}
+	
+	@Test
+	public void should_find_streamed_records_after_reopen() {
+		db.put("key", 0, "data-1".getBytes(), KeezTestPutOk);
+		db.putStream("key", 1, new ByteArrayInputStream("data-2".getBytes()), KeezTestPutOk);
+		db.put("other", 0, "other-data".getBytes(), KeezTestPutOk);
+		reopen();
+		
+		assertLatest("key", 2, "data-2");
+		assertLatest("other", 1, "other-data");
+		assertRevisions("key", 2);
+		assertEquals(1, testDir.list().length);
+	}
+	
+	@Test
+	public void should_delete_streamed_bodies_left_by_crash_on_reopen() throws IOException {
+		db.put("key", 0, "data-1".getBytes(), KeezTestPutOk);
+		// left by a crash while putStream was spooling the body
+		new File(testDir, "pfx-put-123.tmp").createNewFile();
+		reopen();
+
+		assertLatest("key", 1, "data-1");
+		assertEquals(1, testDir.list().length);
+	}
+
+	@Test
+	public void should_not_find_deleted_keys_after_reopen() {
+		db.put("key", 0, "data".getBytes(), KeezTestPutOk);
+		db.delete("key", new KeezTest.DeleteTestHelp() {
+			@Override
+			public void deleted(String key, byte[] data) {}
+		});
+		reopen();
+		
+		db.get("key", new KeezTest.GetTestHelp() {
+			@Override
+			public void notFound(String key) {
+				flag = true;
+			}
+		});
+		assertTrue(flag);
+	}
+	
+	@Test
+	public void should_not_find_purged_revisions_after_reopen() {
+		db.put("key", 0, "data".getBytes(), KeezTestPutOk);
+		db.put("key", 1, "data".getBytes(), KeezTestPutOk);
+		db.setAutoPurge(true);
+		db.put("key", 2, "data".getBytes(), KeezTestPutOk);
+		reopen();
+		
+		assertRevisions("key", 1);
+		assertLatest("key", 3, "data");
+	}
+	
+	@Test
+	public void should_drop_torn_record_and_keep_appending() throws IOException {
+		db.put("key", 0, "data-1".getBytes(), KeezTestPutOk);
+		db.put("key", 1, "data-2".getBytes(), KeezTestPutOk);
+		db.close();
+		
+		// chop the last record in half
+		RandomAccessFile file = new RandomAccessFile(new File(testDir, "pfx.1.log"), "rw");
+		file.setLength(file.length() - 5);
+		file.close();
+		
+		db = new KeezOnLog(testDir.getAbsolutePath(), "pfx", false);
+		assertLatest("key", 1, "data-1");
+		
+		db.put("key", 1, "data-3".getBytes(), KeezTestPutOk);
+		reopen();
+		assertLatest("key", 2, "data-3");
+	}
+	
+	@Test
+	public void should_find_write_batch_after_reopen() {
+		db.put("key", 0, "data-1".getBytes(), KeezTestPutOk);
+		db.writeBatch(Arrays.asList(
+				Write.put("key", 1, "data-2".getBytes()),
+				Write.put("other", 0, "other-data".getBytes())), KeezTestWriteBatchOk);
+		reopen();
+		assertLatest("key", 2, "data-2");
+		assertLatest("other", 1, "other-data");
+	}
+	
+	@Test
+	public void should_drop_incomplete_write_batch() throws IOException {
+		db.put("key", 0, "data-1".getBytes(), KeezTestPutOk);
+		db.writeBatch(Arrays.asList(
+				Write.put("key", 1, "data-2".getBytes()),
+				Write.put("other", 0, "other-data".getBytes())), KeezTestWriteBatchOk);
+		db.close();
+		
+		// chop the last record of the batch, the first one is complete
+		RandomAccessFile file = new RandomAccessFile(new File(testDir, "pfx.1.log"), "rw");
+		file.setLength(file.length() - 5);
+		file.close();
+		
+		db = new KeezOnLog(testDir.getAbsolutePath(), "pfx", false);
+		assertLatest("key", 1, "data-1");
+		assertRevisions("key", 1);
+		
+		db.put("other", 0, "other-data".getBytes(), KeezTestPutOk);
+		reopen();
+		assertLatest("key", 1, "data-1");
+		assertLatest("other", 1, "other-data");
+	}
+	
+	@Test
+	public void filter_should_be_rebuilt_on_reopen() {
+		db.put("key", 0, "data-1".getBytes(), KeezTestPutOk);
+		db.put("gone", 0, "data-1".getBytes(), KeezTestPutOk);
+		db.delete("gone", new KeezTest.DeleteTestHelp() {
+			@Override
+			public void deleted(String key, byte[] data) {}
+		});
+		db.close();
+		
+		db = new KeezOnLog(testDir.getAbsolutePath(), "pfx", false, KeezOnLog.DEFAULT_SEGMENT_SIZE, 1000);
+		CountingBloomFilter filter = db.getNegativeLookupFilter();
+		assertEquals(1, filter.getKeyCount());
+		assertTrue(filter.mightContain("key"));
+		assertLatest("key", 1, "data-1");
+		
+		db.writeBatch(Arrays.asList(
+				Write.put("other", 0, "other-data".getBytes()),
+				Write.delete("key", 1)), KeezTestWriteBatchOk);
+		assertEquals(1, filter.getKeyCount());
+		assertTrue(filter.mightContain("other"));
+		assertLatest("other", 1, "other-data");
+	}
+	
+	@Test
+	public void should_read_compressed_and_plain_records() {
+		byte[] plain = CompressionTest.json(5000);
+		byte[] compressed = CompressionTest.json(6000);
+		db.put("key", 0, plain, KeezTestPutOk);
+		long plainSize = new File(testDir, "pfx.1.log").length();
+		db.setCompression(new Compression(new DeflateCodec(), 1024));
+		db.put("key", 1, compressed, KeezTestPutOk);
+		db.writeBatch(Arrays.asList(Write.put("other", 0, compressed)), KeezTestWriteBatchOk);
+		assertTrue(new File(testDir, "pfx.1.log").length() - plainSize < compressed.length);
+		
+		reopen();
+		assertLatest("key", 2, new String(compressed));
+		assertLatest("other", 1, new String(compressed));
+		flag = false;
+		db.getRevisions("key", new KeezTest.GetRevisionsTestHelp() {
+			@Override
+			public void found(String key, Iterable<Entry> revisions) {
+				assertEquals(new String(Iterables.get(revisions, 0).getData()), new String(CompressionTest.json(5000)));
+				flag = true;
+			}
+		});
+		assertTrue(flag);
+	}
+	
+	@Test
+	public void execute_should_apply_operations_in_order() {
+		final ArrayList<String> calls = new ArrayList<String>();
+		db.execute(Arrays.<Operation>asList(
+			op(Operation.Type.PUT, "key", 0, "data-1", new KeezTest.PutTestHelp() {
+				@Override public void ok(String key, int revision) { calls.add("put " + key + " " + revision); }
+			}),
+			op(Operation.Type.PUT, "key", 1, "data-2", new KeezTest.PutTestHelp() {
+				@Override public void ok(String key, int revision) { calls.add("put " + key + " " + revision); }
+			}),
+			op(Operation.Type.PUT, "key", 0, "data-3", new KeezTest.PutTestHelp() {
+				@Override public void collision(String key, int yourRev, int foundRev) { calls.add("collision " + key + " " + foundRev); }
+			}),
+			op(Operation.Type.GET, "key", 0, null, new KeezTest.GetTestHelp() {
+				@Override public void found(String key, int rev, byte[] data) { calls.add("get " + key + " " + new String(data)); }
+			}),
+			op(Operation.Type.PUT, "other", 0, "other-data", new KeezTest.PutTestHelp() {
+				@Override public void ok(String key, int revision) { calls.add("put " + key + " " + revision); }
+			}),
+			op(Operation.Type.DELETE, "other", 0, null, new KeezTest.DeleteTestHelp() {
+				@Override public void deleted(String key, byte[] data) { calls.add("delete " + key + " " + new String(data)); }
+			})
+		));
+		
+		assertEquals(Arrays.asList(
+			"put key 1", "put key 2", "collision key 2", "get key data-2", 
+			"put other 1", "delete other other-data"), calls);
+		
+		reopen();
+		assertLatest("key", 2, "data-2");
+		assertRevisions("key", 2);
+	}
+	
+	@Test
+	public void should_not_replay_records_before_checkpoint() throws IOException {
+		db.put("key", 0, "data-1".getBytes(), KeezTestPutOk);
+		db.put("key", 1, "data-2".getBytes(), KeezTestPutOk);
+		db.checkpoint();
+		db.put("other", 0, "other-data".getBytes(), KeezTestPutOk);
+		db.close();
+		
+		// a bad checksum in the first record would end a full replay there
+		RandomAccessFile file = new RandomAccessFile(new File(testDir, "pfx.1.log"), "rw");
+		int crc = file.readInt();
+		file.seek(0);
+		file.writeInt(~crc);
+		file.close();
+		
+		db = new KeezOnLog(testDir.getAbsolutePath(), "pfx", false);
+		assertLatest("key", 2, "data-2");
+		assertRevisions("key", 2);
+		assertLatest("other", 1, "other-data");
+	}
+	
+	@Test
+	public void should_replay_all_segments_if_checkpoint_is_corrupted() throws IOException {
+		db.put("key", 0, "data-1".getBytes(), KeezTestPutOk);
+		db.put("other", 0, "other-data".getBytes(), KeezTestPutOk);
+		db.checkpoint();
+		db.delete("key", KeezTestDeleteOk);
+		db.put("other", 1, "other-data-2".getBytes(), KeezTestPutOk);
+		db.close();
+		
+		RandomAccessFile file = new RandomAccessFile(new File(testDir, "pfx.index"), "rw");
+		file.seek(20);
+		byte b = file.readByte();
+		file.seek(20);
+		file.writeByte(b ^ 1);
+		file.close();
+		
+		db = new KeezOnLog(testDir.getAbsolutePath(), "pfx", false);
+		db.get("key", new KeezTest.GetTestHelp() {
+			@Override
+			public void notFound(String key) {
+				flag = true;
+			}
+		});
+		assertTrue(flag);
+		assertLatest("other", 2, "other-data-2");
+		assertRevisions("other", 2);
+	}
+	
+	@Test
+	public void should_write_checkpoint_when_closing() {
+		db.close();
+		db = new KeezOnLog(testDir.getAbsolutePath(), "pfx", false, 10);
+		db.setCheckpointBytes(1024 * 1024);
+		db.put("key", 0, "data-1".getBytes(), KeezTestPutOk);
+		db.put("key", 1, "data-2".getBytes(), KeezTestPutOk);
+		db.setAutoPurge(true);
+		db.put("other", 0, "other-data".getBytes(), KeezTestPutOk);
+		db.put("other", 1, "other-data-2".getBytes(), KeezTestPutOk);
+		assertFalse(new File(testDir, "pfx.index").exists());
+		
+		reopen();
+		assertTrue(new File(testDir, "pfx.index").exists());
+		assertLatest("key", 2, "data-2");
+		assertRevisions("key", 2);
+		assertLatest("other", 2, "other-data-2");
+		assertRevisions("other", 1);
+	}
+	
+	@Test
+	public void should_write_checkpoints_in_background() throws Exception {
+		db.setCheckpointBytes(1024);
+		for (int i=0; i<200; i++) {
+			db.put("key" + (i % 10), i / 10, new byte[100], KeezTestPutOk);
+		}
+		for (int i=0; i<100 && !new File(testDir, "pfx.index").exists(); i++) {
+			Thread.sleep(10);
+		}
+		assertTrue(new File(testDir, "pfx.index").exists());
+		
+		reopen();
+		assertRevisions("key3", 20);
+	}
+	
+	@Test
+	public void should_find_writes_made_while_checkpoints_are_written() throws Exception {
+		db.close();
+		db = new KeezOnLog(testDir.getAbsolutePath(), "pfx", false, 4096);
+		final int threads = 4;
+		final int keys = 50;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final AtomicBoolean running = new AtomicBoolean(true);
+		ArrayList<Future<Void>> writers = new ArrayList<Future<Void>>();
+		for (int t=0; t<threads; t++) {
+			final int thread = t;
+			writers.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					int[] revs = new int[keys];
+					for (int i=0; running.get() || i < 200; i++) {
+						int k = i % keys;
+						String key = "key" + thread + "x" + k;
+						if (i % 37 == 0 && revs[k] > 0) {
+							db.delete(key, KeezTestDeleteOk);
+							revs[k] = 0;
+						}
+						else {
+							db.put(key, revs[k], (key + "-" + revs[k]).getBytes(), KeezTestPutOk);
+							revs[k]++;
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		for (int i=0; i<5; i++) {
+			db.checkpoint();
+		}
+		running.set(false);
+		for (Future<Void> writer : writers) {
+			writer.get();
+		}
+		executor.shutdown();
+		
+		final ArrayList<Entry> before = new ArrayList<Entry>();
+		db.list(new KeezTest.ListTestHelp() {
+			@Override
+			public void entries(Iterable<Entry> entries) {
+				Iterables.addAll(before, entries);
+			}
+		});
+		reopen();
+		db.list(new KeezTest.ListTestHelp() {
+			@Override
+			public void entries(Iterable<Entry> entries) {
+				Entry[] after = Iterables.toArray(entries, Entry.class);
+				assertEquals(before.size(), after.length);
+				for (int i=0; i<after.length; i++) {
+					assertEquals(before.get(i).getKey(), after[i].getKey());
+					assertEquals(before.get(i).getRevision(), after[i].getRevision());
+					assertEquals(new String(before.get(i).getData()), new String(after[i].getData()));
+				}
+				flag = true;
+			}
+		});
+		assertTrue(flag);
+	}
+	
+	@Test
+	public void readers_should_see_none_or_all_of_a_batch() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		final AtomicBoolean running = new AtomicBoolean(true);
+		Future<Void> writer = executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				for (int i=0; running.get() || i < 200; i++) {
+					db.writeBatch(Arrays.asList(
+						Write.put("a", i, ("a-" + i).getBytes()),
+						Write.put("b", i, ("b-" + i).getBytes())), KeezTestWriteBatchOk);
+				}
+				return null;
+			}
+		});
+		try {
+			final int[] revs = new int[2];
+			for (int i=0; i<2000; i++) {
+				revs[0] = revs[1] = 0;
+				db.get("a", new KeezTest.GetTestHelp() {
+					@Override
+					public void found(String key, int rev, byte[] data) {
+						revs[0] = rev;
+					}
+					@Override
+					public void notFound(String key) {}
+				});
+				db.get("b", new KeezTest.GetTestHelp() {
+					@Override
+					public void found(String key, int rev, byte[] data) {
+						revs[1] = rev;
+					}
+					@Override
+					public void notFound(String key) {}
+				});
+				// a batch sets both keys, and "a" is read first
+				assertTrue(revs[0] + " > " + revs[1], revs[0] <= revs[1]);
+			}
+		}
+		finally {
+			running.set(false);
+			writer.get();
+			executor.shutdown();
+		}
+	}
+	
+	//////// TEST UTILS BELOW ////////////
+	
+	private static Operation op(final Operation.Type type, final String key, final int rev, final String body, final Keez.Callback callback) {
+		return new Operation() {
+			@Override public Type getType() { return type; }
+			@Override public String getKey() { return key; }
+			@Override public int getRevision() { return rev; }
+			@Override public byte[] getBody() { return (body == null) ? null : body.getBytes(); }
+			@Override public Keez.Callback getCallback() { return callback; }
+		};
+	}
+	
+	private void reopen() {
+		db.close();
+		db = new KeezOnLog(testDir.getAbsolutePath(), "pfx", false);
+	}
+	
+	private void assertLatest(String key, final int expectedRev, final String expectedData) {
+		flag = false;
+		db.get(key, new KeezTest.GetTestHelp() {
+			@Override
+			public void found(String key, int rev, byte[] data) {
+				assertEquals(expectedRev, rev);
+				assertEquals(expectedData, new String(data));
+				flag = true;
+			}
+		});
+		assertTrue(flag);
+	}
+	
+	private void assertRevisions(String key, final int expectedCount) {
+		flag = false;
+		db.getRevisions(key, new KeezTest.GetRevisionsTestHelp() {
+			@Override
+			public void found(String key, Iterable<Entry> revisions) {
+				assertEquals(expectedCount, Iterables.size(revisions));
+				flag = true;
+			}
+		});
+		assertTrue(flag);
+	}
+	
+	private static final KeezTest.WriteBatchTestHelp KeezTestWriteBatchOk = new KeezTest.WriteBatchTestHelp() {
+		@Override public void ok(Map<String, Integer> revisions) {}
+	};
+	
+	private static final KeezTest.PutTestHelp KeezTestPutOk = new KeezTest.PutTestHelp() {
+		@Override public void ok(String key, int revision) {}
+	};
+	
+	private static final KeezTest.DeleteTestHelp KeezTestDeleteOk = new KeezTest.DeleteTestHelp() {
+		@Override public void deleted(String key, byte[] data) {}
+	};
+	
+}
@@ -0,0 +1,54 @@
+package net.caprazzi.keez.simpleFileDb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+
+import com.google.common.collect.Iterables;
+
+import net.caprazzi.keez.Keez.Entry;
+import net.caprazzi.keez.KeezTest;
+import net.caprazzi.keez.onfile.KeezOnFile;
+
+public class KeezFileDbCheckpointGenericTest extends KeezTest {
+
+	private File testDir;
+	
+	@Before
+	public void setUp() {
+		testDir = KeezFileDbTest.createTempDir();
+		db = new KeezOnFile(testDir.getAbsolutePath(), "pfx", false, 0, 4);
+	}
+	
+	@After
+	public void tearDown() {
+		ArrayList<String> before = latest((KeezOnFile) db);
+		((KeezOnFile) db).close();
+		
+		// the index loaded from the checkpoint has what was written
+		KeezOnFile reopened = new KeezOnFile(testDir.getAbsolutePath(), "pfx", false, 0, 4);
+		assertEquals(before, latest(reopened));
+		reopened.close();
+	}
+	
+	private static ArrayList<String> latest(KeezOnFile db) {
+		final ArrayList<String> latest = new ArrayList<String>();
+		db.list(new KeezTest.ListTestHelp() {
+			@Override
+			public void entries(Iterable<Entry> entries) {
+				for (Entry entry : Iterables.toArray(entries, Entry.class)) {
+					latest.add(entry.getKey() + "." + entry.getRevision());
+				}
+			}
+			
+			@Override
+			public void notFound() {}
+		});
+		return latest;
+	}
+	
+}
@@ -0,0 +1,20 @@
+package net.caprazzi.keez.simpleFileDb;
+
+import java.io.File;
+
+import org.junit.Before;
+
+import net.caprazzi.keez.KeezTest;
+import net.caprazzi.keez.onfile.KeezOnFile;
+
+public class KeezFileDbDedupGenericTest extends KeezTest {
+
+	@Before
+	public void setUp() {
+		File testDir = KeezFileDbTest.createTempDir();
+		KeezOnFile db = new KeezOnFile(testDir.getAbsolutePath(), "pfx", false);
+		db.setDeduplication(true);
+		this.db = db;
+	}
+	
+}
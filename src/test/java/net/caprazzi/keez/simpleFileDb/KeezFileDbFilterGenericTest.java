@@ -0,0 +1,18 @@
+package net.caprazzi.keez.simpleFileDb;
+
+import java.io.File;
+
+import org.junit.Before;
+
+import net.caprazzi.keez.KeezTest;
+import net.caprazzi.keez.onfile.KeezOnFile;
+
+public class KeezFileDbFilterGenericTest extends KeezTest {
+
+	@Before
+	public void setUp() {
+		File testDir = KeezFileDbTest.createTempDir();
+		db = new KeezOnFile(testDir.getAbsolutePath(), "pfx", false, 1000);
+	}
+	
+}
@@ -5,22 +5,37 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import net.caprazzi.keez.Compression;
+import net.caprazzi.keez.CompressionTest;
+import net.caprazzi.keez.DeflateCodec;
+import net.caprazzi.keez.DeltaTest;
 import net.caprazzi.keez.Keez.Delete;
 import net.caprazzi.keez.Keez.Entry;
 import net.caprazzi.keez.Keez.Put;
 import net.caprazzi.keez.KeezTest;
 import net.caprazzi.keez.onfile.KeezOnFile;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import com.google.common.base.Predicate;
+import com.google.common.base.Strings;
 import com.google.common.collect.Iterables;
 
 public class KeezFileDbTest {
@@ -385,6 +400,426 @@ public class KeezFileDbTest {
 		assertTrue(flag);
 	}
 		
+	@Test
+	public void should_find_existing_revisions_when_created() {
+		db.put("key", 0, data, PutNoop);
+		db.put("key", 1, moredata, PutNoop);
+		db.put("key", 2, betterdata, PutNoop);
+		
+		db = new KeezOnFile(testDir.getAbsolutePath(), "pfx", false);
+		db.get("key", new KeezTest.GetTestHelp() {
+			public void found(String key, int rev, byte[] foundData) {
+				assertEquals(3, rev);
+				assertTrue(Arrays.equals(betterdata, foundData));
+				flag = true;
+			}
+		});
+		assertTrue(flag);
+		
+		flag = false;
+		db.put("key", 3, data, new KeezTest.PutTestHelp() {
+			public void ok(String key, int revision) {
+				assertEquals(4, revision);
+				flag = true;
+			}
+		});
+		assertTrue(flag);
+	}
+	
+	@Test
+	public void should_read_compressed_and_plain_revisions() throws IOException {
+		final byte[] plain = CompressionTest.json(5000);
+		final byte[] compressed = CompressionTest.json(6000);
+		db.put("key", 0, plain, PutNoop);
+		db.setCompression(new Compression(new DeflateCodec(), 1024));
+		db.put("key", 1, compressed, PutNoop);
+		assertTrue(new File(testDir, "pfx-key.1").exists());
+		assertTrue(new File(testDir, "pfx-key.z.2").exists());
+		assertTrue(new File(testDir, "pfx-key.z.2").length() < compressed.length / 2);
+		
+		// without compression, after reopen
+		db = new KeezOnFile(testDir.getAbsolutePath(), "pfx", false);
+		db.getRevisions("key", new KeezTest.GetRevisionsTestHelp() {
+			@Override
+			public void found(String key, Iterable<Entry> revisions) {
+				Entry[] array = Iterables.toArray(revisions, Entry.class);
+				assertEquals(2, array.length);
+				assertTrue(Arrays.equals(plain, array[0].getData()));
+				assertTrue(Arrays.equals(compressed, array[1].getData()));
+				flag = true;
+			}
+		});
+		assertTrue(flag);
+		
+		db.delete("key", new KeezTest.DeleteTestHelp() {
+			@Override
+			public void deleted(String key, byte[] data) {
+				assertTrue(Arrays.equals(compressed, data));
+			}
+		});
+		assertFalse(new File(testDir, "pfx-key.z.2").exists());
+	}
+	
+	@Test
+	public void should_store_history_as_deltas() throws IOException {
+		db.setDeltaHistory(true);
+		final byte[][] bodies = new byte[100][];
+		bodies[0] = CompressionTest.json(10000);
+		Random random = new Random(7);
+		for (int i=1; i<bodies.length; i++) {
+			bodies[i] = DeltaTest.edit(bodies[i-1], 3, random);
+		}
+		for (int i=0; i<bodies.length; i++) {
+			db.put("key", i, bodies[i], PutNoop);
+		}
+		assertTrue(new File(testDir, "pfx-key.1").exists());
+		assertTrue(new File(testDir, "pfx-key.d.2").exists());
+		assertFalse(new File(testDir, "pfx-key.2").exists());
+		assertTrue(new File(testDir, "pfx-key.33").exists());
+		assertTrue(new File(testDir, "pfx-key.100").exists());
+		
+		long stored = 0;
+		for (File file : testDir.listFiles()) {
+			stored += file.length();
+		}
+		long full = 0;
+		for (byte[] body : bodies) {
+			full += body.length;
+		}
+		assertTrue("stored " + stored + " bytes of " + full, stored * 10 < full);
+		
+		// after reopen, without delta history
+		db = new KeezOnFile(testDir.getAbsolutePath(), "pfx", false);
+		db.getRevisions("key", new KeezTest.GetRevisionsTestHelp() {
+			@Override
+			public void found(String key, Iterable<Entry> revisions) {
+				Entry[] array = Iterables.toArray(revisions, Entry.class);
+				assertEquals(bodies.length, array.length);
+				for (int i=0; i<bodies.length; i++) {
+					assertTrue(Arrays.equals(bodies[i], array[i].getData()));
+				}
+				flag = true;
+			}
+		});
+		assertTrue(flag);
+		
+		db.delete("key", new KeezTest.DeleteTestHelp() {
+			@Override
+			public void deleted(String key, byte[] data) {
+				assertTrue(Arrays.equals(bodies[bodies.length - 1], data));
+			}
+		});
+		assertEquals(0, testDir.listFiles().length);
+	}
+	
+	@Test
+	public void should_read_full_file_left_by_crash_while_storing_delta() throws IOException {
+		db.setDeltaHistory(true);
+		byte[] first = CompressionTest.json(5000);
+		byte[] second = DeltaTest.edit(first, 3, new Random(8));
+		db.put("key", 0, first, PutNoop);
+		db.put("key", 1, second, PutNoop);
+		db.put("key", 2, DeltaTest.edit(second, 3, new Random(9)), PutNoop);
+		FileUtils.writeByteArrayToFile(new File(testDir, "pfx-key.2"), second);
+		
+		db = new KeezOnFile(testDir.getAbsolutePath(), "pfx", false);
+		db.getRevisions("key", new KeezTest.GetRevisionsTestHelp() {
+			@Override
+			public void found(String key, Iterable<Entry> revisions) {
+				assertEquals(3, Iterables.size(revisions));
+				flag = true;
+			}
+		});
+		assertTrue(flag);
+	}
+	
+	@Test
+	public void should_store_identical_bodies_once() {
+		db.setDeduplication(true);
+		byte[] body = CompressionTest.json(5000);
+		db.put("keyA", 0, body, PutNoop);
+		db.put("keyB", 0, body.clone(), PutNoop);
+		db.put("keyA", 1, body.clone(), PutNoop);
+		
+		assertEquals(1, sharedBodies().length);
+		assertTrue(new File(testDir, "pfx-keyA.s.1").exists());
+		assertTrue(new File(testDir, "pfx-keyA.s.2").exists());
+		assertTrue(new File(testDir, "pfx-keyB.s.1").exists());
+		long stored = 0;
+		for (File file : testDir.listFiles()) {
+			stored += file.length();
+		}
+		assertTrue("stored " + stored, stored < body.length + 200);
+		assertLatest("keyB", 1, body);
+	}
+	
+	@Test
+	public void should_release_shared_bodies_on_purge_and_delete() {
+		db.setDeduplication(true);
+		db.put("keyA", 0, data, PutNoop);
+		db.put("keyB", 0, data, PutNoop);
+		db.put("keyA", 1, moredata, PutNoop);
+		assertEquals(2, sharedBodies().length);
+		
+		db.delete("keyB", DeleteNoop);
+		assertEquals(2, sharedBodies().length);
+		
+		db.setAutoPurge(true);
+		db.put("keyA", 2, betterdata, PutNoop);
+		assertEquals(1, sharedBodies().length);
+		assertLatest("keyA", 3, betterdata);
+		
+		db.delete("keyA", DeleteNoop);
+		assertEquals(0, testDir.listFiles().length);
+	}
+	
+	@Test
+	public void should_share_streamed_bodies() {
+		db.setDeduplication(true);
+		db.put("keyA", 0, data, PutNoop);
+		db.putStream("keyB", 0, new ByteArrayInputStream(data), PutNoop);
+		db.putStream("keyC", 0, new ByteArrayInputStream(moredata), PutNoop);
+		
+		assertEquals(2, sharedBodies().length);
+		assertEquals(5, testDir.listFiles().length);
+		assertLatest("keyB", 1, data);
+		assertLatest("keyC", 1, moredata);
+	}
+	
+	@Test
+	public void should_delete_streamed_bodies_left_by_crash_when_created() throws IOException {
+		db.put("keyA", 0, data, PutNoop);
+		// left by a crash while putStream was spooling the body
+		FileUtils.writeByteArrayToFile(new File(testDir, ".pfx-keyB-123.tmp"), data);
+		
+		db = new KeezOnFile(testDir.getAbsolutePath(), "pfx", false);
+		assertEquals(1, testDir.listFiles().length);
+		assertLatest("keyA", 1, data);
+	}
+	
+	@Test
+	public void should_count_references_again_when_created() throws IOException {
+		db.setDeduplication(true);
+		db.setCompression(new Compression(new DeflateCodec(), 16));
+		byte[] body = CompressionTest.json(2000);
+		db.put("keyA", 0, body, PutNoop);
+		db.put("keyB", 0, body, PutNoop);
+		// left by a crash before the hash file was written
+		FileUtils.writeByteArrayToFile(new File(testDir, "pfx." + Strings.repeat("ab", 32)), data);
+		
+		db = new KeezOnFile(testDir.getAbsolutePath(), "pfx", false);
+		assertEquals(1, sharedBodies().length);
+		assertTrue(sharedBodies()[0].getName().endsWith(".z"));
+		assertLatest("keyA", 1, body);
+		
+		db.delete("keyA", DeleteNoop);
+		assertEquals(1, sharedBodies().length);
+		db.delete("keyB", DeleteNoop);
+		assertEquals(0, testDir.listFiles().length);
+	}
+	
+	@Test
+	public void should_read_shared_and_plain_revisions() {
+		db.put("key", 0, data, PutNoop);
+		db.setDeduplication(true);
+		db.put("key", 1, moredata, PutNoop);
+		db.setDeduplication(false);
+		db.put("key", 2, betterdata, PutNoop);
+		
+		db = new KeezOnFile(testDir.getAbsolutePath(), "pfx", false);
+		db.getRevisions("key", new KeezTest.GetRevisionsTestHelp() {
+			@Override
+			public void found(String key, Iterable<Entry> revisions) {
+				Entry[] array = Iterables.toArray(revisions, Entry.class);
+				assertTrue(Arrays.equals(data, array[0].getData()));
+				assertTrue(Arrays.equals(moredata, array[1].getData()));
+				assertTrue(Arrays.equals(betterdata, array[2].getData()));
+				flag = true;
+			}
+		});
+		assertTrue(flag);
+	}
+	
+	@Test
+	public void should_load_index_from_checkpoint_without_scanning() throws IOException {
+		db = new KeezOnFile(testDir.getAbsolutePath(), "pfx", false, 0, 1000);
+		db.put("key", 0, data, PutNoop);
+		db.put("key", 1, moredata, PutNoop);
+		db.put("other", 0, data, PutNoop);
+		db.close();
+		assertTrue(new File(testDir, "pfx.checkpoint").exists());
+		// only found by scanning the directory
+		FileUtils.writeByteArrayToFile(new File(testDir, "pfx-ghost.1"), data);
+		
+		db = new KeezOnFile(testDir.getAbsolutePath(), "pfx", false, 0, 1000);
+		assertLatest("key", 2, moredata);
+		assertLatest("other", 1, data);
+		db.get("ghost", new KeezTest.GetTestHelp() {
+			public void notFound(String key) {
+				flag = true;
+			}
+		});
+		assertTrue(flag);
+		db.close();
+		
+		db = new KeezOnFile(testDir.getAbsolutePath(), "pfx", false);
+		assertLatest("ghost", 1, data);
+		assertFalse(new File(testDir, "pfx.checkpoint").exists());
+	}
+	
+	@Test
+	public void should_replay_changes_logged_after_checkpoint() {
+		db = new KeezOnFile(testDir.getAbsolutePath(), "pfx", false, 0, 1000);
+		db.put("key", 0, data, PutNoop);
+		db.put("gone", 0, data, PutNoop);
+		db.put("key", 1, moredata, PutNoop);
+		db.delete("gone", DeleteNoop);
+		db.setAutoPurge(true);
+		db.put("purged", 0, data, PutNoop);
+		db.put("purged", 1, betterdata, PutNoop);
+		
+		// not closed, as after a crash
+		db = new KeezOnFile(testDir.getAbsolutePath(), "pfx", false, 0, 1000);
+		assertLatest("key", 2, moredata);
+		assertLatest("purged", 2, betterdata);
+		db.getRevisions("purged", new KeezTest.GetRevisionsTestHelp() {
+			@Override
+			public void found(String key, Iterable<Entry> revisions) {
+				assertEquals(1, Iterables.size(revisions));
+				flag = true;
+			}
+		});
+		assertTrue(flag);
+		flag = false;
+		db.get("gone", new KeezTest.GetTestHelp() {
+			public void notFound(String key) {
+				flag = true;
+			}
+		});
+		assertTrue(flag);
+		db.close();
+	}
+	
+	@Test
+	public void should_scan_directory_if_checkpoint_is_corrupted() throws IOException {
+		db = new KeezOnFile(testDir.getAbsolutePath(), "pfx", false, 0, 1000);
+		db.put("key", 0, data, PutNoop);
+		db.put("key", 1, moredata, PutNoop);
+		db.close();
+		
+		File checkpoint = new File(testDir, "pfx.checkpoint");
+		byte[] bytes = FileUtils.readFileToByteArray(checkpoint);
+		bytes[bytes.length - 1] ^= 1;
+		FileUtils.writeByteArrayToFile(checkpoint, bytes);
+		
+		db = new KeezOnFile(testDir.getAbsolutePath(), "pfx", false, 0, 1000);
+		assertLatest("key", 2, moredata);
+		db.put("key", 2, betterdata, PutNoop);
+		db.close();
+		
+		db = new KeezOnFile(testDir.getAbsolutePath(), "pfx", false, 0, 1000);
+		assertLatest("key", 3, betterdata);
+		db.close();
+	}
+	
+	@Test
+	public void should_keep_references_to_shared_bodies_in_checkpoint() {
+		db = new KeezOnFile(testDir.getAbsolutePath(), "pfx", false, 0, 1000);
+		db.setDeduplication(true);
+		db.put("keyA", 0, data, PutNoop);
+		db.put("keyB", 0, data, PutNoop);
+		db.close();
+		
+		db = new KeezOnFile(testDir.getAbsolutePath(), "pfx", false, 0, 1000);
+		db.delete("keyA", DeleteNoop);
+		assertLatest("keyB", 1, data);
+		db.delete("keyB", DeleteNoop);
+		db.close();
+		
+		db = new KeezOnFile(testDir.getAbsolutePath(), "pfx", false);
+		assertEquals(0, testDir.listFiles().length);
+	}
+	
+	private File[] sharedBodies() {
+		return testDir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith("pfx.");
+			}
+		});
+	}
+	
+	private void assertLatest(String key, final int expectedRev, final byte[] expected) {
+		flag = false;
+		db.get(key, new KeezTest.GetTestHelp() {
+			@Override
+			public void found(String key, int rev, byte[] data) {
+				assertEquals(expectedRev, rev);
+				assertTrue(Arrays.equals(expected, data));
+				flag = true;
+			}
+		});
+		assertTrue(flag);
+	}
+	
+	@Test
+	public void should_ignore_unrelated_files_when_created() throws IOException {
+		new File(testDir, "pfx-key.notarevision").createNewFile();
+		new File(testDir, "other-key.1").createNewFile();
+		
+		db = new KeezOnFile(testDir.getAbsolutePath(), "pfx", false);
+		db.get("key", new KeezTest.GetTestHelp() {
+			public void notFound(String key) {
+				flag = true;
+			}
+		});
+		assertTrue(flag);
+	}
+	
+	@Test
+	public void concurrent_updates_of_one_key_should_not_lose_revisions() throws Exception {
+		db.setAutoPurge(true);
+		db.put("key", 0, data, PutNoop);
+		
+		final int threads = 4;
+		final int updates = 50;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int t=0; t<threads; t++) {
+			tasks.add(new Callable<Void>() {
+				public Void call() throws Exception {
+					for (int i=0; i<updates; i++) {
+						final AtomicBoolean done = new AtomicBoolean(false);
+						final AtomicInteger rev = new AtomicInteger(1);
+						while (!done.get()) {
+							db.put("key", rev.get(), data, new KeezTest.PutTestHelp() {
+								public void ok(String key, int revision) {
+									done.set(true);
+								}
+								public void collision(String key, int yourRev, int foundRev) {
+									rev.set(foundRev);
+								}
+							});
+						}
+					}
+					return null;
+				}
+			});
+		}
+		for (Future<Void> f : executor.invokeAll(tasks)) {
+			f.get();
+		}
+		executor.shutdown();
+		
+		db.get("key", new KeezTest.GetTestHelp() {
+			public void found(String key, int rev, byte[] foundData) {
+				assertEquals(1 + threads * updates, rev);
+				flag = true;
+			}
+		});
+		assertTrue(flag);
+	}
+	
 	@Test
 	public void should_error_if_bad_char_in_key() {
 		db.put("  ", 0, data, new KeezTest.PutTestHelp() {